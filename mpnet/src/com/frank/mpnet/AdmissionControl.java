@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * AdmissionControl.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The admission control of the connections accepted by a
+ * {@linkplain SessionTCPServer#serve(TransactionHandler, java.util.concurrent.Executor, AdmissionControl)
+ * serving session}.
+ * <p>
+ * The control limits the number of the connections served at the same time,
+ * and the rate of accepting the connections by a token bucket. When the
+ * maximum number of connections is reached, or the executor of the handlers is
+ * saturated, a new connection is rejected at once by a reset instead of
+ * waiting in the backlog of the server socket.
+ * </p>
+ * <p>
+ * The control also counts the connections accepted, rejected, queued in the
+ * executor and being handled, thus, the same control shall not be shared by
+ * several sessions.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class AdmissionControl
+{
+	/**
+	 * The maximum number of connections served at the same time,
+	 * <code>0</code> for unlimited.
+	 */
+	private final int			maxConnections;
+	/**
+	 * The permits of the connections served, <code>null</code> if unlimited.
+	 */
+	private final Semaphore		permits;
+	/**
+	 * The number of connections accepted per second, <code>0</code> for
+	 * unlimited.
+	 */
+	private final double		acceptRate;
+	/**
+	 * The capacity of the token bucket.
+	 */
+	private final double		burst;
+	/**
+	 * The tokens available in the bucket.
+	 */
+	private double				tokens;
+	/**
+	 * The time of the last refilling in nanoseconds.
+	 */
+	private long				refilled;
+	/**
+	 * The number of connections admitted.
+	 */
+	private final AtomicLong	accepted	= new AtomicLong();
+	/**
+	 * The number of connections rejected.
+	 */
+	private final AtomicLong	rejected	= new AtomicLong();
+	/**
+	 * The number of connections whose handler failed.
+	 */
+	private final AtomicLong	failed		= new AtomicLong();
+	/**
+	 * The number of connections waiting in the executor.
+	 */
+	private final AtomicInteger	queued		= new AtomicInteger();
+	/**
+	 * The number of connections being handled.
+	 */
+	private final AtomicInteger	active		= new AtomicInteger();
+
+	/**
+	 * Construct an instance of <tt>AdmissionControl</tt> without any limit,
+	 * which only counts the connections.
+	 */
+	public AdmissionControl()
+	{
+		this(0, 0);
+	}
+
+	/**
+	 * Construct an instance of <tt>AdmissionControl</tt> with a burst of one
+	 * second of connections.
+	 * 
+	 * @param maxConnections
+	 *            the maximum number of connections served at the same time,
+	 *            <code>0</code> for unlimited
+	 * @param acceptRate
+	 *            the number of connections accepted per second, <code>0</code>
+	 *            for unlimited
+	 * @throws IllegalArgumentException
+	 *             if any argument is negative
+	 */
+	public AdmissionControl(int maxConnections, double acceptRate)
+			throws IllegalArgumentException
+	{
+		this(maxConnections, acceptRate, Math.max(1, acceptRate));
+	}
+
+	/**
+	 * Construct an instance of <tt>AdmissionControl</tt>.
+	 * 
+	 * @param maxConnections
+	 *            the maximum number of connections served at the same time,
+	 *            <code>0</code> for unlimited
+	 * @param acceptRate
+	 *            the number of connections accepted per second, <code>0</code>
+	 *            for unlimited
+	 * @param burst
+	 *            the number of connections which can be accepted at once after
+	 *            an idle period
+	 * @throws IllegalArgumentException
+	 *             if any argument is negative, or <code>burst</code> is less
+	 *             than one while the rate is limited
+	 */
+	public AdmissionControl(int maxConnections, double acceptRate, double burst)
+			throws IllegalArgumentException
+	{
+		if (maxConnections < 0 || acceptRate < 0)
+			throw new IllegalArgumentException(String.format(
+					"The limits(%d, %f) shall not be negative.",
+					maxConnections, acceptRate));
+		if (acceptRate > 0 && burst < 1)
+			throw new IllegalArgumentException(String.format(
+					"The burst(%f) shall not be less than one.", burst));
+		this.maxConnections = maxConnections;
+		this.permits = maxConnections == 0 ? null : new Semaphore(
+				maxConnections);
+		this.acceptRate = acceptRate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.refilled = System.nanoTime();
+	}
+
+	/**
+	 * Waits until the rate limit allows accepting the next connection.
+	 * <p>
+	 * While waiting, the new connections stay in the backlog of the server
+	 * socket. This method is called by the accepting thread only.
+	 * </p>
+	 * 
+	 * @throws InterruptedException
+	 *             if the accepting thread is interrupted
+	 */
+	void throttle() throws InterruptedException
+	{
+		if (acceptRate == 0)
+			return;
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilled) * acceptRate / 1e9);
+		refilled = now;
+		if (tokens < 1)
+		{
+			long wait = (long) Math.ceil((1 - tokens) * 1e9 / acceptRate);
+			TimeUnit.NANOSECONDS.sleep(wait);
+			tokens = 1;
+			refilled = System.nanoTime();
+		}
+		tokens--;
+	}
+
+	/**
+	 * Tries to admit a new connection.
+	 * 
+	 * @return <code>true</code> if admitted, the connection shall be
+	 *         {@linkplain #release() released} after served; or
+	 *         <code>false</code> if the maximum number of connections is
+	 *         reached
+	 */
+	boolean tryAdmit()
+	{
+		return permits == null || permits.tryAcquire();
+	}
+
+	/**
+	 * Releases an admitted connection.
+	 */
+	void release()
+	{
+		if (permits != null)
+			permits.release();
+	}
+
+	/**
+	 * Counts a connection handed to the executor.
+	 */
+	void queued()
+	{
+		accepted.incrementAndGet();
+		queued.incrementAndGet();
+	}
+
+	/**
+	 * Counts a connection started by the executor.
+	 */
+	void started()
+	{
+		queued.decrementAndGet();
+		active.incrementAndGet();
+	}
+
+	/**
+	 * Counts a connection finished by its handler.
+	 */
+	void finished()
+	{
+		active.decrementAndGet();
+	}
+
+	/**
+	 * Counts a connection whose handler failed.
+	 */
+	void failed()
+	{
+		failed.incrementAndGet();
+	}
+
+	/**
+	 * Counts a connection rejected.
+	 * 
+	 * @param queued
+	 *            <code>true</code> if the connection has been counted as
+	 *            queued, it will be uncounted
+	 */
+	void rejected(boolean queued)
+	{
+		if (queued)
+		{
+			accepted.decrementAndGet();
+			this.queued.decrementAndGet();
+		}
+		rejected.incrementAndGet();
+	}
+
+	/**
+	 * Returns the maximum number of connections served at the same time.
+	 * 
+	 * @return the maximum number of connections, <code>0</code> for unlimited
+	 */
+	public int getMaxConnections()
+	{
+		return maxConnections;
+	}
+
+	/**
+	 * Returns the number of connections accepted per second.
+	 * 
+	 * @return the accepting rate, <code>0</code> for unlimited
+	 */
+	public double getAcceptRate()
+	{
+		return acceptRate;
+	}
+
+	/**
+	 * Returns the number of connections admitted and handed to the executor.
+	 * 
+	 * @return the number of connections accepted
+	 */
+	public long getAcceptedCount()
+	{
+		return accepted.get();
+	}
+
+	/**
+	 * Returns the number of connections rejected because the maximum number
+	 * of connections is reached or the executor is saturated.
+	 * 
+	 * @return the number of connections rejected
+	 */
+	public long getRejectedCount()
+	{
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the number of connections whose handler failed by an exception,
+	 * which are closed as the others.
+	 * 
+	 * @return the number of connections failed
+	 */
+	public long getFailedCount()
+	{
+		return failed.get();
+	}
+
+	/**
+	 * Returns the number of connections waiting in the executor to be handled.
+	 * 
+	 * @return the number of connections queued
+	 */
+	public int getQueuedCount()
+	{
+		return queued.get();
+	}
+
+	/**
+	 * Returns the number of connections being handled.
+	 * 
+	 * @return the number of connections active
+	 */
+	public int getActiveCount()
+	{
+		return active.get();
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return String.format(
+				"accepted: %d, rejected: %d, failed: %d, queued: %d, active: %d",
+				getAcceptedCount(), getRejectedCount(), getFailedCount(),
+				getQueuedCount(), getActiveCount());
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * DatagramBatch.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable batch of datagrams for the batched receiving.
+ * <p>
+ * The batch holds a fixed ring of buffers, one datagram for each slot, while
+ * the lengths and the sources of the received datagrams are stored in the
+ * parallel arrays. Each receiving overwrites the batch from the first slot,
+ * thus, the same batch can be received into again and again without any
+ * allocation.
+ * </p>
+ * <p>
+ * A batch is not thread safe, it shall be used by one receiver at a time.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ * @see TransactionUDP#receiveBatch(DatagramBatch)
+ */
+public class DatagramBatch
+{
+	/**
+	 * The buffers of the slots.
+	 */
+	private final ByteBuffer[]		buffers;
+	/**
+	 * The lengths of the received datagrams.
+	 */
+	private final int[]				lengths;
+	/**
+	 * The sources of the received datagrams.
+	 */
+	private final SocketInfo[]		sources;
+	/**
+	 * The number of the received datagrams.
+	 */
+	private int						count;
+
+	/**
+	 * Construct an instance of <tt>DatagramBatch</tt> with the specified
+	 * buffers.
+	 * 
+	 * @param buffers
+	 *            the buffers of the slots, heap or direct
+	 * @throws IllegalArgumentException
+	 *             if no buffer is specified
+	 */
+	public DatagramBatch(ByteBuffer... buffers) throws IllegalArgumentException
+	{
+		if (buffers.length == 0)
+			throw new IllegalArgumentException(
+					"At least one buffer shall be specified.");
+		this.buffers = buffers.clone();
+		this.lengths = new int[buffers.length];
+		this.sources = new SocketInfo[buffers.length];
+	}
+
+	/**
+	 * Construct an instance of <tt>DatagramBatch</tt> with the direct buffers
+	 * of the specified size.
+	 * 
+	 * @param capacity
+	 *            the number of the slots
+	 * @param size
+	 *            the size of each buffer, the longer datagrams are truncated
+	 * @throws IllegalArgumentException
+	 *             if <code>capacity</code> or <code>size</code> is not positive
+	 */
+	public DatagramBatch(int capacity, int size)
+			throws IllegalArgumentException
+	{
+		this(allocate(capacity, size));
+	}
+
+	/**
+	 * Allocates the direct buffers of the slots.
+	 * 
+	 * @param capacity
+	 *            the number of the slots
+	 * @param size
+	 *            the size of each buffer
+	 * @return the buffers
+	 * @throws IllegalArgumentException
+	 *             if <code>capacity</code> or <code>size</code> is not positive
+	 */
+	private static ByteBuffer[] allocate(int capacity, int size)
+			throws IllegalArgumentException
+	{
+		if (capacity < 1 || size < 1)
+			throw new IllegalArgumentException(String.format(
+					"The capacity(%d) and the size(%d) shall be positive.",
+					capacity, size));
+		ByteBuffer[] buffers = new ByteBuffer[capacity];
+		for (int i = 0; i < capacity; i++)
+			buffers[i] = ByteBuffer.allocateDirect(size);
+		return buffers;
+	}
+
+	/**
+	 * Returns the number of the slots.
+	 * 
+	 * @return the number of the slots
+	 */
+	public int getCapacity()
+	{
+		return buffers.length;
+	}
+
+	/**
+	 * Returns the number of the datagrams received by the last receiving.
+	 * 
+	 * @return the number of the datagrams
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Returns the buffer of the specified slot. The buffer of a received
+	 * datagram is flipped, ready to be read.
+	 * 
+	 * @param index
+	 *            the index of the slot
+	 * @return the buffer
+	 */
+	public ByteBuffer getBuffer(int index)
+	{
+		return buffers[index];
+	}
+
+	/**
+	 * Returns the length of the datagram of the specified slot.
+	 * 
+	 * @param index
+	 *            the index of the slot, less than the {@linkplain #getCount()
+	 *            count}
+	 * @return the length of the datagram
+	 */
+	public int getLength(int index)
+	{
+		return lengths[index];
+	}
+
+	/**
+	 * Returns the source of the datagram of the specified slot.
+	 * 
+	 * @param index
+	 *            the index of the slot, less than the {@linkplain #getCount()
+	 *            count}
+	 * @return the source of the datagram
+	 */
+	public SocketInfo getSource(int index)
+	{
+		return sources[index];
+	}
+
+	/**
+	 * Returns the lengths of the datagrams. The array is shared with the batch
+	 * and only the first {@linkplain #getCount() count} elements are valid.
+	 * 
+	 * @return the lengths of the datagrams
+	 */
+	public int[] getLengths()
+	{
+		return lengths;
+	}
+
+	/**
+	 * Returns the sources of the datagrams. The array is shared with the batch
+	 * and only the first {@linkplain #getCount() count} elements are valid.
+	 * 
+	 * @return the sources of the datagrams
+	 */
+	public SocketInfo[] getSources()
+	{
+		return sources;
+	}
+
+	/**
+	 * Clears the batch before a receiving.
+	 */
+	void reset()
+	{
+		for (int i = 0; i < count; i++)
+			sources[i] = null;
+		count = 0;
+	}
+
+	/**
+	 * Clears and returns the buffer of the next slot to receive into.
+	 * 
+	 * @return the buffer of the next slot
+	 */
+	ByteBuffer next()
+	{
+		ByteBuffer buffer = buffers[count];
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Completes the next slot with a received datagram.
+	 * 
+	 * @param source
+	 *            the source of the datagram
+	 */
+	void add(SocketInfo source)
+	{
+		ByteBuffer buffer = buffers[count];
+		buffer.flip();
+		lengths[count] = buffer.remaining();
+		sources[count] = source;
+		count++;
+	}
+}
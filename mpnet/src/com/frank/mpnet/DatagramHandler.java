@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * DatagramHandler.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The handler of the datagrams received by the receiving loop of a UDP shard.
+ * <p>
+ * The handler is called on the receiving thread of the shard, and the
+ * received data is only valid until the handler returns.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ * @see SessionSharded#receive(DatagramHandler)
+ */
+public interface DatagramHandler
+{
+	/**
+	 * Handles a received datagram.
+	 * 
+	 * @param transaction
+	 *            the transaction of the shard which received the datagram,
+	 *            which can send the replies
+	 * @param source
+	 *            the source of the datagram
+	 * @param data
+	 *            the received data
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	public void handle(TransactionUDP transaction, SocketInfo source,
+			ByteBuffer data) throws IOException;
+}
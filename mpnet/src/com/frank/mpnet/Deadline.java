@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * Deadline.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The deadline of one blocking operation of a transaction.
+ * <p>
+ * The deadline is a task of the {@linkplain SharedScheduler shared
+ * scheduler} instead of a thread for each operation. If the operation does
+ * not finish in time, the task {@linkplain Transaction#abort() aborts} the
+ * transaction, thus, the blocked operation fails and the failure can be
+ * reported as a {@linkplain TransactionTimeoutException}.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+final class Deadline implements Runnable
+{
+	/**
+	 * The state of an armed deadline.
+	 */
+	private static final int			ARMED		= 0;
+	/**
+	 * The state of a deadline whose operation finished in time.
+	 */
+	private static final int			FINISHED	= 1;
+	/**
+	 * The state of an expired deadline.
+	 */
+	private static final int			EXPIRED		= 2;
+	/**
+	 * The transaction of the operation.
+	 */
+	private final Transaction			transaction;
+	/**
+	 * The name of the operation.
+	 */
+	private final String				operation;
+	/**
+	 * The timeout in nanoseconds.
+	 */
+	private final long					timeout;
+	/**
+	 * The state.
+	 */
+	private final AtomicInteger			state		= new AtomicInteger(ARMED);
+	/**
+	 * The timer, <code>null</code> if no timeout.
+	 */
+	private final ScheduledFuture<?>	timer;
+
+	/**
+	 * Construct an instance of <tt>Deadline</tt> and arms it.
+	 * 
+	 * @param transaction
+	 *            the transaction of the operation
+	 * @param operation
+	 *            the name of the operation
+	 * @param timeout
+	 *            the timeout, <code>0</code> for no timeout
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 * @throws IllegalArgumentException
+	 *             if <code>timeout</code> is negative
+	 */
+	Deadline(Transaction transaction, String operation, long timeout,
+			TimeUnit unit) throws IllegalArgumentException
+	{
+		this.transaction = transaction;
+		this.operation = operation;
+		this.timeout = toNanos(timeout, unit);
+		this.timer = timeout == 0 ? null : SharedScheduler.get().schedule(
+				this, timeout, unit);
+	}
+
+	/**
+	 * Aborts the transaction if the operation has not finished.
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		if (state.compareAndSet(ARMED, EXPIRED))
+			transaction.abort();
+	}
+
+	/**
+	 * Disarms the deadline after the operation returned or failed.
+	 */
+	void finish()
+	{
+		if (timer != null && state.compareAndSet(ARMED, FINISHED))
+			timer.cancel(false);
+	}
+
+	/**
+	 * Throws a {@linkplain TransactionTimeoutException} if the deadline
+	 * expired, called with the failure of the operation.
+	 * 
+	 * @param cause
+	 *            the failure of the operation
+	 * @throws TransactionTimeoutException
+	 *             if the deadline expired
+	 */
+	void check(Throwable cause) throws TransactionTimeoutException
+	{
+		if (state.get() == EXPIRED)
+			throw timeout(transaction, operation, timeout, cause);
+	}
+
+	/**
+	 * Converts a timeout into nanoseconds.
+	 * 
+	 * @param timeout
+	 *            the timeout, <code>0</code> for no timeout
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 * @return the timeout in nanoseconds
+	 * @throws IllegalArgumentException
+	 *             if <code>timeout</code> is negative
+	 */
+	static long toNanos(long timeout, TimeUnit unit)
+			throws IllegalArgumentException
+	{
+		if (timeout < 0)
+			throw new IllegalArgumentException(String.format(
+					"The timeout(%d) shall not be negative.", timeout));
+		return unit.toNanos(timeout);
+	}
+
+	/**
+	 * Returns the exception of a timed out operation.
+	 * 
+	 * @param transaction
+	 *            the transaction of the operation
+	 * @param operation
+	 *            the name of the operation
+	 * @param timeout
+	 *            the timeout in nanoseconds
+	 * @param cause
+	 *            the cause, <code>null</code> if none
+	 * @return the exception
+	 */
+	static TransactionTimeoutException timeout(Transaction transaction,
+			String operation, long timeout, Throwable cause)
+	{
+		return new TransactionTimeoutException(String.format(
+				"The %s of %s timed out after %d ms.", operation, transaction
+						.getType(), TimeUnit.NANOSECONDS.toMillis(timeout)),
+				cause);
+	}
+}
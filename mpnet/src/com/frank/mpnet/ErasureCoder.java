@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * ErasureCoder.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.frank.mpnet.ErrorCorrection.Scheme;
+
+/**
+ * The erasure coder of the {@linkplain ErrorCorrection forward error
+ * correction}.
+ * <p>
+ * The parity shard <code>j</code> of a group of <code>k</code> data shards is
+ * <code>sum(C[j][i] * d[i])</code> over GF(256), where <code>C</code> is all
+ * ones for {@linkplain Scheme#XOR}, and the Cauchy matrix
+ * <code>1 / ((k + j) ^ i)</code> for {@linkplain Scheme#ReedSolomon}, whose
+ * square sub-matrices are all invertible. Thus, the lost data shards are
+ * solved from the same number of the arrived parity shards. The shorter last
+ * data shard of a message is padded with zeros.
+ * </p>
+ * <p>
+ * The multiplications are looked up in a table of 64 KB. The working arrays
+ * only grow with the largest shards seen, thus, the coding is free of
+ * allocation at the steady state. The coder is not thread safe, it is guarded
+ * by the sending or the receiving lock of the transaction.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+final class ErasureCoder
+{
+	/**
+	 * The primitive polynomial of GF(256).
+	 */
+	private static final int		POLYNOMIAL	= 0x11d;
+	/**
+	 * The multiplication table of GF(256).
+	 */
+	private static final byte[][]	MUL			= new byte[256][256];
+	/**
+	 * The multiplicative inverses of GF(256).
+	 */
+	private static final int[]		INV			= new int[256];
+	static
+	{
+		int[] exp = new int[510];
+		int[] log = new int[256];
+		int x = 1;
+		for (int i = 0; i < 255; i++)
+		{
+			exp[i] = x;
+			log[x] = i;
+			x <<= 1;
+			if (x >= 256)
+				x ^= POLYNOMIAL;
+		}
+		for (int i = 255; i < exp.length; i++)
+			exp[i] = exp[i - 255];
+		for (int a = 1; a < 256; a++)
+		{
+			INV[a] = exp[255 - log[a]];
+			for (int b = 1; b < 256; b++)
+				MUL[a][b] = (byte) exp[log[a] + log[b]];
+		}
+	}
+	/**
+	 * The working shard.
+	 */
+	private byte[]					shard		= new byte[0];
+	/**
+	 * The working rows, the parity shards of the encoding or the syndromes
+	 * of the decoding.
+	 */
+	private byte[]					rows		= new byte[0];
+	/**
+	 * The working matrix of the decoding.
+	 */
+	private int[]					matrix		= new int[0];
+	/**
+	 * The inverse of the working matrix.
+	 */
+	private int[]					inverse		= new int[0];
+	/**
+	 * The indices of the lost data shards.
+	 */
+	private int[]					missing		= new int[0];
+	/**
+	 * The indices of the parity shards used by the decoding.
+	 */
+	private int[]					parities	= new int[0];
+
+	/**
+	 * Returns the coefficient of a data shard in a parity shard.
+	 * 
+	 * @param scheme
+	 *            the coding scheme
+	 * @param k
+	 *            the number of the data shards of a full group
+	 * @param j
+	 *            the index of the parity shard in the group
+	 * @param i
+	 *            the index of the data shard in the group
+	 * @return the coefficient
+	 */
+	private static int coefficient(Scheme scheme, int k, int j, int i)
+	{
+		return scheme == Scheme.XOR ? 1 : INV[(k + j) ^ i];
+	}
+
+	/**
+	 * Encodes the parity shards of a group.
+	 * 
+	 * @param src
+	 *            the buffer of the message, whose position and limit are kept
+	 * @param offset
+	 *            the offset of the first data shard of the group
+	 * @param available
+	 *            the bytes of the data from <code>offset</code>, the rest of
+	 *            the group is padded with zeros
+	 * @param shards
+	 *            the number of the data shards of the group
+	 * @param size
+	 *            the size of a shard
+	 * @param correction
+	 *            the correction
+	 * @return the parity shards one after another, valid until the next
+	 *         coding
+	 */
+	byte[] encode(ByteBuffer src, int offset, int available, int shards,
+			int size, ErrorCorrection correction)
+	{
+		Scheme scheme = correction.getScheme();
+		int k = correction.getDataShards();
+		int m = correction.getParityShards();
+		ensure(size, m, shards);
+		Arrays.fill(rows, 0, m * size, (byte) 0);
+		int position = src.position();
+		int limit = src.limit();
+		try
+		{
+			for (int i = 0; i < shards; i++)
+			{
+				int n = Math.min(size, available - i * size);
+				read(src, offset + i * size, n);
+				for (int j = 0; j < m; j++)
+					accumulate(rows, j * size, shard, 0,
+							coefficient(scheme, k, j, i), n);
+			}
+		}
+		finally
+		{
+			src.limit(limit).position(position);
+		}
+		return rows;
+	}
+
+	/**
+	 * Rebuilds the lost data shards of a group in place.
+	 * <p>
+	 * Each shard <code>i</code> of the message is stored at
+	 * <code>i * size</code> of the buffer, where the data shards come first
+	 * and the parity shards of each group follow all of them.
+	 * </p>
+	 * 
+	 * @param buffer
+	 *            the buffer of the message
+	 * @param arrived
+	 *            the flags of the arrived shards
+	 * @param count
+	 *            the number of the data shards of the message
+	 * @param group
+	 *            the index of the group
+	 * @param size
+	 *            the size of a shard
+	 * @param scheme
+	 *            the coding scheme
+	 * @param k
+	 *            the number of the data shards of a full group
+	 * @param m
+	 *            the number of the parity shards of a group
+	 * @return the number of the rebuilt data shards, <code>-1</code> if too
+	 *         few shards arrived
+	 */
+	int decode(ByteBuffer buffer, boolean[] arrived, int count, int group,
+			int size, Scheme scheme, int k, int m)
+	{
+		int base = group * k;
+		int shards = Math.min(k, count - base);
+		int first = count + group * m;
+		ensure(size, m, k);
+		int e = 0;
+		for (int i = 0; i < shards; i++)
+			if (!arrived[base + i])
+				missing[e++] = i;
+		if (e == 0)
+			return 0;
+		int p = 0;
+		for (int j = 0; j < m && p < e; j++)
+			if (arrived[first + j])
+				parities[p++] = j;
+		if (p < e)
+			return -1;
+		// the syndromes: the parities less the arrived data
+		for (int r = 0; r < e; r++)
+		{
+			read(buffer, (first + parities[r]) * size, size);
+			System.arraycopy(shard, 0, rows, r * size, size);
+		}
+		for (int i = 0; i < shards; i++)
+		{
+			if (!arrived[base + i])
+				continue;
+			read(buffer, (base + i) * size, size);
+			for (int r = 0; r < e; r++)
+				accumulate(rows, r * size, shard, 0,
+						coefficient(scheme, k, parities[r], i), size);
+		}
+		for (int r = 0; r < e; r++)
+			for (int c = 0; c < e; c++)
+				matrix[r * e + c] = coefficient(scheme, k, parities[r],
+						missing[c]);
+		if (!invert(e))
+			return -1;
+		buffer.limit(buffer.capacity());
+		for (int c = 0; c < e; c++)
+		{
+			Arrays.fill(shard, 0, size, (byte) 0);
+			for (int r = 0; r < e; r++)
+				accumulate(shard, 0, rows, r * size, inverse[c * e + r], size);
+			buffer.position((base + missing[c]) * size);
+			buffer.put(shard, 0, size);
+		}
+		return e;
+	}
+
+	/**
+	 * Inverts the working matrix by the Gauss-Jordan elimination.
+	 * 
+	 * @param n
+	 *            the order of the matrix
+	 * @return <code>false</code> if the matrix is singular
+	 */
+	private boolean invert(int n)
+	{
+		for (int r = 0; r < n; r++)
+			for (int c = 0; c < n; c++)
+				inverse[r * n + c] = r == c ? 1 : 0;
+		for (int c = 0; c < n; c++)
+		{
+			int pivot = c;
+			while (pivot < n && matrix[pivot * n + c] == 0)
+				pivot++;
+			if (pivot == n)
+				return false;
+			if (pivot != c)
+				for (int i = 0; i < n; i++)
+				{
+					swap(matrix, pivot * n + i, c * n + i);
+					swap(inverse, pivot * n + i, c * n + i);
+				}
+			byte[] scale = MUL[INV[matrix[c * n + c]]];
+			for (int i = 0; i < n; i++)
+			{
+				matrix[c * n + i] = scale[matrix[c * n + i]] & 0xff;
+				inverse[c * n + i] = scale[inverse[c * n + i]] & 0xff;
+			}
+			for (int r = 0; r < n; r++)
+			{
+				int factor = matrix[r * n + c];
+				if (r == c || factor == 0)
+					continue;
+				byte[] row = MUL[factor];
+				for (int i = 0; i < n; i++)
+				{
+					matrix[r * n + i] ^= row[matrix[c * n + i]] & 0xff;
+					inverse[r * n + i] ^= row[inverse[c * n + i]] & 0xff;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Swaps two elements of an array.
+	 * 
+	 * @param a
+	 *            the array
+	 * @param i
+	 *            the index of an element
+	 * @param j
+	 *            the index of the other element
+	 */
+	private static void swap(int[] a, int i, int j)
+	{
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+
+	/**
+	 * Adds the product of a coefficient and the source to the destination.
+	 * 
+	 * @param dst
+	 *            the destination
+	 * @param dstOffset
+	 *            the offset of the destination
+	 * @param src
+	 *            the source
+	 * @param srcOffset
+	 *            the offset of the source
+	 * @param c
+	 *            the coefficient
+	 * @param n
+	 *            the number of the bytes
+	 */
+	private static void accumulate(byte[] dst, int dstOffset, byte[] src,
+			int srcOffset, int c, int n)
+	{
+		if (c == 0)
+			return;
+		if (c == 1)
+		{
+			for (int t = 0; t < n; t++)
+				dst[dstOffset + t] ^= src[srcOffset + t];
+			return;
+		}
+		byte[] row = MUL[c];
+		for (int t = 0; t < n; t++)
+			dst[dstOffset + t] ^= row[src[srcOffset + t] & 0xff];
+	}
+
+	/**
+	 * Reads a shard of the buffer into the working shard.
+	 * 
+	 * @param buffer
+	 *            the buffer
+	 * @param offset
+	 *            the offset of the shard
+	 * @param n
+	 *            the number of the bytes
+	 */
+	private void read(ByteBuffer buffer, int offset, int n)
+	{
+		buffer.limit(offset + n).position(offset);
+		buffer.get(shard, 0, n);
+	}
+
+	/**
+	 * Grows the working arrays if needed.
+	 * 
+	 * @param size
+	 *            the size of a shard
+	 * @param m
+	 *            the number of the parity shards of a group
+	 * @param k
+	 *            the number of the data shards of a group
+	 */
+	private void ensure(int size, int m, int k)
+	{
+		if (shard.length < size)
+			shard = new byte[size];
+		if (rows.length < m * size)
+			rows = new byte[m * size];
+		if (matrix.length < m * m)
+		{
+			matrix = new int[m * m];
+			inverse = new int[m * m];
+			parities = new int[m];
+		}
+		if (missing.length < k)
+			missing = new int[k];
+	}
+}
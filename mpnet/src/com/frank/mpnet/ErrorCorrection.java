@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * ErrorCorrection.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+/**
+ * The forward error correction of the fragmented UDP messages.
+ * <p>
+ * The data fragments of a message are divided into groups of
+ * {@linkplain #getDataShards() data shards}, and each group is followed by
+ * the {@linkplain #getParityShards() parity shards}, thus, the receiver
+ * rebuilds up to the parity shards of lost fragments of each group without a
+ * round trip. The overhead of the bandwidth is the ratio of the parity shards
+ * to the data shards.
+ * </p>
+ * <p>
+ * The parameters are carried by each fragment, thus, the receiver decodes
+ * whatever the sender chooses.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ * @see TransactionUDP#setErrorCorrection(ErrorCorrection)
+ */
+public final class ErrorCorrection
+{
+	/**
+	 * The maximum number of the data and the parity shards of a group.
+	 */
+	public static final int	MAX_SHARDS	= 255;
+	/**
+	 * The coding scheme.
+	 */
+	private final Scheme	scheme;
+	/**
+	 * The number of the data shards of a group.
+	 */
+	private final int		dataShards;
+	/**
+	 * The number of the parity shards of a group.
+	 */
+	private final int		parityShards;
+
+	/**
+	 * The coding scheme of the parity shards.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	public static enum Scheme
+	{
+		/**
+		 * One parity shard of each group is the exclusive or of the data
+		 * shards, which rebuilds one lost fragment of the group.
+		 */
+		XOR,
+		/**
+		 * The parity shards are the Reed-Solomon code over GF(256) with a
+		 * Cauchy matrix, any data shards of the group can be rebuilt from the
+		 * same number of the parity shards.
+		 */
+		ReedSolomon;
+	}
+
+	/**
+	 * Construct an instance of <tt>ErrorCorrection</tt>.
+	 * 
+	 * @param scheme
+	 *            the coding scheme
+	 * @param dataShards
+	 *            the number of the data shards of a group
+	 * @param parityShards
+	 *            the number of the parity shards of a group, <code>1</code>
+	 *            for {@linkplain Scheme#XOR}
+	 * @throws IllegalArgumentException
+	 *             if the numbers of the shards are out of range
+	 */
+	public ErrorCorrection(Scheme scheme, int dataShards, int parityShards)
+			throws IllegalArgumentException
+	{
+		if (scheme == null)
+			throw new IllegalArgumentException("The scheme shall be specified.");
+		if (dataShards < 1 || parityShards < 1
+				|| dataShards + parityShards > MAX_SHARDS)
+			throw new IllegalArgumentException(String.format(
+					"The shards(%d + %d) shall be positive and within %d.",
+					dataShards, parityShards, MAX_SHARDS));
+		if (scheme == Scheme.XOR && parityShards != 1)
+			throw new IllegalArgumentException(String.format(
+					"The XOR scheme has one parity shard rather than %d.",
+					parityShards));
+		this.scheme = scheme;
+		this.dataShards = dataShards;
+		this.parityShards = parityShards;
+	}
+
+	/**
+	 * Returns the XOR correction of one parity shard for each group.
+	 * 
+	 * @param dataShards
+	 *            the number of the data shards of a group
+	 * @return the correction
+	 * @throws IllegalArgumentException
+	 *             if <code>dataShards</code> is out of range
+	 */
+	public static ErrorCorrection xor(int dataShards)
+			throws IllegalArgumentException
+	{
+		return new ErrorCorrection(Scheme.XOR, dataShards, 1);
+	}
+
+	/**
+	 * Returns the Reed-Solomon correction.
+	 * 
+	 * @param dataShards
+	 *            the number of the data shards of a group
+	 * @param parityShards
+	 *            the number of the parity shards of a group
+	 * @return the correction
+	 * @throws IllegalArgumentException
+	 *             if the numbers of the shards are out of range
+	 */
+	public static ErrorCorrection reedSolomon(int dataShards, int parityShards)
+			throws IllegalArgumentException
+	{
+		return new ErrorCorrection(Scheme.ReedSolomon, dataShards, parityShards);
+	}
+
+	/**
+	 * Returns the coding scheme.
+	 * 
+	 * @return the coding scheme
+	 */
+	public Scheme getScheme()
+	{
+		return scheme;
+	}
+
+	/**
+	 * Returns the number of the data shards of a group.
+	 * 
+	 * @return the number of the data shards
+	 */
+	public int getDataShards()
+	{
+		return dataShards;
+	}
+
+	/**
+	 * Returns the number of the parity shards of a group.
+	 * 
+	 * @return the number of the parity shards
+	 */
+	public int getParityShards()
+	{
+		return parityShards;
+	}
+
+	/**
+	 * Returns the overhead ratio of the parity shards to the data shards.
+	 * 
+	 * @return the overhead ratio
+	 */
+	public double getOverhead()
+	{
+		return parityShards / (double) dataShards;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return String.format("ErrorCorrection[%s, %d+%d]", scheme, dataShards,
+				parityShards);
+	}
+}
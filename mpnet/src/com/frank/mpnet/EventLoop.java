@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * EventLoop.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The event loop which dispatches the readiness events of the registered
+ * channels on one thread.
+ * <p>
+ * The event loop owns a {@linkplain Selector selector} and a thread which
+ * waits for the readiness events of the registered channels and runs the
+ * tasks submitted by {@linkplain #execute(Runnable)}. All of the handlers of
+ * the registered channels are called on the thread of the event loop, thus,
+ * they shall never block.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class EventLoop implements Closeable
+{
+	/**
+	 * The handler of the readiness events of a registered channel.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	interface Handler
+	{
+		/**
+		 * Called after the channel is registered.
+		 * 
+		 * @param key
+		 *            the selection key of the channel
+		 * @throws IOException
+		 *             if IO error occurs
+		 */
+		void registered(SelectionKey key) throws IOException;
+
+		/**
+		 * Called when the channel is ready for the interested operations.
+		 * 
+		 * @param key
+		 *            the selection key of the channel
+		 * @throws IOException
+		 *             if IO error occurs
+		 */
+		void ready(SelectionKey key) throws IOException;
+
+		/**
+		 * Called when the channel shall be closed, either because the handler
+		 * failed or because the event loop is closed.
+		 * 
+		 * @param cause
+		 *            the failure, <code>null</code> if the event loop is
+		 *            closed
+		 */
+		void close(Throwable cause);
+	}
+
+	/**
+	 * The sequence number of the event loop threads.
+	 */
+	private static final AtomicInteger	sequence	= new AtomicInteger();
+	/**
+	 * The selector.
+	 */
+	private final Selector				selector;
+	/**
+	 * The thread of the event loop.
+	 */
+	private final Thread				thread;
+	/**
+	 * The tasks to run on the thread of the event loop.
+	 */
+	private final Queue<Runnable>		tasks		= new ConcurrentLinkedQueue<Runnable>();
+	/**
+	 * The flag for running the event loop.
+	 */
+	private volatile boolean			running		= true;
+	/**
+	 * The number of the connections held by the event loop.
+	 */
+	private final AtomicInteger			connections	= new AtomicInteger();
+
+	/**
+	 * Construct an instance of <tt>EventLoop</tt> and start its thread.
+	 * 
+	 * @throws SessionException
+	 *             if failed to open the selector
+	 */
+	public EventLoop() throws SessionException
+	{
+		try
+		{
+			selector = Selector.open();
+		}
+		catch (IOException e)
+		{
+			throw new SessionException("Unable to open the selector: "
+					+ e.getLocalizedMessage(), e);
+		}
+		thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				loop();
+			}
+		}, "mpnet-loop-" + sequence.incrementAndGet());
+		thread.start();
+	}
+
+	/**
+	 * Submits a task to run on the thread of the event loop.
+	 * <p>
+	 * The runtime exception thrown by the task will be ignored, the task shall
+	 * handle its own failure.
+	 * </p>
+	 * 
+	 * @param task
+	 *            the task to run
+	 */
+	public void execute(Runnable task)
+	{
+		tasks.add(task);
+		if (!inEventLoop())
+			selector.wakeup();
+	}
+
+	/**
+	 * Returns <code>true</code> if the current thread is the thread of the
+	 * event loop.
+	 * 
+	 * @return <code>true</code> if in the event loop
+	 */
+	public boolean inEventLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Returns <code>true</code> if the event loop is not closed.
+	 * 
+	 * @return <code>true</code> if the event loop is running
+	 */
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * Returns the number of the connections held by the event loop, including
+	 * the connections being registered.
+	 * 
+	 * @return the number of the connections
+	 */
+	public int getConnectionCount()
+	{
+		return connections.get();
+	}
+
+	/**
+	 * Adjusts the number of the connections held by the event loop.
+	 * 
+	 * @param delta
+	 *            the number of the connections added, or negative if removed
+	 */
+	void addConnections(int delta)
+	{
+		connections.addAndGet(delta);
+	}
+
+	/**
+	 * Registers the channel with the event loop, the channel will be
+	 * configured non-blocking.
+	 * <p>
+	 * The registration is done on the thread of the event loop, then
+	 * {@linkplain Handler#registered(SelectionKey)} is called.
+	 * </p>
+	 * 
+	 * @param channel
+	 *            the channel to register
+	 * @param ops
+	 *            the interested operations
+	 * @param handler
+	 *            the handler of the readiness events
+	 */
+	void register(final SelectableChannel channel, final int ops,
+			final Handler handler)
+	{
+		execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					channel.configureBlocking(false);
+					handler.registered(channel.register(selector, ops, handler));
+				}
+				catch (Exception e)
+				{
+					close(handler, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets or clears the interested operations of the selection key on the
+	 * thread of the event loop.
+	 * 
+	 * @param key
+	 *            the selection key
+	 * @param ops
+	 *            the operations to set or clear
+	 * @param set
+	 *            <code>true</code> if set the operations, <code>false</code>
+	 *            if clear them
+	 */
+	void interest(final SelectionKey key, final int ops, final boolean set)
+	{
+		if (!inEventLoop())
+		{
+			execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					interest(key, ops, set);
+				}
+			});
+			return;
+		}
+		if (key.isValid())
+			key.interestOps(set ? key.interestOps() | ops : key
+					.interestOps() & ~ops);
+	}
+
+	/**
+	 * Runs the event loop until it is closed.
+	 */
+	private void loop()
+	{
+		try
+		{
+			while (running)
+			{
+				selector.select();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					Handler handler = (Handler) key.attachment();
+					try
+					{
+						if (key.isValid())
+							handler.ready(key);
+					}
+					catch (Exception e)
+					{
+						close(handler, e);
+					}
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+				{
+					try
+					{
+						task.run();
+					}
+					catch (RuntimeException e)
+					{
+						// the task shall handle its own failure
+					}
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			running = false;
+		}
+		finally
+		{
+			for (SelectionKey key : selector.keys())
+				close((Handler) key.attachment(), null);
+			try
+			{
+				selector.close();
+			}
+			catch (IOException e)
+			{
+				// nothing to do while the event loop is terminated
+			}
+		}
+	}
+
+	/**
+	 * Closes the channel of the handler.
+	 * 
+	 * @param handler
+	 *            the handler
+	 * @param cause
+	 *            the failure, <code>null</code> if the event loop is closed
+	 */
+	private void close(Handler handler, Throwable cause)
+	{
+		try
+		{
+			handler.close(cause);
+		}
+		catch (RuntimeException e)
+		{
+			// the handler shall not fail while closing
+		}
+	}
+
+	/**
+	 * Closes the event loop and all of the registered channels.
+	 * <p>
+	 * If not called on the thread of the event loop, this method waits until
+	 * the event loop is terminated.
+	 * </p>
+	 * 
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close()
+	{
+		running = false;
+		selector.wakeup();
+		if (inEventLoop())
+			return;
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * EventLoopGroup.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The group of {@linkplain EventLoop event loops} which share the
+ * connections.
+ * <p>
+ * Each connection is assigned to one event loop of the group by
+ * {@linkplain #next()} and stays on it, thus, all of its events are processed
+ * on the same thread without locking. The event loop is chosen according to
+ * the {@linkplain Balance balance strategy} of the group.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class EventLoopGroup implements Closeable
+{
+	/**
+	 * The strategy to choose the event loop for a new connection.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	public static enum Balance
+	{
+		/**
+		 * Choose the event loops in turn.
+		 */
+		RoundRobin,
+		/**
+		 * Choose the event loop which holds the least connections.
+		 */
+		LeastLoaded;
+	}
+
+	/**
+	 * The event loops.
+	 */
+	private final EventLoop[]		loops;
+	/**
+	 * The index of the next event loop to choose or to start scanning from.
+	 */
+	private final AtomicInteger		next	= new AtomicInteger();
+	/**
+	 * The balance strategy.
+	 */
+	private volatile Balance		balance;
+
+	/**
+	 * Construct an instance of <tt>EventLoopGroup</tt> with one event loop for
+	 * each available processor.
+	 * 
+	 * @throws SessionException
+	 *             if failed to create the event loops
+	 */
+	public EventLoopGroup() throws SessionException
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Construct an instance of <tt>EventLoopGroup</tt> with the specified
+	 * number of event loops which are chosen in turn.
+	 * 
+	 * @param threads
+	 *            the number of event loops
+	 * @throws SessionException
+	 *             if failed to create the event loops
+	 * @throws IllegalArgumentException
+	 *             if <code>threads</code> is not positive
+	 */
+	public EventLoopGroup(int threads) throws SessionException,
+			IllegalArgumentException
+	{
+		this(threads, Balance.RoundRobin);
+	}
+
+	/**
+	 * Construct an instance of <tt>EventLoopGroup</tt> with the specified
+	 * number of event loops and balance strategy.
+	 * 
+	 * @param threads
+	 *            the number of event loops
+	 * @param balance
+	 *            the balance strategy
+	 * @throws SessionException
+	 *             if failed to create the event loops
+	 * @throws IllegalArgumentException
+	 *             if <code>threads</code> is not positive
+	 */
+	public EventLoopGroup(int threads, Balance balance)
+			throws SessionException, IllegalArgumentException
+	{
+		if (threads <= 0)
+			throw new IllegalArgumentException(String.format(
+					"The number of event loops(%d) shall be positive.", threads));
+		this.balance = balance;
+		loops = new EventLoop[threads];
+		try
+		{
+			for (int i = 0; i < threads; i++)
+				loops[i] = new EventLoop();
+		}
+		catch (SessionException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Construct an instance of <tt>EventLoopGroup</tt> with the specified
+	 * event loops which are chosen in turn.
+	 * 
+	 * @param loops
+	 *            the event loops, which will be closed with the group
+	 * @throws IllegalArgumentException
+	 *             if no event loop is specified
+	 */
+	EventLoopGroup(EventLoop... loops) throws IllegalArgumentException
+	{
+		if (loops.length == 0)
+			throw new IllegalArgumentException(
+					"The number of event loops(0) shall be positive.");
+		this.balance = Balance.RoundRobin;
+		this.loops = loops;
+	}
+
+	/**
+	 * Returns the event loop for a new connection according to the balance
+	 * strategy.
+	 * 
+	 * @return the event loop
+	 */
+	public EventLoop next()
+	{
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE)
+				% loops.length;
+		if (balance == Balance.RoundRobin)
+			return loops[start];
+		EventLoop least = loops[start];
+		for (int i = 1; i < loops.length; i++)
+		{
+			EventLoop loop = loops[(start + i) % loops.length];
+			if (loop.getConnectionCount() < least.getConnectionCount())
+				least = loop;
+		}
+		return least;
+	}
+
+	/**
+	 * Returns the number of event loops.
+	 * 
+	 * @return the number of event loops
+	 */
+	public int size()
+	{
+		return loops.length;
+	}
+
+	/**
+	 * Returns the event loop with the specified index.
+	 * 
+	 * @param index
+	 *            the index of the event loop
+	 * @return the event loop
+	 */
+	public EventLoop get(int index)
+	{
+		return loops[index];
+	}
+
+	/**
+	 * Returns the numbers of the connections held by each event loop.
+	 * 
+	 * @return the numbers of the connections
+	 */
+	public int[] getConnectionCounts()
+	{
+		int[] counts = new int[loops.length];
+		for (int i = 0; i < loops.length; i++)
+			counts[i] = loops[i].getConnectionCount();
+		return counts;
+	}
+
+	/**
+	 * Returns the total number of the connections held by the group.
+	 * 
+	 * @return the number of the connections
+	 */
+	public int getConnectionCount()
+	{
+		int count = 0;
+		for (EventLoop loop : loops)
+			count += loop.getConnectionCount();
+		return count;
+	}
+
+	/**
+	 * Returns the balance strategy.
+	 * 
+	 * @return the balance strategy
+	 */
+	public Balance getBalance()
+	{
+		return balance;
+	}
+
+	/**
+	 * Set the balance strategy.
+	 * 
+	 * @param balance
+	 *            the balance strategy
+	 */
+	public void setBalance(Balance balance)
+	{
+		this.balance = balance;
+	}
+
+	/**
+	 * Closes all of the event loops of the group.
+	 * 
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close()
+	{
+		for (EventLoop loop : loops)
+			if (loop != null)
+				loop.close();
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * FrameCodec.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The codec of the length-prefixed message frames.
+ * <p>
+ * Each frame is made up of a header and a payload. The header is the length of
+ * the payload encoded as an unsigned variable-length integer, 7 bits per byte
+ * with the lowest group first and the highest bit of each byte set if more
+ * bytes follow. Thus, a payload shorter than 128 bytes takes only one header
+ * byte, and the header never takes more than {@linkplain #MAX_HEADER_LENGTH}
+ * bytes.
+ * </p>
+ * <p>
+ * The decoding is incremental: the header may be fed in several pieces, and
+ * the payload may be consumed in several pieces, so a frame can span any
+ * number of reads and one read can hold any number of frames.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class FrameCodec
+{
+	/**
+	 * The maximum length of a frame header.
+	 */
+	public static final int	MAX_HEADER_LENGTH	= 5;
+	/**
+	 * The length of the current frame payload.
+	 */
+	private int				length;
+	/**
+	 * The bit shift of the next header byte.
+	 */
+	private int				shift;
+	/**
+	 * The remaining payload length of the current frame, <code>-1</code> if
+	 * the header is not decoded yet.
+	 */
+	private int				remaining			= -1;
+
+	/**
+	 * Returns the header length of a frame with specified payload length.
+	 * 
+	 * @param length
+	 *            the payload length
+	 * @return the header length
+	 */
+	public static int headerLength(int length)
+	{
+		int n = 1;
+		while ((length >>>= 7) != 0)
+			n++;
+		return n;
+	}
+
+	/**
+	 * Encodes the header of a frame with specified payload length into the
+	 * destination buffer.
+	 * 
+	 * @param dst
+	 *            the destination buffer
+	 * @param length
+	 *            the payload length
+	 * @throws IllegalArgumentException
+	 *             if <code>length</code> is negative
+	 * @throws java.nio.BufferOverflowException
+	 *             if there is insufficient space in the destination buffer
+	 */
+	public static void encodeHeader(ByteBuffer dst, int length)
+			throws IllegalArgumentException
+	{
+		if (length < 0)
+			throw new IllegalArgumentException(String.format(
+					"The frame length(%d) shall not be negative.", length));
+		while ((length & ~0x7f) != 0)
+		{
+			dst.put((byte) ((length & 0x7f) | 0x80));
+			length >>>= 7;
+		}
+		dst.put((byte) length);
+	}
+
+	/**
+	 * Decodes the frame header from the source buffer.
+	 * <p>
+	 * The bytes will be consumed from the source buffer until the header is
+	 * completely decoded or the source buffer is exhausted.
+	 * </p>
+	 * 
+	 * @param src
+	 *            the source buffer
+	 * @return <code>true</code> if the header is completely decoded
+	 * @throws TransactionException
+	 *             if the header is malformed
+	 */
+	public boolean decodeHeader(ByteBuffer src) throws TransactionException
+	{
+		if (remaining >= 0)
+			return true;
+		while (src.hasRemaining())
+		{
+			byte b = src.get();
+			if (shift == 28 && (b & 0xf8) != 0)
+				throw new TransactionException(
+						"Malformed frame header: the frame length overflows.");
+			length |= (b & 0x7f) << shift;
+			if (b >= 0)
+			{
+				remaining = length;
+				return true;
+			}
+			shift += 7;
+		}
+		return false;
+	}
+
+	/**
+	 * Transfers the payload of the current frame from the source buffer into
+	 * the destination buffer as many as possible.
+	 * 
+	 * @param src
+	 *            the source buffer
+	 * @param dst
+	 *            the destination buffer
+	 * @return the number of payload bytes transfered
+	 * @throws TransactionStateException
+	 *             if the header is not decoded yet
+	 */
+	public int decodePayload(ByteBuffer src, ByteBuffer dst)
+			throws TransactionStateException
+	{
+		if (remaining < 0)
+			throw new TransactionStateException(
+					"The frame header is not decoded yet.");
+		int limit = src.limit();
+		if (src.remaining() > remaining)
+			src.limit(src.position() + remaining);
+		int n = NetUtils.transfer(src, dst);
+		src.limit(limit);
+		remaining -= n;
+		return n;
+	}
+
+	/**
+	 * Marks the specified number of payload bytes of the current frame as
+	 * consumed, which have been read without the codec.
+	 * 
+	 * @param n
+	 *            the number of payload bytes consumed
+	 * @throws TransactionStateException
+	 *             if the header is not decoded yet, or <code>n</code> is larger
+	 *             than the remaining payload length
+	 */
+	public void consume(int n) throws TransactionStateException
+	{
+		if (remaining < 0 || n > remaining)
+			throw new TransactionStateException(String.format(
+					"Unable to consume %d bytes of the frame payload.", n));
+		remaining -= n;
+	}
+
+	/**
+	 * Returns <code>true</code> if the header of the current frame is
+	 * completely decoded.
+	 * 
+	 * @return <code>true</code> if the header is decoded
+	 */
+	public boolean hasHeader()
+	{
+		return remaining >= 0;
+	}
+
+	/**
+	 * Returns <code>true</code> if the header of the current frame is partly
+	 * decoded.
+	 * 
+	 * @return <code>true</code> if the header is partly decoded
+	 */
+	public boolean isDecoding()
+	{
+		return remaining < 0 && shift > 0;
+	}
+
+	/**
+	 * Returns <code>true</code> if the current frame is completely decoded.
+	 * 
+	 * @return <code>true</code> if the frame is completely decoded
+	 */
+	public boolean isComplete()
+	{
+		return remaining == 0;
+	}
+
+	/**
+	 * Returns the payload length of the current frame.
+	 * 
+	 * @return the payload length, undefined if the header is not decoded yet
+	 */
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * Returns the remaining payload length of the current frame.
+	 * 
+	 * @return the remaining payload length, <code>-1</code> if the header is
+	 *         not decoded yet
+	 */
+	public int getRemaining()
+	{
+		return remaining;
+	}
+
+	/**
+	 * Resets the codec for decoding the next frame.
+	 */
+	public void reset()
+	{
+		length = 0;
+		shift = 0;
+		remaining = -1;
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * IdleHandler.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+/**
+ * The handler of the idle events of the transactions watched by an
+ * {@linkplain IdleMonitor idle monitor}.
+ * <p>
+ * The events are fired on the worker thread of the timing wheel, thus, the
+ * handler shall never block, such as sending a heartbeat to a full socket
+ * buffer.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ * @see IdleMonitor#watch(Transaction, IdleHandler)
+ */
+public interface IdleHandler
+{
+	/**
+	 * Notifies that nothing has been received or sent by the transaction for
+	 * the idle timeout. It is fired once for each idle timeout.
+	 * 
+	 * @param transaction
+	 *            the idle transaction
+	 */
+	public void idle(Transaction transaction);
+
+	/**
+	 * Notifies that nothing has been sent by the transaction for the heartbeat
+	 * interval, the handler usually sends a keep-alive message.
+	 * 
+	 * @param transaction
+	 *            the transaction
+	 */
+	public void heartbeat(Transaction transaction);
+
+	/**
+	 * Notifies that nothing has been received by the transaction for the dead
+	 * timeout. The transaction will be closed and no longer watched after the
+	 * handler returns.
+	 * 
+	 * @param transaction
+	 *            the dead transaction
+	 */
+	public void dead(Transaction transaction);
+}
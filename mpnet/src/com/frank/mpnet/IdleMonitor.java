@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * IdleMonitor.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The monitor of the idle transactions and the dead peers driven by a
+ * {@linkplain TimingWheel timing wheel}.
+ * <p>
+ * Each transaction records the time of its last data received and sent, and
+ * each watched transaction holds only one timeout in the wheel, which is
+ * scheduled at its nearest deadline. On expiry, the monitor compares the
+ * deadlines with the recorded activity, fires the due events and schedules
+ * the next timeout. Therefore, the activity itself costs only a volatile
+ * write, and each check is <i>O(1)</i> regardless of the number of the
+ * connections.
+ * </p>
+ * <p>
+ * Three kinds of events are supported, each can be disabled by a zero
+ * timeout:
+ * </p>
+ * <ul>
+ * <li>idle: nothing received or sent for the idle timeout</li>
+ * <li>heartbeat: nothing sent for the heartbeat interval</li>
+ * <li>dead: nothing received for the dead timeout, then the transaction is
+ * closed</li>
+ * </ul>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class IdleMonitor implements Closeable
+{
+	/**
+	 * The timing wheel.
+	 */
+	private final TimingWheel							wheel;
+	/**
+	 * The flag for the wheel owned by the monitor.
+	 */
+	private final boolean								ownWheel;
+	/**
+	 * The idle timeout in nanoseconds, <code>0</code> if disabled.
+	 */
+	private final long									idleTimeout;
+	/**
+	 * The heartbeat interval in nanoseconds, <code>0</code> if disabled.
+	 */
+	private final long									heartbeatInterval;
+	/**
+	 * The dead timeout in nanoseconds, <code>0</code> if disabled.
+	 */
+	private final long									deadTimeout;
+	/**
+	 * The watches by their transactions.
+	 */
+	private final ConcurrentHashMap<Transaction, Watch>	watches			= new ConcurrentHashMap<Transaction, Watch>();
+	/**
+	 * The number of the idle events fired.
+	 */
+	private final AtomicLong							idleCount		= new AtomicLong();
+	/**
+	 * The number of the heartbeat events fired.
+	 */
+	private final AtomicLong							heartbeatCount	= new AtomicLong();
+	/**
+	 * The number of the dead transactions closed.
+	 */
+	private final AtomicLong							deadCount		= new AtomicLong();
+
+	/**
+	 * Construct an instance of <tt>IdleMonitor</tt> with its own timing wheel
+	 * of the default tick.
+	 * 
+	 * @param idleTimeout
+	 *            the idle timeout, <code>0</code> if disabled
+	 * @param heartbeatInterval
+	 *            the heartbeat interval, <code>0</code> if disabled
+	 * @param deadTimeout
+	 *            the dead timeout, <code>0</code> if disabled
+	 * @param unit
+	 *            the time unit of the timeouts
+	 * @throws IllegalArgumentException
+	 *             if any timeout is negative
+	 */
+	public IdleMonitor(long idleTimeout, long heartbeatInterval,
+			long deadTimeout, TimeUnit unit) throws IllegalArgumentException
+	{
+		this(null, idleTimeout, heartbeatInterval, deadTimeout, unit);
+	}
+
+	/**
+	 * Construct an instance of <tt>IdleMonitor</tt>.
+	 * 
+	 * @param wheel
+	 *            the timing wheel shared with others, <code>null</code> if
+	 *            the monitor creates and owns one
+	 * @param idleTimeout
+	 *            the idle timeout, <code>0</code> if disabled
+	 * @param heartbeatInterval
+	 *            the heartbeat interval, <code>0</code> if disabled
+	 * @param deadTimeout
+	 *            the dead timeout, <code>0</code> if disabled
+	 * @param unit
+	 *            the time unit of the timeouts
+	 * @throws IllegalArgumentException
+	 *             if any timeout is negative
+	 */
+	public IdleMonitor(TimingWheel wheel, long idleTimeout,
+			long heartbeatInterval, long deadTimeout, TimeUnit unit)
+			throws IllegalArgumentException
+	{
+		if (idleTimeout < 0 || heartbeatInterval < 0 || deadTimeout < 0)
+			throw new IllegalArgumentException(String.format(
+					"The timeouts(%d, %d, %d) shall not be negative.",
+					idleTimeout, heartbeatInterval, deadTimeout));
+		this.ownWheel = wheel == null;
+		this.wheel = wheel == null ? new TimingWheel() : wheel;
+		this.idleTimeout = unit.toNanos(idleTimeout);
+		this.heartbeatInterval = unit.toNanos(heartbeatInterval);
+		this.deadTimeout = unit.toNanos(deadTimeout);
+	}
+
+	/**
+	 * Starts watching the transaction, watching a watched transaction
+	 * replaces its handler.
+	 * 
+	 * @param transaction
+	 *            the transaction
+	 * @param handler
+	 *            the handler of the events
+	 * @throws TransactionStateException
+	 *             if the monitor is closed
+	 */
+	public void watch(Transaction transaction, IdleHandler handler)
+			throws TransactionStateException
+	{
+		Watch watch = new Watch(transaction, handler);
+		Watch old = watches.put(transaction, watch);
+		if (old != null)
+			old.cancel();
+		watch.schedule(System.nanoTime());
+	}
+
+	/**
+	 * Stops watching the transaction, such as after it is closed.
+	 * 
+	 * @param transaction
+	 *            the transaction
+	 * @return <code>true</code> if the transaction was watched
+	 */
+	public boolean unwatch(Transaction transaction)
+	{
+		Watch watch = watches.remove(transaction);
+		if (watch == null)
+			return false;
+		watch.cancel();
+		return true;
+	}
+
+	/**
+	 * Returns the number of the watched transactions.
+	 * 
+	 * @return the number of the watched transactions
+	 */
+	public int getWatchCount()
+	{
+		return watches.size();
+	}
+
+	/**
+	 * Returns the number of the idle events fired.
+	 * 
+	 * @return the number of the idle events
+	 */
+	public long getIdleCount()
+	{
+		return idleCount.get();
+	}
+
+	/**
+	 * Returns the number of the heartbeat events fired.
+	 * 
+	 * @return the number of the heartbeat events
+	 */
+	public long getHeartbeatCount()
+	{
+		return heartbeatCount.get();
+	}
+
+	/**
+	 * Returns the number of the dead transactions closed.
+	 * 
+	 * @return the number of the dead transactions
+	 */
+	public long getDeadCount()
+	{
+		return deadCount.get();
+	}
+
+	/**
+	 * Returns the timing wheel.
+	 * 
+	 * @return the timing wheel
+	 */
+	public TimingWheel getWheel()
+	{
+		return wheel;
+	}
+
+	/**
+	 * Stops watching all of the transactions, and stops the timing wheel if
+	 * owned by the monitor. The transactions are not closed.
+	 * 
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close()
+	{
+		for (Transaction transaction : watches.keySet())
+			unwatch(transaction);
+		if (ownWheel)
+			wheel.close();
+	}
+
+	/**
+	 * The watch of one transaction.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	private final class Watch implements Runnable
+	{
+		/**
+		 * The transaction.
+		 */
+		private final Transaction			transaction;
+		/**
+		 * The handler of the events.
+		 */
+		private final IdleHandler			handler;
+		/**
+		 * The time of the last idle event in nanoseconds.
+		 */
+		private long						lastIdle;
+		/**
+		 * The time of the last heartbeat event in nanoseconds.
+		 */
+		private long						lastHeartbeat;
+		/**
+		 * The pending timeout.
+		 */
+		private volatile TimingWheel.Timeout	timeout;
+		/**
+		 * The flag for the watch cancelled.
+		 */
+		private volatile boolean			cancelled;
+
+		/**
+		 * Construct an instance of <tt>Watch</tt>.
+		 * 
+		 * @param transaction
+		 *            the transaction
+		 * @param handler
+		 *            the handler of the events
+		 */
+		Watch(Transaction transaction, IdleHandler handler)
+		{
+			this.transaction = transaction;
+			this.handler = handler;
+			this.lastIdle = this.lastHeartbeat = System.nanoTime();
+		}
+
+		/**
+		 * Checks the activity of the transaction, fires the due events and
+		 * schedules the next check.
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run()
+		{
+			if (cancelled)
+				return;
+			long now = System.nanoTime();
+			long received = transaction.getLastReceived();
+			if (deadTimeout > 0 && now - received >= deadTimeout)
+			{
+				if (!watches.remove(transaction, this))
+					return;
+				deadCount.incrementAndGet();
+				try
+				{
+					handler.dead(transaction);
+				}
+				finally
+				{
+					try
+					{
+						transaction.close();
+					}
+					catch (TransactionException e)
+					{
+						// the connection is already broken
+					}
+				}
+				return;
+			}
+			try
+			{
+				if (idleTimeout > 0
+						&& now - latest(transaction.getLastActivity(), lastIdle) >= idleTimeout)
+				{
+					lastIdle = now;
+					idleCount.incrementAndGet();
+					handler.idle(transaction);
+				}
+				if (heartbeatInterval > 0
+						&& now - latest(transaction.getLastSent(), lastHeartbeat) >= heartbeatInterval)
+				{
+					lastHeartbeat = now;
+					heartbeatCount.incrementAndGet();
+					handler.heartbeat(transaction);
+				}
+			}
+			finally
+			{
+				// a failed handler shall not stop watching the transaction
+				schedule(now);
+			}
+		}
+
+		/**
+		 * Schedules the check at the nearest deadline.
+		 * 
+		 * @param now
+		 *            the current time in nanoseconds
+		 */
+		void schedule(long now)
+		{
+			long next = Long.MAX_VALUE;
+			if (idleTimeout > 0)
+				next = Math.min(next,
+						latest(transaction.getLastActivity(), lastIdle)
+								+ idleTimeout - now);
+			if (heartbeatInterval > 0)
+				next = Math.min(next,
+						latest(transaction.getLastSent(), lastHeartbeat)
+								+ heartbeatInterval - now);
+			if (deadTimeout > 0)
+				next = Math.min(next, transaction.getLastReceived()
+						+ deadTimeout - now);
+			if (next == Long.MAX_VALUE || cancelled)
+				return;
+			timeout = wheel.schedule(this, next, TimeUnit.NANOSECONDS);
+			// the watch may be cancelled while scheduling
+			if (cancelled)
+				timeout.cancel();
+		}
+
+		/**
+		 * Cancels the watch.
+		 */
+		void cancel()
+		{
+			cancelled = true;
+			TimingWheel.Timeout t = timeout;
+			if (t != null)
+				t.cancel();
+		}
+	}
+
+	/**
+	 * Returns the later one of two times of {@linkplain System#nanoTime()}.
+	 * 
+	 * @param a
+	 *            a time in nanoseconds
+	 * @param b
+	 *            another time in nanoseconds
+	 * @return the later time
+	 */
+	private static long latest(long a, long b)
+	{
+		return a - b > 0 ? a : b;
+	}
+}
@@ -5,8 +5,13 @@
  */
 package com.frank.mpnet;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.NetworkChannel;
 
 /**
  * The net utilities.
@@ -18,6 +23,12 @@ import java.net.SocketAddress;
  */
 public class NetUtils
 {
+	/**
+	 * The socket option <code>SO_REUSEPORT</code>, <code>null</code> if not
+	 * supported by the runtime.
+	 */
+	private static final SocketOption<Boolean>	REUSE_PORT	= reusePortOption();
+
 	/**
 	 * Compares the two {@linkplain SocketAddress} whether they are equal.
 	 * 
@@ -45,4 +56,104 @@ public class NetUtils
 		else
 			return a.equals(b);
 	}
+
+	/**
+	 * Returns the total number of remaining bytes in the specified buffers.
+	 * 
+	 * @param buffers
+	 *            the buffers
+	 * @return the total number of remaining bytes
+	 */
+	public static long remaining(ByteBuffer... buffers)
+	{
+		long n = 0;
+		for (ByteBuffer buffer : buffers)
+			n += buffer.remaining();
+		return n;
+	}
+
+	/**
+	 * Transfers the remaining bytes in the source buffer into the destination
+	 * buffer as many as possible.
+	 * <p>
+	 * The positions of both buffers are advanced by the number of bytes
+	 * transfered, while the limits stay unchanged.
+	 * </p>
+	 * 
+	 * @param src
+	 *            the source buffer
+	 * @param dst
+	 *            the destination buffer
+	 * @return the number of bytes transfered
+	 */
+	public static int transfer(ByteBuffer src, ByteBuffer dst)
+	{
+		int n = Math.min(src.remaining(), dst.remaining());
+		if (n == src.remaining())
+			dst.put(src);
+		else
+		{
+			int limit = src.limit();
+			src.limit(src.position() + n);
+			dst.put(src);
+			src.limit(limit);
+		}
+		return n;
+	}
+
+	/**
+	 * Enables the socket option <code>SO_REUSEPORT</code> of the unbound
+	 * channel, which allows several sockets to bind to the same address and
+	 * port, and lets the kernel balance the connections or the datagrams
+	 * among them.
+	 * <p>
+	 * The option is available since Java 9 and on the platforms which support
+	 * it, such as Linux.
+	 * </p>
+	 * 
+	 * @param channel
+	 *            the unbound channel
+	 * @return <code>true</code> if the option is enabled, or
+	 *         <code>false</code> if not supported
+	 * @throws IOException
+	 *             if failed to set the option
+	 */
+	public static boolean reusePort(NetworkChannel channel) throws IOException
+	{
+		if (REUSE_PORT == null
+				|| !channel.supportedOptions().contains(REUSE_PORT))
+			return false;
+		channel.setOption(REUSE_PORT, true);
+		return true;
+	}
+
+	/**
+	 * Returns <code>true</code> if the socket option <code>SO_REUSEPORT</code>
+	 * is supported by the runtime.
+	 * 
+	 * @return <code>true</code> if supported
+	 */
+	public static boolean isReusePortSupported()
+	{
+		return REUSE_PORT != null;
+	}
+
+	/**
+	 * Looks up the socket option <code>SO_REUSEPORT</code> reflectively.
+	 * 
+	 * @return the socket option, <code>null</code> if not supported
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption()
+	{
+		try
+		{
+			return (SocketOption<Boolean>) StandardSocketOptions.class
+					.getField("SO_REUSEPORT").get(null);
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
 }
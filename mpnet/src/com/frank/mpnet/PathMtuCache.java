@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * PathMtuCache.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cache of the path MTU of each destination host.
+ * <p>
+ * The path MTU of a host is discovered from the MTU of the network interface
+ * which routes to it, found by connecting a scratch datagram channel without
+ * sending anything. A destination out of the subnets of the interface is
+ * limited to the {@linkplain #DEFAULT_MTU Ethernet MTU}, since the links on
+ * the path are unknown. The MTU learned otherwise, such as a loss of the
+ * larger datagrams, is {@linkplain #reduceMtu(SocketAddress, int) reduced}
+ * or {@linkplain #setMtu(SocketAddress, int) set} by the caller.
+ * </p>
+ * <p>
+ * The discovery never blocks the sending: a host not cached is assumed to
+ * have the {@linkplain #DEFAULT_MTU Ethernet MTU}, and an expired entry keeps
+ * its MTU, while the discovery runs on the {@linkplain SharedScheduler shared
+ * scheduler}.
+ * </p>
+ * <p>
+ * The entries expire after a while to follow the route changes, as the
+ * ICMP based discovery of RFC 1191 does. Once the cache is full, the expired
+ * entries are evicted, or the one closest to expiring if none. The cache is
+ * thread safe.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ * @see TransactionUDP#setPathMtuDiscovery(boolean)
+ */
+public class PathMtuCache
+{
+	/**
+	 * The MTU of Ethernet, assumed for the unknown paths.
+	 */
+	public static final int											DEFAULT_MTU		= 1500;
+	/**
+	 * The minimum MTU of IPv4.
+	 */
+	public static final int											MIN_IPV4_MTU	= 576;
+	/**
+	 * The minimum MTU of IPv6.
+	 */
+	public static final int											MIN_IPV6_MTU	= 1280;
+	/**
+	 * The default time in milliseconds before an entry expires.
+	 */
+	public static final long										DEFAULT_EXPIRY	= 600000;
+	/**
+	 * The length of the UDP header.
+	 */
+	private static final int										UDP_HEADER		= 8;
+	/**
+	 * The maximum number of the cached hosts.
+	 */
+	private static final int										MAX_ENTRIES		= 4096;
+	/**
+	 * The cache shared by the transactions.
+	 */
+	private static final PathMtuCache								shared			= new PathMtuCache(
+																							DEFAULT_EXPIRY,
+																							TimeUnit.MILLISECONDS);
+	/**
+	 * The entries by the destination hosts.
+	 */
+	private final ConcurrentHashMap<InetAddress, Entry>				entries			= new ConcurrentHashMap<InetAddress, Entry>();
+	/**
+	 * The hosts being discovered.
+	 */
+	private final ConcurrentHashMap<InetAddress, Boolean>			discovering		= new ConcurrentHashMap<InetAddress, Boolean>();
+	/**
+	 * The time in nanoseconds before an entry expires.
+	 */
+	private final long												expiry;
+
+	/**
+	 * The path MTU of a host.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	private static final class Entry
+	{
+		/**
+		 * The path MTU.
+		 */
+		final int	mtu;
+		/**
+		 * The expiry time in nanoseconds.
+		 */
+		final long	expires;
+
+		/**
+		 * Construct an instance of <tt>Entry</tt>.
+		 * 
+		 * @param mtu
+		 *            the path MTU
+		 * @param expires
+		 *            the expiry time in nanoseconds
+		 */
+		Entry(int mtu, long expires)
+		{
+			this.mtu = mtu;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Construct an instance of <tt>PathMtuCache</tt>.
+	 * 
+	 * @param expiry
+	 *            the time before an entry expires
+	 * @param unit
+	 *            the time unit of <code>expiry</code>
+	 * @throws IllegalArgumentException
+	 *             if <code>expiry</code> is not positive
+	 */
+	public PathMtuCache(long expiry, TimeUnit unit)
+			throws IllegalArgumentException
+	{
+		if (expiry < 1)
+			throw new IllegalArgumentException(String.format(
+					"The expiry(%d) shall be positive.", expiry));
+		this.expiry = unit.toNanos(expiry);
+	}
+
+	/**
+	 * Returns the cache shared by the transactions.
+	 * 
+	 * @return the shared cache
+	 */
+	public static PathMtuCache getShared()
+	{
+		return shared;
+	}
+
+	/**
+	 * Returns the path MTU of the host of the specified socket address. If
+	 * not cached or expired, the host is discovered in background, and the
+	 * expired MTU or the {@linkplain #DEFAULT_MTU} is returned meanwhile.
+	 * 
+	 * @param sa
+	 *            the socket address of the destination
+	 * @return the path MTU, {@linkplain #DEFAULT_MTU} if the host is
+	 *         unresolved
+	 */
+	public int getMtu(SocketAddress sa)
+	{
+		InetAddress address = address(sa);
+		if (address == null)
+			return DEFAULT_MTU;
+		Entry entry = entries.get(address);
+		if (entry != null && System.nanoTime() - entry.expires < 0)
+			return entry.mtu;
+		discoverLater(address, entry);
+		if (entry != null)
+			return entry.mtu;
+		return Math.max(DEFAULT_MTU, address instanceof Inet6Address
+				? MIN_IPV6_MTU : MIN_IPV4_MTU);
+	}
+
+	/**
+	 * Returns the maximum UDP payload which fits the path MTU of the host of
+	 * the specified socket address without the IP fragmentation.
+	 * 
+	 * @param sa
+	 *            the socket address of the destination
+	 * @return the maximum payload in bytes
+	 */
+	public int getMaxPayload(SocketAddress sa)
+	{
+		InetAddress address = address(sa);
+		return getMtu(sa)
+				- (address instanceof Inet6Address ? 40 : 20) - UDP_HEADER;
+	}
+
+	/**
+	 * Set the path MTU of the host of the specified socket address, which is
+	 * raised to the minimum MTU of the IP version.
+	 * 
+	 * @param sa
+	 *            the socket address of the destination
+	 * @param mtu
+	 *            the path MTU
+	 */
+	public void setMtu(SocketAddress sa, int mtu)
+	{
+		InetAddress address = address(sa);
+		if (address != null)
+			put(address, mtu, System.nanoTime());
+	}
+
+	/**
+	 * Reduces the path MTU of the host of the specified socket address if the
+	 * specified MTU is smaller, such as the larger datagrams are lost.
+	 * 
+	 * @param sa
+	 *            the socket address of the destination
+	 * @param mtu
+	 *            the path MTU
+	 */
+	public void reduceMtu(SocketAddress sa, int mtu)
+	{
+		if (mtu < getMtu(sa))
+			setMtu(sa, mtu);
+	}
+
+	/**
+	 * Starts discovering the host on the shared scheduler unless in progress.
+	 * The discovered MTU never replaces the one set meanwhile.
+	 * 
+	 * @param address
+	 *            the address of the host
+	 * @param stale
+	 *            the expired entry, <code>null</code> if not cached
+	 */
+	private void discoverLater(final InetAddress address, final Entry stale)
+	{
+		if (discovering.putIfAbsent(address, Boolean.TRUE) != null)
+			return;
+		try
+		{
+			SharedScheduler.get().execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						long now = System.nanoTime();
+						Entry entry = entry(address, discover(address), now);
+						if (stale != null)
+							entries.replace(address, stale, entry);
+						else if (!entries.containsKey(address))
+						{
+							if (entries.size() >= MAX_ENTRIES)
+								evict(now);
+							entries.putIfAbsent(address, entry);
+						}
+					}
+					finally
+					{
+						discovering.remove(address);
+					}
+				}
+			});
+		}
+		catch (RuntimeException e)
+		{
+			// retried by the next lookup
+			discovering.remove(address);
+		}
+	}
+
+	/**
+	 * Clears the cached entries.
+	 */
+	public void clear()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * Caches the path MTU of a host.
+	 * 
+	 * @param address
+	 *            the address of the host
+	 * @param mtu
+	 *            the path MTU
+	 * @param now
+	 *            the current time in nanoseconds
+	 * @return the entry
+	 */
+	private Entry put(InetAddress address, int mtu, long now)
+	{
+		Entry entry = entry(address, mtu, now);
+		if (entries.size() >= MAX_ENTRIES && !entries.containsKey(address))
+			evict(now);
+		entries.put(address, entry);
+		return entry;
+	}
+
+	/**
+	 * Creates the entry of a host, whose MTU is raised to the minimum MTU of
+	 * the IP version.
+	 * 
+	 * @param address
+	 *            the address of the host
+	 * @param mtu
+	 *            the path MTU
+	 * @param now
+	 *            the current time in nanoseconds
+	 * @return the entry
+	 */
+	private Entry entry(InetAddress address, int mtu, long now)
+	{
+		int min = address instanceof Inet6Address ? MIN_IPV6_MTU
+				: MIN_IPV4_MTU;
+		return new Entry(Math.max(min, mtu), now + expiry);
+	}
+
+	/**
+	 * Evicts the expired entries, or the one closest to expiring if none.
+	 * 
+	 * @param now
+	 *            the current time in nanoseconds
+	 */
+	private void evict(long now)
+	{
+		Map.Entry<InetAddress, Entry> oldest = null;
+		boolean expired = false;
+		Iterator<Map.Entry<InetAddress, Entry>> it = entries.entrySet()
+				.iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<InetAddress, Entry> e = it.next();
+			if (now - e.getValue().expires >= 0)
+			{
+				it.remove();
+				expired = true;
+			}
+			else if (oldest == null
+					|| e.getValue().expires - oldest.getValue().expires < 0)
+				oldest = e;
+		}
+		if (!expired && oldest != null)
+			entries.remove(oldest.getKey(), oldest.getValue());
+	}
+
+	/**
+	 * Discovers the path MTU of a host from the MTU of the network interface
+	 * which routes to it.
+	 * 
+	 * @param address
+	 *            the address of the host
+	 * @return the path MTU
+	 */
+	protected int discover(InetAddress address)
+	{
+		try (DatagramChannel channel = DatagramChannel.open())
+		{
+			// connecting a datagram channel only looks up the route
+			channel.connect(new InetSocketAddress(address, 9));
+			InetAddress local = ((InetSocketAddress) channel.getLocalAddress())
+					.getAddress();
+			NetworkInterface ni = NetworkInterface.getByInetAddress(local);
+			int mtu = ni == null ? -1 : ni.getMTU();
+			if (mtu <= 0)
+				return DEFAULT_MTU;
+			if (mtu <= DEFAULT_MTU || ni.isLoopback() || onLink(ni, address))
+				return mtu;
+			return DEFAULT_MTU;
+		}
+		catch (IOException | SecurityException e)
+		{
+			return DEFAULT_MTU;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the host is in a subnet of the network
+	 * interface.
+	 * 
+	 * @param ni
+	 *            the network interface
+	 * @param address
+	 *            the address of the host
+	 * @return <code>true</code> if the host is on the link
+	 */
+	private static boolean onLink(NetworkInterface ni, InetAddress address)
+	{
+		byte[] target = address.getAddress();
+		for (InterfaceAddress ia : ni.getInterfaceAddresses())
+		{
+			byte[] local = ia.getAddress().getAddress();
+			if (local.length != target.length)
+				continue;
+			int prefix = ia.getNetworkPrefixLength();
+			int i = 0;
+			for (; i < prefix / 8; i++)
+				if (local[i] != target[i])
+					break;
+			if (i < prefix / 8)
+				continue;
+			int bits = prefix % 8;
+			if (bits == 0 || ((local[i] ^ target[i]) & (0xff << (8 - bits)) & 0xff) == 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the address of the host of a socket address.
+	 * 
+	 * @param sa
+	 *            the socket address
+	 * @return the address, <code>null</code> if unresolved
+	 */
+	private static InetAddress address(SocketAddress sa)
+	{
+		return sa instanceof InetSocketAddress ? ((InetSocketAddress) sa)
+				.getAddress() : null;
+	}
+}
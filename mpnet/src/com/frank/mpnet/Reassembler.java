@@ -0,0 +1,721 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * Reassembler.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.frank.mpnet.ErrorCorrection.Scheme;
+
+/**
+ * The reassembly engine of the fragmented UDP messages.
+ * <p>
+ * Each fragment carries a header of {@value #HEADER_LENGTH} bytes in network
+ * byte order: the message ID(<code>int</code>), the message length(
+ * <code>int</code>), the fragment index(<code>unsigned short</code>) and the
+ * fragment count(<code>unsigned short</code>). All the fragments except the
+ * last one carry <code>ceil(length / count)</code> bytes, thus, each
+ * fragment is copied to its offset in the message buffer directly whatever
+ * the order it arrives in, and the duplicates are ignored.
+ * </p>
+ * <p>
+ * If the message is protected by the {@linkplain ErrorCorrection forward
+ * error correction}, the highest bit of the message length is set and the
+ * header is extended by 4 bytes: the scheme(<code>1</code> for XOR,
+ * <code>2</code> for Reed-Solomon), the data shards and the parity shards of
+ * a group(<code>unsigned byte</code> each) and a reserved byte. The fragment
+ * count is still the number of the data fragments, while the parity
+ * fragments of each group follow them by the index. A message is complete
+ * once each group has as many fragments as its data shards, and the lost
+ * data fragments are rebuilt then. The late fragments of the recently
+ * completed messages are ignored.
+ * </p>
+ * <p>
+ * The message buffers are direct and pooled. The total memory of the pending
+ * messages and the pooled buffers is capped, the oldest incomplete messages
+ * are evicted when the memory is exhausted or their timeout elapses. The
+ * engine is not thread safe, it is guarded by the receiving lock of the
+ * transaction.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ * @see TransactionUDP.Policy#Fragmentation
+ */
+final class Reassembler
+{
+	/**
+	 * The length of the fragment header.
+	 */
+	static final int							HEADER_LENGTH	= 12;
+	/**
+	 * The length of the fragment header with the error correction.
+	 */
+	static final int							FEC_HEADER_LENGTH	= 16;
+	/**
+	 * The flag of the message length for the error correction.
+	 */
+	private static final int					FEC_FLAG		= 0x80000000;
+	/**
+	 * The maximum number of the fragments of a message.
+	 */
+	static final int							MAX_FRAGMENTS	= 0xffff;
+	/**
+	 * The minimum capacity of a message buffer.
+	 */
+	private static final int					MIN_BUFFER		= 4096;
+	/**
+	 * The maximum number of the remembered completed messages.
+	 */
+	private static final int					MAX_COMPLETED	= 1024;
+	/**
+	 * The incomplete messages in the order of arrival.
+	 */
+	private final LinkedHashMap<Key, Message>	pending			= new LinkedHashMap<Key, Message>();
+	/**
+	 * The pooled message buffers.
+	 */
+	private final ArrayDeque<ByteBuffer>		free			= new ArrayDeque<ByteBuffer>();
+	/**
+	 * The key to look up the pending messages.
+	 */
+	private final Key							probe			= new Key(null, 0);
+	/**
+	 * The recently completed messages with the error correction, whose late
+	 * fragments are ignored.
+	 */
+	private final LinkedHashMap<Key, Key>		completed		= new LinkedHashMap<Key, Key>();
+	/**
+	 * The coder to rebuild the lost fragments, <code>null</code> until the
+	 * first loss.
+	 */
+	private ErasureCoder						coder;
+	/**
+	 * The maximum memory in bytes.
+	 */
+	private final long							maxMemory;
+	/**
+	 * The timeout of an incomplete message in nanoseconds.
+	 */
+	private final long							timeout;
+	/**
+	 * The memory held by the pending messages and the pooled buffers.
+	 */
+	private long								memory;
+	/**
+	 * The number of the evicted incomplete messages.
+	 */
+	private long								evicted;
+	/**
+	 * The number of the dropped fragments.
+	 */
+	private long								dropped;
+	/**
+	 * The number of the rebuilt fragments.
+	 */
+	private long								recovered;
+
+	/**
+	 * The key of a message.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	private static final class Key
+	{
+		/**
+		 * The source of the message.
+		 */
+		SocketAddress	source;
+		/**
+		 * The ID of the message.
+		 */
+		int				id;
+
+		/**
+		 * Construct an instance of <tt>Key</tt>.
+		 * 
+		 * @param source
+		 *            the source of the message
+		 * @param id
+		 *            the ID of the message
+		 */
+		Key(SocketAddress source, int id)
+		{
+			this.source = source;
+			this.id = id;
+		}
+
+		/**
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode()
+		{
+			return source.hashCode() * 31 + id;
+		}
+
+		/**
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			Key key = (Key) obj;
+			return id == key.id && source.equals(key.source);
+		}
+	}
+
+	/**
+	 * An incomplete message.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	private static final class Message
+	{
+		/**
+		 * The key of the message.
+		 */
+		final Key			key;
+		/**
+		 * The length of the message.
+		 */
+		final int			length;
+		/**
+		 * The number of the data fragments.
+		 */
+		final int			count;
+		/**
+		 * The coding scheme, <code>null</code> without the error correction.
+		 */
+		final Scheme		scheme;
+		/**
+		 * The number of the data shards of a group.
+		 */
+		final int			k;
+		/**
+		 * The number of the parity shards of a group.
+		 */
+		final int			m;
+		/**
+		 * The number of the arrived fragments of each group,
+		 * <code>null</code> without the error correction.
+		 */
+		final int[]			groups;
+		/**
+		 * The buffer of the message.
+		 */
+		final ByteBuffer	buffer;
+		/**
+		 * The arrival time of the first fragment in nanoseconds.
+		 */
+		final long			created;
+		/**
+		 * The flags of the arrived fragments.
+		 */
+		final boolean[]		arrived;
+		/**
+		 * The number of the fragments to arrive, or the number of the groups
+		 * to complete with the error correction.
+		 */
+		int					remaining;
+
+		/**
+		 * Construct an instance of <tt>Message</tt>.
+		 * 
+		 * @param key
+		 *            the key of the message
+		 * @param length
+		 *            the length of the message
+		 * @param count
+		 *            the number of the data fragments
+		 * @param scheme
+		 *            the coding scheme, <code>null</code> without the error
+		 *            correction
+		 * @param k
+		 *            the number of the data shards of a group
+		 * @param m
+		 *            the number of the parity shards of a group
+		 * @param buffer
+		 *            the buffer of the message
+		 * @param created
+		 *            the arrival time of the first fragment
+		 */
+		Message(Key key, int length, int count, Scheme scheme, int k, int m,
+				ByteBuffer buffer, long created)
+		{
+			this.key = key;
+			this.length = length;
+			this.count = count;
+			this.scheme = scheme;
+			this.k = k;
+			this.m = m;
+			this.buffer = buffer;
+			this.created = created;
+			if (scheme == null)
+			{
+				this.groups = null;
+				this.arrived = new boolean[count];
+				this.remaining = count;
+			}
+			else
+			{
+				this.groups = new int[groups(count, k)];
+				this.arrived = new boolean[(int) total(count, k, m)];
+				this.remaining = groups.length;
+			}
+		}
+
+		/**
+		 * Returns the group of a fragment.
+		 * 
+		 * @param index
+		 *            the index of the fragment
+		 * @return the index of the group
+		 */
+		int group(int index)
+		{
+			return index < count ? index / k : (index - count) / m;
+		}
+
+		/**
+		 * Returns the number of the data shards of a group.
+		 * 
+		 * @param group
+		 *            the index of the group
+		 * @return the number of the data shards
+		 */
+		int shards(int group)
+		{
+			return Math.min(k, count - group * k);
+		}
+	}
+
+	/**
+	 * Construct an instance of <tt>Reassembler</tt>.
+	 * 
+	 * @param maxMemory
+	 *            the maximum memory in bytes
+	 * @param timeout
+	 *            the timeout of an incomplete message
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 */
+	Reassembler(long maxMemory, long timeout, TimeUnit unit)
+	{
+		this.maxMemory = maxMemory;
+		this.timeout = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Returns the number of the fragments of a message.
+	 * 
+	 * @param length
+	 *            the length of the message
+	 * @param payload
+	 *            the maximum payload of a fragment
+	 * @return the number of the fragments
+	 */
+	static int count(int length, int payload)
+	{
+		return Math.max(1, (int) ((length + (long) payload - 1) / payload));
+	}
+
+	/**
+	 * Returns the payload length of all the fragments but the last one.
+	 * 
+	 * @param length
+	 *            the length of the message
+	 * @param count
+	 *            the number of the fragments
+	 * @return the payload length
+	 */
+	static int size(int length, int count)
+	{
+		return (int) ((length + (long) count - 1) / count);
+	}
+
+	/**
+	 * Returns the number of the groups of the data fragments.
+	 * 
+	 * @param count
+	 *            the number of the data fragments
+	 * @param k
+	 *            the number of the data shards of a group
+	 * @return the number of the groups
+	 */
+	static int groups(int count, int k)
+	{
+		return (count + k - 1) / k;
+	}
+
+	/**
+	 * Returns the number of the data and the parity fragments.
+	 * 
+	 * @param count
+	 *            the number of the data fragments
+	 * @param k
+	 *            the number of the data shards of a group
+	 * @param m
+	 *            the number of the parity shards of a group
+	 * @return the number of all the fragments
+	 */
+	static long total(int count, int k, int m)
+	{
+		return count + (long) groups(count, k) * m;
+	}
+
+	/**
+	 * Puts the header of a fragment with the error correction into the
+	 * buffer.
+	 * 
+	 * @param buffer
+	 *            the buffer of the fragment
+	 * @param id
+	 *            the ID of the message
+	 * @param length
+	 *            the length of the message
+	 * @param index
+	 *            the index of the fragment, the parity fragments follow the
+	 *            data fragments
+	 * @param count
+	 *            the number of the data fragments
+	 * @param correction
+	 *            the correction
+	 */
+	static void putHeader(ByteBuffer buffer, int id, int length, int index,
+			int count, ErrorCorrection correction)
+	{
+		putHeader(buffer, id, length | FEC_FLAG, index, count);
+		buffer.put((byte) (correction.getScheme().ordinal() + 1))
+				.put((byte) correction.getDataShards())
+				.put((byte) correction.getParityShards()).put((byte) 0);
+	}
+
+	/**
+	 * Puts the header of a fragment into the buffer.
+	 * 
+	 * @param buffer
+	 *            the buffer of the fragment
+	 * @param id
+	 *            the ID of the message
+	 * @param length
+	 *            the length of the message
+	 * @param index
+	 *            the index of the fragment
+	 * @param count
+	 *            the number of the fragments
+	 */
+	static void putHeader(ByteBuffer buffer, int id, int length, int index,
+			int count)
+	{
+		buffer.putInt(id).putInt(length).putShort((short) index)
+				.putShort((short) count);
+	}
+
+	/**
+	 * Offers a received fragment.
+	 * <p>
+	 * If the fragment completes a message, the message is transferred into
+	 * the destination buffer and the rest of the message is discarded if the
+	 * buffer is not large enough. The malformed fragments and the fragments
+	 * of the too large messages are dropped.
+	 * </p>
+	 * 
+	 * @param source
+	 *            the source of the fragment
+	 * @param fragment
+	 *            the fragment including the header, which will be consumed
+	 * @param dst
+	 *            the destination buffer of the message
+	 * @return <code>true</code> if a message is transferred into
+	 *         <code>dst</code>
+	 */
+	boolean offer(SocketAddress source, ByteBuffer fragment, ByteBuffer dst)
+	{
+		if (fragment.remaining() < HEADER_LENGTH)
+		{
+			dropped++;
+			return false;
+		}
+		int id = fragment.getInt();
+		int length = fragment.getInt();
+		int index = fragment.getShort() & 0xffff;
+		int count = fragment.getShort() & 0xffff;
+		Scheme scheme = null;
+		int k = 0;
+		int m = 0;
+		if ((length & FEC_FLAG) != 0)
+		{
+			length &= ~FEC_FLAG;
+			if (fragment.remaining() >= FEC_HEADER_LENGTH - HEADER_LENGTH)
+			{
+				scheme = scheme(fragment.get() & 0xff);
+				k = fragment.get() & 0xff;
+				m = fragment.get() & 0xff;
+				fragment.get();
+			}
+			// the shards beyond the coder are malformed as well
+			if (scheme == null || k < 1 || m < 1
+					|| k + m > ErrorCorrection.MAX_SHARDS
+					|| (scheme == Scheme.XOR && m != 1) || count == 0
+					|| total(count, k, m) > MAX_FRAGMENTS)
+			{
+				dropped++;
+				return false;
+			}
+		}
+		int size = count == 0 ? 0 : size(length, count);
+		int total = scheme == null ? count : (int) total(count, k, m);
+		if (index >= total
+				|| fragment.remaining() != (index < count ? Math.min(size,
+						length - (long) size * index) : size))
+		{
+			dropped++;
+			return false;
+		}
+		if (count == 1 && scheme == null)
+		{
+			NetUtils.transfer(fragment, dst);
+			return true;
+		}
+		long now = System.nanoTime();
+		expire(now);
+		probe.source = source;
+		probe.id = id;
+		Message message = pending.get(probe);
+		if (message == null)
+		{
+			if (scheme != null && completed.containsKey(probe))
+				return false;
+			long extent = scheme == null ? length : (long) total * size;
+			ByteBuffer buffer = extent > Integer.MAX_VALUE ? null
+					: acquire((int) extent);
+			if (buffer == null)
+			{
+				dropped++;
+				return false;
+			}
+			Key key = new Key(source, id);
+			message = new Message(key, length, count, scheme, k, m, buffer,
+					now);
+			if (scheme != null)
+			{
+				// pad the last data fragment with zeros for the decoding
+				buffer.limit(count * size).position(length);
+				while (buffer.hasRemaining())
+					buffer.put((byte) 0);
+			}
+			pending.put(key, message);
+		}
+		else if (message.length != length || message.count != count
+				|| message.scheme != scheme || message.k != k
+				|| message.m != m)
+		{
+			dropped++;
+			return false;
+		}
+		if (message.arrived[index])
+			return false;
+		message.arrived[index] = true;
+		message.buffer.limit(message.buffer.capacity()).position(
+				size * index);
+		message.buffer.put(fragment);
+		if (scheme == null)
+		{
+			if (--message.remaining > 0)
+				return false;
+		}
+		else
+		{
+			int group = message.group(index);
+			if (++message.groups[group] != message.shards(group)
+					|| --message.remaining > 0)
+				return false;
+			if (!recover(message, size))
+			{
+				pending.remove(probe);
+				free.add(message.buffer);
+				dropped++;
+				return false;
+			}
+			if (completed.size() >= MAX_COMPLETED)
+				completed.remove(completed.keySet().iterator().next());
+			completed.put(message.key, message.key);
+		}
+		pending.remove(probe);
+		message.buffer.limit(length).position(0);
+		NetUtils.transfer(message.buffer, dst);
+		free.add(message.buffer);
+		return true;
+	}
+
+	/**
+	 * Returns the coding scheme of the code in the header.
+	 * 
+	 * @param code
+	 *            the code of the scheme
+	 * @return the scheme, <code>null</code> if unknown
+	 */
+	private static Scheme scheme(int code)
+	{
+		Scheme[] schemes = Scheme.values();
+		return code < 1 || code > schemes.length ? null : schemes[code - 1];
+	}
+
+	/**
+	 * Rebuilds the lost data fragments of a message.
+	 * 
+	 * @param message
+	 *            the message whose groups are complete
+	 * @param size
+	 *            the size of a fragment
+	 * @return <code>false</code> if a group could not be decoded
+	 */
+	private boolean recover(Message message, int size)
+	{
+		for (int group = 0; group < message.groups.length; group++)
+		{
+			int base = group * message.k;
+			int shards = message.shards(group);
+			int i = 0;
+			while (i < shards && message.arrived[base + i])
+				i++;
+			if (i == shards)
+				continue;
+			if (coder == null)
+				coder = new ErasureCoder();
+			int n = coder.decode(message.buffer, message.arrived,
+					message.count, group, size, message.scheme, message.k,
+					message.m);
+			if (n < 0)
+				return false;
+			recovered += n;
+		}
+		return true;
+	}
+
+	/**
+	 * Evicts the incomplete messages whose timeout elapsed.
+	 * 
+	 * @param now
+	 *            the current time in nanoseconds
+	 */
+	private void expire(long now)
+	{
+		Iterator<Message> it = pending.values().iterator();
+		while (it.hasNext())
+		{
+			Message message = it.next();
+			if (now - message.created < timeout)
+				return;
+			it.remove();
+			free.add(message.buffer);
+			evicted++;
+		}
+	}
+
+	/**
+	 * Acquires a message buffer from the pool, or allocates a new one within
+	 * the maximum memory by releasing the pooled buffers and evicting the
+	 * oldest incomplete messages.
+	 * 
+	 * @param length
+	 *            the length of the message
+	 * @return the buffer, <code>null</code> if the message is larger than the
+	 *         maximum memory
+	 */
+	private ByteBuffer acquire(int length)
+	{
+		for (Iterator<ByteBuffer> it = free.iterator(); it.hasNext();)
+		{
+			ByteBuffer buffer = it.next();
+			if (buffer.capacity() >= length)
+			{
+				it.remove();
+				buffer.clear();
+				return buffer;
+			}
+		}
+		if (length > maxMemory)
+			return null;
+		int capacity = Math.max(MIN_BUFFER, Integer.highestOneBit(length - 1) << 1);
+		if (capacity < length || capacity > maxMemory)
+			capacity = length;
+		while (memory + capacity > maxMemory)
+		{
+			ByteBuffer buffer = free.poll();
+			if (buffer == null)
+			{
+				Iterator<Message> it = pending.values().iterator();
+				buffer = it.next().buffer;
+				it.remove();
+				evicted++;
+			}
+			memory -= buffer.capacity();
+		}
+		memory += capacity;
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Returns the number of the incomplete messages.
+	 * 
+	 * @return the number of the incomplete messages
+	 */
+	int getPendingCount()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * Returns the number of the evicted incomplete messages.
+	 * 
+	 * @return the number of the evicted messages
+	 */
+	long getEvictedCount()
+	{
+		return evicted;
+	}
+
+	/**
+	 * Returns the number of the dropped fragments.
+	 * 
+	 * @return the number of the dropped fragments
+	 */
+	long getDroppedCount()
+	{
+		return dropped;
+	}
+
+	/**
+	 * Returns the number of the fragments rebuilt by the error correction.
+	 * 
+	 * @return the number of the rebuilt fragments
+	 */
+	long getRecoveredCount()
+	{
+		return recovered;
+	}
+
+	/**
+	 * Returns the memory held by the pending messages and the pooled
+	 * buffers.
+	 * 
+	 * @return the memory in bytes
+	 */
+	long getMemory()
+	{
+		return memory;
+	}
+}
@@ -56,6 +56,28 @@ public class SessionFactory
 				return new SessionTCPServer(sa);
 			case TCP_CLIENT:
 				return new SessionTCPClient(sa);
+			case RUDP:
+				return new SessionRUDP(sa);
 		}
 	}
+
+	/**
+	 * Create a sharded net transmission session, whose shards are bound to the
+	 * same socket address with <code>SO_REUSEPORT</code>.
+	 * 
+	 * @param sa
+	 *            the socket address to bind
+	 * @param type
+	 *            the type of the transmission, {@linkplain SocketType#TCP_SERVER}
+	 *            or {@linkplain SocketType#UDP}
+	 * @param shards
+	 *            the number of shards
+	 * @return the sharded transmission session
+	 * @see SessionSharded
+	 */
+	public SessionSharded createSession(SocketAddress sa, SocketType type,
+			int shards)
+	{
+		return new SessionSharded(sa, type, shards);
+	}
 }
@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * SessionMux.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.EOFException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The session of the logical streams multiplexed over one framed TCP
+ * transaction.
+ * <p>
+ * Each {@linkplain TransactionStream stream} is an ordinary
+ * {@linkplain Transaction transaction}, whose data is cut into chunks of at
+ * most {@linkplain #MAX_CHUNK} bytes and interleaved with the chunks of the
+ * other streams on the connection. Each chunk is sent as one frame which
+ * begins with a header of {@linkplain #HEADER_LENGTH} bytes: the frame type,
+ * the flags and the 4-byte stream ID in big-endian order.
+ * </p>
+ * <p>
+ * Each stream has a credit based flow control window. A sender may only have
+ * as many bytes unconsumed by the receiving application as the window of the
+ * stream, and the receiver grants the credit back by a window update frame
+ * after the data is consumed. Thus, the reading thread of the session never
+ * blocks on a slow consumer, and one bulk stream cannot starve the others.
+ * </p>
+ * <p>
+ * The streams opened by the initiating side of the connection have odd IDs,
+ * while the ones opened by the accepting side have even IDs. The streams
+ * opened by the peer are {@linkplain #acceptStream() accepted} in order.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class SessionMux extends Session
+{
+	/**
+	 * The frame type which opens a stream.
+	 */
+	static final byte							OPEN			= 0;
+	/**
+	 * The frame type which carries a chunk of data.
+	 */
+	static final byte							DATA			= 1;
+	/**
+	 * The frame type which grants the credit of a window.
+	 */
+	static final byte							WINDOW			= 2;
+	/**
+	 * The frame type which ends the sending of a stream.
+	 */
+	static final byte							CLOSE			= 3;
+	/**
+	 * The flag of the last chunk of a message.
+	 */
+	static final byte							FLAG_END		= 1;
+	/**
+	 * The length of the frame header.
+	 */
+	public static final int						HEADER_LENGTH	= 6;
+	/**
+	 * The maximum length of a data chunk.
+	 */
+	public static final int						MAX_CHUNK		= 16 * 1024;
+	/**
+	 * The default flow control window of a stream.
+	 */
+	public static final int						DEFAULT_WINDOW	= 64 * 1024;
+	/**
+	 * The sequence of the reading threads.
+	 */
+	private static final AtomicInteger			sequence		= new AtomicInteger();
+	/**
+	 * The underlying transaction.
+	 */
+	private final TransactionTCP				transaction;
+	/**
+	 * The flow control window of each stream.
+	 */
+	private final int							window;
+	/**
+	 * The next ID of the streams opened locally.
+	 */
+	private final AtomicInteger					nextId;
+	/**
+	 * The open streams by their IDs.
+	 */
+	private final ConcurrentHashMap<Integer, TransactionStream>	streams			= new ConcurrentHashMap<Integer, TransactionStream>();
+	/**
+	 * The streams opened by the peer and not accepted yet.
+	 */
+	private final ArrayDeque<TransactionStream>	accepts			= new ArrayDeque<TransactionStream>();
+	/**
+	 * The fair lock of the writing, thus, the chunks of the waiting streams
+	 * are sent in turn.
+	 */
+	private final ReentrantLock					writeLock		= new ReentrantLock(
+																		true);
+	/**
+	 * The thread reading the frames.
+	 */
+	private final Thread						reader;
+	/**
+	 * The cause of the session ended, <code>null</code> if still working.
+	 */
+	private volatile Throwable					failure;
+
+	/**
+	 * Construct an instance of <tt>SessionMux</tt> with the default window.
+	 * 
+	 * @param transaction
+	 *            the blocking transaction of a connected socket
+	 * @param initiator
+	 *            <code>true</code> for the initiating side of the connection,
+	 *            usually the client; <code>false</code> for the accepting side
+	 * @throws TransactionStateException
+	 *             if the transaction is driven by an event loop
+	 */
+	public SessionMux(TransactionTCP transaction, boolean initiator)
+			throws TransactionStateException
+	{
+		this(transaction, initiator, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Construct an instance of <tt>SessionMux</tt> and starts reading the
+	 * frames.
+	 * <p>
+	 * Both sides of the connection shall use the same window.
+	 * </p>
+	 * 
+	 * @param transaction
+	 *            the blocking transaction of a connected socket
+	 * @param initiator
+	 *            <code>true</code> for the initiating side of the connection,
+	 *            usually the client; <code>false</code> for the accepting side
+	 * @param window
+	 *            the flow control window of each stream in bytes
+	 * @throws TransactionStateException
+	 *             if the transaction is driven by an event loop
+	 * @throws IllegalArgumentException
+	 *             if <code>window</code> is not positive
+	 */
+	public SessionMux(TransactionTCP transaction, boolean initiator, int window)
+			throws TransactionStateException, IllegalArgumentException
+	{
+		if (window <= 0)
+			throw new IllegalArgumentException(String.format(
+					"The window(%d) shall be positive.", window));
+		if (transaction.getEventLoop() != null)
+			throw new TransactionStateException(
+					"The transaction is driven by an event loop.");
+		this.transaction = transaction;
+		this.window = window;
+		this.nextId = new AtomicInteger(initiator ? 1 : 2);
+		transaction.setFramed(true);
+		reader = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				read();
+			}
+		}, "mpnet-mux-" + sequence.incrementAndGet());
+		reader.start();
+	}
+
+	/**
+	 * Opens a new stream.
+	 * 
+	 * @return the stream
+	 * @throws TransactionStateException
+	 *             if the session is closed
+	 * @throws TransactionException
+	 *             if failed to notify the peer
+	 * @see com.frank.mpnet.Session#beginTransaction()
+	 */
+	@Override
+	public TransactionStream beginTransaction()
+			throws TransactionStateException, TransactionException
+	{
+		checkOpen();
+		TransactionStream stream = new TransactionStream(this,
+				nextId.getAndAdd(2), window);
+		streams.put(stream.getId(), stream);
+		try
+		{
+			write(OPEN, 0, stream.getId(), null);
+		}
+		catch (TransactionException e)
+		{
+			streams.remove(stream.getId());
+			throw e;
+		}
+		return stream;
+	}
+
+	/**
+	 * Opens a new stream, the socket address is ignored since all of the
+	 * streams share the connection.
+	 * 
+	 * @see #beginTransaction()
+	 * @see com.frank.mpnet.Session#beginTransaction(java.net.SocketAddress)
+	 */
+	@Override
+	public TransactionStream beginTransaction(SocketAddress sa)
+			throws TransactionStateException, TransactionException
+	{
+		return beginTransaction();
+	}
+
+	/**
+	 * Waits for the next stream opened by the peer.
+	 * 
+	 * @return the stream
+	 * @throws SessionException
+	 *             if the session is closed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public TransactionStream acceptStream() throws SessionException,
+			InterruptedException
+	{
+		return acceptStream(0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Waits for the next stream opened by the peer for at most the specified
+	 * time.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait, <code>0</code> for waiting forever
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 * @return the stream, <code>null</code> if timed out
+	 * @throws SessionException
+	 *             if the session is closed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public TransactionStream acceptStream(long timeout, TimeUnit unit)
+			throws SessionException, InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (accepts)
+		{
+			while (accepts.isEmpty())
+			{
+				if (failure != null)
+					throw new SessionException("The session is closed.",
+							failure);
+				if (timeout <= 0)
+					accepts.wait();
+				else
+				{
+					long nanos = deadline - System.nanoTime();
+					if (nanos <= 0)
+						return null;
+					TimeUnit.NANOSECONDS.timedWait(accepts, nanos);
+				}
+			}
+			return accepts.poll();
+		}
+	}
+
+	/**
+	 * Sends a frame of the stream.
+	 * 
+	 * @param type
+	 *            the frame type
+	 * @param flags
+	 *            the flags
+	 * @param id
+	 *            the stream ID
+	 * @param body
+	 *            the body, <code>null</code> for no body
+	 * @throws TransactionException
+	 *             if failed to send the frame
+	 */
+	void write(byte type, int flags, int id, ByteBuffer body)
+			throws TransactionException
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.put(type).put((byte) flags).putInt(id).flip();
+		writeLock.lock();
+		try
+		{
+			if (body == null)
+				transaction.sendFrame(header);
+			else
+				transaction.sendFrame(header, body);
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the frames and dispatches them to the streams until the
+	 * connection ends, then terminates the streams.
+	 */
+	private void read()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + MAX_CHUNK);
+		Throwable cause;
+		try
+		{
+			while (true)
+			{
+				buffer.clear();
+				transaction.receiveFrame(buffer);
+				if (!transaction.hasNext())
+				{
+					cause = new EOFException("The connection is closed.");
+					break;
+				}
+				buffer.flip();
+				if (buffer.remaining() < HEADER_LENGTH)
+					throw new TransactionException(
+							"Malformed frame: the header is truncated.");
+				byte type = buffer.get();
+				byte flags = buffer.get();
+				int id = buffer.getInt();
+				TransactionStream stream = streams.get(id);
+				switch (type)
+				{
+					case OPEN:
+						stream = new TransactionStream(this, id, window);
+						streams.put(id, stream);
+						synchronized (accepts)
+						{
+							accepts.add(stream);
+							accepts.notifyAll();
+						}
+						break;
+					case DATA:
+						if (stream != null)
+						{
+							ByteBuffer chunk = ByteBuffer.allocate(buffer
+									.remaining());
+							chunk.put(buffer).flip();
+							stream.received(chunk, (flags & FLAG_END) != 0);
+						}
+						break;
+					case WINDOW:
+						if (stream != null)
+							stream.credit(buffer.getInt());
+						break;
+					case CLOSE:
+						if (stream != null)
+							stream.remoteClosed();
+						break;
+					default:
+						throw new TransactionException(String.format(
+								"Malformed frame: unknown type %d.", type));
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			cause = e;
+		}
+		synchronized (this)
+		{
+			if (failure == null)
+				failure = cause;
+		}
+		synchronized (accepts)
+		{
+			accepts.notifyAll();
+		}
+		for (TransactionStream stream : streams.values())
+			stream.terminate(failure);
+		streams.clear();
+	}
+
+	/**
+	 * Forgets the stream closed in both directions.
+	 * 
+	 * @param stream
+	 *            the stream
+	 */
+	void remove(TransactionStream stream)
+	{
+		streams.remove(stream.getId(), stream);
+	}
+
+	/**
+	 * Checks whether the session is still open.
+	 * 
+	 * @throws TransactionStateException
+	 *             if the session is closed
+	 */
+	void checkOpen() throws TransactionStateException
+	{
+		if (failure != null)
+			throw new TransactionStateException("The session is closed.");
+	}
+
+	/**
+	 * Returns the number of the open streams.
+	 * 
+	 * @return the number of the open streams
+	 */
+	public int getStreamCount()
+	{
+		return streams.size();
+	}
+
+	/**
+	 * Returns the flow control window of each stream.
+	 * 
+	 * @return the window in bytes
+	 */
+	public int getWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * Returns the underlying transaction.
+	 * 
+	 * @return the underlying transaction
+	 */
+	public TransactionTCP getTransaction()
+	{
+		return transaction;
+	}
+
+	/**
+	 * Returns <code>true</code> if the session still works.
+	 * 
+	 * @return <code>true</code> if working
+	 */
+	public boolean isOpen()
+	{
+		return failure == null;
+	}
+
+	/**
+	 * Closes the session and its transaction, the open streams end at once.
+	 * 
+	 * @see com.frank.mpnet.Session#close()
+	 */
+	@Override
+	public void close() throws SessionException
+	{
+		synchronized (this)
+		{
+			if (failure != null)
+				return;
+			failure = new TransactionStateException("The session is closed.");
+		}
+		try
+		{
+			transaction.close();
+		}
+		catch (TransactionException e)
+		{
+			throw new SessionException(e);
+		}
+		if (Thread.currentThread() != reader)
+		{
+			try
+			{
+				reader.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Returns the underlying socket.
+	 * 
+	 * @see com.frank.mpnet.Session#getSocket()
+	 */
+	@Override
+	public Socket getSocket()
+	{
+		return transaction.socket;
+	}
+
+	/**
+	 * @see com.frank.mpnet.Session#getLocalAddress()
+	 */
+	@Override
+	public SocketAddress getLocalAddress()
+	{
+		return transaction.socket.getLocalSocketAddress();
+	}
+}
@@ -0,0 +1,741 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * SessionRUDP.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The session of the reliable UDP transport.
+ * <p>
+ * Each peer of the session is served by one
+ * {@linkplain TransactionRUDP reliable transaction}, which delivers the
+ * messages reliably and in order over the datagrams of one shared socket. A
+ * message is cut into segments of at most the segment size, and each segment
+ * is sent in one datagram which begins with a header of
+ * {@linkplain #DATA_HEADER} bytes: the packet type, the flags and the 4-byte
+ * sequence number in big-endian order. The receiver acknowledges the
+ * segments cumulatively with up to {@value #MAX_SACK_BLOCKS} selective
+ * acknowledgement blocks and its free window.
+ * </p>
+ * <p>
+ * One worker thread reads the datagrams, dispatches them to the transactions
+ * and drives the retransmission timers every {@value #TICK} milliseconds.
+ * The transaction to a peer is created by
+ * {@linkplain #beginTransaction(SocketAddress)}, while the transactions
+ * created by the peers are {@linkplain #acceptTransaction() accepted} in
+ * order.
+ * </p>
+ * <p>
+ * The first segment from an unknown peer costs the memory of a whole
+ * transaction, thus, the transactions created by the peers are limited by
+ * the {@linkplain #setBacklog(int) backlog} of the ones not accepted yet and
+ * by the {@linkplain #setMaxPeers(int) maximum number of peers}, the
+ * segments beyond the limits are dropped, and a transaction not accepted is
+ * dropped once it is idle for the {@linkplain #setAcceptTimeout(long,
+ * TimeUnit) accepting timeout}. The first segment of a new transaction from a
+ * known peer, which is restarted, ends the old transaction.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class SessionRUDP extends Session
+{
+	/**
+	 * The packet type which carries a segment.
+	 */
+	static final byte											DATA				= 0;
+	/**
+	 * The packet type which acknowledges the segments.
+	 */
+	static final byte											ACK					= 1;
+	/**
+	 * The flag of the last segment of a message.
+	 */
+	static final byte											FLAG_END			= 1;
+	/**
+	 * The flag of the segment which ends the sending.
+	 */
+	static final byte											FLAG_FIN			= 2;
+	/**
+	 * The length of the header of a data packet.
+	 */
+	public static final int										DATA_HEADER			= 6;
+	/**
+	 * The length of the header of an acknowledgement packet, followed by the
+	 * selective acknowledgement blocks of 8 bytes each.
+	 */
+	public static final int										ACK_HEADER			= 11;
+	/**
+	 * The maximum number of the selective acknowledgement blocks.
+	 */
+	public static final int										MAX_SACK_BLOCKS		= 4;
+	/**
+	 * The default maximum payload of a segment, which keeps the datagrams
+	 * within the common path MTU.
+	 */
+	public static final int										DEFAULT_SEGMENT		= 1200;
+	/**
+	 * The default window in segments, which fills a path of about 1 Gbps with
+	 * a round trip time of 40 ms.
+	 */
+	public static final int										DEFAULT_WINDOW		= 4096;
+	/**
+	 * The default maximum number of the transactions not accepted yet.
+	 */
+	public static final int										DEFAULT_BACKLOG		= 64;
+	/**
+	 * The default maximum number of the transactions.
+	 */
+	public static final int										DEFAULT_MAX_PEERS	= 1024;
+	/**
+	 * The default idle time of a transaction not accepted before it is
+	 * dropped in milliseconds.
+	 */
+	public static final long									DEFAULT_ACCEPT_TIMEOUT	= 10000;
+	/**
+	 * The interval of the timers in milliseconds.
+	 */
+	static final long											TICK				= 10;
+	/**
+	 * The maximum size of the socket buffers.
+	 */
+	private static final int									MAX_SOCKET_BUFFER	= 8 << 20;
+	/**
+	 * The sequence of the worker threads.
+	 */
+	private static final AtomicInteger							sequence			= new AtomicInteger();
+	/**
+	 * The underlying channel.
+	 */
+	private final DatagramChannel								channel;
+	/**
+	 * The selector of the channel.
+	 */
+	private final Selector										selector;
+	/**
+	 * The maximum payload of a segment.
+	 */
+	private final int											segment;
+	/**
+	 * The window of each transaction in segments.
+	 */
+	private final int											window;
+	/**
+	 * The transactions by the socket addresses of their peers.
+	 */
+	private final ConcurrentHashMap<SocketAddress, TransactionRUDP>	transactions		= new ConcurrentHashMap<SocketAddress, TransactionRUDP>();
+	/**
+	 * The transactions created by the peers and not accepted yet.
+	 */
+	private final ArrayDeque<TransactionRUDP>					accepts				= new ArrayDeque<TransactionRUDP>();
+	/**
+	 * The maximum number of the transactions not accepted yet.
+	 */
+	private volatile int										backlog				= DEFAULT_BACKLOG;
+	/**
+	 * The maximum number of the transactions.
+	 */
+	private volatile int										maxPeers			= DEFAULT_MAX_PEERS;
+	/**
+	 * The idle time of a transaction not accepted before it is dropped in
+	 * nanoseconds.
+	 */
+	private volatile long										acceptTimeout		= TimeUnit.MILLISECONDS
+																							.toNanos(DEFAULT_ACCEPT_TIMEOUT);
+	/**
+	 * The number of the transactions refused or dropped before accepted.
+	 */
+	private volatile long										refused;
+	/**
+	 * The buffer of the acknowledgements sent by the worker thread.
+	 */
+	private final ByteBuffer									reply				= ByteBuffer
+																							.allocateDirect(ACK_HEADER);
+	/**
+	 * The worker thread.
+	 */
+	private final Thread										worker;
+	/**
+	 * The cause of the session ended, <code>null</code> if still working.
+	 */
+	private volatile Throwable									failure;
+
+	/**
+	 * Construct an instance of <tt>SessionRUDP</tt> with an ephemeral port.
+	 * 
+	 * @throws SessionException
+	 *             if the socket could not be opened
+	 */
+	public SessionRUDP() throws SessionException
+	{
+		this(null);
+	}
+
+	/**
+	 * Construct an instance of <tt>SessionRUDP</tt> bound to the specified
+	 * socket address with the default segment size and window.
+	 * 
+	 * @param bindAddr
+	 *            the socket address to bind, <code>null</code> for an
+	 *            ephemeral port
+	 * @throws SessionException
+	 *             if the socket could not be opened or bound
+	 */
+	public SessionRUDP(SocketAddress bindAddr) throws SessionException
+	{
+		this(bindAddr, DEFAULT_SEGMENT, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Construct an instance of <tt>SessionRUDP</tt> bound to the specified
+	 * socket address and starts the worker thread.
+	 * <p>
+	 * Both peers shall use the same segment size. The memory of the segments
+	 * of a transaction grows up to twice the window times the segment size.
+	 * </p>
+	 * 
+	 * @param bindAddr
+	 *            the socket address to bind, <code>null</code> for an
+	 *            ephemeral port
+	 * @param segment
+	 *            the maximum payload of a segment, within the
+	 *            {@linkplain TransactionUDP#MAX_UDP_PACKET maximum UDP
+	 *            packet} with the header
+	 * @param window
+	 *            the window of each transaction in segments, rounded up to a
+	 *            power of two
+	 * @throws SessionException
+	 *             if the socket could not be opened or bound
+	 * @throws IllegalArgumentException
+	 *             if <code>segment</code> or <code>window</code> is out of
+	 *             range
+	 */
+	public SessionRUDP(SocketAddress bindAddr, int segment, int window)
+			throws SessionException, IllegalArgumentException
+	{
+		if (segment < 1 || segment > TransactionUDP.MAX_UDP_PACKET - DATA_HEADER)
+			throw new IllegalArgumentException(String.format(
+					"The segment(%d) shall be positive and within %d.",
+					segment, TransactionUDP.MAX_UDP_PACKET - DATA_HEADER));
+		if (window < 2 || window > 1 << 20)
+			throw new IllegalArgumentException(String.format(
+					"The window(%d) shall be within [2, %d].", window, 1 << 20));
+		this.segment = segment;
+		this.window = Integer.highestOneBit(window - 1) << 1;
+		try
+		{
+			channel = DatagramChannel.open();
+			int size = (int) Math.min(MAX_SOCKET_BUFFER, (long) this.window
+					* (segment + DATA_HEADER));
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+			channel.bind(bindAddr);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		}
+		catch (IOException e)
+		{
+			throw new SessionException("Error create session: "
+					+ e.getLocalizedMessage(), e);
+		}
+		worker = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				work();
+			}
+		}, "mpnet-rudp-" + sequence.incrementAndGet());
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Waits for the next transaction created by a peer.
+	 * 
+	 * @see #acceptTransaction()
+	 * @see com.frank.mpnet.Session#beginTransaction()
+	 */
+	@Override
+	public TransactionRUDP beginTransaction() throws TransactionException
+	{
+		try
+		{
+			return acceptTransaction();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new TransactionException(
+					"Interrupted while waiting for a peer.", e);
+		}
+	}
+
+	/**
+	 * Returns the transaction with the specified peer, a new one is created if
+	 * none. The peer accepts the transaction once the first segment arrives.
+	 * 
+	 * @throws TransactionStateException
+	 *             if the session is closed
+	 * @see com.frank.mpnet.Session#beginTransaction(java.net.SocketAddress)
+	 */
+	@Override
+	public TransactionRUDP beginTransaction(SocketAddress sa)
+			throws TransactionStateException
+	{
+		if (failure != null)
+			throw new TransactionStateException("The session is closed.");
+		TransactionRUDP transaction = transactions.get(sa);
+		if (transaction != null)
+			return transaction;
+		transaction = new TransactionRUDP(this, sa, segment, window);
+		TransactionRUDP old = transactions.putIfAbsent(sa, transaction);
+		return old == null ? transaction : old;
+	}
+
+	/**
+	 * Waits for the next transaction created by a peer.
+	 * 
+	 * @return the transaction
+	 * @throws SessionException
+	 *             if the session is closed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public TransactionRUDP acceptTransaction() throws SessionException,
+			InterruptedException
+	{
+		return acceptTransaction(0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Waits for the next transaction created by a peer for at most the
+	 * specified time.
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait, <code>0</code> for waiting forever
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 * @return the transaction, <code>null</code> if timed out
+	 * @throws SessionException
+	 *             if the session is closed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public TransactionRUDP acceptTransaction(long timeout, TimeUnit unit)
+			throws SessionException, InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (accepts)
+		{
+			while (accepts.isEmpty())
+			{
+				if (failure != null)
+					throw new SessionException("The session is closed.",
+							failure);
+				if (timeout <= 0)
+					accepts.wait();
+				else
+				{
+					long nanos = deadline - System.nanoTime();
+					if (nanos <= 0)
+						return null;
+					TimeUnit.NANOSECONDS.timedWait(accepts, nanos);
+				}
+			}
+			return accepts.poll();
+		}
+	}
+
+	/**
+	 * Sends a packet without blocking.
+	 * 
+	 * @param packet
+	 *            the packet
+	 * @param target
+	 *            the socket address of the peer
+	 * @return <code>false</code> if the socket buffer is full
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	boolean send(ByteBuffer packet, SocketAddress target) throws IOException
+	{
+		return channel.send(packet, target) > 0;
+	}
+
+	/**
+	 * Reads the datagrams, dispatches them to the transactions and drives the
+	 * timers until the session is closed, then terminates the transactions.
+	 */
+	private void work()
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(DATA_HEADER + segment);
+		long last = System.nanoTime();
+		long tick = TimeUnit.MILLISECONDS.toNanos(TICK);
+		Throwable cause;
+		try
+		{
+			while (failure == null)
+			{
+				selector.select(TICK);
+				selector.selectedKeys().clear();
+				SocketAddress sa;
+				while ((sa = channel.receive(buffer)) != null)
+				{
+					buffer.flip();
+					dispatch(sa, buffer);
+					buffer.clear();
+				}
+				long now = System.nanoTime();
+				if (now - last >= tick)
+				{
+					last = now;
+					for (TransactionRUDP transaction : transactions.values())
+						transaction.tick(now);
+					expire(now);
+				}
+			}
+			cause = failure;
+		}
+		catch (Exception e)
+		{
+			cause = e;
+		}
+		synchronized (this)
+		{
+			if (failure == null)
+				failure = cause;
+		}
+		synchronized (accepts)
+		{
+			accepts.notifyAll();
+		}
+		for (TransactionRUDP transaction : transactions.values())
+			transaction.terminate(failure);
+		transactions.clear();
+	}
+
+	/**
+	 * Drops the transactions not accepted and idle for the accepting timeout,
+	 * called by the worker thread.
+	 * 
+	 * @param now
+	 *            the current time in nanoseconds
+	 */
+	private void expire(long now)
+	{
+		ArrayDeque<TransactionRUDP> expired = null;
+		synchronized (accepts)
+		{
+			Iterator<TransactionRUDP> it = accepts.iterator();
+			while (it.hasNext())
+			{
+				TransactionRUDP transaction = it.next();
+				if (now - transaction.getLastReceived() >= acceptTimeout)
+				{
+					it.remove();
+					if (expired == null)
+						expired = new ArrayDeque<TransactionRUDP>();
+					expired.add(transaction);
+				}
+			}
+		}
+		if (expired == null)
+			return;
+		for (TransactionRUDP transaction : expired)
+		{
+			refused++;
+			transaction.terminate(new TransactionException(String.format(
+					"The transaction of %s is not accepted in time.",
+					transaction.getPeer())));
+		}
+	}
+
+	/**
+	 * Dispatches a packet to the transaction of its peer. A data packet of
+	 * sequence <code>0</code> from an unknown or restarted peer creates a
+	 * transaction to be accepted within the limits, while the last segment of
+	 * a forgotten transaction is acknowledged for the peer to close.
+	 * 
+	 * @param sa
+	 *            the socket address of the peer
+	 * @param packet
+	 *            the packet
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void dispatch(SocketAddress sa, ByteBuffer packet)
+			throws IOException
+	{
+		TransactionRUDP transaction = transactions.get(sa);
+		if (transaction != null && packet.remaining() >= DATA_HEADER
+				&& packet.get(0) == DATA && packet.getInt(2) == 0
+				&& transaction.restarted(packet))
+		{
+			transaction.terminate(new TransactionException(String.format(
+					"The peer %s is restarted.", sa)));
+			transaction = null;
+		}
+		if (transaction == null)
+		{
+			if (packet.remaining() < DATA_HEADER || packet.get(0) != DATA)
+				return;
+			int seq = packet.getInt(2);
+			if ((packet.get(1) & FLAG_FIN) != 0)
+			{
+				reply.clear();
+				reply.put(ACK).put((byte) 0).putInt(seq + 1).putInt(0)
+						.put((byte) 0).flip();
+				send(reply, sa);
+				return;
+			}
+			if (seq != 0)
+				return;
+			synchronized (accepts)
+			{
+				if (accepts.size() >= backlog
+						|| transactions.size() >= maxPeers)
+				{
+					refused++;
+					return;
+				}
+				transaction = new TransactionRUDP(this, sa, segment, window);
+				transactions.put(sa, transaction);
+				accepts.add(transaction);
+				accepts.notifyAll();
+			}
+		}
+		transaction.received(packet, System.nanoTime());
+	}
+
+	/**
+	 * Forgets the closed transaction.
+	 * 
+	 * @param transaction
+	 *            the transaction
+	 */
+	void remove(TransactionRUDP transaction)
+	{
+		transactions.remove(transaction.getPeer(), transaction);
+		synchronized (accepts)
+		{
+			accepts.remove(transaction);
+		}
+	}
+
+	/**
+	 * Returns the maximum number of the transactions created by the peers and
+	 * not accepted yet.
+	 * 
+	 * @return the backlog
+	 */
+	public int getBacklog()
+	{
+		return backlog;
+	}
+
+	/**
+	 * Sets the maximum number of the transactions created by the peers and
+	 * not accepted yet, the first segments of the new peers beyond it are
+	 * dropped.
+	 * 
+	 * @param backlog
+	 *            the backlog
+	 * @throws IllegalArgumentException
+	 *             if <code>backlog</code> is not positive
+	 */
+	public void setBacklog(int backlog) throws IllegalArgumentException
+	{
+		if (backlog < 1)
+			throw new IllegalArgumentException(String.format(
+					"The backlog(%d) shall be positive.", backlog));
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Returns the maximum number of the transactions.
+	 * 
+	 * @return the maximum number of the transactions
+	 */
+	public int getMaxPeers()
+	{
+		return maxPeers;
+	}
+
+	/**
+	 * Sets the maximum number of the transactions, the first segments of the
+	 * new peers beyond it are dropped. The transactions begun locally are not
+	 * limited, while they are counted.
+	 * 
+	 * @param maxPeers
+	 *            the maximum number of the transactions
+	 * @throws IllegalArgumentException
+	 *             if <code>maxPeers</code> is not positive
+	 */
+	public void setMaxPeers(int maxPeers) throws IllegalArgumentException
+	{
+		if (maxPeers < 1)
+			throw new IllegalArgumentException(String.format(
+					"The maxPeers(%d) shall be positive.", maxPeers));
+		this.maxPeers = maxPeers;
+	}
+
+	/**
+	 * Returns the idle time of a transaction not accepted before it is
+	 * dropped.
+	 * 
+	 * @param unit
+	 *            the time unit of the result
+	 * @return the accepting timeout
+	 */
+	public long getAcceptTimeout(TimeUnit unit)
+	{
+		return unit.convert(acceptTimeout, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets the idle time of a transaction not accepted before it is dropped.
+	 * 
+	 * @param timeout
+	 *            the accepting timeout
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 * @throws IllegalArgumentException
+	 *             if <code>timeout</code> is not positive
+	 */
+	public void setAcceptTimeout(long timeout, TimeUnit unit)
+			throws IllegalArgumentException
+	{
+		if (timeout <= 0)
+			throw new IllegalArgumentException(String.format(
+					"The timeout(%d) shall be positive.", timeout));
+		this.acceptTimeout = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Returns the number of the transactions created by the peers which are
+	 * refused by the limits or dropped before accepted.
+	 * 
+	 * @return the number of the refused transactions
+	 */
+	public long getRefusedCount()
+	{
+		return refused;
+	}
+
+	/**
+	 * Returns the number of the open transactions.
+	 * 
+	 * @return the number of the open transactions
+	 */
+	public int getTransactionCount()
+	{
+		return transactions.size();
+	}
+
+	/**
+	 * Returns the maximum payload of a segment.
+	 * 
+	 * @return the segment size in bytes
+	 */
+	public int getSegment()
+	{
+		return segment;
+	}
+
+	/**
+	 * Returns the window of each transaction.
+	 * 
+	 * @return the window in segments
+	 */
+	public int getWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * Returns <code>true</code> if the session still works.
+	 * 
+	 * @return <code>true</code> if working
+	 */
+	public boolean isOpen()
+	{
+		return failure == null;
+	}
+
+	/**
+	 * Closes the session and its socket, the open transactions end at once
+	 * without waiting for the acknowledgements.
+	 * 
+	 * @see com.frank.mpnet.Session#close()
+	 */
+	@Override
+	public void close() throws SessionException
+	{
+		synchronized (this)
+		{
+			if (failure != null)
+				return;
+			failure = new TransactionStateException("The session is closed.");
+		}
+		selector.wakeup();
+		if (Thread.currentThread() != worker)
+		{
+			try
+			{
+				worker.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		try
+		{
+			selector.close();
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			throw new SessionException("Unable to close the session: "
+					+ e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns the underlying datagram socket.
+	 * 
+	 * @see com.frank.mpnet.Session#getSocket()
+	 */
+	@Override
+	public DatagramSocket getSocket()
+	{
+		return channel.socket();
+	}
+
+	/**
+	 * @see com.frank.mpnet.Session#getLocalAddress()
+	 */
+	@Override
+	public SocketAddress getLocalAddress()
+	{
+		return channel.socket().getLocalSocketAddress();
+	}
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * SessionSharded.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The net transmission session made up of several shards bound to the same
+ * address and port with the socket option <code>SO_REUSEPORT</code>.
+ * <p>
+ * Each shard is a {@linkplain SessionTCPServer TCP server session} or a
+ * {@linkplain SessionUDP UDP session} with its own socket, and the kernel
+ * balances the new connections or the received datagrams among the sockets.
+ * Thus, each shard can be driven by its own loop, and the single accepting or
+ * receiving thread is no longer the bottleneck.
+ * </p>
+ * <p>
+ * The TCP shards can {@linkplain #listen(TransactionListener) listen} with one
+ * event loop each, which both accepts and drives the transactions, or
+ * {@linkplain #serve(TransactionHandler) serve} with one accepting thread
+ * each. The UDP shards can {@linkplain #receive(DatagramHandler) receive} with
+ * one receiving thread each. {@linkplain #beginTransaction()} chooses the
+ * shards in turn.
+ * </p>
+ * <p>
+ * <code>SO_REUSEPORT</code> is supported since Java 9 on the platforms such as
+ * Linux, where the datagrams of the same peer always go to the same shard. A
+ * session with one shard works on any platform.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class SessionSharded extends Session
+{
+	/**
+	 * The first back-off in milliseconds after a failed receiving.
+	 */
+	public static final long		MIN_BACKOFF	= 1;
+	/**
+	 * The maximum back-off in milliseconds after the repeated failures of
+	 * receiving.
+	 */
+	public static final long		MAX_BACKOFF	= 1000;
+	/**
+	 * The socket type of the shards.
+	 */
+	protected final SocketType		type;
+	/**
+	 * The shards.
+	 */
+	protected final Session[]		shards;
+	/**
+	 * The index of the next shard to begin a transaction.
+	 */
+	private final AtomicInteger		next	= new AtomicInteger();
+	/**
+	 * The event loops of the listening TCP shards, <code>null</code> if not
+	 * listening.
+	 */
+	private EventLoop[]				loops;
+	/**
+	 * The receiving threads of the UDP shards, <code>null</code> if not
+	 * receiving.
+	 */
+	private Thread[]				receivers;
+	/**
+	 * The number of the failures of the receiving threads.
+	 */
+	private final AtomicLong		failed		= new AtomicLong();
+
+	/**
+	 * Construct an instance of <tt>SessionSharded</tt> with one shard for each
+	 * available processor.
+	 * 
+	 * @param bindAddr
+	 *            the socket address to bind, if the port is <code>0</code>,
+	 *            all of the shards will bind to the port picked by the first
+	 *            shard
+	 * @param type
+	 *            the socket type of the shards, {@linkplain SocketType#TCP_SERVER}
+	 *            or {@linkplain SocketType#UDP}
+	 * @throws SessionException
+	 *             if failed to create or bind the shards, or
+	 *             <code>SO_REUSEPORT</code> is not supported
+	 * @throws IllegalArgumentException
+	 *             if the socket type is not supported
+	 */
+	public SessionSharded(SocketAddress bindAddr, SocketType type)
+			throws SessionException, IllegalArgumentException
+	{
+		this(bindAddr, type, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Construct an instance of <tt>SessionSharded</tt>.
+	 * 
+	 * @param bindAddr
+	 *            the socket address to bind, if the port is <code>0</code>,
+	 *            all of the shards will bind to the port picked by the first
+	 *            shard
+	 * @param type
+	 *            the socket type of the shards, {@linkplain SocketType#TCP_SERVER}
+	 *            or {@linkplain SocketType#UDP}
+	 * @param shards
+	 *            the number of shards
+	 * @throws SessionException
+	 *             if failed to create or bind the shards, or
+	 *             <code>SO_REUSEPORT</code> is not supported while
+	 *             <code>shards</code> is more than one
+	 * @throws IllegalArgumentException
+	 *             if the socket type is not supported, or <code>shards</code>
+	 *             is not positive
+	 */
+	public SessionSharded(SocketAddress bindAddr, SocketType type, int shards)
+			throws SessionException, IllegalArgumentException
+	{
+		if (shards <= 0)
+			throw new IllegalArgumentException(String.format(
+					"The number of shards(%d) shall be positive.", shards));
+		if (type != SocketType.TCP_SERVER && type != SocketType.UDP)
+			throw new IllegalArgumentException("Unsupported socket type: "
+					+ type);
+		this.type = type;
+		this.shards = new Session[shards];
+		try
+		{
+			for (int i = 0; i < shards; i++)
+				this.shards[i] = createShard(i == 0 ? bindAddr : this.shards[0]
+						.getLocalAddress(), shards > 1);
+		}
+		catch (SessionException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates a shard and binds it to the specified address.
+	 * 
+	 * @param bindAddr
+	 *            the socket address to bind
+	 * @param reuse
+	 *            <code>true</code> if <code>SO_REUSEPORT</code> is required
+	 * @return the shard
+	 * @throws SessionException
+	 *             if failed to create or bind the shard
+	 */
+	private Session createShard(SocketAddress bindAddr, boolean reuse)
+			throws SessionException
+	{
+		Session shard = type == SocketType.UDP ? new SessionUDP(
+				(SocketAddress) null) : new SessionTCPServer();
+		try
+		{
+			boolean reused = type == SocketType.UDP ? NetUtils
+					.reusePort(((SessionUDP) shard).socket.getChannel())
+					: NetUtils.reusePort(((SessionTCPServer) shard).server
+							.getChannel());
+			if (reuse && !reused)
+				throw new SessionException(
+						"SO_REUSEPORT is not supported on this platform.");
+		}
+		catch (IOException e)
+		{
+			shard.close();
+			throw new SessionException("Unable to reuse the port: "
+					+ e.getLocalizedMessage(), e);
+		}
+		catch (SessionException e)
+		{
+			shard.close();
+			throw e;
+		}
+		try
+		{
+			if (type == SocketType.UDP)
+				((SessionUDP) shard).bind(bindAddr);
+			else
+				((SessionTCPServer) shard).bind(bindAddr);
+		}
+		catch (SessionException e)
+		{
+			shard.close();
+			throw e;
+		}
+		return shard;
+	}
+
+	/**
+	 * Listens for the connections with one event loop for each TCP shard,
+	 * which both accepts the connections of the shard and drives their
+	 * transactions.
+	 * 
+	 * @param listener
+	 *            the listener of the transactions
+	 * @throws SessionException
+	 *             if the shards are not TCP server sessions, or already
+	 *             listening or serving
+	 * @see SessionTCPServer#listen(TransactionListener, EventLoop,
+	 *      EventLoopGroup)
+	 */
+	public synchronized void listen(TransactionListener listener)
+			throws SessionException
+	{
+		checkType(SocketType.TCP_SERVER);
+		if (loops != null)
+			throw new SessionException("The session is already listening.");
+		loops = new EventLoop[shards.length];
+		for (int i = 0; i < shards.length; i++)
+		{
+			loops[i] = new EventLoop();
+			((SessionTCPServer) shards[i]).listen(listener, loops[i],
+					new EventLoopGroup(loops[i]));
+		}
+	}
+
+	/**
+	 * Serves the connections with one accepting thread for each TCP shard,
+	 * and each connection by one thread which is a virtual thread if supported
+	 * by the runtime.
+	 * 
+	 * @param handler
+	 *            the handler of the transactions
+	 * @throws SessionException
+	 *             if the shards are not TCP server sessions, or already
+	 *             listening or serving
+	 * @see SessionTCPServer#serve(TransactionHandler)
+	 */
+	public synchronized void serve(TransactionHandler handler)
+			throws SessionException
+	{
+		checkType(SocketType.TCP_SERVER);
+		for (Session shard : shards)
+			((SessionTCPServer) shard).serve(handler);
+	}
+
+	/**
+	 * Receives the datagrams with one receiving thread for each UDP shard.
+	 * <p>
+	 * Each receiving thread receives the datagrams of its shard into its own
+	 * buffer and passes them to the handler, until the session is closed.
+	 * </p>
+	 * <p>
+	 * A failure of the receiving or of the handler does not stop the thread.
+	 * It is counted by {@linkplain #getFailedCount()} and reported to the
+	 * uncaught exception handler of the thread. After each failed receiving
+	 * the thread backs off, from {@value #MIN_BACKOFF} ms doubled up to
+	 * {@value #MAX_BACKOFF} ms, until a receiving succeeds.
+	 * </p>
+	 * 
+	 * @param handler
+	 *            the handler of the datagrams
+	 * @throws SessionException
+	 *             if the shards are not UDP sessions, or already receiving
+	 */
+	public synchronized void receive(final DatagramHandler handler)
+			throws SessionException
+	{
+		checkType(SocketType.UDP);
+		if (receivers != null)
+			throw new SessionException("The session is already receiving.");
+		receivers = new Thread[shards.length];
+		for (int i = 0; i < shards.length; i++)
+		{
+			final SessionUDP shard = (SessionUDP) shards[i];
+			final TransactionUDP transaction = (TransactionUDP) shard
+					.beginTransaction();
+			receivers[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					ByteBuffer buffer = transaction.allocateReceiveBuffer();
+					long backoff = 0;
+					while (!shard.socket.isClosed())
+					{
+						SocketInfo source;
+						try
+						{
+							buffer.clear();
+							source = transaction.receive(buffer);
+							backoff = 0;
+						}
+						catch (Exception e)
+						{
+							if (shard.socket.isClosed())
+								break;
+							report(e);
+							backoff = backoff == 0 ? MIN_BACKOFF : Math.min(
+									backoff * 2, MAX_BACKOFF);
+							try
+							{
+								TimeUnit.MILLISECONDS.sleep(backoff);
+							}
+							catch (InterruptedException ie)
+							{
+								break;
+							}
+							continue;
+						}
+						try
+						{
+							buffer.flip();
+							handler.handle(transaction, source, buffer);
+						}
+						catch (Exception e)
+						{
+							report(e);
+						}
+					}
+				}
+
+				/**
+				 * Counts the failure and reports it to the uncaught exception
+				 * handler of the receiving thread.
+				 * 
+				 * @param cause
+				 *            the failure
+				 */
+				private void report(Exception cause)
+				{
+					failed.incrementAndGet();
+					Thread thread = Thread.currentThread();
+					thread.getUncaughtExceptionHandler().uncaughtException(
+							thread, cause);
+				}
+			}, "mpnet-shard-" + shard.socket.getLocalPort() + "-" + i);
+			receivers[i].start();
+		}
+	}
+
+	/**
+	 * Returns the number of the failures of the receiving threads, including
+	 * the failed receivings and the failures of the handler.
+	 * 
+	 * @return the number of the failures
+	 */
+	public long getFailedCount()
+	{
+		return failed.get();
+	}
+
+	/**
+	 * Checks the socket type of the shards.
+	 * 
+	 * @param expected
+	 *            the expected socket type
+	 * @throws SessionException
+	 *             if the shards are not of the expected type
+	 */
+	private void checkType(SocketType expected) throws SessionException
+	{
+		if (type != expected)
+			throw new SessionException("The shards are not of type "
+					+ expected + ".");
+	}
+
+	/**
+	 * Returns the socket type of the shards.
+	 * 
+	 * @return the socket type
+	 */
+	public SocketType getType()
+	{
+		return type;
+	}
+
+	/**
+	 * Returns the number of shards.
+	 * 
+	 * @return the number of shards
+	 */
+	public int size()
+	{
+		return shards.length;
+	}
+
+	/**
+	 * Returns the shard at the specified index.
+	 * 
+	 * @param index
+	 *            the index of the shard
+	 * @return the shard
+	 */
+	public Session getShard(int index)
+	{
+		return shards[index];
+	}
+
+	/**
+	 * Get a new transaction from the shards in turn.
+	 * <p>
+	 * For the TCP shards, each shard only accepts the connections balanced to
+	 * it by the kernel, thus, the transactions shall be begun by several
+	 * threads, or the connections of the other shards will wait.
+	 * </p>
+	 * 
+	 * @see com.frank.mpnet.Session#beginTransaction()
+	 */
+	@Override
+	public Transaction beginTransaction() throws TransactionException
+	{
+		return nextShard().beginTransaction();
+	}
+
+	/**
+	 * @see com.frank.mpnet.Session#beginTransaction(java.net.SocketAddress)
+	 */
+	@Override
+	public Transaction beginTransaction(SocketAddress sa)
+			throws TransactionException
+	{
+		return nextShard().beginTransaction(sa);
+	}
+
+	/**
+	 * Returns the next shard to begin a transaction.
+	 * 
+	 * @return the next shard
+	 */
+	private Session nextShard()
+	{
+		return shards[(next.getAndIncrement() & Integer.MAX_VALUE)
+				% shards.length];
+	}
+
+	/**
+	 * Closes all of the shards and their loops.
+	 * 
+	 * @see com.frank.mpnet.Session#close()
+	 */
+	@Override
+	public void close() throws SessionException
+	{
+		SessionException failure = null;
+		for (Session shard : shards)
+		{
+			if (shard == null)
+				continue;
+			try
+			{
+				shard.close();
+			}
+			catch (SessionException e)
+			{
+				failure = e;
+			}
+		}
+		synchronized (this)
+		{
+			if (loops != null)
+				for (EventLoop loop : loops)
+					if (loop != null)
+						loop.close();
+			// wake up the receiving threads backing off
+			if (receivers != null)
+				for (Thread receiver : receivers)
+					receiver.interrupt();
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Returns the underlying sockets of the shards.
+	 * 
+	 * @return the array of the underlying sockets
+	 * @see com.frank.mpnet.Session#getSocket()
+	 */
+	@Override
+	public Object[] getSocket()
+	{
+		Object[] sockets = new Object[shards.length];
+		for (int i = 0; i < shards.length; i++)
+			sockets[i] = shards[i].getSocket();
+		return sockets;
+	}
+
+	/**
+	 * @see com.frank.mpnet.Session#getLocalAddress()
+	 */
+	@Override
+	public SocketAddress getLocalAddress()
+	{
+		return shards[0].getLocalAddress();
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * SessionTCPAsync.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * The asynchronous net transmission session using TCP.
+ * <p>
+ * The session creates {@linkplain TransactionTCPAsync asynchronous
+ * transactions} either by {@linkplain #connectAsync(SocketAddress)
+ * connecting} to a server, or by {@linkplain #acceptAsync() accepting} the
+ * connections after {@linkplain #bind(SocketAddress) bound}. The channels are
+ * driven by the I/O threads of the specified
+ * {@linkplain AsynchronousChannelGroup channel group}, and the completion
+ * handlers of the futures run on the specified executor.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class SessionTCPAsync extends Session
+{
+	/**
+	 * The channel group, <code>null</code> if use the default group.
+	 */
+	protected final AsynchronousChannelGroup	group;
+	/**
+	 * The executor to run the completion handlers, <code>null</code> if run
+	 * them on the I/O threads.
+	 */
+	protected final Executor					executor;
+	/**
+	 * The server channel, <code>null</code> if the session is not bound.
+	 */
+	protected AsynchronousServerSocketChannel	server;
+
+	/**
+	 * Construct an instance of <tt>SessionTCPAsync</tt> with the default
+	 * channel group, the completion handlers run on the I/O threads.
+	 */
+	public SessionTCPAsync()
+	{
+		this(null, null);
+	}
+
+	/**
+	 * Construct an instance of <tt>SessionTCPAsync</tt>.
+	 * 
+	 * @param group
+	 *            the channel group, <code>null</code> if use the default group
+	 * @param executor
+	 *            the executor to run the completion handlers,
+	 *            <code>null</code> if run them on the I/O threads
+	 */
+	public SessionTCPAsync(AsynchronousChannelGroup group, Executor executor)
+	{
+		this.group = group;
+		this.executor = executor;
+	}
+
+	/**
+	 * Binds the session to the specified local address to accept the
+	 * connections.
+	 * 
+	 * @param endpoint
+	 *            the local address to bind, or <code>null</code> to bind to an
+	 *            automatically assigned address
+	 * @throws SessionException
+	 *             if the session is already bound or failed to bind
+	 */
+	public synchronized void bind(SocketAddress endpoint)
+			throws SessionException
+	{
+		if (server != null)
+			throw new SessionException("The session is already bound.");
+		try
+		{
+			server = AsynchronousServerSocketChannel.open(group).bind(endpoint);
+		}
+		catch (IOException e)
+		{
+			throw new SessionException("Unable to bind the server socket: "
+					+ e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * Connects to the specified server without blocking.
+	 * 
+	 * @param sa
+	 *            the address of the server
+	 * @return the future of the connected transaction
+	 */
+	public TransactionFuture<TransactionTCPAsync> connectAsync(SocketAddress sa)
+	{
+		final TransactionFuture<TransactionTCPAsync> future = new TransactionFuture<TransactionTCPAsync>(
+				executor);
+		final AsynchronousSocketChannel channel;
+		try
+		{
+			channel = AsynchronousSocketChannel.open(group);
+		}
+		catch (IOException e)
+		{
+			future.fail(e);
+			return future;
+		}
+		channel.connect(sa, null, new CompletionHandler<Void, Object>()
+		{
+			@Override
+			public void completed(Void result, Object attachment)
+			{
+				future.complete(new TransactionTCPAsync(channel,
+						SocketType.TCP_CLIENT, executor));
+			}
+
+			@Override
+			public void failed(Throwable cause, Object attachment)
+			{
+				close(channel);
+				future.fail(cause);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Accepts a connection without blocking.
+	 * <p>
+	 * Only one accepting can be outstanding at a time, the next accepting
+	 * shall be started after the previous one completes.
+	 * </p>
+	 * 
+	 * @return the future of the accepted transaction
+	 * @throws TransactionStateException
+	 *             if the session is not bound
+	 */
+	public TransactionFuture<TransactionTCPAsync> acceptAsync()
+			throws TransactionStateException
+	{
+		AsynchronousServerSocketChannel server;
+		synchronized (this)
+		{
+			server = this.server;
+		}
+		if (server == null)
+			throw new TransactionStateException(
+					"The session is not bound to accept the connections.");
+		final TransactionFuture<TransactionTCPAsync> future = new TransactionFuture<TransactionTCPAsync>(
+				executor);
+		server.accept(null,
+				new CompletionHandler<AsynchronousSocketChannel, Object>()
+				{
+					@Override
+					public void completed(AsynchronousSocketChannel channel,
+							Object attachment)
+					{
+						future.complete(new TransactionTCPAsync(channel,
+								SocketType.TCP_SERVER, executor));
+					}
+
+					@Override
+					public void failed(Throwable cause, Object attachment)
+					{
+						future.fail(cause);
+					}
+				});
+		return future;
+	}
+
+	/**
+	 * Closes the channel which failed to connect.
+	 * 
+	 * @param channel
+	 *            the channel
+	 */
+	private static void close(AsynchronousSocketChannel channel)
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			// the channel is useless
+		}
+	}
+
+	/**
+	 * Waits for the transaction.
+	 * 
+	 * @param future
+	 *            the future of the transaction
+	 * @return the transaction
+	 * @throws TransactionException
+	 *             if failed to begin the transaction
+	 */
+	private static TransactionTCPAsync await(
+			TransactionFuture<TransactionTCPAsync> future)
+			throws TransactionException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new TransactionException("Unable to begin a transaction: "
+					+ e.getLocalizedMessage(), e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new TransactionException("Unable to begin a transaction: "
+					+ e.getCause().getLocalizedMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Accepts a connection and waits for it.
+	 * 
+	 * @see com.frank.mpnet.Session#beginTransaction()
+	 * @see #acceptAsync()
+	 */
+	@Override
+	public TransactionTCPAsync beginTransaction() throws TransactionException
+	{
+		return await(acceptAsync());
+	}
+
+	/**
+	 * Connects to the specified server and waits for it.
+	 * 
+	 * @see com.frank.mpnet.Session#beginTransaction(java.net.SocketAddress)
+	 * @see #connectAsync(SocketAddress)
+	 */
+	@Override
+	public TransactionTCPAsync beginTransaction(SocketAddress sa)
+			throws TransactionException
+	{
+		return await(connectAsync(sa));
+	}
+
+	/**
+	 * Closes the server channel if bound, the channel group will not be
+	 * closed.
+	 * 
+	 * @see com.frank.mpnet.Session#close()
+	 */
+	@Override
+	public synchronized void close() throws SessionException
+	{
+		if (server == null)
+			return;
+		try
+		{
+			server.close();
+		}
+		catch (IOException e)
+		{
+			throw new SessionException("Failed to close the session: "
+					+ e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * @see com.frank.mpnet.Session#getSocket()
+	 */
+	@Override
+	public synchronized AsynchronousServerSocketChannel getSocket()
+	{
+		return server;
+	}
+
+	/**
+	 * @see com.frank.mpnet.Session#getLocalAddress()
+	 */
+	@Override
+	public synchronized SocketAddress getLocalAddress()
+	{
+		try
+		{
+			return server == null ? null : server.getLocalAddress();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+}
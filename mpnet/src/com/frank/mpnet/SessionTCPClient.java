@@ -8,6 +8,7 @@ package com.frank.mpnet;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
 
 /**
  * The net transmission session using TCP.
@@ -15,6 +16,9 @@ import java.net.SocketAddress;
  * In this session the session is only the client point of the session. It can
  * drive one TCP link to a remote server socket.
  * </p>
+ * <p>
+ * The client socket is created by a {@linkplain SocketChannel}.
+ * </p>
  * 
  * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
  * @version 1.0.0
@@ -29,10 +33,21 @@ public class SessionTCPClient extends Session
 	/**
 	 * Construct an instance of <tt>SessionTCPClient</tt> with unbound client
 	 * socket.
+	 * 
+	 * @throws SessionException
+	 *             if any exception occurs during opening the client socket.
 	 */
-	public SessionTCPClient()
+	public SessionTCPClient() throws SessionException
 	{
-		client = new Socket();
+		try
+		{
+			client = SocketChannel.open().socket();
+		}
+		catch (IOException e)
+		{
+			throw new SessionException("Unable to create a client socket: "
+					+ e.getLocalizedMessage(), e);
+		}
 	}
 
 	/**
@@ -104,7 +119,7 @@ public class SessionTCPClient extends Session
 	public SessionTCPClient(SocketAddress localAddr, SocketAddress remoteAddr)
 			throws SessionException
 	{
-		client = new Socket();
+		this();
 		bind(localAddr);
 		connect(remoteAddr);
 	}
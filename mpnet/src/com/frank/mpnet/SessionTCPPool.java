@@ -0,0 +1,901 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * SessionTCPPool.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The net transmission session using a pool of TCP connections for each remote
+ * address.
+ * <p>
+ * In this session, {@linkplain #beginTransaction(SocketAddress)} borrows a
+ * warm connection to the remote address from its pool, and
+ * {@linkplain TransactionTCPPooled#close() closing} the transaction returns the
+ * connection to the pool. A new connection is only made if no idle connection
+ * is left and the pool is not full; otherwise, the borrowing waits for a
+ * returned connection.
+ * </p>
+ * <p>
+ * Each borrowed connection is validated first, the connections closed by the
+ * peer or holding unread data are discarded. The connections idle for longer
+ * than the idle timeout are evicted in the background, while the minimum
+ * number of connections are kept, which can be opened in advance by
+ * {@linkplain #prewarm(SocketAddress...)}.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class SessionTCPPool extends Session
+{
+	/**
+	 * The default maximum number of connections to each remote address.
+	 */
+	public static final int							DEFAULT_MAX_SIZE		= 8;
+	/**
+	 * The default idle timeout in milliseconds.
+	 */
+	public static final long						DEFAULT_IDLE_TIMEOUT	= 60000;
+	/**
+	 * The default timeout of borrowing in milliseconds.
+	 */
+	public static final long						DEFAULT_BORROW_TIMEOUT	= 30000;
+	/**
+	 * The minimum number of connections kept to each remote address.
+	 */
+	private final int								minSize;
+	/**
+	 * The maximum number of connections to each remote address.
+	 */
+	private final int								maxSize;
+	/**
+	 * The idle timeout in nanoseconds, <code>0</code> if never evicted.
+	 */
+	private final long								idleTimeout;
+	/**
+	 * The timeout of borrowing in nanoseconds.
+	 */
+	private volatile long							borrowTimeout;
+	/**
+	 * The timeout of connecting in milliseconds, <code>0</code> for infinite.
+	 */
+	private volatile int							connectTimeout;
+	/**
+	 * The pools of the remote addresses.
+	 */
+	private final ConcurrentHashMap<SocketAddress, Pool>	pools					= new ConcurrentHashMap<SocketAddress, Pool>();
+	/**
+	 * The background eviction, <code>null</code> if never evicted.
+	 */
+	private final ScheduledFuture<?>				evictor;
+	/**
+	 * The flag for the session closed.
+	 */
+	private volatile boolean						closed;
+	/**
+	 * The number of successful borrowings.
+	 */
+	private final AtomicLong						borrows					= new AtomicLong();
+	/**
+	 * The number of borrowings timed out waiting for a full pool.
+	 */
+	private final AtomicLong						timeouts				= new AtomicLong();
+	/**
+	 * The number of borrowings failed otherwise, such as failed to connect.
+	 */
+	private final AtomicLong						failed					= new AtomicLong();
+	/**
+	 * The number of borrowings served by idle connections.
+	 */
+	private final AtomicLong						hits					= new AtomicLong();
+	/**
+	 * The number of connections made.
+	 */
+	private final AtomicLong						created					= new AtomicLong();
+	/**
+	 * The number of connections evicted for idle.
+	 */
+	private final AtomicLong						evicted					= new AtomicLong();
+	/**
+	 * The number of connections discarded by the validation.
+	 */
+	private final AtomicLong						invalidated				= new AtomicLong();
+	/**
+	 * The total time of the successful borrowings in nanoseconds.
+	 */
+	private final AtomicLong						waitTime				= new AtomicLong();
+	/**
+	 * The maximum time of any borrowing in nanoseconds.
+	 */
+	private final AtomicLong						maxWaitTime				= new AtomicLong();
+
+	/**
+	 * Construct an instance of <tt>SessionTCPPool</tt> with the default sizes
+	 * and idle timeout.
+	 */
+	public SessionTCPPool()
+	{
+		this(0, DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Construct an instance of <tt>SessionTCPPool</tt>.
+	 * 
+	 * @param minSize
+	 *            the minimum number of connections kept to each remote address
+	 * @param maxSize
+	 *            the maximum number of connections to each remote address
+	 * @param idleTimeout
+	 *            the time after which an idle connection is evicted,
+	 *            <code>0</code> if never evicted
+	 * @param unit
+	 *            the time unit of <code>idleTimeout</code>
+	 * @throws IllegalArgumentException
+	 *             if <code>minSize</code> or <code>idleTimeout</code> is
+	 *             negative, or <code>maxSize</code> is less than
+	 *             <code>minSize</code> or not positive
+	 */
+	public SessionTCPPool(int minSize, int maxSize, long idleTimeout,
+			TimeUnit unit) throws IllegalArgumentException
+	{
+		if (minSize < 0 || maxSize <= 0 || maxSize < minSize
+				|| idleTimeout < 0)
+			throw new IllegalArgumentException(String.format(
+					"Illegal pool sizes(%d, %d) or idle timeout(%d).",
+					minSize, maxSize, idleTimeout));
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.idleTimeout = unit.toNanos(idleTimeout);
+		this.borrowTimeout = TimeUnit.MILLISECONDS
+				.toNanos(DEFAULT_BORROW_TIMEOUT);
+		if (this.idleTimeout == 0)
+			evictor = null;
+		else
+		{
+			long period = Math.max(this.idleTimeout / 2,
+					TimeUnit.MILLISECONDS.toNanos(10));
+			evictor = SharedScheduler.get().scheduleWithFixedDelay(
+					new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							evict();
+						}
+					}, period, period, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Opens the minimum number of connections to each of the specified remote
+	 * addresses in advance.
+	 * 
+	 * @param addresses
+	 *            the remote addresses
+	 * @throws TransactionException
+	 *             if failed to connect any of the remote addresses
+	 */
+	public void prewarm(SocketAddress... addresses)
+			throws TransactionException
+	{
+		for (SocketAddress address : addresses)
+			pool(address).prewarm(minSize);
+	}
+
+	/**
+	 * Borrows a connection to the remote address from its pool.
+	 * <p>
+	 * The borrowing waits for a returned connection if the pool is full, and
+	 * fails after the {@linkplain #setBorrowTimeout(long, TimeUnit) borrowing
+	 * timeout}.
+	 * </p>
+	 * 
+	 * @return the borrowed transaction, which shall be closed to return the
+	 *         connection
+	 * @throws TransactionStateException
+	 *             if the session is closed
+	 * @throws TransactionTimeoutException
+	 *             if timed out waiting for a connection
+	 * @throws TransactionException
+	 *             if failed to connect
+	 * @see com.frank.mpnet.Session#beginTransaction(java.net.SocketAddress)
+	 */
+	@Override
+	public TransactionTCPPooled beginTransaction(SocketAddress sa)
+			throws TransactionException
+	{
+		return pool(sa).borrow();
+	}
+
+	/**
+	 * The pooled session has no default remote address, use
+	 * {@linkplain #beginTransaction(SocketAddress)} instead.
+	 * 
+	 * @throws TransactionStateException
+	 *             always
+	 * @see com.frank.mpnet.Session#beginTransaction()
+	 */
+	@Override
+	public Transaction beginTransaction() throws TransactionException
+	{
+		throw new TransactionStateException(
+				"A remote address is required to borrow a connection.");
+	}
+
+	/**
+	 * Returns the pool of the remote address, creates it if not created yet.
+	 * 
+	 * @param sa
+	 *            the remote address
+	 * @return the pool
+	 * @throws TransactionStateException
+	 *             if the session is closed
+	 */
+	private Pool pool(SocketAddress sa) throws TransactionStateException
+	{
+		if (closed)
+			throw new TransactionStateException("The session is closed.");
+		Pool pool = pools.get(sa);
+		if (pool == null)
+		{
+			Pool created = new Pool(sa);
+			pool = pools.putIfAbsent(sa, created);
+			if (pool == null)
+				pool = created;
+		}
+		return pool;
+	}
+
+	/**
+	 * Evicts the connections idle for longer than the idle timeout.
+	 */
+	private void evict()
+	{
+		long now = System.nanoTime();
+		for (Pool pool : pools.values())
+			pool.evict(now);
+	}
+
+	/**
+	 * Records the time of a borrowing, only the successful borrowing is
+	 * counted.
+	 * 
+	 * @param nanos
+	 *            the time of the borrowing in nanoseconds
+	 * @param success
+	 *            <code>true</code> if a connection is borrowed
+	 */
+	private void recordWait(long nanos, boolean success)
+	{
+		if (success)
+		{
+			borrows.incrementAndGet();
+			waitTime.addAndGet(nanos);
+		}
+		long max;
+		while (nanos > (max = maxWaitTime.get())
+				&& !maxWaitTime.compareAndSet(max, nanos))
+			;
+	}
+
+	/**
+	 * Returns the minimum number of connections kept to each remote address.
+	 * 
+	 * @return the minimum number of connections
+	 */
+	public int getMinSize()
+	{
+		return minSize;
+	}
+
+	/**
+	 * Returns the maximum number of connections to each remote address.
+	 * 
+	 * @return the maximum number of connections
+	 */
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Returns the time after which an idle connection is evicted.
+	 * 
+	 * @param unit
+	 *            the time unit
+	 * @return the idle timeout, <code>0</code> if never evicted
+	 */
+	public long getIdleTimeout(TimeUnit unit)
+	{
+		return unit.convert(idleTimeout, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the timeout of borrowing.
+	 * 
+	 * @param unit
+	 *            the time unit
+	 * @return the timeout of borrowing
+	 */
+	public long getBorrowTimeout(TimeUnit unit)
+	{
+		return unit.convert(borrowTimeout, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Set the timeout of borrowing, after which a borrowing waiting for a full
+	 * pool fails.
+	 * 
+	 * @param timeout
+	 *            the timeout of borrowing
+	 * @param unit
+	 *            the time unit
+	 */
+	public void setBorrowTimeout(long timeout, TimeUnit unit)
+	{
+		this.borrowTimeout = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Returns the timeout of connecting in milliseconds.
+	 * 
+	 * @return the timeout of connecting, <code>0</code> for infinite
+	 */
+	public int getConnectTimeout()
+	{
+		return connectTimeout;
+	}
+
+	/**
+	 * Set the timeout of connecting in milliseconds.
+	 * 
+	 * @param connectTimeout
+	 *            the timeout of connecting, <code>0</code> for infinite
+	 */
+	public void setConnectTimeout(int connectTimeout)
+	{
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Returns the number of connections to the remote address, including the
+	 * borrowed ones.
+	 * 
+	 * @param sa
+	 *            the remote address
+	 * @return the number of connections
+	 */
+	public int getSize(SocketAddress sa)
+	{
+		Pool pool = pools.get(sa);
+		return pool == null ? 0 : pool.size();
+	}
+
+	/**
+	 * Returns the number of idle connections to the remote address.
+	 * 
+	 * @param sa
+	 *            the remote address
+	 * @return the number of idle connections
+	 */
+	public int getIdleCount(SocketAddress sa)
+	{
+		Pool pool = pools.get(sa);
+		return pool == null ? 0 : pool.idleCount();
+	}
+
+	/**
+	 * Returns the number of successful borrowings.
+	 * 
+	 * @return the number of borrowings
+	 */
+	public long getBorrowCount()
+	{
+		return borrows.get();
+	}
+
+	/**
+	 * Returns the number of borrowings timed out waiting for a full pool.
+	 * 
+	 * @return the number of timeouts
+	 */
+	public long getTimeoutCount()
+	{
+		return timeouts.get();
+	}
+
+	/**
+	 * Returns the number of borrowings failed other than timed out, such as
+	 * failed to connect.
+	 * 
+	 * @return the number of failed borrowings
+	 */
+	public long getFailedCount()
+	{
+		return failed.get();
+	}
+
+	/**
+	 * Returns the number of borrowings served by idle connections.
+	 * 
+	 * @return the number of hits
+	 */
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Returns the ratio of the successful borrowings served by idle
+	 * connections. The failed borrowings are counted by
+	 * {@linkplain #getTimeoutCount()} and {@linkplain #getFailedCount()}
+	 * instead.
+	 * 
+	 * @return the hit rate, <code>0</code> if nothing is borrowed
+	 */
+	public double getHitRate()
+	{
+		long n = borrows.get();
+		return n == 0 ? 0 : (double) hits.get() / n;
+	}
+
+	/**
+	 * Returns the number of connections made.
+	 * 
+	 * @return the number of connections made
+	 */
+	public long getCreatedCount()
+	{
+		return created.get();
+	}
+
+	/**
+	 * Returns the number of connections evicted for idle.
+	 * 
+	 * @return the number of connections evicted
+	 */
+	public long getEvictedCount()
+	{
+		return evicted.get();
+	}
+
+	/**
+	 * Returns the number of borrowed connections discarded by the validation.
+	 * 
+	 * @return the number of connections invalidated
+	 */
+	public long getInvalidatedCount()
+	{
+		return invalidated.get();
+	}
+
+	/**
+	 * Returns the average time of the successful borrowings, including
+	 * waiting for a full pool and connecting.
+	 * 
+	 * @param unit
+	 *            the time unit
+	 * @return the average time of borrowing
+	 */
+	public long getAverageWaitTime(TimeUnit unit)
+	{
+		long n = borrows.get();
+		return n == 0 ? 0 : unit.convert(waitTime.get() / n,
+				TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the maximum time of any borrowing, including the failed ones.
+	 * 
+	 * @param unit
+	 *            the time unit
+	 * @return the maximum time of borrowing
+	 */
+	public long getMaxWaitTime(TimeUnit unit)
+	{
+		return unit.convert(maxWaitTime.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Closes all of the idle connections. The borrowed connections will be
+	 * closed when returned.
+	 * 
+	 * @see com.frank.mpnet.Session#close()
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+		if (evictor != null)
+			evictor.cancel(false);
+		for (Pool pool : pools.values())
+			pool.close();
+	}
+
+	/**
+	 * The pooled session has no single underlying socket.
+	 * 
+	 * @return <code>null</code>
+	 * @see com.frank.mpnet.Session#getSocket()
+	 */
+	@Override
+	public Object getSocket()
+	{
+		return null;
+	}
+
+	/**
+	 * The connections of the pooled session are bound to ephemeral addresses.
+	 * 
+	 * @return <code>null</code>
+	 * @see com.frank.mpnet.Session#getLocalAddress()
+	 */
+	@Override
+	public SocketAddress getLocalAddress()
+	{
+		return null;
+	}
+
+	/**
+	 * The pool of the connections to one remote address.
+	 * <p>
+	 * The idle connections are kept in a stack, so the most recently returned
+	 * connection is borrowed first and the least recently returned ones are
+	 * evicted first.
+	 * </p>
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	final class Pool
+	{
+		/**
+		 * The remote address.
+		 */
+		private final SocketAddress						address;
+		/**
+		 * The lock of the pool.
+		 */
+		private final ReentrantLock						lock		= new ReentrantLock();
+		/**
+		 * The condition of a connection returned or removed.
+		 */
+		private final Condition							available	= lock.newCondition();
+		/**
+		 * The idle connections, the most recently returned first.
+		 */
+		private final ArrayDeque<TransactionTCPPooled>	idle		= new ArrayDeque<TransactionTCPPooled>();
+		/**
+		 * The number of connections including the borrowed ones and the ones
+		 * being connected.
+		 */
+		private int										size;
+
+		/**
+		 * Construct an instance of <tt>Pool</tt>.
+		 * 
+		 * @param address
+		 *            the remote address
+		 */
+		Pool(SocketAddress address)
+		{
+			this.address = address;
+		}
+
+		/**
+		 * Borrows a healthy idle connection, or makes a new one.
+		 * 
+		 * @return the borrowed transaction
+		 * @throws TransactionException
+		 *             if failed to connect, or timed out waiting for a
+		 *             connection
+		 */
+		TransactionTCPPooled borrow() throws TransactionException
+		{
+			long begin = System.nanoTime();
+			boolean success = false;
+			try
+			{
+				TransactionTCPPooled transaction;
+				while ((transaction = acquire(begin)) != null)
+				{
+					if (transaction.isReusable())
+					{
+						hits.incrementAndGet();
+						transaction.borrow();
+						success = true;
+						return transaction;
+					}
+					invalidated.incrementAndGet();
+					discard(transaction);
+				}
+				transaction = create();
+				transaction.borrow();
+				success = true;
+				return transaction;
+			}
+			catch (TransactionTimeoutException e)
+			{
+				timeouts.incrementAndGet();
+				throw e;
+			}
+			catch (TransactionException e)
+			{
+				failed.incrementAndGet();
+				throw e;
+			}
+			finally
+			{
+				recordWait(System.nanoTime() - begin, success);
+			}
+		}
+
+		/**
+		 * Takes an idle connection, or reserves the room for a new connection
+		 * if none is idle, waits if the pool is full.
+		 * 
+		 * @param begin
+		 *            the time when the borrowing began in nanoseconds
+		 * @return the idle connection, or <code>null</code> if the room for a
+		 *         new connection is reserved
+		 * @throws TransactionTimeoutException
+		 *             if timed out waiting for a connection
+		 * @throws TransactionException
+		 *             if the session is closed
+		 */
+		private TransactionTCPPooled acquire(long begin)
+				throws TransactionException
+		{
+			lock.lock();
+			try
+			{
+				long remaining = borrowTimeout - (System.nanoTime() - begin);
+				while (idle.isEmpty() && size >= maxSize)
+				{
+					if (closed)
+						throw new TransactionStateException(
+								"The session is closed.");
+					if (remaining <= 0)
+						throw new TransactionTimeoutException(String.format(
+								"Timed out waiting for a connection to %s.",
+								address));
+					remaining = available.awaitNanos(remaining);
+				}
+				if (!idle.isEmpty())
+					return idle.pollFirst();
+				size++;
+				return null;
+			}
+			catch (InterruptedException e)
+			{
+				throw new TransactionException(
+						"Interrupted while waiting for a connection.", e);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Makes a new connection in the reserved room.
+		 * 
+		 * @return the new transaction
+		 * @throws TransactionException
+		 *             if failed to connect
+		 */
+		private TransactionTCPPooled create() throws TransactionException
+		{
+			try
+			{
+				SocketChannel channel = SocketChannel.open();
+				try
+				{
+					channel.socket().connect(address, connectTimeout);
+				}
+				catch (IOException e)
+				{
+					channel.close();
+					throw e;
+				}
+				created.incrementAndGet();
+				return new TransactionTCPPooled(this, channel.socket());
+			}
+			catch (IOException e)
+			{
+				remove();
+				throw new TransactionException(String.format(
+						"Unable to connect the server socket %s: %s", address,
+						e.getLocalizedMessage()), e);
+			}
+		}
+
+		/**
+		 * Opens the connections until the pool holds the specified number of
+		 * connections.
+		 * 
+		 * @param n
+		 *            the number of connections
+		 * @throws TransactionException
+		 *             if failed to connect
+		 */
+		void prewarm(int n) throws TransactionException
+		{
+			while (true)
+			{
+				lock.lock();
+				try
+				{
+					if (size >= n)
+						return;
+					size++;
+				}
+				finally
+				{
+					lock.unlock();
+				}
+				release(create());
+			}
+		}
+
+		/**
+		 * Returns the connection to the pool, or closes it if not reusable.
+		 * 
+		 * @param transaction
+		 *            the returned transaction
+		 */
+		void release(TransactionTCPPooled transaction)
+		{
+			if (transaction.hasNext())
+			{
+				lock.lock();
+				try
+				{
+					if (!closed)
+					{
+						transaction.idleSince = System.nanoTime();
+						idle.addFirst(transaction);
+						available.signal();
+						return;
+					}
+				}
+				finally
+				{
+					lock.unlock();
+				}
+			}
+			discard(transaction);
+		}
+
+		/**
+		 * Closes the connection and removes it from the pool.
+		 * 
+		 * @param transaction
+		 *            the transaction to discard
+		 */
+		void discard(TransactionTCPPooled transaction)
+		{
+			remove();
+			transaction.destroy();
+		}
+
+		/**
+		 * Frees the room of a connection.
+		 */
+		private void remove()
+		{
+			lock.lock();
+			try
+			{
+				size--;
+				available.signal();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Evicts the connections idle for longer than the idle timeout, while
+		 * the minimum number of connections are kept.
+		 * 
+		 * @param now
+		 *            the current time in nanoseconds
+		 */
+		void evict(long now)
+		{
+			List<TransactionTCPPooled> expired = new ArrayList<TransactionTCPPooled>();
+			lock.lock();
+			try
+			{
+				while (size > minSize && !idle.isEmpty()
+						&& now - idle.peekLast().idleSince >= idleTimeout)
+				{
+					expired.add(idle.pollLast());
+					size--;
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			for (TransactionTCPPooled transaction : expired)
+				transaction.destroy();
+			evicted.addAndGet(expired.size());
+		}
+
+		/**
+		 * Closes all of the idle connections and wakes up the waiting
+		 * borrowings.
+		 */
+		void close()
+		{
+			List<TransactionTCPPooled> closing;
+			lock.lock();
+			try
+			{
+				closing = new ArrayList<TransactionTCPPooled>(idle);
+				size -= idle.size();
+				idle.clear();
+				available.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			for (TransactionTCPPooled transaction : closing)
+				transaction.destroy();
+		}
+
+		/**
+		 * Returns the number of connections including the borrowed ones.
+		 * 
+		 * @return the number of connections
+		 */
+		int size()
+		{
+			lock.lock();
+			try
+			{
+				return size;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Returns the number of idle connections.
+		 * 
+		 * @return the number of idle connections
+		 */
+		int idleCount()
+		{
+			lock.lock();
+			try
+			{
+				return idle.size();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+}
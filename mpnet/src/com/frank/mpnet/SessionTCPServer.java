@@ -8,7 +8,23 @@ package com.frank.mpnet;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The net transmission session using TCP.
@@ -18,6 +34,22 @@ import java.net.SocketAddress;
  * {@linkplain #beginTransaction()} is called, the thread will be blocked until
  * a connection is started.
  * </p>
+ * <p>
+ * The server socket is created by a {@linkplain ServerSocketChannel}, thus,
+ * each accepted socket is associated with a channel.
+ * </p>
+ * <p>
+ * Instead of blocking on {@linkplain #beginTransaction()}, the session can
+ * {@linkplain #listen(TransactionListener, int) listen} with one acceptor
+ * {@linkplain EventLoop event loop} and a {@linkplain EventLoopGroup group} of
+ * worker event loops, which deliver the events of all of the transactions to
+ * a listener. Or the session can {@linkplain #serve(TransactionHandler)
+ * serve} each connection by one thread, preferably a virtual thread, which
+ * keeps the blocking programming model. Under connection storms, the session
+ * can {@linkplain #serve(TransactionHandler, int, int, AdmissionControl) serve}
+ * by a bounded executor with an {@linkplain AdmissionControl admission
+ * control}, which rejects the connections at once when saturated.
+ * </p>
  * 
  * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
  * @version 1.0.0
@@ -28,6 +60,40 @@ public class SessionTCPServer extends Session
 	 * The server socket.
 	 */
 	protected ServerSocket	server;
+	/**
+	 * The event loop which accepts the connections, <code>null</code> if the
+	 * session is not listening.
+	 */
+	protected EventLoop		boss;
+	/**
+	 * The event loops which drive the accepted transactions,
+	 * <code>null</code> if the session is not listening.
+	 */
+	protected EventLoopGroup	workers;
+	/**
+	 * The flag for the event loops created and closed by the session.
+	 */
+	private boolean			owned;
+	/**
+	 * The thread which accepts the connections to serve, <code>null</code> if
+	 * the session is not serving.
+	 */
+	protected Thread		acceptor;
+	/**
+	 * The admission control of the connections to serve, <code>null</code> if
+	 * the session is not serving.
+	 */
+	protected AdmissionControl	admission;
+	/**
+	 * The executor of the handlers created and shut down by the session,
+	 * <code>null</code> if not created by the session.
+	 */
+	private ExecutorService	executor;
+	/**
+	 * The transactions being served.
+	 */
+	private final Set<TransactionTCP>	served	= Collections
+														.newSetFromMap(new ConcurrentHashMap<TransactionTCP, Boolean>());
 
 	/**
 	 * Construct an instance of <tt>SessionTCPServer</tt> with unbound server
@@ -41,7 +107,7 @@ public class SessionTCPServer extends Session
 	{
 		try
 		{
-			server = new ServerSocket();
+			server = ServerSocketChannel.open().socket();
 		}
 		catch (IOException e)
 		{
@@ -65,7 +131,7 @@ public class SessionTCPServer extends Session
 	{
 		try
 		{
-			server = new ServerSocket();
+			server = ServerSocketChannel.open().socket();
 			bind(bindAddr);
 		}
 		catch (IOException e)
@@ -90,7 +156,8 @@ public class SessionTCPServer extends Session
 	{
 		try
 		{
-			server = new ServerSocket(port);
+			server = ServerSocketChannel.open().socket();
+			server.bind(new InetSocketAddress(port));
 		}
 		catch (IOException e)
 		{
@@ -116,7 +183,8 @@ public class SessionTCPServer extends Session
 	{
 		try
 		{
-			server = new ServerSocket(port, backlog);
+			server = ServerSocketChannel.open().socket();
+			server.bind(new InetSocketAddress(port), backlog);
 		}
 		catch (IOException e)
 		{
@@ -157,8 +225,8 @@ public class SessionTCPServer extends Session
 			InetSocketAddress isa = (InetSocketAddress) bindAddr;
 			try
 			{
-				server = new ServerSocket(isa.getPort(), backlog,
-						((InetSocketAddress) bindAddr).getAddress());
+				server = ServerSocketChannel.open().socket();
+				server.bind(isa, backlog);
 			}
 			catch (IOException e)
 			{
@@ -250,12 +318,468 @@ public class SessionTCPServer extends Session
 		}
 	}
 
+	/**
+	 * Listens for the connections with one acceptor event loop and one worker
+	 * event loop for each available processor.
+	 * 
+	 * @param listener
+	 *            the listener of the transactions
+	 * @throws SessionException
+	 *             if the session is already listening or any exception occurs
+	 * @see #listen(TransactionListener, int)
+	 */
+	public void listen(TransactionListener listener) throws SessionException
+	{
+		listen(listener, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Listens for the connections with one acceptor event loop and the
+	 * specified number of worker event loops.
+	 * <p>
+	 * The event loops are created by the session and will be closed with the
+	 * session.
+	 * </p>
+	 * 
+	 * @param listener
+	 *            the listener of the transactions
+	 * @param threads
+	 *            the number of worker event loops
+	 * @throws SessionException
+	 *             if the session is already listening or any exception occurs
+	 * @throws IllegalArgumentException
+	 *             if <code>threads</code> is not positive
+	 * @see #listen(TransactionListener, EventLoop, EventLoopGroup)
+	 */
+	public synchronized void listen(TransactionListener listener, int threads)
+			throws SessionException, IllegalArgumentException
+	{
+		checkIdle();
+		EventLoopGroup workers = new EventLoopGroup(threads);
+		EventLoop boss;
+		try
+		{
+			boss = new EventLoop();
+		}
+		catch (SessionException e)
+		{
+			workers.close();
+			throw e;
+		}
+		listen(listener, boss, workers);
+		owned = true;
+	}
+
+	/**
+	 * Listens for the connections with the specified acceptor event loop and
+	 * worker event loops.
+	 * <p>
+	 * The acceptor event loop accepts the connections, and each accepted
+	 * transaction is assigned to the {@linkplain EventLoopGroup#next() next}
+	 * worker event loop and stays on it. The events of each transaction are
+	 * always delivered on the thread of its worker event loop. After
+	 * listening, {@linkplain #beginTransaction()} cannot be used any more.
+	 * </p>
+	 * <p>
+	 * The specified event loops can be shared with other sessions, they will
+	 * not be closed with the session.
+	 * </p>
+	 * 
+	 * @param listener
+	 *            the listener of the transactions
+	 * @param boss
+	 *            the event loop to accept the connections
+	 * @param workers
+	 *            the event loops to drive the accepted transactions
+	 * @throws SessionException
+	 *             if the session is already listening or any exception occurs
+	 */
+	public synchronized void listen(final TransactionListener listener,
+			EventLoop boss, final EventLoopGroup workers)
+			throws SessionException
+	{
+		checkIdle();
+		final ServerSocketChannel ssc = server.getChannel();
+		if (ssc == null)
+			throw new SessionException(
+					"Only the server socket with a channel can listen by event loops.");
+		this.boss = boss;
+		this.workers = workers;
+		boss.register(ssc, SelectionKey.OP_ACCEPT, new EventLoop.Handler()
+		{
+			@Override
+			public void registered(SelectionKey key)
+			{
+				// accepts when the connections arrive
+			}
+
+			@Override
+			public void ready(SelectionKey key) throws IOException
+			{
+				SocketChannel sc;
+				while ((sc = ssc.accept()) != null)
+					new TransactionTCP(sc.socket(), SocketType.TCP_SERVER)
+							.register(workers.next(), listener);
+			}
+
+			@Override
+			public void close(Throwable cause)
+			{
+				try
+				{
+					ssc.close();
+				}
+				catch (IOException e)
+				{
+					// the session is closing
+				}
+			}
+		});
+	}
+
+	/**
+	 * Serves each accepted connection by one thread which is a virtual thread
+	 * if supported by the runtime.
+	 * 
+	 * @param handler
+	 *            the handler of the transactions
+	 * @throws SessionException
+	 *             if the session is already listening or serving
+	 * @see #serve(TransactionHandler, ThreadFactory)
+	 * @see ThreadFactories#perConnection(String)
+	 */
+	public void serve(TransactionHandler handler) throws SessionException
+	{
+		serve(handler, ThreadFactories.perConnection("mpnet-connection"));
+	}
+
+	/**
+	 * Serves each accepted connection by one thread created by the specified
+	 * thread factory.
+	 * <p>
+	 * The connections are accepted in a loop on a dedicated thread, and the
+	 * handler of each accepted transaction runs on its own thread with the
+	 * blocking API. The transaction is closed after the handler returns, and
+	 * all of the transactions being served are closed with the session. After
+	 * serving, {@linkplain #beginTransaction()} cannot be used any more.
+	 * </p>
+	 * <p>
+	 * With the {@linkplain ThreadFactories#virtual() virtual threads}, the
+	 * blocking reads and writes of the transactions release their carrier
+	 * threads, thus, a large number of connections can be served by a few
+	 * platform threads.
+	 * </p>
+	 * 
+	 * @param handler
+	 *            the handler of the transactions
+	 * @param factory
+	 *            the factory of the threads to run the handler
+	 * @throws SessionException
+	 *             if the session is already listening or serving
+	 */
+	public void serve(TransactionHandler handler, final ThreadFactory factory)
+			throws SessionException
+	{
+		serve(handler, new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				Thread thread = factory.newThread(command);
+				if (thread == null)
+					throw new RejectedExecutionException(
+							"No thread is created for the connection.");
+				thread.start();
+			}
+		}, null);
+	}
+
+	/**
+	 * Serves the accepted connections by a bounded pool of platform threads
+	 * created by the session.
+	 * <p>
+	 * A connection waits in the queue of the pool if all of the threads are
+	 * busy, and is rejected at once if the queue is full too. The pool is shut
+	 * down with the session.
+	 * </p>
+	 * 
+	 * @param handler
+	 *            the handler of the transactions
+	 * @param threads
+	 *            the number of threads of the pool
+	 * @param queueCapacity
+	 *            the maximum number of connections waiting for the threads,
+	 *            <code>0</code> for no waiting
+	 * @param admission
+	 *            the admission control of the connections, <code>null</code>
+	 *            for only counting the connections
+	 * @throws IllegalArgumentException
+	 *             if <code>threads</code> is not positive or
+	 *             <code>queueCapacity</code> is negative
+	 * @throws SessionException
+	 *             if the session is already listening or serving
+	 * @see #serve(TransactionHandler, Executor, AdmissionControl)
+	 */
+	public synchronized void serve(TransactionHandler handler, int threads,
+			int queueCapacity, AdmissionControl admission)
+			throws IllegalArgumentException, SessionException
+	{
+		if (threads <= 0 || queueCapacity < 0)
+			throw new IllegalArgumentException(String.format(
+					"Illegal pool size(%d) or queue capacity(%d).", threads,
+					queueCapacity));
+		checkIdle();
+		BlockingQueue<Runnable> queue = queueCapacity == 0 ? new SynchronousQueue<Runnable>()
+				: new ArrayBlockingQueue<Runnable>(queueCapacity);
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, queue,
+				ThreadFactories.platform("mpnet-handler"));
+		serve(handler, pool, admission);
+		executor = pool;
+	}
+
+	/**
+	 * Serves the accepted connections by the specified executor with the
+	 * admission control.
+	 * <p>
+	 * The connections are accepted in a loop on a dedicated thread, which
+	 * waits for the rate limit of the admission control before each accepting.
+	 * Each accepted connection is rejected at once by a reset, if the maximum
+	 * number of connections is reached or the executor
+	 * {@linkplain RejectedExecutionException rejects} it; otherwise, its
+	 * transaction is handled by the executor with the blocking API. The
+	 * transaction is closed after the handler returns, and all of the
+	 * transactions being served are closed with the session. After serving,
+	 * {@linkplain #beginTransaction()} cannot be used any more.
+	 * </p>
+	 * <p>
+	 * The executor shall be bounded, such as a {@linkplain ThreadPoolExecutor}
+	 * with a bounded queue, or the connections will never be rejected by the
+	 * executor. The executor is not shut down with the session.
+	 * </p>
+	 * 
+	 * @param handler
+	 *            the handler of the transactions
+	 * @param executor
+	 *            the executor of the handlers
+	 * @param admission
+	 *            the admission control of the connections, <code>null</code>
+	 *            for only counting the connections
+	 * @throws SessionException
+	 *             if the session is already listening or serving
+	 */
+	public synchronized void serve(final TransactionHandler handler,
+			final Executor executor, AdmissionControl admission)
+			throws SessionException
+	{
+		checkIdle();
+		final AdmissionControl control = admission == null ? new AdmissionControl()
+				: admission;
+		this.admission = control;
+		acceptor = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				while (!server.isClosed())
+				{
+					try
+					{
+						control.throttle();
+						admit(handler, executor, control, server.accept());
+					}
+					catch (InterruptedException e)
+					{
+						break;
+					}
+					catch (IOException e)
+					{
+						// continue unless the session is closed
+					}
+				}
+			}
+		}, "mpnet-acceptor-" + server.getLocalPort());
+		acceptor.start();
+	}
+
+	/**
+	 * Admits the accepted connection and hands its transaction to the
+	 * executor, or rejects it. The transaction is closed once its handler
+	 * returns. If the handler fails, the failure is counted by
+	 * {@linkplain AdmissionControl#getFailedCount()}, and only a runtime
+	 * exception is rethrown to the executor.
+	 * 
+	 * @param handler
+	 *            the handler of the transactions
+	 * @param executor
+	 *            the executor of the handlers
+	 * @param admission
+	 *            the admission control of the connections
+	 * @param socket
+	 *            the accepted socket
+	 */
+	private void admit(final TransactionHandler handler, Executor executor,
+			final AdmissionControl admission, Socket socket)
+	{
+		if (!admission.tryAdmit())
+		{
+			admission.rejected(false);
+			reject(socket);
+			return;
+		}
+		final TransactionTCP transaction = new TransactionTCP(socket,
+				SocketType.TCP_SERVER);
+		served.add(transaction);
+		admission.queued();
+		try
+		{
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					admission.started();
+					boolean failed = true;
+					try
+					{
+						handler.handle(transaction);
+						failed = false;
+					}
+					catch (IOException e)
+					{
+						// the transaction is closed, nobody to report to
+					}
+					finally
+					{
+						served.remove(transaction);
+						close(transaction);
+						admission.finished();
+						// counted after the connection is no longer active
+						if (failed)
+							admission.failed();
+						admission.release();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			served.remove(transaction);
+			admission.rejected(true);
+			admission.release();
+			reject(socket);
+		}
+	}
+
+	/**
+	 * Rejects the accepted connection by a reset, which frees the connection
+	 * at once without lingering in <code>TIME_WAIT</code>.
+	 * 
+	 * @param socket
+	 *            the accepted socket
+	 */
+	private static void reject(Socket socket)
+	{
+		try
+		{
+			socket.setSoLinger(true, 0);
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			// the connection is already broken
+		}
+	}
+
+	/**
+	 * Closes the served transaction if not closed yet.
+	 * 
+	 * @param transaction
+	 *            the served transaction
+	 */
+	private static void close(TransactionTCP transaction)
+	{
+		if (transaction.socket.isClosed())
+			return;
+		try
+		{
+			transaction.close();
+		}
+		catch (TransactionException e)
+		{
+			// the connection is already broken
+		}
+	}
+
+	/**
+	 * Checks that the session is neither listening nor serving.
+	 * 
+	 * @throws SessionException
+	 *             if the session is already listening or serving
+	 */
+	private void checkIdle() throws SessionException
+	{
+		if (boss != null)
+			throw new SessionException("The session is already listening.");
+		if (acceptor != null)
+			throw new SessionException("The session is already serving.");
+	}
+
+	/**
+	 * Returns <code>true</code> if the session is serving each connection by
+	 * one thread.
+	 * 
+	 * @return <code>true</code> if serving
+	 */
+	public synchronized boolean isServing()
+	{
+		return acceptor != null;
+	}
+
+	/**
+	 * Returns <code>true</code> if the session is listening by event loops.
+	 * 
+	 * @return <code>true</code> if listening
+	 */
+	public synchronized boolean isListening()
+	{
+		return boss != null;
+	}
+
+	/**
+	 * Returns the admission control of the connections to serve.
+	 * 
+	 * @return the admission control, <code>null</code> if the session is not
+	 *         serving
+	 */
+	public synchronized AdmissionControl getAdmission()
+	{
+		return admission;
+	}
+
+	/**
+	 * Returns the worker event loops which drive the accepted transactions.
+	 * 
+	 * @return the worker event loops, <code>null</code> if the session is not
+	 *         listening
+	 */
+	public synchronized EventLoopGroup getWorkers()
+	{
+		return workers;
+	}
+
 	/**
 	 * @see com.frank.mpnet.Session#beginTransaction()
 	 */
 	@Override
 	public Transaction beginTransaction() throws TransactionException
 	{
+		if (isListening())
+			throw new TransactionStateException(
+					"The session is listening by event loops.");
+		if (isServing())
+			throw new TransactionStateException(
+					"The session is serving each connection by one thread.");
 		try
 		{
 			return new TransactionTCP(server.accept(), SocketType.TCP_SERVER);
@@ -290,6 +814,16 @@ public class SessionTCPServer extends Session
 	@Override
 	public void close()
 	{
+		synchronized (this)
+		{
+			if (owned)
+			{
+				boss.close();
+				workers.close();
+			}
+			if (executor != null)
+				executor.shutdown();
+		}
 		try
 		{
 			server.close();
@@ -299,6 +833,8 @@ public class SessionTCPServer extends Session
 			throw new SessionException("Failed to close the session: "
 					+ e.getLocalizedMessage(), e);
 		}
+		for (TransactionTCP transaction : served)
+			close(transaction);
 	}
 
 	/**
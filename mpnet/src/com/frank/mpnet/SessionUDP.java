@@ -5,13 +5,24 @@
  */
 package com.frank.mpnet;
 
+import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executor;
 
 /**
  * The net transmission session using UDP.
  * <p>
+ * The datagram socket is created by a {@linkplain DatagramChannel}, thus, the
+ * transactions can send and receive the datagrams with byte buffers directly.
+ * </p>
+ * <p>
+ * All the transactions of the session share the socket, thus, they follow
+ * one blocking mode: once the session or any of its transactions is
+ * {@linkplain #setAsync(EventLoop, Executor) asynchronous}, all of them are
+ * driven by the same event loop.
  * </p>
  * 
  * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
@@ -27,6 +38,20 @@ public class SessionUDP extends Session
 	 * The remote socket address.
 	 */
 	protected SocketAddress		remoteAddr;
+	/**
+	 * The forward error correction of the new transactions.
+	 */
+	private volatile ErrorCorrection	errorCorrection;
+	/**
+	 * The flag of sizing the datagrams of the new transactions by the path
+	 * MTU.
+	 */
+	private volatile boolean			pathMtuDiscovery;
+	/**
+	 * The blocking mode of the socket shared by the transactions,
+	 * <code>null</code> until the first transaction.
+	 */
+	private SharedDatagramChannel		shared;
 
 	/**
 	 * Construct an instance of <tt>SessionUDP</tt> with an unbound UDP socket.
@@ -39,9 +64,10 @@ public class SessionUDP extends Session
 	{
 		try
 		{
-			socket = new DatagramSocket();
+			socket = DatagramChannel.open().socket();
+			socket.bind(null);
 		}
-		catch (SocketException | SecurityException e)
+		catch (IOException | SecurityException e)
 		{
 			throw new SessionException("Error create session: "
 					+ e.getLocalizedMessage(), e);
@@ -63,9 +89,11 @@ public class SessionUDP extends Session
 	{
 		try
 		{
-			socket = new DatagramSocket(bindAddr);
+			socket = DatagramChannel.open().socket();
+			if (bindAddr != null)
+				socket.bind(bindAddr);
 		}
-		catch (SocketException e)
+		catch (IOException e)
 		{
 			throw new SessionException("Error create session: "
 					+ e.getLocalizedMessage(), e);
@@ -120,7 +148,7 @@ public class SessionUDP extends Session
 	@Override
 	public Transaction beginTransaction() throws TransactionException
 	{
-		return new TransactionUDP(socket);
+		return newTransaction();
 	}
 
 	/**
@@ -156,7 +184,120 @@ public class SessionUDP extends Session
 			throw new TransactionException("Unable to connect socket address: "
 					+ e.getLocalizedMessage(), e);
 		}
-		return new TransactionUDP(socket);
+		return newTransaction();
+	}
+
+	/**
+	 * Returns a new transaction with the error correction of the session.
+	 * 
+	 * @return the new transaction
+	 */
+	private TransactionUDP newTransaction()
+	{
+		TransactionUDP transaction = new TransactionUDP(socket,
+				TransactionUDP.MAX_UDP_PACKET, TransactionUDP.Policy.Subcontracting,
+				shared());
+		transaction.setErrorCorrection(errorCorrection);
+		transaction.setPathMtuDiscovery(pathMtuDiscovery);
+		return transaction;
+	}
+
+	/**
+	 * Returns the blocking mode of the socket shared by the transactions.
+	 * 
+	 * @return the shared blocking mode
+	 */
+	private synchronized SharedDatagramChannel shared()
+	{
+		if (shared == null)
+			shared = new SharedDatagramChannel(socket.getChannel());
+		return shared;
+	}
+
+	/**
+	 * Drives all the transactions of the session, begun or to begin, by the
+	 * specified event loop, then their asynchronous operations never block
+	 * the calling thread.
+	 * <p>
+	 * The underlying channel will be configured non-blocking and registered
+	 * with the event loop once, and the operations of all the transactions
+	 * are served by it. The switch waits for the blocking operations in
+	 * progress.
+	 * </p>
+	 * 
+	 * @param loop
+	 *            the event loop to drive the transactions
+	 * @param executor
+	 *            the executor to run the completion handlers,
+	 *            <code>null</code> if run them on the event loop
+	 * @throws TransactionStateException
+	 *             if the socket has no channel, or the session is already
+	 *             asynchronous
+	 * @see TransactionUDP#setAsync(EventLoop, Executor)
+	 */
+	public void setAsync(EventLoop loop, Executor executor)
+			throws TransactionStateException
+	{
+		shared().setAsync(loop, executor);
+	}
+
+	/**
+	 * Returns <code>true</code> if the transactions of the session are driven
+	 * by an event loop.
+	 * 
+	 * @return <code>true</code> if asynchronous
+	 */
+	public boolean isAsync()
+	{
+		return shared().isAsync();
+	}
+
+	/**
+	 * Set the forward error correction of the fragmented messages sent by the
+	 * transactions begun afterwards, which trades the bandwidth for the
+	 * losses.
+	 * 
+	 * @param errorCorrection
+	 *            the error correction, <code>null</code> for none
+	 * @see TransactionUDP#setErrorCorrection(ErrorCorrection)
+	 */
+	public void setErrorCorrection(ErrorCorrection errorCorrection)
+	{
+		this.errorCorrection = errorCorrection;
+	}
+
+	/**
+	 * Enables or disables sizing the datagrams of the transactions begun
+	 * afterwards by the path MTU of each destination.
+	 * 
+	 * @param enabled
+	 *            <code>true</code> to size the datagrams by the path MTU
+	 * @see TransactionUDP#setPathMtuDiscovery(boolean)
+	 */
+	public void setPathMtuDiscovery(boolean enabled)
+	{
+		this.pathMtuDiscovery = enabled;
+	}
+
+	/**
+	 * Returns <code>true</code> if the datagrams of the new transactions are
+	 * sized by the path MTU.
+	 * 
+	 * @return <code>true</code> if the path MTU discovery is enabled
+	 */
+	public boolean isPathMtuDiscovery()
+	{
+		return pathMtuDiscovery;
+	}
+
+	/**
+	 * Returns the forward error correction of the new transactions.
+	 * 
+	 * @return the error correction, <code>null</code> if none
+	 */
+	public ErrorCorrection getErrorCorrection()
+	{
+		return errorCorrection;
 	}
 
 	/**
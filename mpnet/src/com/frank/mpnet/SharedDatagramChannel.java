@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * SharedDatagramChannel.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The blocking mode of a datagram channel shared by the transactions of a
+ * {@linkplain SessionUDP UDP session}.
+ * <p>
+ * All the transactions of the session follow one mode: either blocking, or
+ * {@linkplain #setAsync(EventLoop, Executor) asynchronous} driven by one
+ * event loop which serves the operations of all of them. The blocking
+ * operations hold the {@linkplain #lockBlocking() blocking lock}, thus, the
+ * channel is never switched non-blocking under them, neither by the event
+ * loop nor by a {@linkplain #lockDraining() draining}.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+final class SharedDatagramChannel
+{
+	/**
+	 * The shared channel, <code>null</code> if the socket is not created by
+	 * a channel.
+	 */
+	private final DatagramChannel					channel;
+	/**
+	 * The lock of the blocking mode, the read lock is held by the blocking
+	 * operations and the write lock by the mode switches.
+	 */
+	private final ReentrantReadWriteLock			mode		= new ReentrantReadWriteLock();
+	/**
+	 * The event loop which drives the asynchronous operations,
+	 * <code>null</code> if the channel is blocking.
+	 */
+	private volatile EventLoop						loop;
+	/**
+	 * The executor to run the completion handlers of the asynchronous
+	 * operations.
+	 */
+	private volatile Executor						executor;
+	/**
+	 * The selection key of the channel registered with the event loop.
+	 */
+	private SelectionKey							key;
+	/**
+	 * The pending asynchronous sends, accessed on the event loop only.
+	 */
+	private final ArrayDeque<Datagram<Integer>>		sends		= new ArrayDeque<Datagram<Integer>>();
+	/**
+	 * The pending asynchronous receives, accessed on the event loop only.
+	 */
+	private final ArrayDeque<Datagram<SocketInfo>>	receives	= new ArrayDeque<Datagram<SocketInfo>>();
+
+	/**
+	 * The pending asynchronous operation of one datagram.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 * @param <V>
+	 *            the type of the result
+	 */
+	private static class Datagram<V>
+	{
+		/**
+		 * The transaction which starts the operation.
+		 */
+		final TransactionUDP		owner;
+		/**
+		 * The socket address to send to, <code>null</code> if receive.
+		 */
+		final SocketAddress			target;
+		/**
+		 * The buffer of the datagram.
+		 */
+		final ByteBuffer			buffer;
+		/**
+		 * The future of the operation.
+		 */
+		final TransactionFuture<V>	future;
+
+		/**
+		 * Construct an instance of <tt>Datagram</tt>.
+		 * 
+		 * @param owner
+		 *            the transaction which starts the operation
+		 * @param target
+		 *            the socket address to send to, <code>null</code> if
+		 *            receive
+		 * @param buffer
+		 *            the buffer of the datagram
+		 * @param future
+		 *            the future of the operation
+		 */
+		Datagram(TransactionUDP owner, SocketAddress target, ByteBuffer buffer,
+				TransactionFuture<V> future)
+		{
+			this.owner = owner;
+			this.target = target;
+			this.buffer = buffer;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * Construct an instance of <tt>SharedDatagramChannel</tt>.
+	 * 
+	 * @param channel
+	 *            the shared channel, <code>null</code> if the socket is not
+	 *            created by a channel
+	 */
+	SharedDatagramChannel(DatagramChannel channel)
+	{
+		this.channel = channel;
+	}
+
+	/**
+	 * Returns <code>true</code> if the channel is driven by an event loop.
+	 * 
+	 * @return <code>true</code> if asynchronous
+	 */
+	boolean isAsync()
+	{
+		return loop != null;
+	}
+
+	/**
+	 * Drives the channel by the specified event loop, then the operations of
+	 * all the transactions sharing the channel are asynchronous.
+	 * <p>
+	 * The operations started afterwards are asynchronous at once, while the
+	 * switch waits for the blocking operations in progress.
+	 * </p>
+	 * 
+	 * @param loop
+	 *            the event loop to drive the channel
+	 * @param executor
+	 *            the executor to run the completion handlers,
+	 *            <code>null</code> if run them on the event loop
+	 * @throws TransactionStateException
+	 *             if the socket has no channel, or the channel is already
+	 *             asynchronous
+	 */
+	synchronized void setAsync(EventLoop loop, Executor executor)
+			throws TransactionStateException
+	{
+		if (channel == null)
+			throw new TransactionStateException(
+					"Only the socket with a channel can be driven by an event loop.");
+		if (this.loop != null)
+			throw new TransactionStateException(
+					"The transaction is already asynchronous.");
+		this.executor = executor;
+		this.loop = loop;
+		// the new operations are asynchronous, wait for the blocking ones
+		mode.writeLock().lock();
+		mode.writeLock().unlock();
+		loop.register(channel, 0, new EventLoop.Handler()
+		{
+			@Override
+			public void registered(SelectionKey key)
+			{
+				SharedDatagramChannel.this.key = key;
+				flushSends();
+				pollReceives();
+			}
+
+			@Override
+			public void ready(SelectionKey key)
+			{
+				if (key.isWritable())
+					flushSends();
+				if (key.isValid() && key.isReadable())
+					pollReceives();
+			}
+
+			@Override
+			public void close(Throwable cause)
+			{
+				if (cause == null)
+					cause = new TransactionStateException(
+							"The event loop is closed.");
+				for (Datagram<Integer> op : sends)
+					op.future.fail(cause);
+				for (Datagram<SocketInfo> op : receives)
+					op.future.fail(cause);
+				sends.clear();
+				receives.clear();
+			}
+		});
+	}
+
+	/**
+	 * Acquires the blocking lock if the channel is blocking.
+	 * <p>
+	 * If acquired, the channel stays blocking until
+	 * {@linkplain #unlockBlocking()}; otherwise, the operation shall be
+	 * started asynchronously.
+	 * </p>
+	 * 
+	 * @return <code>true</code> if acquired, <code>false</code> if the
+	 *         channel is asynchronous
+	 */
+	boolean lockBlocking()
+	{
+		if (loop != null)
+			return false;
+		mode.readLock().lock();
+		if (loop == null)
+			return true;
+		mode.readLock().unlock();
+		return false;
+	}
+
+	/**
+	 * Releases the blocking lock.
+	 */
+	void unlockBlocking()
+	{
+		mode.readLock().unlock();
+	}
+
+	/**
+	 * Acquires the exclusive lock and switches the channel non-blocking to
+	 * drain the queued datagrams.
+	 * <p>
+	 * The lock never waits: if any blocking operation is in progress,
+	 * including the ones of the other transactions, the draining is
+	 * impossible since the mode of the channel shall not be switched under
+	 * it. The asynchronous channel is drained as is once its registration is
+	 * done.
+	 * </p>
+	 * 
+	 * @return <code>true</code> if the channel can be drained and shall be
+	 *         released by {@linkplain #unlockDraining()}, <code>false</code>
+	 *         if the draining is impossible now
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	boolean lockDraining() throws IOException
+	{
+		if (channel == null || !mode.writeLock().tryLock())
+			return false;
+		try
+		{
+			if (channel.isBlocking())
+			{
+				if (loop != null)
+				{
+					// the event loop switches it non-blocking later
+					mode.writeLock().unlock();
+					return false;
+				}
+				channel.configureBlocking(false);
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			mode.writeLock().unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * Restores the blocking mode after the draining and releases the
+	 * exclusive lock.
+	 * 
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	void unlockDraining() throws IOException
+	{
+		try
+		{
+			if (loop == null)
+				channel.configureBlocking(true);
+		}
+		finally
+		{
+			mode.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Queues the datagram to send by the event loop.
+	 * 
+	 * @param owner
+	 *            the transaction which sends the datagram
+	 * @param target
+	 *            the socket address to send to
+	 * @param buffer
+	 *            the buffer of the datagram
+	 * @return the future of the number of bytes sent
+	 */
+	TransactionFuture<Integer> send(TransactionUDP owner,
+			SocketAddress target, ByteBuffer buffer)
+	{
+		final Datagram<Integer> op = new Datagram<Integer>(owner, target,
+				buffer, new TransactionFuture<Integer>(executor));
+		loop.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				sends.add(op);
+				if (sends.size() == 1)
+					flushSends();
+			}
+		});
+		return op.future;
+	}
+
+	/**
+	 * Queues the buffer to receive a datagram by the event loop.
+	 * <p>
+	 * The receives of all the transactions are served in order. A cancelled
+	 * receive is withdrawn before it takes a datagram, thus, no datagram is
+	 * lost by the cancellation.
+	 * </p>
+	 * 
+	 * @param owner
+	 *            the transaction which receives the datagram
+	 * @param buffer
+	 *            the buffer to receive into
+	 * @return the future of the source information
+	 */
+	TransactionFuture<SocketInfo> receive(TransactionUDP owner,
+			ByteBuffer buffer)
+	{
+		final Datagram<SocketInfo> op = new Datagram<SocketInfo>(owner, null,
+				buffer, new TransactionFuture<SocketInfo>(executor));
+		loop.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				receives.add(op);
+				if (receives.size() == 1)
+					pollReceives();
+			}
+		});
+		return op.future;
+	}
+
+	/**
+	 * Sends the queued datagrams until the socket buffer is full, called on
+	 * the event loop.
+	 */
+	private void flushSends()
+	{
+		if (key == null)
+			return;
+		while (!sends.isEmpty())
+		{
+			Datagram<Integer> op = sends.peek();
+			if (op.future.isDone())
+			{
+				sends.poll();
+				continue;
+			}
+			int length = op.buffer.remaining();
+			try
+			{
+				int n = channel.isConnected() ? channel.write(op.buffer)
+						: channel.send(op.buffer, op.target);
+				if (n == 0 && length > 0)
+				{
+					loop.interest(key, SelectionKey.OP_WRITE, true);
+					return;
+				}
+				sends.poll();
+				op.owner.markSent();
+				op.future.complete(n);
+			}
+			catch (IOException e)
+			{
+				sends.poll();
+				op.future.fail(e);
+			}
+		}
+		loop.interest(key, SelectionKey.OP_WRITE, false);
+	}
+
+	/**
+	 * Receives the available datagrams for the queued receives, called on the
+	 * event loop.
+	 */
+	private void pollReceives()
+	{
+		if (key == null)
+			return;
+		while (!receives.isEmpty())
+		{
+			Datagram<SocketInfo> op = receives.peek();
+			if (op.future.isDone())
+			{
+				receives.poll();
+				continue;
+			}
+			try
+			{
+				SocketAddress source = channel.receive(op.buffer);
+				if (source == null)
+				{
+					loop.interest(key, SelectionKey.OP_READ, true);
+					return;
+				}
+				receives.poll();
+				op.owner.markReceived();
+				op.future.complete(op.owner.source(source));
+			}
+			catch (IOException e)
+			{
+				receives.poll();
+				op.future.fail(e);
+			}
+		}
+		loop.interest(key, SelectionKey.OP_READ, false);
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * SharedScheduler.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The scheduler shared by all of the transactions for their delayed tasks,
+ * such as the background flushing of the coalesced data.
+ * <p>
+ * The scheduler runs on one daemon thread which is created on first use. The
+ * tasks scheduled shall be short and shall never block for long, or they will
+ * delay the tasks of the other transactions. The scheduled task which may
+ * block, such as writing to a slow peer, shall hand its work to the
+ * {@linkplain #getWorkers() workers}.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public final class SharedScheduler
+{
+	/**
+	 * The underlying executor.
+	 */
+	private static volatile ScheduledThreadPoolExecutor	executor;
+	/**
+	 * The pool of the workers for the blocking work.
+	 */
+	private static volatile ThreadPoolExecutor			workers;
+
+	/**
+	 * Construct an instance of <tt>SharedScheduler</tt>.
+	 */
+	private SharedScheduler()
+	{
+		// never be instantiated
+	}
+
+	/**
+	 * Returns the shared scheduler, creates it if not created yet.
+	 * 
+	 * @return the shared scheduler
+	 */
+	public static ScheduledExecutorService get()
+	{
+		ScheduledThreadPoolExecutor e = executor;
+		if (e == null)
+		{
+			synchronized (SharedScheduler.class)
+			{
+				e = executor;
+				if (e == null)
+				{
+					e = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+					{
+						@Override
+						public Thread newThread(Runnable r)
+						{
+							Thread t = new Thread(r, "mpnet-scheduler");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+					e.setRemoveOnCancelPolicy(true);
+					executor = e;
+				}
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Returns the pool of the workers for the blocking work handed over by the
+	 * scheduled tasks, creates it if not created yet.
+	 * <p>
+	 * The pool runs each work on an idle daemon thread or a new one, thus, a
+	 * work blocked by one transaction never delays the others. The idle
+	 * threads exit after a minute.
+	 * </p>
+	 * 
+	 * @return the pool of the workers
+	 */
+	public static ExecutorService getWorkers()
+	{
+		ThreadPoolExecutor e = workers;
+		if (e == null)
+		{
+			synchronized (SharedScheduler.class)
+			{
+				e = workers;
+				if (e == null)
+				{
+					e = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+							TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+							new ThreadFactory()
+							{
+								private final AtomicInteger	sequence	= new AtomicInteger();
+
+								@Override
+								public Thread newThread(Runnable r)
+								{
+									Thread t = new Thread(r, "mpnet-worker-"
+											+ sequence.incrementAndGet());
+									t.setDaemon(true);
+									return t;
+								}
+							});
+					workers = e;
+				}
+			}
+		}
+		return e;
+	}
+}
@@ -30,5 +30,9 @@ public enum SocketType
 	/**
 	 * Infers the socket type is a UDP socket.
 	 */
-	UDP;
+	UDP,
+	/**
+	 * Infers the socket type is a reliable UDP socket.
+	 */
+	RUDP;
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * ThreadFactories.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The factories of the threads which run the transactions.
+ * <p>
+ * The virtual threads are only available since Java 21, thus, the factory of
+ * the virtual threads is looked up reflectively and is <code>null</code> on
+ * the older runtime.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public final class ThreadFactories
+{
+	/**
+	 * Construct an instance of <tt>ThreadFactories</tt>.
+	 */
+	private ThreadFactories()
+	{
+		// never be instantiated
+	}
+
+	/**
+	 * Returns a factory of the virtual threads.
+	 * 
+	 * @return the factory of the virtual threads, <code>null</code> if the
+	 *         virtual threads are not supported by the runtime
+	 */
+	public static ThreadFactory virtual()
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a factory of the platform threads.
+	 * 
+	 * @param name
+	 *            the name prefix of the threads
+	 * @return the factory of the platform threads
+	 */
+	public static ThreadFactory platform(final String name)
+	{
+		return new ThreadFactory()
+		{
+			private final AtomicInteger	sequence	= new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				return new Thread(r, name + "-" + sequence.incrementAndGet());
+			}
+		};
+	}
+
+	/**
+	 * Returns the factory of the virtual threads if supported by the runtime,
+	 * or the factory of the platform threads otherwise.
+	 * 
+	 * @param name
+	 *            the name prefix of the platform threads
+	 * @return the thread factory
+	 */
+	public static ThreadFactory perConnection(String name)
+	{
+		ThreadFactory factory = virtual();
+		return factory == null ? platform(name) : factory;
+	}
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TimingWheel.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The hashed timing wheel for a large number of coarse timeouts.
+ * <p>
+ * The wheel is an array of buckets, each of which covers one tick. A timeout
+ * is hashed into the bucket of its deadline with the number of remaining
+ * rounds of the wheel, thus, scheduling and cancelling a timeout are both
+ * <i>O(1)</i>, and each tick only visits one bucket. The timeouts expire on
+ * the tick after their deadlines, which is accurate enough for idle
+ * detection and heartbeats but not for the precise timers.
+ * </p>
+ * <p>
+ * The tasks run on the single worker thread of the wheel, therefore, they
+ * shall be short and never block; the slow work shall be dispatched to an
+ * executor.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TimingWheel implements Closeable
+{
+	/**
+	 * The default tick duration in milliseconds.
+	 */
+	public static final long				DEFAULT_TICK			= 100;
+	/**
+	 * The default number of the buckets.
+	 */
+	public static final int					DEFAULT_TICKS_PER_WHEEL	= 512;
+	/**
+	 * The maximum number of the timeouts transferred into the wheel per tick,
+	 * thus, a burst of scheduling never stalls the wheel.
+	 */
+	private static final int				MAX_TRANSFER			= 100000;
+	/**
+	 * The sequence of the worker threads.
+	 */
+	private static final AtomicInteger		sequence				= new AtomicInteger();
+	/**
+	 * The tick duration in nanoseconds.
+	 */
+	private final long						tick;
+	/**
+	 * The buckets.
+	 */
+	private final Bucket[]					wheel;
+	/**
+	 * The mask to hash a tick into the buckets.
+	 */
+	private final int						mask;
+	/**
+	 * The start time of the wheel in nanoseconds.
+	 */
+	private final long						start;
+	/**
+	 * The timeouts scheduled but not transferred into the buckets yet.
+	 */
+	private final ConcurrentLinkedQueue<Timeout>	added		= new ConcurrentLinkedQueue<Timeout>();
+	/**
+	 * The timeouts cancelled but not removed from the buckets yet.
+	 */
+	private final ConcurrentLinkedQueue<Timeout>	cancelled	= new ConcurrentLinkedQueue<Timeout>();
+	/**
+	 * The number of the pending timeouts.
+	 */
+	private final AtomicLong				pending					= new AtomicLong();
+	/**
+	 * The worker thread.
+	 */
+	private final Thread					worker;
+	/**
+	 * The number of ticks passed, accessed by the worker only.
+	 */
+	private long							ticks;
+	/**
+	 * The flag for the wheel closed.
+	 */
+	private volatile boolean				closed;
+
+	/**
+	 * Construct an instance of <tt>TimingWheel</tt> with the default tick
+	 * duration and wheel size.
+	 */
+	public TimingWheel()
+	{
+		this(DEFAULT_TICK, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+	}
+
+	/**
+	 * Construct an instance of <tt>TimingWheel</tt> and starts its worker.
+	 * 
+	 * @param tick
+	 *            the duration of one tick
+	 * @param unit
+	 *            the time unit of <code>tick</code>
+	 * @param ticksPerWheel
+	 *            the number of the buckets, which will be rounded up to a
+	 *            power of two
+	 * @throws IllegalArgumentException
+	 *             if <code>tick</code> or <code>ticksPerWheel</code> is not
+	 *             positive
+	 */
+	public TimingWheel(long tick, TimeUnit unit, int ticksPerWheel)
+			throws IllegalArgumentException
+	{
+		if (tick <= 0)
+			throw new IllegalArgumentException(String.format(
+					"The tick(%d) shall be positive.", tick));
+		if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30)
+			throw new IllegalArgumentException(String.format(
+					"The ticks per wheel(%d) shall be in (0, 2^30].",
+					ticksPerWheel));
+		int size = Integer.highestOneBit(ticksPerWheel);
+		if (size < ticksPerWheel)
+			size <<= 1;
+		this.tick = Math.max(unit.toNanos(tick), 1);
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++)
+			wheel[i] = new Bucket();
+		this.mask = size - 1;
+		this.start = System.nanoTime();
+		worker = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				work();
+			}
+		}, "mpnet-wheel-" + sequence.incrementAndGet());
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Schedules a task to run after the specified delay.
+	 * 
+	 * @param task
+	 *            the task
+	 * @param delay
+	 *            the delay
+	 * @param unit
+	 *            the time unit of <code>delay</code>
+	 * @return the timeout of the task
+	 * @throws TransactionStateException
+	 *             if the wheel is closed
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+			throws TransactionStateException
+	{
+		if (closed)
+			throw new TransactionStateException("The timing wheel is closed.");
+		long deadline = System.nanoTime() - start
+				+ Math.max(unit.toNanos(delay), 0);
+		// guard against the overflow of a huge delay
+		if (deadline < 0)
+			deadline = Long.MAX_VALUE;
+		Timeout timeout = new Timeout(this, task, deadline);
+		pending.incrementAndGet();
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Runs the ticks until the wheel is closed.
+	 */
+	private void work()
+	{
+		while (!closed)
+		{
+			long deadline = tick * (ticks + 1);
+			long sleep = deadline - (System.nanoTime() - start);
+			if (sleep > 0)
+			{
+				try
+				{
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				}
+				catch (InterruptedException e)
+				{
+					if (closed)
+						break;
+				}
+				continue;
+			}
+			removeCancelled();
+			transferAdded();
+			wheel[(int) (ticks & mask)].expire(deadline);
+			ticks++;
+		}
+	}
+
+	/**
+	 * Removes the cancelled timeouts from their buckets.
+	 */
+	private void removeCancelled()
+	{
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null)
+			if (timeout.bucket != null)
+				timeout.bucket.remove(timeout);
+	}
+
+	/**
+	 * Hashes the newly scheduled timeouts into the buckets.
+	 */
+	private void transferAdded()
+	{
+		for (int i = 0; i < MAX_TRANSFER; i++)
+		{
+			Timeout timeout = added.poll();
+			if (timeout == null)
+				return;
+			if (timeout.state.get() != Timeout.INIT)
+				continue;
+			long expires = timeout.deadline / tick;
+			timeout.rounds = (expires - ticks) / wheel.length;
+			// the timeout already passed runs on the current tick
+			long index = Math.max(expires, ticks);
+			wheel[(int) (index & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * Returns the number of the pending timeouts.
+	 * 
+	 * @return the number of the pending timeouts
+	 */
+	public long getPendingCount()
+	{
+		return pending.get();
+	}
+
+	/**
+	 * Returns the duration of one tick.
+	 * 
+	 * @param unit
+	 *            the time unit
+	 * @return the tick duration
+	 */
+	public long getTick(TimeUnit unit)
+	{
+		return unit.convert(tick, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stops the wheel, the pending timeouts never expire.
+	 * 
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close()
+	{
+		if (closed)
+			return;
+		closed = true;
+		worker.interrupt();
+		if (Thread.currentThread() != worker)
+		{
+			try
+			{
+				worker.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The handle of a task scheduled in the timing wheel.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	public static final class Timeout
+	{
+		/**
+		 * The state of a pending timeout.
+		 */
+		static final int			INIT		= 0;
+		/**
+		 * The state of a cancelled timeout.
+		 */
+		static final int			CANCELLED	= 1;
+		/**
+		 * The state of an expired timeout.
+		 */
+		static final int			EXPIRED		= 2;
+		/**
+		 * The wheel of the timeout.
+		 */
+		private final TimingWheel	wheel;
+		/**
+		 * The task.
+		 */
+		private final Runnable		task;
+		/**
+		 * The deadline since the start of the wheel in nanoseconds.
+		 */
+		final long					deadline;
+		/**
+		 * The state.
+		 */
+		final AtomicInteger			state		= new AtomicInteger(INIT);
+		/**
+		 * The remaining rounds of the wheel, accessed by the worker only.
+		 */
+		long						rounds;
+		/**
+		 * The bucket of the timeout, accessed by the worker only.
+		 */
+		Bucket						bucket;
+		/**
+		 * The previous timeout in the bucket, accessed by the worker only.
+		 */
+		Timeout						prev;
+		/**
+		 * The next timeout in the bucket, accessed by the worker only.
+		 */
+		Timeout						next;
+
+		/**
+		 * Construct an instance of <tt>Timeout</tt>.
+		 * 
+		 * @param wheel
+		 *            the wheel of the timeout
+		 * @param task
+		 *            the task
+		 * @param deadline
+		 *            the deadline since the start of the wheel in nanoseconds
+		 */
+		Timeout(TimingWheel wheel, Runnable task, long deadline)
+		{
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the timeout, the task will not run if it has not run yet.
+		 * 
+		 * @return <code>true</code> if cancelled by this call
+		 */
+		public boolean cancel()
+		{
+			if (!state.compareAndSet(INIT, CANCELLED))
+				return false;
+			wheel.pending.decrementAndGet();
+			wheel.cancelled.add(this);
+			return true;
+		}
+
+		/**
+		 * Returns <code>true</code> if the timeout is cancelled.
+		 * 
+		 * @return <code>true</code> if cancelled
+		 */
+		public boolean isCancelled()
+		{
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * Returns <code>true</code> if the timeout expired and its task ran.
+		 * 
+		 * @return <code>true</code> if expired
+		 */
+		public boolean isExpired()
+		{
+			return state.get() == EXPIRED;
+		}
+
+		/**
+		 * Runs the task if not cancelled, called by the worker.
+		 */
+		void expire()
+		{
+			if (!state.compareAndSet(INIT, EXPIRED))
+				return;
+			wheel.pending.decrementAndGet();
+			try
+			{
+				task.run();
+			}
+			catch (RuntimeException e)
+			{
+				// one failed task shall not stop the wheel
+				Thread t = Thread.currentThread();
+				t.getUncaughtExceptionHandler().uncaughtException(t, e);
+			}
+		}
+	}
+
+	/**
+	 * The doubly linked list of the timeouts hashed into one tick, accessed
+	 * by the worker only.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	private static final class Bucket
+	{
+		/**
+		 * The first timeout.
+		 */
+		private Timeout	head;
+		/**
+		 * The last timeout.
+		 */
+		private Timeout	tail;
+
+		/**
+		 * Appends a timeout.
+		 * 
+		 * @param timeout
+		 *            the timeout
+		 */
+		void add(Timeout timeout)
+		{
+			timeout.bucket = this;
+			timeout.prev = tail;
+			timeout.next = null;
+			if (tail == null)
+				head = timeout;
+			else
+				tail.next = timeout;
+			tail = timeout;
+		}
+
+		/**
+		 * Removes a timeout.
+		 * 
+		 * @param timeout
+		 *            the timeout
+		 */
+		void remove(Timeout timeout)
+		{
+			if (timeout.prev == null)
+				head = timeout.next;
+			else
+				timeout.prev.next = timeout.next;
+			if (timeout.next == null)
+				tail = timeout.prev;
+			else
+				timeout.next.prev = timeout.prev;
+			timeout.bucket = null;
+			timeout.prev = null;
+			timeout.next = null;
+		}
+
+		/**
+		 * Expires the timeouts of the current round whose deadlines passed,
+		 * and counts down the rounds of the others.
+		 * 
+		 * @param deadline
+		 *            the deadline of the current tick since the start of the
+		 *            wheel in nanoseconds
+		 */
+		void expire(long deadline)
+		{
+			Timeout timeout = head;
+			while (timeout != null)
+			{
+				Timeout next = timeout.next;
+				if (timeout.rounds <= 0 && timeout.deadline <= deadline)
+				{
+					remove(timeout);
+					timeout.expire();
+				}
+				else if (timeout.state.get() != Timeout.INIT)
+					remove(timeout);
+				else
+					timeout.rounds--;
+				timeout = next;
+			}
+		}
+	}
+}
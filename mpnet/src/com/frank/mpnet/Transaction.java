@@ -8,7 +8,9 @@ package com.frank.mpnet;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The transaction interface for net transmission.
@@ -20,6 +22,20 @@ import java.nio.charset.Charset;
  */
 public abstract class Transaction
 {
+	/**
+	 * The maximum number of bytes transfered between two progress reports of
+	 * a file transfer.
+	 */
+	protected static final int	FILE_CHUNK_SIZE	= 8 << 20;
+	/**
+	 * The time of the last data received in nanoseconds.
+	 */
+	private volatile long		lastReceived	= System.nanoTime();
+	/**
+	 * The time of the last data sent in nanoseconds.
+	 */
+	private volatile long		lastSent		= lastReceived;
+
 	/**
 	 * Send specified data to the default socket.
 	 * <p>
@@ -107,6 +123,58 @@ public abstract class Transaction
 		send(s.getBytes());
 	}
 
+	/**
+	 * Send the remaining data of specified buffer to the default socket.
+	 * <p>
+	 * The position of the buffer will be advanced by the number of bytes sent.
+	 * The buffer can be a heap buffer or a direct buffer.
+	 * </p>
+	 * <p>
+	 * By default, the data will be copied into a byte array and be sent by
+	 * {@linkplain #send(byte[])}. The sub-class shall send the buffer directly
+	 * by the underlying channel if possible.
+	 * </p>
+	 * 
+	 * @param buffer
+	 *            the buffer to send
+	 * @throws TransactionStateException
+	 *             if the transaction state does not agree
+	 * @throws TransactionException
+	 *             if any other transaction error occurs, such as an IO error
+	 */
+	public void send(ByteBuffer buffer) throws TransactionStateException,
+			TransactionException
+	{
+		send(toArray(buffer));
+	}
+
+	/**
+	 * Send the remaining data of specified buffers to the default socket as a
+	 * whole, such as a header buffer and a body buffer.
+	 * <p>
+	 * The positions of the buffers will be advanced by the number of bytes
+	 * sent. For a message oriented transaction, such as UDP, the data of all
+	 * the buffers will be sent in one datagram.
+	 * </p>
+	 * <p>
+	 * By default, the data will be copied into a byte array and be sent by
+	 * {@linkplain #send(byte[])}. The sub-class shall send the buffers by a
+	 * gathering write of the underlying channel if possible.
+	 * </p>
+	 * 
+	 * @param buffers
+	 *            the buffers to send
+	 * @throws TransactionStateException
+	 *             if the transaction state does not agree
+	 * @throws TransactionException
+	 *             if any other transaction error occurs, such as an IO error
+	 */
+	public void send(ByteBuffer... buffers) throws TransactionStateException,
+			TransactionException
+	{
+		send(toArray(buffers));
+	}
+
 	/**
 	 * Send specified data to a specified socket.
 	 * <p>
@@ -206,6 +274,338 @@ public abstract class Transaction
 		send(sa, s.getBytes());
 	}
 
+	/**
+	 * Send the remaining data of specified buffer to a specified socket.
+	 * 
+	 * @param sa
+	 *            the socket address to send to
+	 * @param buffer
+	 *            the buffer to send
+	 * @throws TransactionStateException
+	 *             if the transaction state does not agree
+	 * @throws TransactionException
+	 *             if any other transaction error occurs, such as an IO error
+	 * @see #send(ByteBuffer)
+	 */
+	public void send(SocketAddress sa, ByteBuffer buffer)
+			throws TransactionStateException, TransactionException
+	{
+		send(sa, toArray(buffer));
+	}
+
+	/**
+	 * Send the remaining data of specified buffers to a specified socket as a
+	 * whole.
+	 * 
+	 * @param sa
+	 *            the socket address to send to
+	 * @param buffers
+	 *            the buffers to send
+	 * @throws TransactionStateException
+	 *             if the transaction state does not agree
+	 * @throws TransactionException
+	 *             if any other transaction error occurs, such as an IO error
+	 * @see #send(ByteBuffer...)
+	 */
+	public void send(SocketAddress sa, ByteBuffer... buffers)
+			throws TransactionStateException, TransactionException
+	{
+		send(sa, toArray(buffers));
+	}
+
+	/**
+	 * Send a region of the specified file to the default socket.
+	 * 
+	 * @param file
+	 *            the file to send
+	 * @param position
+	 *            the position within the file at which the sending begins
+	 * @param count
+	 *            the maximum number of bytes to send
+	 * @return the number of bytes sent
+	 * @throws TransactionStateException
+	 *             if the transaction state does not agree
+	 * @throws TransactionException
+	 *             if any other transaction error occurs, such as an IO error
+	 * @see #sendFile(FileChannel, long, long, TransferListener)
+	 */
+	public long sendFile(FileChannel file, long position, long count)
+			throws TransactionStateException, TransactionException
+	{
+		return sendFile(file, position, count, null);
+	}
+
+	/**
+	 * Send a region of the specified file to the default socket, and report
+	 * the progress to the specified listener.
+	 * <p>
+	 * If the file is shorter than <code>position + count</code>, only the
+	 * bytes before the end of the file will be sent. The position of the file
+	 * channel will not be changed.
+	 * </p>
+	 * <p>
+	 * By default, the file will be read into a heap buffer chunk by chunk and
+	 * each chunk will be sent by {@linkplain #send(ByteBuffer)}. The sub-class
+	 * shall send the file without copying it into the heap if possible.
+	 * </p>
+	 * 
+	 * @param file
+	 *            the file to send
+	 * @param position
+	 *            the position within the file at which the sending begins
+	 * @param count
+	 *            the maximum number of bytes to send
+	 * @param listener
+	 *            the listener of the progress, <code>null</code> if no need to
+	 *            report the progress
+	 * @return the number of bytes sent
+	 * @throws TransactionStateException
+	 *             if the transaction state does not agree
+	 * @throws TransactionException
+	 *             if any other transaction error occurs, such as an IO error
+	 */
+	public long sendFile(FileChannel file, long position, long count,
+			TransferListener listener) throws TransactionStateException,
+			TransactionException
+	{
+		try
+		{
+			long total = fileRegion(file, position, count);
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(total,
+					FILE_CHUNK_SIZE));
+			long sent = 0;
+			while (sent < total)
+			{
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), total - sent));
+				int r = file.read(buffer, position + sent);
+				if (r <= 0)
+					break;
+				buffer.flip();
+				send(buffer);
+				sent += r;
+				if (listener != null)
+					listener.progress(sent, total);
+			}
+			return sent;
+		}
+		catch (IOException e)
+		{
+			throw new TransactionException("Unable to send file: "
+					+ e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * Receive the transfered data into a region of the specified file.
+	 * <p>
+	 * The data will be received until <code>count</code> bytes are written or
+	 * the end of the stream is reached. The position of the file channel will
+	 * not be changed.
+	 * </p>
+	 * <p>
+	 * By default, the data will be received into a heap buffer chunk by chunk
+	 * and each chunk will be written to the file. The sub-class shall receive
+	 * the data without copying it into the heap if possible.
+	 * </p>
+	 * 
+	 * @param file
+	 *            the file to write
+	 * @param position
+	 *            the position within the file at which the writing begins, it
+	 *            shall not be larger than the file size
+	 * @param count
+	 *            the maximum number of bytes to receive
+	 * @return the number of bytes written to the file
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @throws IllegalArgumentException
+	 *             if <code>position</code> or <code>count</code> is negative,
+	 *             or <code>position</code> is larger than the file size
+	 */
+	public long receiveToFile(FileChannel file, long position, long count)
+			throws IOException, IllegalArgumentException
+	{
+		checkFilePosition(file, position, count);
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count,
+				FILE_CHUNK_SIZE));
+		long received = 0;
+		while (received < count)
+		{
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), count - received));
+			receive(buffer);
+			buffer.flip();
+			if (!buffer.hasRemaining() && !hasNext())
+				break;
+			while (buffer.hasRemaining())
+				received += file.write(buffer, position + received);
+		}
+		return received;
+	}
+
+	/**
+	 * Send the remaining data of the specified buffer to the default socket
+	 * asynchronously.
+	 * <p>
+	 * By default, the data is sent synchronously by
+	 * {@linkplain #send(ByteBuffer)} and the returned future is already
+	 * completed. The sub-class shall send the data without blocking the
+	 * calling thread if possible.
+	 * </p>
+	 * 
+	 * @param buffer
+	 *            the buffer to send, it shall not be modified until the
+	 *            future is completed
+	 * @return the future of the number of bytes sent
+	 */
+	public TransactionFuture<Integer> sendAsync(ByteBuffer buffer)
+	{
+		int length = buffer.remaining();
+		try
+		{
+			send(buffer);
+			return TransactionFuture.completed(length);
+		}
+		catch (RuntimeException e)
+		{
+			return TransactionFuture.failed(e);
+		}
+	}
+
+	/**
+	 * Send the remaining data of the specified buffer to the specified socket
+	 * address asynchronously.
+	 * <p>
+	 * By default, the data is sent synchronously by
+	 * {@linkplain #send(SocketAddress, ByteBuffer)} and the returned future is
+	 * already completed.
+	 * </p>
+	 * 
+	 * @param sa
+	 *            the socket address to send to
+	 * @param buffer
+	 *            the buffer to send, it shall not be modified until the
+	 *            future is completed
+	 * @return the future of the number of bytes sent
+	 * @see #sendAsync(ByteBuffer)
+	 */
+	public TransactionFuture<Integer> sendAsync(SocketAddress sa,
+			ByteBuffer buffer)
+	{
+		int length = buffer.remaining();
+		try
+		{
+			send(sa, buffer);
+			return TransactionFuture.completed(length);
+		}
+		catch (RuntimeException e)
+		{
+			return TransactionFuture.failed(e);
+		}
+	}
+
+	/**
+	 * Receive the transfered data into the specified buffer asynchronously.
+	 * <p>
+	 * By default, the data is received synchronously by
+	 * {@linkplain #receive(ByteBuffer)} and the returned future is already
+	 * completed. The sub-class shall receive the data without blocking the
+	 * calling thread if possible.
+	 * </p>
+	 * 
+	 * @param buffer
+	 *            the buffer to fill, it shall not be accessed until the future
+	 *            is completed
+	 * @return the future of the socket information bean which contains the
+	 *         source data
+	 */
+	public TransactionFuture<SocketInfo> receiveAsync(ByteBuffer buffer)
+	{
+		try
+		{
+			return TransactionFuture.completed(receive(buffer));
+		}
+		catch (Exception e)
+		{
+			return TransactionFuture.failed(e);
+		}
+	}
+
+	/**
+	 * Checks the position of the file region to receive into.
+	 * 
+	 * @param file
+	 *            the file to write
+	 * @param position
+	 *            the position within the file at which the writing begins
+	 * @param count
+	 *            the maximum number of bytes to receive
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @throws IllegalArgumentException
+	 *             if <code>position</code> or <code>count</code> is negative,
+	 *             or <code>position</code> is larger than the file size
+	 */
+	static void checkFilePosition(FileChannel file, long position, long count)
+			throws IOException, IllegalArgumentException
+	{
+		if (position < 0 || count < 0)
+			throw new IllegalArgumentException(String.format(
+					"The file region(%d, %d) shall not be negative.",
+					position, count));
+		if (position > file.size())
+			throw new IllegalArgumentException(String.format(
+					"The position(%d) is beyond the end of the file(%d).",
+					position, file.size()));
+	}
+
+	/**
+	 * Returns the number of bytes of the file region to transfer, which is
+	 * bounded by the end of the file.
+	 * 
+	 * @param file
+	 *            the file to transfer
+	 * @param position
+	 *            the position within the file at which the region begins
+	 * @param count
+	 *            the maximum length of the region
+	 * @return the number of bytes of the region
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @throws IllegalArgumentException
+	 *             if <code>position</code> or <code>count</code> is negative
+	 */
+	static long fileRegion(FileChannel file, long position, long count)
+			throws IOException, IllegalArgumentException
+	{
+		if (position < 0 || count < 0)
+			throw new IllegalArgumentException(String.format(
+					"The file region(%d, %d) shall not be negative.",
+					position, count));
+		return Math.max(0, Math.min(count, file.size() - position));
+	}
+
+	/**
+	 * Copies the remaining data of specified buffers into a new byte array.
+	 * 
+	 * @param buffers
+	 *            the buffers to copy
+	 * @return the byte array
+	 */
+	private static byte[] toArray(ByteBuffer... buffers)
+	{
+		byte[] b = new byte[(int) NetUtils.remaining(buffers)];
+		int offset = 0;
+		for (ByteBuffer buffer : buffers)
+		{
+			int n = buffer.remaining();
+			buffer.get(b, offset, n);
+			offset += n;
+		}
+		return b;
+	}
+
 	/**
 	 * Receive the transfered data and fill the specified buffer area with
 	 * transfered data.
@@ -218,6 +618,34 @@ public abstract class Transaction
 	 */
 	public abstract SocketInfo receive(ByteBuffer buffer) throws IOException;
 
+	/**
+	 * Receive the transfered data and scatter it into the specified buffers in
+	 * order, such as a fixed size header buffer and a body buffer.
+	 * <p>
+	 * For a message oriented transaction, such as UDP, one datagram will be
+	 * split across the buffers. By default, the data will be received into a
+	 * temporary buffer by {@linkplain #receive(ByteBuffer)} and be copied into
+	 * the buffers. The sub-class shall receive the data by a scattering read of
+	 * the underlying channel if possible.
+	 * </p>
+	 * 
+	 * @param buffers
+	 *            the buffers to fill
+	 * @return the socket information bean which contains the source data
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	public SocketInfo receive(ByteBuffer... buffers) throws IOException
+	{
+		ByteBuffer bbuf = ByteBuffer.allocate((int) NetUtils
+				.remaining(buffers));
+		SocketInfo si = receive(bbuf);
+		bbuf.flip();
+		for (ByteBuffer buffer : buffers)
+			NetUtils.transfer(bbuf, buffer);
+		return si;
+	}
+
 	/**
 	 * Receive the transfered data and fill the specified
 	 * {@linkplain StringBuffer}.
@@ -244,6 +672,376 @@ public abstract class Transaction
 		return si;
 	}
 
+	/**
+	 * Send specified data to the default socket as a message frame.
+	 * <p>
+	 * The receiver will receive the whole frame by one
+	 * {@linkplain #receiveFrame(ByteBuffer) frame receiving}, thus, the
+	 * boundaries of the messages are kept.
+	 * </p>
+	 * <p>
+	 * For a message oriented transaction, such as UDP, each datagram is a frame
+	 * itself, therefore, this method has the same effect as
+	 * {@linkplain #send(byte[], int, int)} by default. The sub-class which
+	 * implements {@linkplain Transaction} with a stream oriented protocol shall
+	 * frame the data by itself.
+	 * </p>
+	 * 
+	 * @param b
+	 *            the source data to transfer
+	 * @param offset
+	 *            the offset of data to transfer
+	 * @param length
+	 *            the length of the frame to transfer
+	 * @throws TransactionStateException
+	 *             if the transaction state does not agree
+	 * @throws TransactionException
+	 *             if any other transaction error occurs, such as an IO error
+	 * @see #receiveFrame(ByteBuffer)
+	 */
+	public void sendFrame(byte[] b, int offset, int length)
+			throws TransactionStateException, TransactionException
+	{
+		send(b, offset, length);
+	}
+
+	/**
+	 * Send all of the specified data to the default socket as a message frame.
+	 * 
+	 * @param b
+	 *            the source data to transfer
+	 * @throws TransactionStateException
+	 *             if the transaction state does not agree
+	 * @throws TransactionException
+	 *             if any other transaction error occurs, such as an IO error
+	 * @see #sendFrame(byte[], int, int)
+	 */
+	public void sendFrame(byte[] b) throws TransactionStateException,
+			TransactionException
+	{
+		sendFrame(b, 0, b.length);
+	}
+
+	/**
+	 * Send the remaining data of specified buffers to the default socket as
+	 * one message frame.
+	 * 
+	 * @param buffers
+	 *            the buffers to send
+	 * @throws TransactionStateException
+	 *             if the transaction state does not agree
+	 * @throws TransactionException
+	 *             if any other transaction error occurs, such as an IO error
+	 * @see #sendFrame(byte[], int, int)
+	 * @see #send(ByteBuffer...)
+	 */
+	public void sendFrame(ByteBuffer... buffers)
+			throws TransactionStateException, TransactionException
+	{
+		send(buffers);
+	}
+
+	/**
+	 * Receive one message frame and fill the specified buffer area with the
+	 * frame data.
+	 * <p>
+	 * For a message oriented transaction, such as UDP, each datagram is a frame
+	 * itself, therefore, this method has the same effect as
+	 * {@linkplain #receive(ByteBuffer)} by default.
+	 * </p>
+	 * 
+	 * @param buffer
+	 *            the byte buffer to fill
+	 * @return the socket information bean which contains the source data
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @see #sendFrame(byte[], int, int)
+	 */
+	public SocketInfo receiveFrame(ByteBuffer buffer) throws IOException
+	{
+		return receive(buffer);
+	}
+
+	/**
+	 * Receive one message frame and scatter the frame data into the specified
+	 * buffers in order.
+	 * 
+	 * @param buffers
+	 *            the buffers to fill
+	 * @return the socket information bean which contains the source data
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @see #receiveFrame(ByteBuffer)
+	 * @see #receive(ByteBuffer...)
+	 */
+	public SocketInfo receiveFrame(ByteBuffer... buffers) throws IOException
+	{
+		return receive(buffers);
+	}
+
+	/**
+	 * Send the remaining data of specified buffer to the default socket within
+	 * the specified timeout.
+	 * <p>
+	 * By default, the deadline is a task of the {@linkplain SharedScheduler
+	 * shared scheduler}, which {@linkplain #abort() aborts} the transaction if
+	 * the sending has not finished in time. The sub-class shall meet the
+	 * deadline without closing the transaction if possible.
+	 * </p>
+	 * <p>
+	 * An aborted transaction is closed, thus, it is unusable after the
+	 * timeout, such as a {@linkplain TransactionTCP TCP transaction} whose
+	 * connection is destroyed; while a {@linkplain TransactionUDP UDP
+	 * transaction} stays usable.
+	 * </p>
+	 * 
+	 * @param buffer
+	 *            the buffer to send
+	 * @param timeout
+	 *            the timeout, <code>0</code> for no timeout
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 * @throws TransactionTimeoutException
+	 *             if the sending does not finish in time
+	 * @throws TransactionStateException
+	 *             if the transaction state does not agree
+	 * @throws TransactionException
+	 *             if any other transaction error occurs, such as an IO error
+	 * @see #send(ByteBuffer)
+	 */
+	public void send(ByteBuffer buffer, long timeout, TimeUnit unit)
+			throws TransactionTimeoutException, TransactionStateException,
+			TransactionException
+	{
+		Deadline deadline = new Deadline(this, "send", timeout, unit);
+		try
+		{
+			send(buffer);
+		}
+		catch (RuntimeException e)
+		{
+			deadline.check(e);
+			throw e;
+		}
+		finally
+		{
+			deadline.finish();
+		}
+	}
+
+	/**
+	 * Send the remaining data of specified buffer to the default socket as a
+	 * message frame within the specified timeout. The transaction may be
+	 * unusable after the timeout as {@linkplain #send(ByteBuffer, long,
+	 * TimeUnit)}.
+	 * 
+	 * @param buffer
+	 *            the buffer to send
+	 * @param timeout
+	 *            the timeout, <code>0</code> for no timeout
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 * @throws TransactionTimeoutException
+	 *             if the sending does not finish in time
+	 * @throws TransactionStateException
+	 *             if the transaction state does not agree
+	 * @throws TransactionException
+	 *             if any other transaction error occurs, such as an IO error
+	 * @see #sendFrame(ByteBuffer...)
+	 * @see #send(ByteBuffer, long, TimeUnit)
+	 */
+	public void sendFrame(ByteBuffer buffer, long timeout, TimeUnit unit)
+			throws TransactionTimeoutException, TransactionStateException,
+			TransactionException
+	{
+		Deadline deadline = new Deadline(this, "send", timeout, unit);
+		try
+		{
+			sendFrame(buffer);
+		}
+		catch (RuntimeException e)
+		{
+			deadline.check(e);
+			throw e;
+		}
+		finally
+		{
+			deadline.finish();
+		}
+	}
+
+	/**
+	 * Receive the transfered data within the specified timeout.
+	 * <p>
+	 * By default, the deadline is a task of the {@linkplain SharedScheduler
+	 * shared scheduler}, which {@linkplain #abort() aborts} the transaction if
+	 * the receiving has not finished in time. The sub-class shall meet the
+	 * deadline without closing the transaction if possible.
+	 * </p>
+	 * <p>
+	 * An aborted transaction is closed, thus, it is unusable after the
+	 * timeout, such as a {@linkplain TransactionTCP TCP transaction} whose
+	 * connection is destroyed with the data received in part; while a
+	 * {@linkplain TransactionUDP UDP transaction} stays usable.
+	 * </p>
+	 * 
+	 * @param buffer
+	 *            the byte buffer to fill
+	 * @param timeout
+	 *            the timeout, <code>0</code> for no timeout
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 * @return the socket information bean which contains the source data
+	 * @throws TransactionTimeoutException
+	 *             if the receiving does not finish in time
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @see #receive(ByteBuffer)
+	 */
+	public SocketInfo receive(ByteBuffer buffer, long timeout, TimeUnit unit)
+			throws TransactionTimeoutException, IOException
+	{
+		Deadline deadline = new Deadline(this, "receive", timeout, unit);
+		try
+		{
+			return receive(buffer);
+		}
+		catch (IOException e)
+		{
+			deadline.check(e);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			deadline.check(e);
+			throw e;
+		}
+		finally
+		{
+			deadline.finish();
+		}
+	}
+
+	/**
+	 * Receive one message frame within the specified timeout. The transaction
+	 * may be unusable after the timeout as {@linkplain #receive(ByteBuffer,
+	 * long, TimeUnit)}.
+	 * 
+	 * @param buffer
+	 *            the byte buffer to fill
+	 * @param timeout
+	 *            the timeout, <code>0</code> for no timeout
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 * @return the socket information bean which contains the source data
+	 * @throws TransactionTimeoutException
+	 *             if the receiving does not finish in time
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @see #receiveFrame(ByteBuffer)
+	 * @see #receive(ByteBuffer, long, TimeUnit)
+	 */
+	public SocketInfo receiveFrame(ByteBuffer buffer, long timeout,
+			TimeUnit unit) throws TransactionTimeoutException, IOException
+	{
+		Deadline deadline = new Deadline(this, "receive", timeout, unit);
+		try
+		{
+			return receiveFrame(buffer);
+		}
+		catch (IOException e)
+		{
+			deadline.check(e);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			deadline.check(e);
+			throw e;
+		}
+		finally
+		{
+			deadline.finish();
+		}
+	}
+
+	/**
+	 * Aborts the blocked operations of the transaction since their deadline
+	 * passed, called by the {@linkplain SharedScheduler shared scheduler}.
+	 * <p>
+	 * By default, the transaction will be closed. The sub-class shall abort
+	 * without blocking, such as without flushing the buffered data.
+	 * </p>
+	 */
+	protected void abort()
+	{
+		try
+		{
+			close();
+		}
+		catch (TransactionException e)
+		{
+			// the operation fails anyway
+		}
+	}
+
+	/**
+	 * Records that some data is received just now, called by the sub-class
+	 * after each successful read of the underlying socket.
+	 */
+	protected final void markReceived()
+	{
+		lastReceived = System.nanoTime();
+	}
+
+	/**
+	 * Records that some data is sent just now, called by the sub-class after
+	 * each successful write of the underlying socket.
+	 */
+	protected final void markSent()
+	{
+		lastSent = System.nanoTime();
+	}
+
+	/**
+	 * Returns the time of the last data received, or the creation of the
+	 * transaction if nothing is received yet.
+	 * 
+	 * @return the time in nanoseconds, comparable with
+	 *         {@linkplain System#nanoTime()} only
+	 */
+	public long getLastReceived()
+	{
+		return lastReceived;
+	}
+
+	/**
+	 * Returns the time of the last data sent, or the creation of the
+	 * transaction if nothing is sent yet.
+	 * 
+	 * @return the time in nanoseconds, comparable with
+	 *         {@linkplain System#nanoTime()} only
+	 */
+	public long getLastSent()
+	{
+		return lastSent;
+	}
+
+	/**
+	 * Returns the time of the last data received or sent.
+	 * 
+	 * @return the time in nanoseconds, comparable with
+	 *         {@linkplain System#nanoTime()} only
+	 * @see #getLastReceived()
+	 * @see #getLastSent()
+	 */
+	public long getLastActivity()
+	{
+		long received = lastReceived;
+		long sent = lastSent;
+		return received - sent > 0 ? received : sent;
+	}
+
 	/**
 	 * Returns the underlying socket type in the transaction.
 	 * <p>
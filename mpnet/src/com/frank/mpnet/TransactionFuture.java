@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TransactionFuture.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.IOException;
+import java.nio.channels.CompletionHandler;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The result of an asynchronous transaction operation.
+ * <p>
+ * Besides waiting by {@linkplain #get()}, the result can be handled by the
+ * {@linkplain CompletionHandler completion handlers} registered by
+ * {@linkplain #whenComplete(Object, CompletionHandler)}, which run on the
+ * executor of the future, or on the thread completing the operation if the
+ * executor is <code>null</code>. Thus, one thread can drive a large number of
+ * operations without blocking.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ * @param <V>
+ *            the type of the result
+ */
+public class TransactionFuture<V> implements Future<V>
+{
+	/**
+	 * The executor to run the completion handlers, <code>null</code> if run
+	 * them on the completing thread.
+	 */
+	private final Executor			executor;
+	/**
+	 * The latch released on completion.
+	 */
+	private final CountDownLatch	done		= new CountDownLatch(1);
+	/**
+	 * The flag for the completion.
+	 */
+	private final AtomicBoolean		completed	= new AtomicBoolean();
+	/**
+	 * The callbacks to run on completion.
+	 */
+	private final Queue<Runnable>	callbacks	= new ConcurrentLinkedQueue<Runnable>();
+	/**
+	 * The result.
+	 */
+	private volatile V				value;
+	/**
+	 * The failure, <code>null</code> if succeeded.
+	 */
+	private volatile Throwable		failure;
+	/**
+	 * The flag for the cancellation.
+	 */
+	private volatile boolean		cancelled;
+
+	/**
+	 * Construct an instance of <tt>TransactionFuture</tt>.
+	 * 
+	 * @param executor
+	 *            the executor to run the completion handlers,
+	 *            <code>null</code> if run them on the completing thread
+	 */
+	public TransactionFuture(Executor executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns a future already completed with the specified result.
+	 * 
+	 * @param value
+	 *            the result
+	 * @return the completed future
+	 */
+	public static <V> TransactionFuture<V> completed(V value)
+	{
+		TransactionFuture<V> future = new TransactionFuture<V>(null);
+		future.complete(value);
+		return future;
+	}
+
+	/**
+	 * Returns a future already failed with the specified failure.
+	 * 
+	 * @param cause
+	 *            the failure
+	 * @return the failed future
+	 */
+	public static <V> TransactionFuture<V> failed(Throwable cause)
+	{
+		TransactionFuture<V> future = new TransactionFuture<V>(null);
+		future.fail(cause);
+		return future;
+	}
+
+	/**
+	 * Completes the future with the specified result.
+	 * 
+	 * @param value
+	 *            the result
+	 * @return <code>true</code> if completed by this call,
+	 *         <code>false</code> if already completed
+	 */
+	public boolean complete(V value)
+	{
+		if (!completed.compareAndSet(false, true))
+			return false;
+		this.value = value;
+		done.countDown();
+		runCallbacks();
+		return true;
+	}
+
+	/**
+	 * Completes the future with the specified failure.
+	 * 
+	 * @param cause
+	 *            the failure
+	 * @return <code>true</code> if completed by this call,
+	 *         <code>false</code> if already completed
+	 */
+	public boolean fail(Throwable cause)
+	{
+		if (!completed.compareAndSet(false, true))
+			return false;
+		this.failure = cause;
+		done.countDown();
+		runCallbacks();
+		return true;
+	}
+
+	/**
+	 * Registers the completion handler, which will be called once the future
+	 * is completed, or immediately if already completed.
+	 * 
+	 * @param attachment
+	 *            the object to attach to the handler
+	 * @param handler
+	 *            the completion handler
+	 */
+	public <A> void whenComplete(final A attachment,
+			final CompletionHandler<? super V, ? super A> handler)
+	{
+		callbacks.add(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (failure == null)
+					handler.completed(value, attachment);
+				else
+					handler.failed(failure, attachment);
+			}
+		});
+		if (done.getCount() == 0)
+			runCallbacks();
+	}
+
+	/**
+	 * Runs the registered callbacks which are not run yet.
+	 */
+	private void runCallbacks()
+	{
+		Runnable callback;
+		while ((callback = callbacks.poll()) != null)
+		{
+			if (executor == null)
+				callback.run();
+			else
+				executor.execute(callback);
+		}
+	}
+
+	/**
+	 * Cancels the future, the underlying operation will not be interrupted
+	 * but its result will be discarded.
+	 * 
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+		if (!completed.compareAndSet(false, true))
+			return false;
+		cancelled = true;
+		failure = new CancellationException();
+		done.countDown();
+		runCallbacks();
+		return true;
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	@Override
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	@Override
+	public boolean isDone()
+	{
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#get()
+	 */
+	@Override
+	public V get() throws InterruptedException, ExecutionException
+	{
+		done.await();
+		return report();
+	}
+
+	/**
+	 * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException
+	{
+		if (!done.await(timeout, unit))
+			throw new TimeoutException();
+		return report();
+	}
+
+	/**
+	 * Waits for the result of the I/O operation.
+	 * <p>
+	 * Unlike {@linkplain #get()}, the failure of the operation is thrown as is
+	 * if it is an {@linkplain IOException} or a {@linkplain RuntimeException},
+	 * otherwise it is wrapped in a {@linkplain TransactionException}.
+	 * </p>
+	 * 
+	 * @return the result
+	 * @throws IOException
+	 *             if the operation failed
+	 * @throws TransactionException
+	 *             if interrupted while waiting, or the operation failed
+	 */
+	public V await() throws IOException, TransactionException
+	{
+		try
+		{
+			return get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new TransactionException("Interrupted while waiting: "
+					+ e.getLocalizedMessage(), e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new TransactionException(cause.getLocalizedMessage(), cause);
+		}
+	}
+
+	/**
+	 * Waits for the result of the I/O operation for at most the specified
+	 * time.
+	 * <p>
+	 * The operation is not cancelled on timeout, the caller may
+	 * {@linkplain #cancel(boolean) cancel} it to discard its result.
+	 * </p>
+	 * 
+	 * @param timeout
+	 *            the maximum time to wait, <code>0</code> for waiting forever
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 * @return the result
+	 * @throws TransactionTimeoutException
+	 *             if the operation does not complete in time
+	 * @throws IOException
+	 *             if the operation failed
+	 * @throws TransactionException
+	 *             if interrupted while waiting, or the operation failed
+	 * @see #await()
+	 */
+	public V await(long timeout, TimeUnit unit)
+			throws TransactionTimeoutException, IOException,
+			TransactionException
+	{
+		if (timeout > 0)
+		{
+			try
+			{
+				if (!done.await(timeout, unit))
+					throw new TransactionTimeoutException(String.format(
+							"The operation timed out after %d ms.",
+							unit.toMillis(timeout)));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new TransactionException("Interrupted while waiting: "
+						+ e.getLocalizedMessage(), e);
+			}
+		}
+		return await();
+	}
+
+	/**
+	 * Returns the result of the completed future.
+	 * 
+	 * @return the result
+	 * @throws ExecutionException
+	 *             if the operation failed
+	 * @throws CancellationException
+	 *             if the future is cancelled
+	 */
+	private V report() throws ExecutionException, CancellationException
+	{
+		if (cancelled)
+			throw new CancellationException();
+		if (failure != null)
+			throw new ExecutionException(failure);
+		return value;
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TransactionHandler.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.IOException;
+
+/**
+ * The handler of the transactions served by one thread for each connection.
+ * <p>
+ * The handler uses the blocking API of the transaction, and the transaction
+ * will be closed after the handler returns.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ * @see SessionTCPServer#serve(TransactionHandler,
+ *      java.util.concurrent.ThreadFactory)
+ */
+public interface TransactionHandler
+{
+	/**
+	 * Handles the transaction of an accepted connection.
+	 * 
+	 * @param transaction
+	 *            the transaction of the connection
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	public void handle(TransactionTCP transaction) throws IOException;
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TransactionListener.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The listener of the transactions driven by {@linkplain EventLoop event
+ * loops}.
+ * <p>
+ * All of the methods are called on the thread of the event loop which drives
+ * the transaction, thus, they shall never block. The transaction can be used
+ * to send data from any thread, the data which cannot be written immediately
+ * will be queued and written when the socket is writable.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ * @see SessionTCPServer#listen(TransactionListener)
+ */
+public interface TransactionListener
+{
+	/**
+	 * Called when a connection is accepted and its transaction is ready.
+	 * 
+	 * @param transaction
+	 *            the transaction of the connection
+	 */
+	public void accepted(TransactionTCP transaction);
+
+	/**
+	 * Called when the data is received.
+	 * <p>
+	 * In {@linkplain TransactionTCP#setFramed(boolean) framed mode}, the data
+	 * is the payload of exactly one frame. Otherwise, the data is all of the
+	 * data received but not yet consumed, the listener may consume any part of
+	 * it by advancing the position, and the rest will be given again with the
+	 * data received later.
+	 * </p>
+	 * <p>
+	 * The buffer is only valid during the call.
+	 * </p>
+	 * 
+	 * @param transaction
+	 *            the transaction
+	 * @param data
+	 *            the data received
+	 */
+	public void received(TransactionTCP transaction, ByteBuffer data);
+
+	/**
+	 * Called when the transaction is closed, either by the remote end point,
+	 * by {@linkplain TransactionTCP#close()}, or by a failure.
+	 * 
+	 * @param transaction
+	 *            the transaction
+	 * @param cause
+	 *            the failure, <code>null</code> if closed normally
+	 */
+	public void closed(TransactionTCP transaction, Throwable cause);
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TransactionPipeline.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pipelined requests and responses over one framed TCP transaction.
+ * <p>
+ * Each request is sent as one frame whose payload begins with a 4-byte
+ * correlation ID in big-endian order, and the peer shall answer it with one
+ * frame which begins with the same ID, such as by
+ * {@linkplain #reply(Transaction, int, ByteBuffer...)}. Thus, any number of
+ * requests can be in flight on the connection, and the responses can arrive
+ * in any order.
+ * </p>
+ * <p>
+ * The responses are received by a dedicated reading thread, which completes
+ * the {@linkplain TransactionFuture future} of each request. A request can
+ * time out or be {@linkplain TransactionFuture#cancel(boolean) cancelled}
+ * alone, whose late response will be discarded. If the connection fails, all
+ * of the requests in flight fail with the cause.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TransactionPipeline implements Closeable
+{
+	/**
+	 * The length of the correlation ID.
+	 */
+	public static final int									ID_LENGTH					= 4;
+	/**
+	 * The default maximum length of a response.
+	 */
+	public static final int									DEFAULT_MAX_RESPONSE_LENGTH	= 1 << 20;
+	/**
+	 * The sequence of the reading threads.
+	 */
+	private static final AtomicInteger						sequence					= new AtomicInteger();
+	/**
+	 * The underlying transaction.
+	 */
+	private final TransactionTCP							transaction;
+	/**
+	 * The executor to run the completion handlers, <code>null</code> if run
+	 * them on the reading thread.
+	 */
+	private final Executor									executor;
+	/**
+	 * The maximum length of a response.
+	 */
+	private final int										maxResponseLength;
+	/**
+	 * The next correlation ID.
+	 */
+	private final AtomicInteger								nextId						= new AtomicInteger();
+	/**
+	 * The requests in flight by their correlation IDs.
+	 */
+	private final ConcurrentHashMap<Integer, Request>		pending						= new ConcurrentHashMap<Integer, Request>();
+	/**
+	 * The completion handler which forgets the completed requests.
+	 */
+	private final CompletionHandler<ByteBuffer, Request>	cleaner;
+	/**
+	 * The thread reading the responses.
+	 */
+	private final Thread									reader;
+	/**
+	 * The default timeout of the requests in nanoseconds, <code>0</code> for
+	 * no timeout.
+	 */
+	private volatile long									timeout;
+	/**
+	 * The cause of the pipeline ended, <code>null</code> if still working.
+	 */
+	private volatile Throwable								failure;
+
+	/**
+	 * Construct an instance of <tt>TransactionPipeline</tt> with the default
+	 * maximum response length, whose completion handlers run on the reading
+	 * thread.
+	 * 
+	 * @param transaction
+	 *            the blocking transaction of a connected socket
+	 * @throws TransactionStateException
+	 *             if the transaction is driven by an event loop
+	 */
+	public TransactionPipeline(TransactionTCP transaction)
+			throws TransactionStateException
+	{
+		this(transaction, null, DEFAULT_MAX_RESPONSE_LENGTH);
+	}
+
+	/**
+	 * Construct an instance of <tt>TransactionPipeline</tt> and starts
+	 * reading the responses.
+	 * 
+	 * @param transaction
+	 *            the blocking transaction of a connected socket
+	 * @param executor
+	 *            the executor to run the completion handlers,
+	 *            <code>null</code> if run them on the reading thread
+	 * @param maxResponseLength
+	 *            the maximum length of a response, excluding the correlation
+	 *            ID
+	 * @throws TransactionStateException
+	 *             if the transaction is driven by an event loop
+	 * @throws IllegalArgumentException
+	 *             if <code>maxResponseLength</code> is negative
+	 */
+	public TransactionPipeline(TransactionTCP transaction, Executor executor,
+			int maxResponseLength) throws TransactionStateException,
+			IllegalArgumentException
+	{
+		if (maxResponseLength < 0)
+			throw new IllegalArgumentException(String.format(
+					"The maximum response length(%d) shall not be negative.",
+					maxResponseLength));
+		if (transaction.getEventLoop() != null)
+			throw new TransactionStateException(
+					"The transaction is driven by an event loop.");
+		this.transaction = transaction;
+		this.executor = executor;
+		this.maxResponseLength = maxResponseLength;
+		this.cleaner = new CompletionHandler<ByteBuffer, Request>()
+		{
+			@Override
+			public void completed(ByteBuffer result, Request request)
+			{
+				forget(request);
+			}
+
+			@Override
+			public void failed(Throwable cause, Request request)
+			{
+				forget(request);
+			}
+		};
+		transaction.setFramed(true);
+		reader = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				read();
+			}
+		}, "mpnet-pipeline-" + sequence.incrementAndGet());
+		reader.start();
+	}
+
+	/**
+	 * Sends a request with the default timeout.
+	 * 
+	 * @param request
+	 *            the request
+	 * @return the future of the response, whose position is <code>0</code>
+	 *         and limit is the length of the response
+	 * @see #request(ByteBuffer, long, TimeUnit)
+	 */
+	public TransactionFuture<ByteBuffer> request(ByteBuffer request)
+	{
+		return request(request, timeout, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sends a request without waiting for the response.
+	 * <p>
+	 * If the response does not arrive in time, the future fails with a
+	 * {@linkplain TransactionTimeoutException}; if the pipeline is closed or the
+	 * connection fails, the future fails with the cause. The remaining of the
+	 * request is consumed by the sending.
+	 * </p>
+	 * 
+	 * @param request
+	 *            the request
+	 * @param timeout
+	 *            the timeout of the request, <code>0</code> for no timeout
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 * @return the future of the response, whose position is <code>0</code>
+	 *         and limit is the length of the response
+	 */
+	public TransactionFuture<ByteBuffer> request(ByteBuffer request,
+			long timeout, TimeUnit unit)
+	{
+		final Request r = new Request(nextId.getAndIncrement(),
+				new TransactionFuture<ByteBuffer>(executor));
+		pending.put(r.id, r);
+		// the reader may have ended before the request is registered
+		Throwable cause = failure;
+		if (cause != null)
+		{
+			pending.remove(r.id, r);
+			r.future.fail(cause);
+			return r.future;
+		}
+		if (timeout > 0)
+			r.timer = SharedScheduler.get().schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (pending.remove(r.id, r))
+						r.future.fail(new TransactionTimeoutException(String
+								.format("The request %d timed out.", r.id)));
+				}
+			}, timeout, unit);
+		r.future.whenComplete(r, cleaner);
+		ByteBuffer header = ByteBuffer.allocate(ID_LENGTH);
+		header.putInt(0, r.id);
+		try
+		{
+			transaction.sendFrame(header, request);
+		}
+		catch (TransactionException e)
+		{
+			r.future.fail(e);
+		}
+		return r.future;
+	}
+
+	/**
+	 * Forgets the completed request and cancels its timer.
+	 * 
+	 * @param request
+	 *            the completed request
+	 */
+	private void forget(Request request)
+	{
+		pending.remove(request.id, request);
+		if (request.timer != null)
+			request.timer.cancel(false);
+	}
+
+	/**
+	 * Reads the responses and completes their requests until the connection
+	 * ends, then fails the requests in flight.
+	 */
+	private void read()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(ID_LENGTH + maxResponseLength);
+		Throwable cause;
+		try
+		{
+			while (true)
+			{
+				buffer.clear();
+				transaction.receiveFrame(buffer);
+				if (!transaction.hasNext())
+				{
+					cause = new EOFException("The connection is closed.");
+					break;
+				}
+				buffer.flip();
+				if (buffer.remaining() < ID_LENGTH)
+					throw new TransactionException(
+							"Malformed response: the correlation ID is missing.");
+				Request r = pending.remove(buffer.getInt());
+				if (r == null)
+					continue; // timed out or cancelled
+				ByteBuffer response = ByteBuffer.allocate(buffer.remaining());
+				response.put(buffer).flip();
+				r.future.complete(response);
+			}
+		}
+		catch (Exception e)
+		{
+			cause = e;
+		}
+		synchronized (this)
+		{
+			if (failure == null)
+				failure = cause;
+		}
+		for (Request r : pending.values())
+			if (pending.remove(r.id, r))
+				r.future.fail(failure);
+	}
+
+	/**
+	 * Sends a response of the pipelined request, used by the peer.
+	 * 
+	 * @param transaction
+	 *            the transaction which received the request
+	 * @param id
+	 *            the correlation ID of the request, which is the first
+	 *            {@linkplain #ID_LENGTH} bytes of the request frame
+	 * @param response
+	 *            the response
+	 * @throws TransactionException
+	 *             if failed to send the response
+	 */
+	public static void reply(Transaction transaction, int id,
+			ByteBuffer... response) throws TransactionException
+	{
+		ByteBuffer[] srcs = new ByteBuffer[response.length + 1];
+		srcs[0] = ByteBuffer.allocate(ID_LENGTH);
+		srcs[0].putInt(0, id);
+		System.arraycopy(response, 0, srcs, 1, response.length);
+		transaction.sendFrame(srcs);
+	}
+
+	/**
+	 * Returns the number of requests in flight.
+	 * 
+	 * @return the number of requests in flight
+	 */
+	public int getPendingCount()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * Returns the default timeout of the requests.
+	 * 
+	 * @param unit
+	 *            the time unit
+	 * @return the default timeout, <code>0</code> for no timeout
+	 */
+	public long getTimeout(TimeUnit unit)
+	{
+		return unit.convert(timeout, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Set the default timeout of the requests.
+	 * 
+	 * @param timeout
+	 *            the default timeout, <code>0</code> for no timeout
+	 * @param unit
+	 *            the time unit
+	 */
+	public void setTimeout(long timeout, TimeUnit unit)
+	{
+		this.timeout = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Returns the underlying transaction.
+	 * 
+	 * @return the underlying transaction
+	 */
+	public TransactionTCP getTransaction()
+	{
+		return transaction;
+	}
+
+	/**
+	 * Returns <code>true</code> if the pipeline still works.
+	 * 
+	 * @return <code>true</code> if working
+	 */
+	public boolean isOpen()
+	{
+		return failure == null;
+	}
+
+	/**
+	 * Closes the pipeline and its transaction, the requests in flight fail
+	 * with a {@linkplain TransactionStateException}.
+	 * 
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws TransactionException
+	{
+		synchronized (this)
+		{
+			if (failure != null)
+				return;
+			failure = new TransactionStateException("The pipeline is closed.");
+		}
+		transaction.close();
+		if (Thread.currentThread() != reader)
+		{
+			try
+			{
+				reader.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The request in flight.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	private static final class Request
+	{
+		/**
+		 * The correlation ID.
+		 */
+		final int								id;
+		/**
+		 * The future of the response.
+		 */
+		final TransactionFuture<ByteBuffer>		future;
+		/**
+		 * The timer of the timeout, <code>null</code> if no timeout.
+		 */
+		volatile ScheduledFuture<?>				timer;
+
+		/**
+		 * Construct an instance of <tt>Request</tt>.
+		 * 
+		 * @param id
+		 *            the correlation ID
+		 * @param future
+		 *            the future of the response
+		 */
+		Request(int id, TransactionFuture<ByteBuffer> future)
+		{
+			this.id = id;
+			this.future = future;
+		}
+	}
+}
@@ -0,0 +1,1238 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TransactionRUDP.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The reliable UDP transaction with one peer of a
+ * {@linkplain SessionRUDP reliable UDP session}.
+ * <p>
+ * Each sending, such as {@linkplain #send(ByteBuffer)}, is one message, which
+ * is delivered reliably and in order, and received as a whole by
+ * {@linkplain #receive(ByteBuffer)}. The segments are numbered in sequence,
+ * the lost ones are found by the duplicate and the selective
+ * acknowledgements and retransmitted at once (fast retransmit), or by the
+ * retransmission timer which follows the smoothed round trip time (RFC 6298).
+ * The segments in flight are limited by the congestion window, which grows by
+ * the slow start and the congestion avoidance and is halved on a loss, and by
+ * the free window of the receiver.
+ * </p>
+ * <p>
+ * The sending blocks only while the sending window is full of the
+ * unacknowledged segments. A message shall fit in the window of the
+ * receiver, which holds all of its segments until it is received as a whole,
+ * thus, the longer messages are refused, see
+ * {@linkplain #getMaxMessageLength()}. {@linkplain #close() Closing} the transaction
+ * sends the last segment, waits for the acknowledgements of all the segments
+ * and forgets the peer.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TransactionRUDP extends Transaction
+{
+	/**
+	 * The type of the transaction.
+	 */
+	private static final SocketType	TYPE			= SocketType.RUDP;
+	/**
+	 * The initial retransmission timeout in milliseconds.
+	 */
+	public static final long		INITIAL_RTO		= 1000;
+	/**
+	 * The minimum retransmission timeout in milliseconds.
+	 */
+	public static final long		MIN_RTO			= 50;
+	/**
+	 * The maximum retransmission timeout in milliseconds.
+	 */
+	public static final long		MAX_RTO			= 10000;
+	/**
+	 * The number of the retransmissions of a segment before the peer is
+	 * considered dead.
+	 */
+	public static final int			MAX_RETRIES		= 10;
+	/**
+	 * The initial congestion window in segments.
+	 */
+	public static final int			INITIAL_CWND	= 10;
+	/**
+	 * The number of the duplicate acknowledgements which start the fast
+	 * retransmit.
+	 */
+	private static final int		DUP_THRESHOLD	= 3;
+	/**
+	 * The number of the holes retransmitted for each acknowledgement during
+	 * the recovery.
+	 */
+	private static final int		RETX_BURST		= 2;
+	/**
+	 * The maximum time to wait for the acknowledgements while closing in
+	 * milliseconds.
+	 */
+	private static final long		LINGER			= 5000;
+	/**
+	 * The session of the transaction.
+	 */
+	private final SessionRUDP		session;
+	/**
+	 * The socket address of the peer.
+	 */
+	private final SocketAddress		peer;
+	/**
+	 * The source information of the received messages.
+	 */
+	private final SocketInfo		source;
+	/**
+	 * The maximum payload of a segment.
+	 */
+	private final int				segment;
+	/**
+	 * The window in segments, a power of two.
+	 */
+	private final int				window;
+	/**
+	 * The lock of the state.
+	 */
+	private final ReentrantLock		lock			= new ReentrantLock();
+	/**
+	 * The condition of a message or the end arrived.
+	 */
+	private final Condition			readable		= lock.newCondition();
+	/**
+	 * The condition of the segments acknowledged.
+	 */
+	private final Condition			writable		= lock.newCondition();
+	/**
+	 * The buffer of the sending packet.
+	 */
+	private final ByteBuffer		packet;
+	/**
+	 * The payloads of the sending segments by their slots.
+	 */
+	private final byte[][]			sndData;
+	/**
+	 * The payload lengths of the sending segments.
+	 */
+	private final int[]				sndLength;
+	/**
+	 * The flags of the sending segments.
+	 */
+	private final byte[]			sndFlags;
+	/**
+	 * The last transmission time of the sending segments.
+	 */
+	private final long[]			sndTime;
+	/**
+	 * The flags of the retransmitted segments, not sampled for the round trip
+	 * time (Karn's algorithm).
+	 */
+	private final boolean[]			sndRetx;
+	/**
+	 * The flags of the selectively acknowledged segments.
+	 */
+	private final boolean[]			sndSacked;
+	/**
+	 * The oldest unacknowledged sequence.
+	 */
+	private int						sndUna;
+	/**
+	 * The next sequence to transmit.
+	 */
+	private int						sndNxt;
+	/**
+	 * The next sequence to queue.
+	 */
+	private int						sndEnd;
+	/**
+	 * The sequence limit of the free window of the peer.
+	 */
+	private int						sndLimit;
+	/**
+	 * The number of the selectively acknowledged segments in flight.
+	 */
+	private int						sacked;
+	/**
+	 * The sequence following the highest selectively acknowledged one.
+	 */
+	private int						sackHigh;
+	/**
+	 * The congestion window in segments.
+	 */
+	private double					cwnd			= INITIAL_CWND;
+	/**
+	 * The slow start threshold in segments.
+	 */
+	private int						ssthresh;
+	/**
+	 * The number of the duplicate acknowledgements.
+	 */
+	private int						dupAcks;
+	/**
+	 * The flag of the loss recovery.
+	 */
+	private boolean					recovering;
+	/**
+	 * The flag of the recovery started by the retransmission timer.
+	 */
+	private boolean					timedOut;
+	/**
+	 * The sequence which ends the recovery once acknowledged.
+	 */
+	private int						recover;
+	/**
+	 * The next sequence to check for retransmission during the recovery.
+	 */
+	private int						retxNxt;
+	/**
+	 * The smoothed round trip time in nanoseconds, <code>0</code> if not
+	 * sampled yet.
+	 */
+	private long					srtt;
+	/**
+	 * The round trip time variation in nanoseconds.
+	 */
+	private long					rttvar;
+	/**
+	 * The retransmission timeout in nanoseconds.
+	 */
+	private long					rto				= TimeUnit.MILLISECONDS
+															.toNanos(INITIAL_RTO);
+	/**
+	 * The start time of the retransmission timer.
+	 */
+	private long					rtoStart;
+	/**
+	 * The number of the retransmissions since the last progress.
+	 */
+	private int						retries;
+	/**
+	 * The total number of the retransmitted segments.
+	 */
+	private long					retransmissions;
+	/**
+	 * The payloads of the received segments by their slots.
+	 */
+	private final byte[][]			rcvData;
+	/**
+	 * The payload lengths of the received segments.
+	 */
+	private final int[]				rcvLength;
+	/**
+	 * The flags of the received segments.
+	 */
+	private final byte[]			rcvFlags;
+	/**
+	 * The flags of the slots holding a received segment.
+	 */
+	private final boolean[]			rcvHave;
+	/**
+	 * The next sequence to consume.
+	 */
+	private int						readNxt;
+	/**
+	 * The next sequence expected in order.
+	 */
+	private int						rcvNxt;
+	/**
+	 * The sequence following the highest received one.
+	 */
+	private int						rcvHigh;
+	/**
+	 * The number of the whole messages received in order and not consumed.
+	 */
+	private int						messages;
+	/**
+	 * The free window advertised by the last acknowledgement.
+	 */
+	private int						advertised;
+	/**
+	 * The number of the segments received but not acknowledged yet.
+	 */
+	private int						unacked;
+	/**
+	 * The flag for the last segment of the peer received in order.
+	 */
+	private boolean					finished;
+	/**
+	 * The flag for the sending ended.
+	 */
+	private boolean					localClosed;
+	/**
+	 * The flag for a receiving returned at the end.
+	 */
+	private boolean					eof;
+	/**
+	 * The cause of the transaction ended, <code>null</code> if still working.
+	 */
+	private Throwable				failure;
+
+	/**
+	 * Construct an instance of <tt>TransactionRUDP</tt>.
+	 * 
+	 * @param session
+	 *            the session of the transaction
+	 * @param peer
+	 *            the socket address of the peer
+	 * @param segment
+	 *            the maximum payload of a segment
+	 * @param window
+	 *            the window in segments, a power of two
+	 */
+	TransactionRUDP(SessionRUDP session, SocketAddress peer, int segment,
+			int window)
+	{
+		this.session = session;
+		this.peer = peer;
+		this.source = new SocketInfo(TYPE, peer);
+		this.segment = segment;
+		this.window = window;
+		this.packet = ByteBuffer.allocateDirect(Math.max(
+				SessionRUDP.DATA_HEADER + segment, SessionRUDP.ACK_HEADER
+						+ SessionRUDP.MAX_SACK_BLOCKS * 8));
+		this.sndData = new byte[window][];
+		this.sndLength = new int[window];
+		this.sndFlags = new byte[window];
+		this.sndTime = new long[window];
+		this.sndRetx = new boolean[window];
+		this.sndSacked = new boolean[window];
+		this.rcvData = new byte[window][];
+		this.rcvLength = new int[window];
+		this.rcvFlags = new byte[window];
+		this.rcvHave = new boolean[window];
+		this.ssthresh = window;
+		this.sndLimit = window;
+		this.advertised = window;
+	}
+
+	/**
+	 * Returns the socket address of the peer.
+	 * 
+	 * @return the socket address of the peer
+	 */
+	public SocketAddress getPeer()
+	{
+		return peer;
+	}
+
+	/**
+	 * Returns the slot of a sequence.
+	 * 
+	 * @param seq
+	 *            the sequence
+	 * @return the slot
+	 */
+	private int slot(int seq)
+	{
+		return seq & (window - 1);
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#send(byte[], int, int)
+	 */
+	@Override
+	public void send(byte[] b, int offset, int length)
+			throws TransactionStateException, TransactionException
+	{
+		send(ByteBuffer.wrap(b, offset, length));
+	}
+
+	/**
+	 * Sends to the peer of the transaction.
+	 * 
+	 * @throws TransactionStateException
+	 *             if <code>sa</code> is not the peer
+	 * @see com.frank.mpnet.Transaction#send(java.net.SocketAddress, byte[],
+	 *      int, int)
+	 */
+	@Override
+	public void send(SocketAddress sa, byte[] b, int offset, int length)
+			throws TransactionStateException, TransactionException
+	{
+		if (sa != null && !NetUtils.socketAddressEquals(peer, sa))
+			throw new TransactionStateException(String.format(
+					"Current transaction is connected to %s, cannot send to %s.",
+					peer, sa));
+		send(b, offset, length);
+	}
+
+	/**
+	 * Sends the remaining data of the buffer as one message.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.nio.ByteBuffer)
+	 */
+	@Override
+	public void send(ByteBuffer buffer) throws TransactionStateException,
+			TransactionException
+	{
+		send(buffer, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sends the remaining data of the buffers as one message.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.nio.ByteBuffer[])
+	 */
+	@Override
+	public void send(ByteBuffer... buffers) throws TransactionStateException,
+			TransactionException
+	{
+		if (buffers.length == 1)
+			send(buffers[0]);
+		else
+			super.send(buffers);
+	}
+
+	/**
+	 * Returns the maximum length of a message, the window times the segment
+	 * size.
+	 * 
+	 * @return the maximum length of a message in bytes
+	 */
+	public long getMaxMessageLength()
+	{
+		return (long) window * segment;
+	}
+
+	/**
+	 * Sends the remaining data of the buffer as one message within the
+	 * specified timeout, which only limits the waiting for the sending
+	 * window. If timed out, the message is left incomplete, thus, the
+	 * transaction shall be closed.
+	 * 
+	 * @throws TransactionException
+	 *             if the message is longer than the
+	 *             {@linkplain #getMaxMessageLength() maximum length}, which
+	 *             the receiver could never receive as a whole
+	 * @see com.frank.mpnet.Transaction#send(java.nio.ByteBuffer, long,
+	 *      java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public void send(ByteBuffer buffer, long timeout, TimeUnit unit)
+			throws TransactionTimeoutException, TransactionStateException,
+			TransactionException
+	{
+		if (buffer.remaining() > getMaxMessageLength())
+			throw new TransactionException(String.format(
+					"The size of the message(%d) is larger than the maximum length(%d).",
+					buffer.remaining(), getMaxMessageLength()));
+		long nanos = Deadline.toNanos(timeout, unit);
+		long deadline = System.nanoTime() + nanos;
+		lock.lock();
+		try
+		{
+			checkSending();
+			do
+			{
+				while (sndEnd - sndUna >= window)
+				{
+					await(writable, "send", nanos, deadline);
+					checkSending();
+				}
+				int n = Math.min(buffer.remaining(), segment);
+				int slot = slot(sndEnd);
+				if (sndData[slot] == null)
+					sndData[slot] = new byte[segment];
+				buffer.get(sndData[slot], 0, n);
+				sndLength[slot] = n;
+				sndFlags[slot] = buffer.hasRemaining() ? 0
+						: SessionRUDP.FLAG_END;
+				sndEnd++;
+				transmit(System.nanoTime(), 0);
+			}
+			while (buffer.hasRemaining());
+		}
+		catch (IOException e)
+		{
+			throw new TransactionException("Unable to send data: "
+					+ e.getLocalizedMessage(), e);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		markSent();
+	}
+
+	/**
+	 * Each message is a frame itself.
+	 * 
+	 * @see #send(ByteBuffer, long, TimeUnit)
+	 * @see com.frank.mpnet.Transaction#sendFrame(java.nio.ByteBuffer, long,
+	 *      java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public void sendFrame(ByteBuffer buffer, long timeout, TimeUnit unit)
+			throws TransactionTimeoutException, TransactionStateException,
+			TransactionException
+	{
+		send(buffer, timeout, unit);
+	}
+
+	/**
+	 * Checks whether the transaction can send, used with the lock held.
+	 * 
+	 * @throws TransactionStateException
+	 *             if the transaction or the session is closed
+	 */
+	private void checkSending() throws TransactionStateException
+	{
+		if (localClosed)
+			throw new TransactionStateException("The transaction is closed.");
+		if (failure != null)
+			throw new TransactionStateException(
+					"The transaction is terminated: "
+							+ failure.getLocalizedMessage());
+	}
+
+	/**
+	 * Transmits the holes to retransmit during the recovery and the queued
+	 * segments allowed by the windows, used with the lock held.
+	 * 
+	 * @param now
+	 *            the current time in nanoseconds
+	 * @param burst
+	 *            the maximum number of the holes to retransmit
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void transmit(long now, int burst) throws IOException
+	{
+		if (recovering && burst > 0)
+		{
+			if (retxNxt - sndUna < 0)
+				retxNxt = sndUna;
+			// the holes below the highest selective acknowledgement are lost,
+			// while all the segments in flight are lost after a timeout
+			int limit = timedOut ? recover : sackHigh - (sndUna + 1) > 0 ? sackHigh
+					: sndUna + 1;
+			while (burst > 0 && retxNxt - limit < 0)
+			{
+				int seq = retxNxt;
+				if (!sndSacked[slot(seq)])
+				{
+					if (!transmit(seq, now))
+						return;
+					sndRetx[slot(seq)] = true;
+					retransmissions++;
+					burst--;
+				}
+				retxNxt++;
+			}
+		}
+		while (sndNxt != sndEnd && sndNxt - sndLimit < 0
+				&& sndNxt - sndUna - sacked < cwnd)
+		{
+			if (sndNxt == sndUna)
+				rtoStart = now;
+			if (!transmit(sndNxt, now))
+				return;
+			sndRetx[slot(sndNxt)] = false;
+			sndSacked[slot(sndNxt)] = false;
+			sndNxt++;
+		}
+	}
+
+	/**
+	 * Transmits one segment, used with the lock held.
+	 * 
+	 * @param seq
+	 *            the sequence of the segment
+	 * @param now
+	 *            the current time in nanoseconds
+	 * @return <code>false</code> if the socket buffer is full
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private boolean transmit(int seq, long now) throws IOException
+	{
+		int slot = slot(seq);
+		packet.clear();
+		packet.put(SessionRUDP.DATA).put(sndFlags[slot]).putInt(seq);
+		if (sndLength[slot] > 0)
+			packet.put(sndData[slot], 0, sndLength[slot]);
+		packet.flip();
+		if (!session.send(packet, peer))
+			return false;
+		sndTime[slot] = now;
+		return true;
+	}
+
+	/**
+	 * Sends an acknowledgement of the received segments with the free window
+	 * and the selective acknowledgement blocks, used with the lock held.
+	 * 
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void acknowledge() throws IOException
+	{
+		int free = window - (rcvNxt - readNxt);
+		packet.clear();
+		packet.put(SessionRUDP.ACK).put((byte) 0).putInt(rcvNxt).putInt(free);
+		int position = packet.position();
+		packet.put((byte) 0);
+		int blocks = 0;
+		int seq = rcvNxt + 1;
+		while (blocks < SessionRUDP.MAX_SACK_BLOCKS && seq - rcvHigh < 0)
+		{
+			if (!rcvHave[slot(seq)])
+			{
+				seq++;
+				continue;
+			}
+			int start = seq;
+			while (seq - rcvHigh < 0 && rcvHave[slot(seq)])
+				seq++;
+			packet.putInt(start).putInt(seq);
+			blocks++;
+		}
+		packet.put(position, (byte) blocks).flip();
+		session.send(packet, peer);
+		advertised = free;
+		unacked = 0;
+	}
+
+	/**
+	 * Returns <code>true</code> if the segment of sequence <code>0</code>
+	 * begins a new transaction of the restarted peer, called by the worker
+	 * thread.
+	 * <p>
+	 * The peer retransmits the first segment only while it is within the
+	 * window, and the retransmission carries the same payload, thus, the
+	 * first segment arrived after a whole window or after the end of the
+	 * peer, or a different one, is from the restarted peer.
+	 * </p>
+	 * 
+	 * @param buffer
+	 *            the data packet of sequence <code>0</code>
+	 * @return <code>true</code> if the peer is restarted
+	 */
+	boolean restarted(ByteBuffer buffer)
+	{
+		lock.lock();
+		try
+		{
+			if (rcvNxt == 0)
+				return false;
+			if (finished || rcvNxt - window > 0)
+				return true;
+			int offset = buffer.position() + SessionRUDP.DATA_HEADER;
+			int length = buffer.limit() - offset;
+			if (length != rcvLength[0]
+					|| buffer.get(buffer.position() + 1) != rcvFlags[0])
+				return true;
+			for (int i = 0; i < length; i++)
+				if (buffer.get(offset + i) != rcvData[0][i])
+					return true;
+			return false;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Handles a received packet, called by the worker thread.
+	 * 
+	 * @param buffer
+	 *            the packet
+	 * @param now
+	 *            the current time in nanoseconds
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	void received(ByteBuffer buffer, long now) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if (failure != null)
+				return;
+			byte type = buffer.get(buffer.position());
+			if (type == SessionRUDP.DATA
+					&& buffer.remaining() >= SessionRUDP.DATA_HEADER)
+			{
+				byte flags = buffer.get(buffer.position() + 1);
+				buffer.position(buffer.position() + 2);
+				data(buffer.getInt(), flags, buffer);
+			}
+			else if (type == SessionRUDP.ACK
+					&& buffer.remaining() >= SessionRUDP.ACK_HEADER)
+			{
+				buffer.position(buffer.position() + 2);
+				int ack = buffer.getInt();
+				int free = buffer.getInt();
+				int blocks = buffer.get() & 0xff;
+				acknowledged(ack, free, blocks, buffer, now);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		markReceived();
+	}
+
+	/**
+	 * Handles a received segment, used with the lock held.
+	 * 
+	 * @param seq
+	 *            the sequence of the segment
+	 * @param flags
+	 *            the flags of the segment
+	 * @param payload
+	 *            the payload of the segment
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void data(int seq, byte flags, ByteBuffer payload)
+			throws IOException
+	{
+		int slot = slot(seq);
+		if (seq - rcvNxt < 0 || seq - readNxt >= window || rcvHave[slot]
+				|| payload.remaining() > segment)
+		{
+			// duplicated, out of the window or malformed
+			acknowledge();
+			return;
+		}
+		if (rcvData[slot] == null)
+			rcvData[slot] = new byte[segment];
+		rcvLength[slot] = payload.remaining();
+		payload.get(rcvData[slot], 0, rcvLength[slot]);
+		rcvFlags[slot] = flags;
+		rcvHave[slot] = true;
+		if (seq - rcvHigh >= 0)
+			rcvHigh = seq + 1;
+		if (seq != rcvNxt)
+		{
+			acknowledge();
+			return;
+		}
+		while (rcvNxt - readNxt < window && rcvHave[slot(rcvNxt)]
+				&& !finished)
+		{
+			byte f = rcvFlags[slot(rcvNxt)];
+			if ((f & SessionRUDP.FLAG_END) != 0)
+				messages++;
+			if ((f & SessionRUDP.FLAG_FIN) != 0)
+				finished = true;
+			rcvNxt++;
+		}
+		readable.signalAll();
+		// acknowledge at once if a hole is filled, otherwise every second one
+		if (rcvHigh - rcvNxt > 0 || ++unacked >= 2 || finished)
+			acknowledge();
+	}
+
+	/**
+	 * Handles a received acknowledgement, used with the lock held.
+	 * 
+	 * @param ack
+	 *            the next sequence expected by the peer
+	 * @param free
+	 *            the free window of the peer
+	 * @param blocks
+	 *            the number of the selective acknowledgement blocks
+	 * @param buffer
+	 *            the buffer of the blocks
+	 * @param now
+	 *            the current time in nanoseconds
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void acknowledged(int ack, int free, int blocks, ByteBuffer buffer,
+			long now) throws IOException
+	{
+		if (ack - sndUna < 0 || ack - sndNxt > 0)
+			return;
+		int limit = ack + Math.max(0, Math.min(free, window));
+		boolean update = limit != sndLimit;
+		sndLimit = limit;
+		for (int i = 0; i < blocks && buffer.remaining() >= 8; i++)
+		{
+			int start = buffer.getInt();
+			int end = buffer.getInt();
+			if (start - ack < 0)
+				start = ack;
+			if (end - sndNxt > 0)
+				end = sndNxt;
+			for (int seq = start; seq - end < 0; seq++)
+				if (!sndSacked[slot(seq)])
+				{
+					sndSacked[slot(seq)] = true;
+					sacked++;
+					if (seq + 1 - sackHigh > 0)
+						sackHigh = seq + 1;
+				}
+		}
+		int burst = 0;
+		if (ack != sndUna)
+		{
+			// the round trip time of the newest segment never retransmitted
+			if (!sndRetx[slot(ack - 1)])
+				sample(now - sndTime[slot(ack - 1)]);
+			int acked = ack - sndUna;
+			for (; sndUna != ack; sndUna++)
+				if (sndSacked[slot(sndUna)])
+				{
+					sndSacked[slot(sndUna)] = false;
+					sacked--;
+				}
+			dupAcks = 0;
+			retries = 0;
+			rtoStart = now;
+			if (recovering)
+			{
+				if (sndUna - recover >= 0)
+				{
+					recovering = false;
+					if (!timedOut)
+						cwnd = ssthresh;
+				}
+				else
+					burst = RETX_BURST;
+			}
+			if (!recovering)
+			{
+				if (cwnd < ssthresh)
+					cwnd += acked;
+				else
+					cwnd += (double) acked / cwnd;
+				cwnd = Math.min(cwnd, window);
+			}
+			writable.signalAll();
+		}
+		else if (sndNxt != sndUna && (blocks > 0 || !update))
+		{
+			dupAcks++;
+			if (recovering)
+				burst = RETX_BURST;
+			else if (dupAcks >= DUP_THRESHOLD || sacked >= DUP_THRESHOLD)
+			{
+				// fast retransmit
+				ssthresh = Math.max((sndNxt - sndUna) / 2, 2);
+				cwnd = ssthresh;
+				recovering = true;
+				timedOut = false;
+				recover = sndNxt;
+				retxNxt = sndUna;
+				burst = RETX_BURST;
+			}
+		}
+		transmit(now, burst);
+	}
+
+	/**
+	 * Updates the round trip time and the retransmission timeout by a sample
+	 * (RFC 6298), used with the lock held.
+	 * 
+	 * @param rtt
+	 *            the sample in nanoseconds
+	 */
+	private void sample(long rtt)
+	{
+		if (srtt == 0)
+		{
+			srtt = rtt;
+			rttvar = rtt / 2;
+		}
+		else
+		{
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+		rto = Math.min(
+				Math.max(srtt + 4 * rttvar,
+						TimeUnit.MILLISECONDS.toNanos(MIN_RTO)),
+				TimeUnit.MILLISECONDS.toNanos(MAX_RTO));
+	}
+
+	/**
+	 * Drives the timers, called by the worker thread every tick.
+	 * <p>
+	 * If the oldest segment in flight is not acknowledged within the
+	 * retransmission timeout, the congestion window restarts from one segment
+	 * and all the segments in flight are retransmitted as the acknowledgements
+	 * arrive, while the timeout is doubled. If the peer closes the free window
+	 * while the queued segments wait, a segment is sent as a probe each
+	 * timeout. The delayed acknowledgements are sent as well.
+	 * </p>
+	 * 
+	 * @param now
+	 *            the current time in nanoseconds
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	void tick(long now) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if (failure != null)
+				return;
+			if (sndNxt != sndUna && now - rtoStart >= rto)
+			{
+				if (++retries > MAX_RETRIES)
+				{
+					terminate(new TransactionException(String.format(
+							"The peer %s is not responding.", peer)));
+					return;
+				}
+				ssthresh = Math.max((sndNxt - sndUna) / 2, 2);
+				cwnd = 1;
+				recovering = true;
+				timedOut = true;
+				recover = sndNxt;
+				retxNxt = sndUna;
+				dupAcks = 0;
+				rto = Math.min(rto * 2, TimeUnit.MILLISECONDS.toNanos(MAX_RTO));
+				rtoStart = now;
+				transmit(now, 1);
+			}
+			else if (sndNxt == sndUna && sndNxt != sndEnd
+					&& sndNxt - sndLimit >= 0 && now - rtoStart >= rto)
+			{
+				// probe the closed window of the peer
+				rtoStart = now;
+				if (transmit(sndNxt, now))
+					sndNxt++;
+			}
+			else
+				transmit(now, 0);
+			if (unacked > 0)
+				acknowledge();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Receives one whole message, the rest of the message is discarded if the
+	 * buffer is not large enough. If the peer closes, the buffer is left
+	 * unchanged and {@linkplain #hasNext()} returns <code>false</code>.
+	 * 
+	 * @see com.frank.mpnet.Transaction#receive(java.nio.ByteBuffer)
+	 */
+	@Override
+	public SocketInfo receive(ByteBuffer buffer) throws IOException
+	{
+		return receive(buffer, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Receives one whole message within the specified timeout, the
+	 * transaction stays usable after a timeout.
+	 * 
+	 * @see #receive(ByteBuffer)
+	 * @see com.frank.mpnet.Transaction#receive(java.nio.ByteBuffer, long,
+	 *      java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public SocketInfo receive(ByteBuffer buffer, long timeout, TimeUnit unit)
+			throws TransactionTimeoutException, IOException
+	{
+		long nanos = Deadline.toNanos(timeout, unit);
+		long deadline = System.nanoTime() + nanos;
+		lock.lock();
+		try
+		{
+			while (messages == 0 && !finished && failure == null)
+				await(readable, "receive", nanos, deadline);
+			if (messages == 0)
+			{
+				eof = true;
+				return source;
+			}
+			while (true)
+			{
+				int slot = slot(readNxt);
+				int n = Math.min(rcvLength[slot], buffer.remaining());
+				buffer.put(rcvData[slot], 0, n);
+				rcvHave[slot] = false;
+				readNxt++;
+				if ((rcvFlags[slot] & SessionRUDP.FLAG_END) != 0)
+					break;
+			}
+			messages--;
+			// update the window once a quarter of it is freed
+			if (window - (rcvNxt - readNxt) - advertised >= window / 4)
+				acknowledge();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		return source;
+	}
+
+	/**
+	 * Each message is a frame itself.
+	 * 
+	 * @see #receive(ByteBuffer)
+	 * @see com.frank.mpnet.Transaction#receiveFrame(java.nio.ByteBuffer)
+	 */
+	@Override
+	public SocketInfo receiveFrame(ByteBuffer buffer) throws IOException
+	{
+		return receive(buffer);
+	}
+
+	/**
+	 * Each message is a frame itself.
+	 * 
+	 * @see #receive(ByteBuffer, long, TimeUnit)
+	 * @see com.frank.mpnet.Transaction#receiveFrame(java.nio.ByteBuffer,
+	 *      long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public SocketInfo receiveFrame(ByteBuffer buffer, long timeout,
+			TimeUnit unit) throws TransactionTimeoutException, IOException
+	{
+		return receive(buffer, timeout, unit);
+	}
+
+	/**
+	 * Waits for a condition, used with the lock held.
+	 * 
+	 * @param condition
+	 *            the condition
+	 * @param operation
+	 *            the name of the operation
+	 * @param timeout
+	 *            the timeout in nanoseconds, <code>0</code> for no timeout
+	 * @param deadline
+	 *            the deadline in nanoseconds
+	 * @throws TransactionTimeoutException
+	 *             if the deadline passed
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting
+	 */
+	private void await(Condition condition, String operation, long timeout,
+			long deadline) throws TransactionTimeoutException,
+			InterruptedIOException
+	{
+		try
+		{
+			if (timeout == 0)
+				condition.await();
+			else
+			{
+				long nanos = deadline - System.nanoTime();
+				if (nanos <= 0)
+					throw Deadline.timeout(this, operation, timeout, null);
+				condition.awaitNanos(nanos);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting.");
+		}
+	}
+
+	/**
+	 * Ends the transaction at once, called by the worker thread or on a
+	 * failure.
+	 * 
+	 * @param cause
+	 *            the cause of the transaction ended
+	 */
+	void terminate(Throwable cause)
+	{
+		lock.lock();
+		try
+		{
+			if (failure != null)
+				return;
+			failure = cause;
+			readable.signalAll();
+			writable.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		session.remove(this);
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#getType()
+	 */
+	@Override
+	public SocketType getType()
+	{
+		return TYPE;
+	}
+
+	/**
+	 * Returns <code>false</code> after a receiving returned at the end.
+	 * 
+	 * @see com.frank.mpnet.Transaction#hasNext()
+	 */
+	@Override
+	public boolean hasNext()
+	{
+		lock.lock();
+		try
+		{
+			return !eof;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Allocates a buffer of the maximum UDP packet length, the longer
+	 * messages are truncated.
+	 * 
+	 * @see com.frank.mpnet.Transaction#allocateReceiveBuffer()
+	 */
+	@Override
+	public ByteBuffer allocateReceiveBuffer()
+	{
+		return ByteBuffer.allocate(TransactionUDP.MAX_UDP_PACKET);
+	}
+
+	/**
+	 * Sends the last segment and waits for the acknowledgements of all the
+	 * segments for a while, then forgets the peer. Closing a closed
+	 * transaction has no effect.
+	 * 
+	 * @see com.frank.mpnet.Transaction#close()
+	 */
+	@Override
+	public void close() throws TransactionException
+	{
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(LINGER);
+		lock.lock();
+		try
+		{
+			if (localClosed || failure != null)
+				return;
+			while (sndEnd - sndUna >= window && failure == null)
+				if (writable.awaitNanos(deadline - System.nanoTime()) <= 0)
+					break;
+			localClosed = true;
+			if (failure == null && sndEnd - sndUna < window)
+			{
+				int slot = slot(sndEnd);
+				sndLength[slot] = 0;
+				sndFlags[slot] = SessionRUDP.FLAG_FIN;
+				sndEnd++;
+				transmit(System.nanoTime(), 0);
+				while (sndUna != sndEnd && failure == null)
+					if (writable.awaitNanos(deadline - System.nanoTime()) <= 0)
+						break;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (IOException e)
+		{
+			throw new TransactionException("Unable to close: "
+					+ e.getLocalizedMessage(), e);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		terminate(new TransactionStateException("The transaction is closed."));
+	}
+
+	/**
+	 * Ends the transaction at once without waiting for the peer.
+	 * 
+	 * @see com.frank.mpnet.Transaction#abort()
+	 */
+	@Override
+	protected void abort()
+	{
+		terminate(new TransactionStateException("The transaction is aborted."));
+	}
+
+	/**
+	 * Returns the congestion window.
+	 * 
+	 * @return the congestion window in segments
+	 */
+	public double getCongestionWindow()
+	{
+		lock.lock();
+		try
+		{
+			return cwnd;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the smoothed round trip time.
+	 * 
+	 * @param unit
+	 *            the time unit of the result
+	 * @return the smoothed round trip time, <code>0</code> if not sampled yet
+	 */
+	public long getRoundTripTime(TimeUnit unit)
+	{
+		lock.lock();
+		try
+		{
+			return unit.convert(srtt, TimeUnit.NANOSECONDS);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the total number of the retransmitted segments.
+	 * 
+	 * @return the number of the retransmissions
+	 */
+	public long getRetransmissionCount()
+	{
+		lock.lock();
+		try
+		{
+			return retransmissions;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return String.format("TransactionRUDP[peer=%s]", peer);
+	}
+}
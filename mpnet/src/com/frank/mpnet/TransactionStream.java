@@ -0,0 +1,726 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TransactionStream.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The logical stream of a {@linkplain SessionMux multiplexed session}.
+ * <p>
+ * Each sending, such as {@linkplain #send(ByteBuffer)}, is one message, which
+ * can be received either as a part of the byte stream by
+ * {@linkplain #receive(ByteBuffer)} or as a whole by
+ * {@linkplain #receiveFrame(ByteBuffer)}. The sending blocks while the flow
+ * control window of the stream is exhausted, until the receiver consumes the
+ * data. The peer which sends beyond the window violates the protocol, thus,
+ * the session fails.
+ * </p>
+ * <p>
+ * {@linkplain #close() Closing} the stream ends its sending direction, the
+ * peer receives the end of the stream after the data sent before. The stream
+ * is forgotten by the session after both directions end.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TransactionStream extends Transaction
+{
+	/**
+	 * The session of the stream.
+	 */
+	private final SessionMux			mux;
+	/**
+	 * The stream ID.
+	 */
+	private final int					id;
+	/**
+	 * The flow control window in bytes.
+	 */
+	private final int					window;
+	/**
+	 * The lock of the state.
+	 */
+	private final ReentrantLock			lock		= new ReentrantLock();
+	/**
+	 * The condition of the data or the end arrived.
+	 */
+	private final Condition				readable	= lock.newCondition();
+	/**
+	 * The condition of the credit granted.
+	 */
+	private final Condition				writable	= lock.newCondition();
+	/**
+	 * The received chunks not consumed yet.
+	 */
+	private final ArrayDeque<Chunk>		chunks		= new ArrayDeque<Chunk>();
+	/**
+	 * The bytes allowed to send.
+	 */
+	private int							credit;
+	/**
+	 * The bytes consumed but not granted back to the peer.
+	 */
+	private int							consumed;
+	/**
+	 * The bytes received but not granted back to the peer, never beyond the
+	 * window.
+	 */
+	private int							outstanding;
+	/**
+	 * The flag for the sending direction ended.
+	 */
+	private boolean						localClosed;
+	/**
+	 * The flag for the receiving direction ended.
+	 */
+	private boolean						remoteClosed;
+	/**
+	 * The flag for a receiving returned at the end of the stream.
+	 */
+	private boolean						eof;
+	/**
+	 * The cause of the session ended, <code>null</code> if still working.
+	 */
+	private Throwable					failure;
+
+	/**
+	 * Construct an instance of <tt>TransactionStream</tt>.
+	 * 
+	 * @param mux
+	 *            the session of the stream
+	 * @param id
+	 *            the stream ID
+	 * @param window
+	 *            the flow control window in bytes
+	 */
+	TransactionStream(SessionMux mux, int id, int window)
+	{
+		this.mux = mux;
+		this.id = id;
+		this.window = window;
+		this.credit = window;
+	}
+
+	/**
+	 * Returns the stream ID.
+	 * 
+	 * @return the stream ID
+	 */
+	public int getId()
+	{
+		return id;
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#send(byte[], int, int)
+	 */
+	@Override
+	public void send(byte[] b, int offset, int length)
+			throws TransactionStateException, TransactionException
+	{
+		send(ByteBuffer.wrap(b, offset, length));
+	}
+
+	/**
+	 * Sends the remaining data of the buffer as one message in chunks, each
+	 * chunk waits for the credit of the window.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.nio.ByteBuffer)
+	 */
+	@Override
+	public void send(ByteBuffer buffer) throws TransactionStateException,
+			TransactionException
+	{
+		send(buffer, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sends the remaining data of the buffer as one message within the
+	 * specified timeout, which only limits the waiting for the credit of the
+	 * window. If timed out, the message is left incomplete, thus, the stream
+	 * shall be closed.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.nio.ByteBuffer, long,
+	 *      java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public void send(ByteBuffer buffer, long timeout, TimeUnit unit)
+			throws TransactionTimeoutException, TransactionStateException,
+			TransactionException
+	{
+		long nanos = Deadline.toNanos(timeout, unit);
+		long deadline = System.nanoTime() + nanos;
+		do
+		{
+			int n;
+			lock.lock();
+			try
+			{
+				checkSending();
+				while (buffer.hasRemaining() && credit == 0)
+				{
+					if (nanos == 0)
+						writable.awaitUninterruptibly();
+					else
+					{
+						long left = deadline - System.nanoTime();
+						if (left <= 0)
+							throw Deadline.timeout(this, "send", nanos, null);
+						try
+						{
+							writable.awaitNanos(left);
+						}
+						catch (InterruptedException e)
+						{
+							Thread.currentThread().interrupt();
+							throw new TransactionException(
+									"Interrupted while waiting for the credit.",
+									e);
+						}
+					}
+					checkSending();
+				}
+				n = Math.min(Math.min(buffer.remaining(), credit),
+						SessionMux.MAX_CHUNK);
+				credit -= n;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			ByteBuffer chunk = buffer.duplicate();
+			chunk.limit(chunk.position() + n);
+			buffer.position(chunk.limit());
+			mux.write(SessionMux.DATA, buffer.hasRemaining() ? 0
+					: SessionMux.FLAG_END, id, chunk);
+			markSent();
+		}
+		while (buffer.hasRemaining());
+	}
+
+	/**
+	 * Sends the remaining data of the buffers as one message.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.nio.ByteBuffer[])
+	 */
+	@Override
+	public void send(ByteBuffer... buffers) throws TransactionStateException,
+			TransactionException
+	{
+		if (buffers.length == 1)
+			send(buffers[0]);
+		else
+			super.send(buffers);
+	}
+
+	/**
+	 * Sends to the peer of the stream, the socket address is ignored.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.net.SocketAddress, byte[],
+	 *      int, int)
+	 */
+	@Override
+	public void send(SocketAddress sa, byte[] b, int offset, int length)
+			throws TransactionStateException, TransactionException
+	{
+		send(b, offset, length);
+	}
+
+	/**
+	 * Checks whether the stream can send, used with the lock held.
+	 * 
+	 * @throws TransactionStateException
+	 *             if the stream or the session is closed
+	 */
+	private void checkSending() throws TransactionStateException
+	{
+		if (localClosed)
+			throw new TransactionStateException("The stream is closed.");
+		if (failure != null)
+			throw new TransactionStateException("The session is closed.");
+	}
+
+	/**
+	 * Receives the available data of the stream, which may contain the parts
+	 * of several messages. If the stream ends, the buffer is left unchanged
+	 * and {@linkplain #hasNext()} returns <code>false</code>.
+	 * 
+	 * @see com.frank.mpnet.Transaction#receive(java.nio.ByteBuffer)
+	 */
+	@Override
+	public SocketInfo receive(ByteBuffer buffer) throws IOException
+	{
+		return receive(buffer, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Receives the available data of the stream within the specified timeout,
+	 * the stream stays usable after a timeout.
+	 * 
+	 * @see #receive(ByteBuffer)
+	 * @see com.frank.mpnet.Transaction#receive(java.nio.ByteBuffer, long,
+	 *      java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public SocketInfo receive(ByteBuffer buffer, long timeout, TimeUnit unit)
+			throws TransactionTimeoutException, IOException
+	{
+		long nanos = Deadline.toNanos(timeout, unit);
+		long deadline = System.nanoTime() + nanos;
+		int grant;
+		lock.lock();
+		try
+		{
+			while (firstChunk() == null && !isEnded())
+				await(nanos, deadline);
+			if (firstChunk() == null)
+			{
+				checkFailure();
+				eof = true;
+			}
+			int n = 0;
+			Chunk chunk;
+			while (buffer.hasRemaining() && (chunk = firstChunk()) != null)
+			{
+				n += NetUtils.transfer(chunk.data, buffer);
+				if (!chunk.data.hasRemaining())
+					chunks.poll();
+			}
+			grant = consume(n);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		grant(grant);
+		return new SocketInfo(getType(), mux.getTransaction().remoteAddr);
+	}
+
+	/**
+	 * Receives one whole message. If the stream ends before the message, the
+	 * buffer is left unchanged and {@linkplain #hasNext()} returns
+	 * <code>false</code>.
+	 * <p>
+	 * The remaining of the buffer shall be large enough for the message,
+	 * otherwise, a {@linkplain TransactionException} will be thrown and the
+	 * rest of the message is left to the next receiving.
+	 * </p>
+	 * 
+	 * @throws EOFException
+	 *             if the stream ends in the middle of a message
+	 * @see com.frank.mpnet.Transaction#receiveFrame(java.nio.ByteBuffer)
+	 */
+	@Override
+	public SocketInfo receiveFrame(ByteBuffer buffer) throws IOException
+	{
+		return receiveFrame(buffer, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Receives one whole message within the specified timeout. If timed out
+	 * in the middle of a message, the received part of the message is lost.
+	 * 
+	 * @see #receiveFrame(ByteBuffer)
+	 * @see com.frank.mpnet.Transaction#receiveFrame(java.nio.ByteBuffer,
+	 *      long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public SocketInfo receiveFrame(ByteBuffer buffer, long timeout,
+			TimeUnit unit) throws TransactionTimeoutException, IOException
+	{
+		long nanos = Deadline.toNanos(timeout, unit);
+		long deadline = System.nanoTime() + nanos;
+		boolean first = true;
+		lock.lock();
+		try
+		{
+			while (true)
+			{
+				while (chunks.isEmpty() && !isEnded())
+					await(nanos, deadline);
+				Chunk chunk = chunks.peek();
+				if (chunk == null)
+				{
+					checkFailure();
+					if (first)
+					{
+						eof = true;
+						break;
+					}
+					throw new EOFException(
+							"The stream ends in the middle of a message.");
+				}
+				if (chunk.data.remaining() > buffer.remaining())
+					throw new TransactionException(
+							"The message is larger than the buffer remaining.");
+				int n = NetUtils.transfer(chunk.data, buffer);
+				chunks.poll();
+				first = false;
+				int grant = consume(n);
+				if (grant > 0)
+				{
+					// never write with the lock held
+					lock.unlock();
+					try
+					{
+						grant(grant);
+					}
+					finally
+					{
+						lock.lock();
+					}
+				}
+				if (chunk.end)
+					break;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		return new SocketInfo(getType(), mux.getTransaction().remoteAddr);
+	}
+
+	/**
+	 * @see #receiveFrame(ByteBuffer)
+	 * @see com.frank.mpnet.Transaction#receiveFrame(java.nio.ByteBuffer[])
+	 */
+	@Override
+	public SocketInfo receiveFrame(ByteBuffer... buffers) throws IOException
+	{
+		ByteBuffer bbuf = ByteBuffer.allocate((int) NetUtils
+				.remaining(buffers));
+		SocketInfo si = receiveFrame(bbuf);
+		bbuf.flip();
+		for (ByteBuffer buffer : buffers)
+			NetUtils.transfer(bbuf, buffer);
+		return si;
+	}
+
+	/**
+	 * Returns the first chunk with any data and drops the empty ones before
+	 * it, used with the lock held.
+	 * 
+	 * @return the first chunk, <code>null</code> if none
+	 */
+	private Chunk firstChunk()
+	{
+		Chunk chunk;
+		while ((chunk = chunks.peek()) != null && !chunk.data.hasRemaining())
+			chunks.poll();
+		return chunk;
+	}
+
+	/**
+	 * Returns <code>true</code> if no more data will arrive, used with the
+	 * lock held.
+	 * 
+	 * @return <code>true</code> if ended
+	 */
+	private boolean isEnded()
+	{
+		return remoteClosed || failure != null;
+	}
+
+	/**
+	 * Checks whether the session failed before the stream ends, used with the
+	 * lock held.
+	 * 
+	 * @throws TransactionException
+	 *             if the session failed before the peer closed the stream
+	 */
+	private void checkFailure() throws TransactionException
+	{
+		if (!remoteClosed && failure != null)
+			throw new TransactionException(
+					"The session is closed before the stream ends.", failure);
+	}
+
+	/**
+	 * Waits for the data or the end, used with the lock held.
+	 * 
+	 * @param timeout
+	 *            the timeout in nanoseconds, <code>0</code> for no timeout
+	 * @param deadline
+	 *            the deadline in nanoseconds
+	 * @throws TransactionTimeoutException
+	 *             if the deadline passed
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting
+	 */
+	private void await(long timeout, long deadline)
+			throws TransactionTimeoutException, InterruptedIOException
+	{
+		try
+		{
+			if (timeout == 0)
+				readable.await();
+			else
+			{
+				long nanos = deadline - System.nanoTime();
+				if (nanos <= 0)
+					throw Deadline.timeout(this, "receive", timeout, null);
+				readable.awaitNanos(nanos);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for the data.");
+		}
+	}
+
+	/**
+	 * Counts the consumed data, used with the lock held.
+	 * 
+	 * @param n
+	 *            the number of bytes consumed
+	 * @return the credit to grant back to the peer, <code>0</code> if not yet
+	 */
+	private int consume(int n)
+	{
+		consumed += n;
+		if (remoteClosed || consumed < window / 2 || consumed == 0)
+			return 0;
+		int grant = consumed;
+		consumed = 0;
+		outstanding -= grant;
+		return grant;
+	}
+
+	/**
+	 * Grants the credit back to the peer.
+	 * 
+	 * @param grant
+	 *            the credit in bytes
+	 * @throws TransactionException
+	 *             if failed to send the window update
+	 */
+	private void grant(int grant) throws TransactionException
+	{
+		if (grant <= 0)
+			return;
+		ByteBuffer body = ByteBuffer.allocate(4);
+		body.putInt(0, grant);
+		mux.write(SessionMux.WINDOW, 0, id, body);
+	}
+
+	/**
+	 * Queues a received chunk, called by the reading thread.
+	 * 
+	 * @param data
+	 *            the data of the chunk
+	 * @param end
+	 *            <code>true</code> if it is the last chunk of a message
+	 * @throws TransactionException
+	 *             if the peer sends beyond the window
+	 */
+	void received(ByteBuffer data, boolean end) throws TransactionException
+	{
+		lock.lock();
+		try
+		{
+			if (data.remaining() > window - outstanding)
+				throw new TransactionException(String.format(
+						"The stream(%d) receives %d bytes beyond the window(%d).",
+						id, outstanding + data.remaining() - window, window));
+			outstanding += data.remaining();
+			chunks.add(new Chunk(data, end));
+			markReceived();
+			readable.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the credit granted by the peer, called by the reading thread.
+	 * 
+	 * @param grant
+	 *            the credit in bytes
+	 */
+	void credit(int grant)
+	{
+		lock.lock();
+		try
+		{
+			credit += grant;
+			writable.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Ends the receiving direction, called by the reading thread.
+	 */
+	void remoteClosed()
+	{
+		boolean both;
+		lock.lock();
+		try
+		{
+			remoteClosed = true;
+			both = localClosed;
+			readable.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		if (both)
+			mux.remove(this);
+	}
+
+	/**
+	 * Ends the stream since the session ended, called by the reading thread.
+	 * 
+	 * @param cause
+	 *            the cause of the session ended
+	 */
+	void terminate(Throwable cause)
+	{
+		lock.lock();
+		try
+		{
+			failure = cause;
+			readable.signalAll();
+			writable.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the type of the underlying transaction.
+	 * 
+	 * @see com.frank.mpnet.Transaction#getType()
+	 */
+	@Override
+	public SocketType getType()
+	{
+		return mux.getTransaction().getType();
+	}
+
+	/**
+	 * Returns <code>false</code> after a receiving returned at the end of the
+	 * stream.
+	 * 
+	 * @see com.frank.mpnet.Transaction#hasNext()
+	 */
+	@Override
+	public boolean hasNext()
+	{
+		lock.lock();
+		try
+		{
+			return !eof;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Allocates a buffer of the window size.
+	 * 
+	 * @see com.frank.mpnet.Transaction#allocateReceiveBuffer()
+	 */
+	@Override
+	public ByteBuffer allocateReceiveBuffer()
+	{
+		return ByteBuffer.allocate(window);
+	}
+
+	/**
+	 * Ends the sending direction of the stream, closing a closed stream has no
+	 * effect.
+	 * 
+	 * @see com.frank.mpnet.Transaction#close()
+	 */
+	@Override
+	public void close() throws TransactionException
+	{
+		boolean both;
+		lock.lock();
+		try
+		{
+			if (localClosed)
+				return;
+			localClosed = true;
+			both = remoteClosed;
+			writable.signalAll();
+			if (failure != null)
+				return;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		if (both)
+			mux.remove(this);
+		mux.write(SessionMux.CLOSE, 0, id, null);
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return String.format("TransactionStream[id=%d, window=%d]", id,
+				window);
+	}
+
+	/**
+	 * The received chunk.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	private static final class Chunk
+	{
+		/**
+		 * The data.
+		 */
+		final ByteBuffer	data;
+		/**
+		 * The flag of the last chunk of a message.
+		 */
+		final boolean		end;
+
+		/**
+		 * Construct an instance of <tt>Chunk</tt>.
+		 * 
+		 * @param data
+		 *            the data
+		 * @param end
+		 *            <code>true</code> if it is the last chunk of a message
+		 */
+		Chunk(ByteBuffer data, boolean end)
+		{
+			this.data = data;
+			this.end = end;
+		}
+	}
+}
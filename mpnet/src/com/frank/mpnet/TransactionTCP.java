@@ -5,17 +5,62 @@
  */
 package com.frank.mpnet;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The transaction for a TCP transmission.
  * <p>
+ * If the underlying socket is created by a {@linkplain SocketChannel}, the
+ * received data will be read in chunks directly into the receiving buffer by
+ * the channel; otherwise, the data will be read in chunks from the socket input
+ * stream through an internal read-ahead buffer.
+ * </p>
+ * <p>
+ * In {@linkplain #setFramed(boolean) framed mode}, each sending is transfered
+ * as a length-prefixed {@linkplain FrameCodec frame} and each receiving
+ * receives exactly one frame, which gives the same one-message-per-receive
+ * semantics as {@linkplain TransactionUDP}.
+ * </p>
+ * <p>
+ * If the {@linkplain #setCoalescing(int, long, TimeUnit) write coalescing} is
+ * enabled, the data sent will be coalesced in a write buffer, and be written
+ * to the socket in one write while the buffered data reaches the byte
+ * threshold, or while the oldest buffered data waits longer than the latency
+ * threshold, or while it is {@linkplain #flush() flushed} explicitly.
+ * </p>
+ * <p>
+ * If the transaction is driven by an {@linkplain EventLoop event loop}, the
+ * memory held for a peer is bounded: a frame longer than the
+ * {@linkplain #setMaxFrameLength(int) maximum frame length} closes the
+ * transaction with an error, and the sending blocks while the data queued for
+ * a slow peer exceeds the {@linkplain #setMaxPendingBytes(long) limit}.
+ * </p>
+ * <p>
+ * A timed operation, such as {@linkplain #receive(ByteBuffer, long, TimeUnit)},
+ * {@linkplain #abort() aborts} the transaction once its deadline passes, since
+ * the stream cannot be resumed in the middle of the data. Thus, the
+ * transaction is closed and unusable after a timeout, unlike
+ * {@linkplain TransactionUDP}.
  * </p>
  * 
  * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
@@ -23,35 +68,169 @@ import java.nio.ByteBuffer;
  */
 public class TransactionTCP extends Transaction
 {
+	/**
+	 * The receiving mode of the TCP transaction.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	public static enum ReceiveMode
+	{
+		/**
+		 * Blocks until the receiving buffer is completely filled or the end of
+		 * the stream is reached.
+		 */
+		Fully,
+		/**
+		 * Blocks until some data is available, then fills the receiving buffer
+		 * with the data currently available in the stream.
+		 */
+		Available;
+	}
+
+	/**
+	 * The size of the internal read-ahead buffer.
+	 */
+	public static final int			READ_AHEAD_SIZE	= 8192;
+	/**
+	 * The size of the write buffer used while the transaction is
+	 * {@linkplain #cork() corked} without write coalescing.
+	 */
+	public static final int			WRITE_BUFFER_SIZE	= 65536;
+	/**
+	 * The default maximum length of a frame received by the event loop.
+	 */
+	public static final int			DEFAULT_MAX_FRAME_LENGTH	= 16 << 20;
+	/**
+	 * The default maximum bytes queued to write by the event loop.
+	 */
+	public static final long		DEFAULT_MAX_PENDING_BYTES	= 16 << 20;
 	/**
 	 * The type of the transaction.
 	 */
-	protected SocketType	type;
+	protected SocketType			type;
 	/**
 	 * The underlying TCP client socket.
 	 */
-	protected Socket		socket;
+	protected Socket				socket;
+	/**
+	 * The channel of the underlying socket, <code>null</code> if the socket is
+	 * not created by a channel.
+	 */
+	protected SocketChannel			channel;
 	/**
 	 * The input stream from the socket.
 	 */
-	protected InputStream	in;
+	protected InputStream			in;
 	/**
 	 * The output stream from the socket.
 	 */
-	protected OutputStream	out;
+	protected OutputStream			out;
 	/**
 	 * The remote address.
 	 */
-	protected SocketAddress	remoteAddr;
+	protected SocketAddress			remoteAddr;
+	/**
+	 * The receiving mode.
+	 */
+	protected volatile ReceiveMode	receiveMode		= ReceiveMode.Fully;
+	/**
+	 * The flag for transferring the data in length-prefixed frames.
+	 */
+	protected volatile boolean		framed;
+	/**
+	 * The read-ahead buffer which holds the data read but not yet consumed.
+	 */
+	private ByteBuffer				readAhead;
+	/**
+	 * The codec of the received frames.
+	 */
+	private final FrameCodec		codec			= new FrameCodec();
+	/**
+	 * The buffer of the frame header to send.
+	 */
+	private final ByteBuffer		frameHeader;
 	/**
 	 * The length of previous read.
 	 */
-	private int				readLen	= 0;
+	private int						readLen			= 0;
 	/**
 	 * The flag for doing {@linkplain OutputStream#flush() flush} for each
 	 * {@link #send(SocketAddress, byte[], int, int) send} action.
 	 */
-	private boolean			doFlush;
+	private volatile boolean		doFlush;
+	/**
+	 * The byte threshold of the write coalescing, 0 if the write coalescing is
+	 * disabled.
+	 */
+	protected volatile int			flushBytes;
+	/**
+	 * The latency threshold of the write coalescing in nanoseconds, 0 if there
+	 * is no latency bound.
+	 */
+	protected volatile long			flushDelay;
+	/**
+	 * The lock of writing.
+	 */
+	private final ReentrantLock		writeLock		= new ReentrantLock();
+	/**
+	 * The write buffer which coalesces the data to send.
+	 */
+	private ByteBuffer				writeBuffer;
+	/**
+	 * The flag for holding the buffered data until uncorked.
+	 */
+	private boolean					corked;
+	/**
+	 * The scheduled background flushing, <code>null</code> if not scheduled.
+	 */
+	private ScheduledFuture<?>		flushTask;
+	/**
+	 * The failure of the background flushing which is not reported yet.
+	 */
+	private IOException				flushFailure;
+	/**
+	 * The event loop which drives the transaction, <code>null</code> if the
+	 * transaction is blocking.
+	 */
+	private volatile EventLoop		loop;
+	/**
+	 * The listener of the transaction driven by the event loop.
+	 */
+	private TransactionListener		listener;
+	/**
+	 * The selection key of the channel registered with the event loop.
+	 */
+	private SelectionKey			key;
+	/**
+	 * The data queued to write when the socket is writable.
+	 */
+	private ArrayDeque<ByteBuffer>	pending;
+	/**
+	 * The number of the bytes queued to write.
+	 */
+	private long					pendingBytes;
+	/**
+	 * The condition signaled while the queued data is written.
+	 */
+	private final Condition			drained			= writeLock.newCondition();
+	/**
+	 * The maximum length of a frame received by the event loop, also the
+	 * maximum unconsumed data held in unframed mode.
+	 */
+	private volatile int			maxFrameLength	= DEFAULT_MAX_FRAME_LENGTH;
+	/**
+	 * The maximum bytes queued to write before the sending blocks.
+	 */
+	private volatile long			maxPendingBytes	= DEFAULT_MAX_PENDING_BYTES;
+	/**
+	 * The flag for closing the transaction after the queued data is written.
+	 */
+	private boolean					closing;
+	/**
+	 * The flag for the transaction closed by the event loop.
+	 */
+	private boolean					closed;
 
 	/**
 	 * Construct an instance of <tt>TransactionTCP</tt>.
@@ -68,6 +247,8 @@ public class TransactionTCP extends Transaction
 	protected TransactionTCP(Socket socket, SocketType type)
 	{
 		this.socket = socket;
+		this.channel = socket.getChannel();
+		this.frameHeader = ByteBuffer.allocate(FrameCodec.MAX_HEADER_LENGTH);
 		if (socket.isConnected())
 			remoteAddr = socket.getRemoteSocketAddress();
 		this.type = type;
@@ -88,10 +269,13 @@ public class TransactionTCP extends Transaction
 	 */
 	public void bind(SocketAddress sa) throws TransactionException
 	{
-		if (socket == null)
-			socket = new Socket();
 		try
 		{
+			if (socket == null)
+			{
+				channel = SocketChannel.open();
+				socket = channel.socket();
+			}
 			socket.bind(sa);
 		}
 		catch (Exception e)
@@ -171,199 +355,1699 @@ public class TransactionTCP extends Transaction
 		}
 	}
 
-	private void send(byte[] b, int offset, int length, boolean doFlush)
+	/**
+	 * Send the remaining data in specified buffers.
+	 * <p>
+	 * If the write coalescing is enabled or the transaction is corked, the
+	 * data will be appended to the write buffer if the buffer can hold it;
+	 * otherwise, the buffered data and the specified data will be written
+	 * together by one gathering write.
+	 * </p>
+	 * 
+	 * @param doFlush
+	 *            <code>true</code> if flush the write buffer after sending
+	 * @param srcs
+	 *            the buffers to send
+	 * @throws TransactionException
+	 *             if any IO error occurs
+	 */
+	private void send(boolean doFlush, ByteBuffer... srcs)
+			throws TransactionException
 	{
+		writeLock.lock();
 		try
 		{
-			if (out == null)
-				out = socket.getOutputStream();
-			out.write(b, offset, length);
-			if (doFlush)
-				out.flush();
+			checkFlushFailure();
+			if (flushBytes <= 0 && !corked)
+			{
+				flushBuffer();
+				write(srcs);
+				return;
+			}
+			if (writeBuffer == null)
+			{
+				int capacity = flushBytes > 0 ? flushBytes : WRITE_BUFFER_SIZE;
+				writeBuffer = channel == null ? ByteBuffer.allocate(capacity)
+						: ByteBuffer.allocateDirect(capacity);
+			}
+			if (NetUtils.remaining(srcs) < writeBuffer.remaining())
+			{
+				boolean empty = writeBuffer.position() == 0;
+				for (ByteBuffer src : srcs)
+					writeBuffer.put(src);
+				if (corked)
+					return;
+				if (doFlush)
+					flushBuffer();
+				else if (empty && flushDelay > 0)
+					scheduleFlush();
+			}
+			else if (writeBuffer.position() == 0)
+				write(srcs);
+			else
+			{
+				ByteBuffer[] all = new ByteBuffer[srcs.length + 1];
+				all[0] = writeBuffer;
+				System.arraycopy(srcs, 0, all, 1, srcs.length);
+				cancelFlushTask();
+				writeBuffer.flip();
+				try
+				{
+					write(all);
+				}
+				finally
+				{
+					writeBuffer.compact();
+				}
+			}
 		}
 		catch (Exception e)
 		{
 			throw new TransactionException("Fail to send: "
 					+ e.getLocalizedMessage(), e);
 		}
+		finally
+		{
+			writeLock.unlock();
+		}
 	}
 
 	/**
-	 * @see com.frank.mpnet.Transaction#send(byte[], int, int)
+	 * Writes all of the data in the write buffer.
+	 * 
+	 * @throws IOException
+	 *             if IO error occurs
 	 */
-	@Override
-	public void send(byte[] b, int offset, int length)
-			throws TransactionStateException, TransactionException
+	private void flushBuffer() throws IOException
 	{
-		send(b, offset, length, doFlush);
+		cancelFlushTask();
+		if (writeBuffer == null || writeBuffer.position() == 0)
+			return;
+		writeBuffer.flip();
+		try
+		{
+			write(writeBuffer);
+		}
+		finally
+		{
+			writeBuffer.compact();
+		}
 	}
 
 	/**
-	 * Sending the buffered data from the current socket.
+	 * Schedules the background flushing after the latency threshold.
 	 * <p>
-	 * The specified socket address <code>sa</code> will be ignored, it has the
-	 * same effect as {@linkplain #send(byte[], int, int)}.
+	 * The {@linkplain SharedScheduler shared scheduler} only hands the flushing
+	 * to its {@linkplain SharedScheduler#getWorkers() workers}, since the write
+	 * blocks while the peer is slow, or while a sending holds the lock of
+	 * writing.
 	 * </p>
+	 */
+	private void scheduleFlush()
+	{
+		final Runnable flushing = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				flushInBackground();
+			}
+		};
+		flushTask = SharedScheduler.get().schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				SharedScheduler.getWorkers().execute(flushing);
+			}
+		}, flushDelay, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Flushes the write buffer in the background, the failure will be
+	 * reported by the next sending, flushing or closing.
+	 */
+	private void flushInBackground()
+	{
+		writeLock.lock();
+		try
+		{
+			flushTask = null;
+			if (!corked)
+				flushBuffer();
+		}
+		catch (IOException e)
+		{
+			flushFailure = e;
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Throws the failure of the background flushing if not reported yet.
 	 * 
-	 * @see com.frank.mpnet.Transaction#send(java.net.SocketAddress, byte[],
-	 *      int, int)
+	 * @throws IOException
+	 *             the failure of the background flushing
+	 */
+	private void checkFlushFailure() throws IOException
+	{
+		if (flushFailure != null)
+		{
+			IOException e = flushFailure;
+			flushFailure = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Cancels the scheduled background flushing.
+	 */
+	private void cancelFlushTask()
+	{
+		if (flushTask != null)
+		{
+			flushTask.cancel(false);
+			flushTask = null;
+		}
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#send(byte[], int, int)
 	 */
 	@Override
-	public void send(SocketAddress sa, byte[] b, int offset, int length)
+	public void send(byte[] b, int offset, int length)
 			throws TransactionStateException, TransactionException
 	{
-		send(b, offset, length);
+		if (framed)
+			sendFrame(b, offset, length);
+		else
+			send(doFlush, ByteBuffer.wrap(b, offset, length));
 	}
 
 	/**
-	 * @see com.frank.mpnet.Transaction#receive(java.nio.ByteBuffer)
+	 * Send the buffer directly by the underlying channel if exists.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.nio.ByteBuffer)
 	 */
 	@Override
-	public SocketInfo receive(ByteBuffer buffer) throws IOException
+	public void send(ByteBuffer buffer) throws TransactionStateException,
+			TransactionException
 	{
-		if (in == null)
-			in = socket.getInputStream();
-		int rem = buffer.remaining();
-		int i = 0, r = 0;
-		do
-		{
-			r = in.read();
-			if (r == -1)
-				break;
-			buffer.put((byte) r);
-			i++;
-		}
-		while (i < rem);
-		readLen = r == -1 ? -1 : i;
-		return new SocketInfo(type, remoteAddr);
+		if (framed)
+			sendFrame(buffer);
+		else
+			send(doFlush, buffer);
 	}
 
 	/**
-	 * @see com.frank.mpnet.Transaction#getType()
+	 * Send the buffers by one gathering write of the underlying channel if
+	 * exists.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.nio.ByteBuffer[])
 	 */
 	@Override
-	public SocketType getType()
+	public void send(ByteBuffer... buffers) throws TransactionStateException,
+			TransactionException
 	{
-		return type;
+		if (framed)
+			sendFrame(buffers);
+		else
+			send(doFlush, buffers);
 	}
 
 	/**
-	 * @see com.frank.mpnet.Transaction#hasNext()
+	 * Send specified data as a frame, the frame header and the data will be
+	 * written together.
+	 * 
+	 * @see com.frank.mpnet.Transaction#sendFrame(byte[], int, int)
 	 */
 	@Override
-	public boolean hasNext()
+	public void sendFrame(byte[] b, int offset, int length)
+			throws TransactionStateException, TransactionException
 	{
-		if (socket == null || socket.isClosed())
-			return false;
-		return in == null ? true : readLen >= 0;
+		sendFrame(ByteBuffer.wrap(b, offset, length));
 	}
 
 	/**
-	 * @see com.frank.mpnet.Transaction#allocateReceiveBuffer()
+	 * Send specified buffers as a frame, the frame header and the buffers will
+	 * be written together by one gathering write.
+	 * 
+	 * @see com.frank.mpnet.Transaction#sendFrame(java.nio.ByteBuffer[])
 	 */
 	@Override
-	public ByteBuffer allocateReceiveBuffer() throws TransactionException
+	public void sendFrame(ByteBuffer... buffers)
+			throws TransactionStateException, TransactionException
 	{
-		if (socket.isClosed())
-			return ByteBuffer.allocate(0);
+		long length = NetUtils.remaining(buffers);
+		if (length > Integer.MAX_VALUE)
+			throw new TransactionException(String.format(
+					"The frame length(%d) is larger than %d.", length,
+					Integer.MAX_VALUE));
+		ByteBuffer[] srcs = new ByteBuffer[buffers.length + 1];
+		System.arraycopy(buffers, 0, srcs, 1, buffers.length);
+		writeLock.lock();
 		try
 		{
-			return ByteBuffer.allocate(socket.getReceiveBufferSize());
+			frameHeader.clear();
+			FrameCodec.encodeHeader(frameHeader, (int) length);
+			frameHeader.flip();
+			srcs[0] = frameHeader;
+			send(doFlush, srcs);
 		}
-		catch (Exception e)
+		finally
 		{
-			throw new TransactionException("Failed to allocate the buffer: "
-					+ e.getLocalizedMessage(), e);
+			writeLock.unlock();
 		}
 	}
 
 	/**
-	 * @see com.frank.mpnet.Transaction#close()
+	 * Send a region of the specified file by
+	 * {@linkplain FileChannel#transferTo(long, long, WritableByteChannel)
+	 * transferring} it to the socket, the file data will not be copied into
+	 * the heap.
+	 * <p>
+	 * The data in the write buffer will be written before the file. In
+	 * {@linkplain #setFramed(boolean) framed mode}, the file region will be
+	 * sent as one frame.
+	 * </p>
+	 * 
+	 * @see com.frank.mpnet.Transaction#sendFile(java.nio.channels.FileChannel,
+	 *      long, long, com.frank.mpnet.TransferListener)
 	 */
 	@Override
-	public void close()
+	public long sendFile(FileChannel file, long position, long count,
+			TransferListener listener) throws TransactionStateException,
+			TransactionException
 	{
-		if (socket == null)
-			return;
+		if (loop != null)
+			return super.sendFile(file, position, count, listener);
+		writeLock.lock();
 		try
 		{
-			socket.shutdownInput();
-			socket.shutdownOutput();
-			socket.close();
+			long total = fileRegion(file, position, count);
+			flushBuffer();
+			if (framed)
+			{
+				if (total > Integer.MAX_VALUE)
+					throw new TransactionException(String.format(
+							"The frame length(%d) is larger than %d.", total,
+							Integer.MAX_VALUE));
+				frameHeader.clear();
+				FrameCodec.encodeHeader(frameHeader, (int) total);
+				frameHeader.flip();
+				write(frameHeader);
+			}
+			WritableByteChannel target = channel != null ? channel
+					: Channels.newChannel(getOutputStream());
+			long sent = 0;
+			while (sent < total)
+			{
+				long n = file.transferTo(position + sent,
+						Math.min(total - sent, FILE_CHUNK_SIZE), target);
+				if (n <= 0)
+				{
+					if (framed)
+						throw new TransactionException(String.format(
+								"The file ends after %d of %d bytes of the frame.",
+								sent, total));
+					break;
+				}
+				sent += n;
+				markSent();
+				if (listener != null)
+					listener.progress(sent, total);
+			}
+			return sent;
 		}
 		catch (IOException e)
 		{
-			throw new TransactionException(
-					"Failed while closing the transaction: "
-							+ e.getLocalizedMessage(), e);
+			throw new TransactionException("Unable to send file: "
+					+ e.getLocalizedMessage(), e);
+		}
+		finally
+		{
+			writeLock.unlock();
 		}
 	}
 
 	/**
-	 * Returns an input stream for this socket.
-	 * <p>
-	 * If this socket has an associated channel then the resulting input stream
-	 * delegates all of its operations to the channel. If the channel is in
-	 * non-blocking mode then the input stream's <tt>read</tt> operations will
-	 * throw an {@link java.nio.channels.IllegalBlockingModeException}.
-	 * <p>
-	 * Under abnormal conditions the underlying connection may be broken by the
-	 * remote host or the network software (for example a connection reset in
-	 * the case of TCP connections). When a broken connection is detected by the
-	 * network software the following applies to the returned input stream :-
-	 * <ul>
-	 * <li>
-	 * <p>
-	 * The network software may discard bytes that are buffered by the socket.
-	 * Bytes that aren't discarded by the network software can be read using
-	 * {@link java.io.InputStream#read read}.
-	 * <li>
-	 * <p>
-	 * If there are no bytes buffered on the socket, or all buffered bytes have
-	 * been consumed by {@link java.io.InputStream#read read}, then all
-	 * subsequent calls to {@link java.io.InputStream#read read} will throw an
-	 * {@link java.io.IOException IOException}.
-	 * <li>
-	 * <p>
-	 * If there are no bytes buffered on the socket, and the socket has not been
-	 * closed using {@link #close close}, then
-	 * {@link java.io.InputStream#available available} will return
-	 * <code>0</code>.
-	 * </ul>
+	 * Writes all of the buffered data to the socket immediately.
 	 * <p>
-	 * Closing the returned {@link java.io.InputStream InputStream} will close
-	 * the associated socket.
+	 * If the transaction is {@linkplain #cork() corked}, the data will also be
+	 * written.
+	 * </p>
 	 * 
-	 * @return an input stream for reading bytes from this socket.
-	 * @exception IOException
-	 *                if an I/O error occurs when creating the input stream, the
-	 *                socket is closed, the socket is not connected, or the
-	 *                socket input has been shutdown
+	 * @throws TransactionException
+	 *             if any IO error occurs, or if the background flushing has
+	 *             failed
 	 */
-	public InputStream getInputStream() throws IOException
+	public void flush() throws TransactionException
 	{
-		return (in == null) ? socket.getInputStream() : in;
+		writeLock.lock();
+		try
+		{
+			checkFlushFailure();
+			flushBuffer();
+		}
+		catch (Exception e)
+		{
+			throw new TransactionException("Fail to flush: "
+					+ e.getLocalizedMessage(), e);
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
 	}
 
 	/**
-	 * Returns an output stream for this socket.
-	 * <p>
-	 * If this socket has an associated channel then the resulting output stream
-	 * delegates all of its operations to the channel. If the channel is in
-	 * non-blocking mode then the output stream's <tt>write</tt> operations will
-	 * throw an {@link java.nio.channels.IllegalBlockingModeException}.
+	 * Corks the transaction.
 	 * <p>
-	 * Closing the returned {@link java.io.OutputStream OutputStream} will close
-	 * the associated socket.
+	 * While the transaction is corked, the data sent will be held in the write
+	 * buffer, and be written only if the write buffer is full, or if the
+	 * transaction is {@linkplain #flush() flushed} or {@linkplain #uncork()
+	 * uncorked}, regardless of the latency threshold and the
+	 * {@linkplain #setDoFlush(boolean) doFlush} flag.
+	 * </p>
+	 */
+	public void cork()
+	{
+		writeLock.lock();
+		try
+		{
+			corked = true;
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Uncorks the transaction, and writes all of the buffered data to the
+	 * socket immediately.
 	 * 
-	 * @return an output stream for writing bytes to this socket.
-	 * @exception IOException
-	 *                if an I/O error occurs when creating the output stream or
-	 *                if the socket is not connected.
+	 * @throws TransactionException
+	 *             if any IO error occurs
+	 * @see #cork()
 	 */
-	public OutputStream getOutputStream() throws IOException
+	public void uncork() throws TransactionException
 	{
-		return (out == null) ? socket.getOutputStream() : out;
+		writeLock.lock();
+		try
+		{
+			corked = false;
+			flush();
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Enables or disables the write coalescing.
+	 * <p>
+	 * With the write coalescing, the data sent will be buffered, and the
+	 * buffered data will be written to the socket in one write while its size
+	 * reaches <code>flushBytes</code>, or while the oldest buffered data has
+	 * waited for <code>flushDelay</code>. Any data buffered before the setting
+	 * will be written first.
+	 * </p>
+	 * 
+	 * @param flushBytes
+	 *            the byte threshold, also the capacity of the write buffer, 0
+	 *            if disable the write coalescing
+	 * @param flushDelay
+	 *            the latency threshold, 0 if there is no latency bound
+	 * @param unit
+	 *            the time unit of <code>flushDelay</code>
+	 * @throws IllegalArgumentException
+	 *             if <code>flushBytes</code> or <code>flushDelay</code> is
+	 *             negative
+	 * @throws TransactionException
+	 *             if fail to write the data buffered before
+	 */
+	public void setCoalescing(int flushBytes, long flushDelay, TimeUnit unit)
+			throws IllegalArgumentException, TransactionException
+	{
+		if (flushBytes < 0 || flushDelay < 0)
+			throw new IllegalArgumentException(String.format(
+					"The flush thresholds(%d bytes, %d %s) shall not be negative.",
+					flushBytes, flushDelay, unit));
+		writeLock.lock();
+		try
+		{
+			flush();
+			writeBuffer = null;
+			this.flushBytes = flushBytes;
+			this.flushDelay = unit.toNanos(flushDelay);
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the byte threshold of the write coalescing.
+	 * 
+	 * @return the byte threshold, 0 if the write coalescing is disabled
+	 */
+	public int getFlushBytes()
+	{
+		return flushBytes;
+	}
+
+	/**
+	 * Returns the latency threshold of the write coalescing.
+	 * 
+	 * @param unit
+	 *            the time unit of the result
+	 * @return the latency threshold, 0 if there is no latency bound
+	 */
+	public long getFlushDelay(TimeUnit unit)
+	{
+		return unit.convert(flushDelay, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sending the buffered data from the current socket.
+	 * <p>
+	 * The specified socket address <code>sa</code> will be ignored, it has the
+	 * same effect as {@linkplain #send(byte[], int, int)}.
+	 * </p>
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.net.SocketAddress, byte[],
+	 *      int, int)
+	 */
+	@Override
+	public void send(SocketAddress sa, byte[] b, int offset, int length)
+			throws TransactionStateException, TransactionException
+	{
+		send(b, offset, length);
+	}
+
+	/**
+	 * The specified socket address <code>sa</code> will be ignored, it has the
+	 * same effect as {@linkplain #send(ByteBuffer)}.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.net.SocketAddress,
+	 *      java.nio.ByteBuffer)
+	 */
+	@Override
+	public void send(SocketAddress sa, ByteBuffer buffer)
+			throws TransactionStateException, TransactionException
+	{
+		send(buffer);
+	}
+
+	/**
+	 * The specified socket address <code>sa</code> will be ignored, it has the
+	 * same effect as {@linkplain #send(ByteBuffer...)}.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.net.SocketAddress,
+	 *      java.nio.ByteBuffer[])
+	 */
+	@Override
+	public void send(SocketAddress sa, ByteBuffer... buffers)
+			throws TransactionStateException, TransactionException
+	{
+		send(buffers);
+	}
+
+	/**
+	 * Receive the transfered data according to the current
+	 * {@linkplain ReceiveMode receiving mode}, or receive one frame in
+	 * {@linkplain #setFramed(boolean) framed mode}.
+	 * 
+	 * @see com.frank.mpnet.Transaction#receive(java.nio.ByteBuffer)
+	 * @see #setReceiveMode(ReceiveMode)
+	 * @see #receiveFrame(ByteBuffer)
+	 */
+	@Override
+	public SocketInfo receive(ByteBuffer buffer) throws IOException
+	{
+		if (framed)
+			return receiveFrame(buffer);
+		return receive(buffer, receiveMode);
+	}
+
+	/**
+	 * Receive one frame and fill the specified buffer area with the frame
+	 * payload.
+	 * <p>
+	 * The frame headers are decoded from the read-ahead buffer, thus, one read
+	 * of the underlying socket may serve several small frames, while the
+	 * payload of a large frame is read directly into the specified buffer.
+	 * </p>
+	 * <p>
+	 * If the payload of the frame is larger than the remaining of the buffer, a
+	 * {@linkplain TransactionException} will be thrown and the payload stays
+	 * unconsumed, thus, the frame can still be received with a larger buffer.
+	 * </p>
+	 * 
+	 * @throws EOFException
+	 *             if the stream ends in the middle of a frame
+	 * @throws TransactionException
+	 *             if the frame is malformed or larger than the remaining of the
+	 *             buffer
+	 * @see com.frank.mpnet.Transaction#receiveFrame(java.nio.ByteBuffer)
+	 */
+	@Override
+	public SocketInfo receiveFrame(ByteBuffer buffer) throws IOException
+	{
+		return receiveFrame(new ByteBuffer[] { buffer });
+	}
+
+	/**
+	 * Receive one frame and scatter the frame payload into the specified
+	 * buffers in order.
+	 * <p>
+	 * The payload is read by scattering reads of the underlying channel if
+	 * exists, each buffer will be filled before the next one.
+	 * </p>
+	 * 
+	 * @throws EOFException
+	 *             if the stream ends in the middle of a frame
+	 * @throws TransactionException
+	 *             if the frame is malformed or larger than the total remaining
+	 *             of the buffers
+	 * @see #receiveFrame(ByteBuffer)
+	 * @see com.frank.mpnet.Transaction#receiveFrame(java.nio.ByteBuffer[])
+	 */
+	@Override
+	public SocketInfo receiveFrame(ByteBuffer... buffers) throws IOException
+	{
+		checkBlocking();
+		while (!codec.decodeHeader(readAhead()))
+		{
+			if (fill() == -1)
+			{
+				readLen = -1;
+				if (codec.isDecoding())
+					throw new EOFException(
+							"The stream ends in the middle of a frame header.");
+				return new SocketInfo(type, remoteAddr);
+			}
+		}
+		long remaining = NetUtils.remaining(buffers);
+		if (codec.getRemaining() > remaining)
+			throw new TransactionException(String.format(
+					"The frame length(%d) is larger than the buffer remaining(%d).",
+					codec.getRemaining(), remaining));
+		int[] limits = new int[buffers.length];
+		int left = codec.getRemaining();
+		for (int i = 0; i < buffers.length; i++)
+		{
+			limits[i] = buffers[i].limit();
+			int n = Math.min(left, buffers[i].remaining());
+			buffers[i].limit(buffers[i].position() + n);
+			left -= n;
+		}
+		try
+		{
+			while (!codec.isComplete())
+			{
+				long r = read(buffers);
+				if (r == -1)
+				{
+					readLen = -1;
+					throw new EOFException(
+							"The stream ends in the middle of a frame.");
+				}
+				codec.consume((int) r);
+			}
+		}
+		finally
+		{
+			for (int i = 0; i < buffers.length; i++)
+				buffers[i].limit(limits[i]);
+		}
+		readLen = codec.getLength();
+		codec.reset();
+		return new SocketInfo(type, remoteAddr);
+	}
+
+	/**
+	 * Receive the transfered data into a region of the specified file by
+	 * {@linkplain FileChannel#transferFrom(ReadableByteChannel, long, long)
+	 * transferring} it from the socket, the data will not pass through any
+	 * heap buffer.
+	 * <p>
+	 * The data already in the read-ahead buffer will be written first. In
+	 * {@linkplain #setFramed(boolean) framed mode}, exactly one frame will be
+	 * received; if the payload of the frame is larger than <code>count</code>,
+	 * a {@linkplain TransactionException} will be thrown and the payload stays
+	 * unconsumed.
+	 * </p>
+	 * 
+	 * @throws EOFException
+	 *             if the stream ends in the middle of a frame
+	 * @throws TransactionException
+	 *             if the frame is malformed or larger than <code>count</code>
+	 * @see com.frank.mpnet.Transaction#receiveToFile(java.nio.channels.FileChannel,
+	 *      long, long)
+	 */
+	@Override
+	public long receiveToFile(FileChannel file, long position, long count)
+			throws IOException, IllegalArgumentException
+	{
+		checkBlocking();
+		checkFilePosition(file, position, count);
+		long total = count;
+		if (framed)
+		{
+			while (!codec.decodeHeader(readAhead()))
+			{
+				if (fill() == -1)
+				{
+					readLen = -1;
+					if (codec.isDecoding())
+						throw new EOFException(
+								"The stream ends in the middle of a frame header.");
+					return 0;
+				}
+			}
+			if (codec.getRemaining() > count)
+				throw new TransactionException(String.format(
+						"The frame length(%d) is larger than the file region(%d).",
+						codec.getRemaining(), count));
+			total = codec.getRemaining();
+		}
+		long received = 0;
+		if (readAhead != null && readAhead.hasRemaining())
+		{
+			int limit = readAhead.limit();
+			try
+			{
+				readAhead.limit((int) Math.min(limit, readAhead.position()
+						+ total));
+				while (readAhead.hasRemaining())
+					received += file.write(readAhead, position + received);
+			}
+			finally
+			{
+				readAhead.limit(limit);
+			}
+		}
+		if (in == null && channel == null)
+			in = socket.getInputStream();
+		ReadableByteChannel source = channel != null ? channel : Channels
+				.newChannel(in);
+		while (received < total)
+		{
+			long n = file.transferFrom(source, position + received,
+					Math.min(total - received, FILE_CHUNK_SIZE));
+			if (n <= 0)
+			{
+				readLen = -1;
+				if (framed)
+					throw new EOFException(
+							"The stream ends in the middle of a frame.");
+				return received;
+			}
+			received += n;
+			markReceived();
+		}
+		if (framed)
+			codec.reset();
+		readLen = (int) Math.min(received, Integer.MAX_VALUE);
+		return received;
+	}
+
+	/**
+	 * Receive the transfered data by a scattering read according to the
+	 * current {@linkplain ReceiveMode receiving mode}, or receive one frame in
+	 * {@linkplain #setFramed(boolean) framed mode}.
+	 * 
+	 * @see com.frank.mpnet.Transaction#receive(java.nio.ByteBuffer[])
+	 * @see #receive(ReceiveMode, ByteBuffer...)
+	 */
+	@Override
+	public SocketInfo receive(ByteBuffer... buffers) throws IOException
+	{
+		if (framed)
+			return receiveFrame(buffers);
+		return receive(receiveMode, buffers);
+	}
+
+	/**
+	 * Receive the transfered data and scatter it into the specified buffers
+	 * in order in the specified receiving mode.
+	 * <p>
+	 * The data is read by scattering reads of the underlying channel if
+	 * exists, each buffer will be filled before the next one. Thus, a fixed
+	 * size header and its body can be received into two buffers by one read.
+	 * </p>
+	 * 
+	 * @param mode
+	 *            the receiving mode
+	 * @param buffers
+	 *            the buffers to fill
+	 * @return the socket information bean which contains the source data
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @see #receive(ByteBuffer, ReceiveMode)
+	 */
+	public SocketInfo receive(ReceiveMode mode, ByteBuffer... buffers)
+			throws IOException
+	{
+		checkBlocking();
+		long len = 0;
+		switch (mode)
+		{
+			default:
+			case Fully:
+				while (NetUtils.remaining(buffers) > 0)
+				{
+					long r = read(buffers);
+					if (r == -1)
+					{
+						len = -1;
+						break;
+					}
+					len += r;
+				}
+				break;
+			case Available:
+				if (NetUtils.remaining(buffers) > 0)
+					len = read(buffers);
+				break;
+		}
+		readLen = (int) Math.min(len, Integer.MAX_VALUE);
+		return new SocketInfo(type, remoteAddr);
+	}
+
+	/**
+	 * Receive the transfered data and fill the specified buffer area with
+	 * transfered data in the specified receiving mode.
+	 * <p>
+	 * After the receiving, the position of the buffer is advanced by the
+	 * number of bytes received. If the end of the stream is reached,
+	 * {@linkplain #hasNext()} will return <code>false</code>.
+	 * </p>
+	 * 
+	 * @param buffer
+	 *            the byte buffer to fill, either a heap buffer or a direct
+	 *            buffer
+	 * @param mode
+	 *            the receiving mode
+	 * @return the socket information bean which contains the source data
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	public SocketInfo receive(ByteBuffer buffer, ReceiveMode mode)
+			throws IOException
+	{
+		checkBlocking();
+		int len = 0;
+		switch (mode)
+		{
+			default:
+			case Fully:
+				while (buffer.hasRemaining())
+				{
+					int r = read(buffer);
+					if (r == -1)
+					{
+						len = -1;
+						break;
+					}
+					len += r;
+				}
+				break;
+			case Available:
+				if (buffer.hasRemaining())
+					len = read(buffer);
+				break;
+		}
+		readLen = len;
+		return new SocketInfo(type, remoteAddr);
+	}
+
+	/**
+	 * Reads a chunk of data into the specified buffer.
+	 * <p>
+	 * The data left in the read-ahead buffer will be consumed first. Then the
+	 * data will be read by the underlying channel if exists, or by the input
+	 * stream of the socket otherwise. While the input stream cannot fill a
+	 * direct buffer, the data will be read into the read-ahead buffer first.
+	 * </p>
+	 * 
+	 * @param dst
+	 *            the buffer to fill
+	 * @return the number of bytes read, or <code>-1</code> if the end of the
+	 *         stream is reached
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private int read(ByteBuffer dst) throws IOException
+	{
+		if (readAhead != null && readAhead.hasRemaining())
+			return NetUtils.transfer(readAhead, dst);
+		if (channel != null)
+		{
+			int r = channel.read(dst);
+			if (r > 0)
+				markReceived();
+			return r;
+		}
+		if (dst.hasArray())
+		{
+			if (in == null)
+				in = socket.getInputStream();
+			int r = in.read(dst.array(), dst.arrayOffset() + dst.position(),
+					dst.remaining());
+			if (r > 0)
+			{
+				dst.position(dst.position() + r);
+				markReceived();
+			}
+			return r;
+		}
+		int r = fill();
+		if (r <= 0)
+			return r;
+		return NetUtils.transfer(readAhead, dst);
+	}
+
+	/**
+	 * Reads a chunk of data into the specified buffers in order.
+	 * 
+	 * @param dsts
+	 *            the buffers to fill
+	 * @return the number of bytes read, or <code>-1</code> if the end of the
+	 *         stream is reached
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @see #read(ByteBuffer)
+	 */
+	private long read(ByteBuffer[] dsts) throws IOException
+	{
+		if (readAhead != null && readAhead.hasRemaining())
+		{
+			long n = 0;
+			for (ByteBuffer dst : dsts)
+				n += NetUtils.transfer(readAhead, dst);
+			return n;
+		}
+		if (channel != null)
+		{
+			long r = channel.read(dsts);
+			if (r > 0)
+				markReceived();
+			return r;
+		}
+		for (ByteBuffer dst : dsts)
+			if (dst.hasRemaining())
+				return read(dst);
+		return 0;
+	}
+
+	/**
+	 * Returns the read-ahead buffer, allocates it if not allocated yet.
+	 * <p>
+	 * The read-ahead buffer is always ready for reading, the unconsumed data
+	 * lies between its position and its limit.
+	 * </p>
+	 * 
+	 * @return the read-ahead buffer
+	 */
+	private ByteBuffer readAhead()
+	{
+		if (readAhead == null)
+		{
+			readAhead = channel == null ? ByteBuffer.allocate(READ_AHEAD_SIZE)
+					: ByteBuffer.allocateDirect(READ_AHEAD_SIZE);
+			readAhead.limit(0);
+		}
+		return readAhead;
+	}
+
+	/**
+	 * Reads as much data as currently available into the read-ahead buffer
+	 * after the unconsumed data.
+	 * 
+	 * @return the number of bytes read, or <code>-1</code> if the end of the
+	 *         stream is reached
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private int fill() throws IOException
+	{
+		ByteBuffer buffer = readAhead();
+		buffer.compact();
+		try
+		{
+			int r;
+			if (channel != null)
+				r = channel.read(buffer);
+			else
+			{
+				if (in == null)
+					in = socket.getInputStream();
+				r = in.read(buffer.array(),
+						buffer.arrayOffset() + buffer.position(),
+						buffer.remaining());
+				if (r > 0)
+					buffer.position(buffer.position() + r);
+			}
+			if (r > 0)
+				markReceived();
+			return r;
+		}
+		finally
+		{
+			buffer.flip();
+		}
+	}
+
+	/**
+	 * Writes all of the remaining data in the specified buffers by one
+	 * gathering write of the underlying channel if exists, or by the output
+	 * stream of the socket otherwise.
+	 * 
+	 * @param srcs
+	 *            the buffers to write
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void write(ByteBuffer... srcs) throws IOException
+	{
+		if (channel != null)
+		{
+			long rem = 0;
+			for (ByteBuffer src : srcs)
+				rem += src.remaining();
+			if (loop != null)
+			{
+				queue(srcs, rem);
+				return;
+			}
+			while (rem > 0)
+				rem -= channel.write(srcs);
+			markSent();
+			return;
+		}
+		if (out == null)
+			out = socket.getOutputStream();
+		for (ByteBuffer src : srcs)
+		{
+			if (src.hasArray())
+			{
+				out.write(src.array(), src.arrayOffset() + src.position(),
+						src.remaining());
+				src.position(src.limit());
+			}
+			else
+			{
+				byte[] b = new byte[Math.min(src.remaining(), READ_AHEAD_SIZE)];
+				while (src.hasRemaining())
+				{
+					int n = Math.min(src.remaining(), b.length);
+					src.get(b, 0, n);
+					out.write(b, 0, n);
+				}
+			}
+		}
+		markSent();
+	}
+
+	/**
+	 * Writes the data to the non-blocking channel as much as possible, and
+	 * queues the rest to write when the socket is writable.
+	 * <p>
+	 * The data will be queued directly if there is data queued before it.
+	 * While the queued data would exceed the
+	 * {@linkplain #setMaxPendingBytes(long) limit}, the sending waits for the
+	 * queued data to be written, or fails at once on the thread of the event
+	 * loop, which cannot wait for itself.
+	 * </p>
+	 * 
+	 * @param srcs
+	 *            the buffers to write
+	 * @param rem
+	 *            the total remaining of the buffers
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void queue(ByteBuffer[] srcs, long rem) throws IOException
+	{
+		if (pending == null)
+			pending = new ArrayDeque<ByteBuffer>();
+		while (!pending.isEmpty() && pendingBytes + rem > maxPendingBytes)
+		{
+			if (closed || !channel.isOpen())
+				throw new ClosedChannelException();
+			if (loop.inEventLoop())
+				throw new TransactionException(String.format(
+						"The queued data(%d + %d bytes) exceeds %d bytes.",
+						pendingBytes, rem, maxPendingBytes));
+			try
+			{
+				drained.await();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while waiting for the queued data.");
+			}
+		}
+		boolean empty = pending.isEmpty();
+		if (empty)
+		{
+			long n;
+			while (rem > 0 && (n = channel.write(srcs)) > 0)
+			{
+				rem -= n;
+				markSent();
+			}
+			if (rem == 0)
+				return;
+		}
+		for (ByteBuffer src : srcs)
+		{
+			if (src.hasRemaining())
+			{
+				ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+				copy.put(src);
+				copy.flip();
+				pending.add(copy);
+				pendingBytes += copy.remaining();
+			}
+		}
+		if (empty && key != null)
+			loop.interest(key, SelectionKey.OP_WRITE, true);
+	}
+
+	/**
+	 * Registers the transaction with the specified event loop, then the
+	 * received data will be delivered to the listener.
+	 * 
+	 * @param loop
+	 *            the event loop to drive the transaction
+	 * @param listener
+	 *            the listener of the transaction
+	 * @throws TransactionStateException
+	 *             if the socket has no channel
+	 */
+	void register(EventLoop loop, final TransactionListener listener)
+			throws TransactionStateException
+	{
+		if (channel == null)
+			throw new TransactionStateException(
+					"Only the socket with a channel can be driven by an event loop.");
+		this.listener = listener;
+		this.loop = loop;
+		loop.addConnections(1);
+		loop.register(channel, SelectionKey.OP_READ, new EventLoop.Handler()
+		{
+			@Override
+			public void registered(SelectionKey key) throws IOException
+			{
+				writeLock.lock();
+				try
+				{
+					TransactionTCP.this.key = key;
+					if (pending != null && !pending.isEmpty())
+						key.interestOps(key.interestOps()
+								| SelectionKey.OP_WRITE);
+				}
+				finally
+				{
+					writeLock.unlock();
+				}
+				listener.accepted(TransactionTCP.this);
+			}
+
+			@Override
+			public void ready(SelectionKey key) throws IOException
+			{
+				if (key.isWritable())
+					writeQueued();
+				if (key.isValid() && key.isReadable())
+					readReady();
+			}
+
+			@Override
+			public void close(Throwable cause)
+			{
+				closeInLoop(cause);
+			}
+		});
+	}
+
+	/**
+	 * Reads the available data and delivers it to the listener, called by the
+	 * event loop when the socket is readable.
+	 * 
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void readReady() throws IOException
+	{
+		ByteBuffer buffer = readAhead();
+		if (buffer.remaining() == buffer.capacity())
+		{
+			int max = Math.max(maxFrameLength, READ_AHEAD_SIZE);
+			if (buffer.capacity() >= max)
+			{
+				closeInLoop(new TransactionException(String.format(
+						"The unconsumed data exceeds %d bytes.", max)));
+				return;
+			}
+			growReadAhead((int) Math.min(buffer.capacity() * 2L, max));
+		}
+		if (fill() == -1)
+		{
+			readLen = -1;
+			closeInLoop(null);
+			return;
+		}
+		if (!framed)
+		{
+			readLen = readAhead.remaining();
+			if (readAhead.hasRemaining())
+				listener.received(this, readAhead);
+			return;
+		}
+		while (!closed && codec.decodeHeader(readAhead))
+		{
+			int length = codec.getRemaining();
+			if (length > maxFrameLength)
+			{
+				closeInLoop(new TransactionException(String.format(
+						"The frame length(%d) exceeds the maximum(%d).",
+						length, maxFrameLength)));
+				return;
+			}
+			if (readAhead.remaining() < length)
+			{
+				if (readAhead.capacity() < length)
+					growReadAhead(length);
+				return;
+			}
+			ByteBuffer frame = readAhead.slice();
+			frame.limit(length);
+			readAhead.position(readAhead.position() + length);
+			codec.reset();
+			readLen = length;
+			listener.received(this, frame);
+		}
+	}
+
+	/**
+	 * Replaces the read-ahead buffer with a larger one, the unconsumed data
+	 * will be kept.
+	 * 
+	 * @param capacity
+	 *            the capacity of the new buffer
+	 */
+	private void growReadAhead(int capacity)
+	{
+		ByteBuffer buffer = channel == null ? ByteBuffer.allocate(capacity)
+				: ByteBuffer.allocateDirect(capacity);
+		buffer.put(readAhead);
+		buffer.flip();
+		readAhead = buffer;
+	}
+
+	/**
+	 * Writes the queued data, called by the event loop when the socket is
+	 * writable.
+	 * 
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void writeQueued() throws IOException
+	{
+		writeLock.lock();
+		try
+		{
+			if (pending != null && !pending.isEmpty())
+			{
+				long n = channel.write(pending.toArray(new ByteBuffer[pending
+						.size()]));
+				if (n > 0)
+				{
+					pendingBytes -= n;
+					drained.signalAll();
+					markSent();
+				}
+				while (!pending.isEmpty() && !pending.peek().hasRemaining())
+					pending.poll();
+				if (!pending.isEmpty())
+					return;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+		if (closing)
+			closeInLoop(null);
+	}
+
+	/**
+	 * Closes the transaction driven by the event loop and notifies the
+	 * listener, called on the thread of the event loop.
+	 * 
+	 * @param cause
+	 *            the failure, <code>null</code> if closed normally
+	 */
+	private void closeInLoop(Throwable cause)
+	{
+		if (closed)
+			return;
+		writeLock.lock();
+		try
+		{
+			closed = true;
+			if (pending != null)
+				pending.clear();
+			pendingBytes = 0;
+			drained.signalAll();
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+		loop.addConnections(-1);
+		if (key != null)
+			key.cancel();
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			if (cause == null)
+				cause = e;
+		}
+		listener.closed(this, cause);
+	}
+
+	/**
+	 * Checks that the transaction is blocking, the data of the transaction
+	 * driven by an event loop can only be received by its listener.
+	 * 
+	 * @throws TransactionStateException
+	 *             if the transaction is driven by an event loop
+	 */
+	private void checkBlocking() throws TransactionStateException
+	{
+		if (loop != null)
+			throw new TransactionStateException(
+					"The transaction is driven by an event loop, the data can only be received by its listener.");
+	}
+
+	/**
+	 * Returns the event loop which drives the transaction.
+	 * 
+	 * @return the event loop, <code>null</code> if the transaction is blocking
+	 */
+	public EventLoop getEventLoop()
+	{
+		return loop;
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#getType()
+	 */
+	@Override
+	public SocketType getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#hasNext()
+	 */
+	@Override
+	public boolean hasNext()
+	{
+		if (socket == null || socket.isClosed())
+			return false;
+		return readLen >= 0;
+	}
+
+	/**
+	 * Returns <code>true</code> if the blocking transaction can be reused for
+	 * another exchange, that is, the connection is still open, nothing is left
+	 * unread, and the peer has neither closed the connection nor sent any
+	 * unexpected data.
+	 * <p>
+	 * The peer is probed by one non-blocking read of the channel, which
+	 * consumes nothing if the connection is healthy.
+	 * </p>
+	 * 
+	 * @return <code>true</code> if reusable
+	 */
+	boolean isReusable()
+	{
+		if (socket == null || socket.isClosed() || !socket.isConnected()
+				|| socket.isInputShutdown() || socket.isOutputShutdown()
+				|| readLen < 0 || loop != null)
+			return false;
+		if ((readAhead != null && readAhead.hasRemaining())
+				|| codec.hasHeader() || codec.isDecoding())
+			return false;
+		if (channel == null)
+			return true;
+		synchronized (channel.blockingLock())
+		{
+			try
+			{
+				channel.configureBlocking(false);
+				try
+				{
+					return channel.read(ByteBuffer.allocate(1)) == 0;
+				}
+				finally
+				{
+					channel.configureBlocking(true);
+				}
+			}
+			catch (IOException e)
+			{
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#allocateReceiveBuffer()
+	 */
+	@Override
+	public ByteBuffer allocateReceiveBuffer() throws TransactionException
+	{
+		if (socket.isClosed())
+			return ByteBuffer.allocate(0);
+		try
+		{
+			return ByteBuffer.allocate(socket.getReceiveBufferSize());
+		}
+		catch (Exception e)
+		{
+			throw new TransactionException("Failed to allocate the buffer: "
+					+ e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * Closes the transaction after the buffered data is written.
+	 * <p>
+	 * If the transaction is driven by an event loop, the socket will be closed
+	 * by the event loop after the queued data is written, and then the
+	 * listener will be notified.
+	 * </p>
+	 * 
+	 * @see com.frank.mpnet.Transaction#close()
+	 */
+	@Override
+	public void close()
+	{
+		if (socket == null || socket.isClosed())
+			return;
+		IOException failure = null;
+		boolean drained = true;
+		writeLock.lock();
+		try
+		{
+			checkFlushFailure();
+			flushBuffer();
+		}
+		catch (IOException e)
+		{
+			failure = e;
+		}
+		finally
+		{
+			if (loop != null)
+			{
+				closing = true;
+				drained = pending == null || pending.isEmpty();
+			}
+			writeLock.unlock();
+		}
+		if (loop != null)
+		{
+			if (failure != null || drained)
+			{
+				final IOException cause = failure;
+				loop.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						closeInLoop(cause);
+					}
+				});
+			}
+			return;
+		}
+		try
+		{
+			socket.shutdownInput();
+			socket.shutdownOutput();
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			throw new TransactionException(
+					"Failed while closing the transaction: "
+							+ e.getLocalizedMessage(), e);
+		}
+		if (failure != null)
+			throw new TransactionException(
+					"Failed to flush while closing the transaction: "
+							+ failure.getLocalizedMessage(), failure);
+	}
+
+	/**
+	 * Closes the socket without flushing the buffered data, thus, the blocked
+	 * reading or writing fails at once. The transaction is unusable
+	 * afterwards, the connection is destroyed.
+	 * 
+	 * @see com.frank.mpnet.Transaction#abort()
+	 */
+	@Override
+	protected void abort()
+	{
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			// the operation fails anyway
+		}
+		// wakes up the sending waiting for the queued data
+		if (loop != null && writeLock.tryLock())
+		{
+			try
+			{
+				drained.signalAll();
+			}
+			finally
+			{
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns an input stream for this socket.
+	 * <p>
+	 * If this socket has an associated channel then the resulting input stream
+	 * delegates all of its operations to the channel. If the channel is in
+	 * non-blocking mode then the input stream's <tt>read</tt> operations will
+	 * throw an {@link java.nio.channels.IllegalBlockingModeException}.
+	 * <p>
+	 * Under abnormal conditions the underlying connection may be broken by the
+	 * remote host or the network software (for example a connection reset in
+	 * the case of TCP connections). When a broken connection is detected by the
+	 * network software the following applies to the returned input stream :-
+	 * <ul>
+	 * <li>
+	 * <p>
+	 * The network software may discard bytes that are buffered by the socket.
+	 * Bytes that aren't discarded by the network software can be read using
+	 * {@link java.io.InputStream#read read}.
+	 * <li>
+	 * <p>
+	 * If there are no bytes buffered on the socket, or all buffered bytes have
+	 * been consumed by {@link java.io.InputStream#read read}, then all
+	 * subsequent calls to {@link java.io.InputStream#read read} will throw an
+	 * {@link java.io.IOException IOException}.
+	 * <li>
+	 * <p>
+	 * If there are no bytes buffered on the socket, and the socket has not been
+	 * closed using {@link #close close}, then
+	 * {@link java.io.InputStream#available available} will return
+	 * <code>0</code>.
+	 * </ul>
+	 * <p>
+	 * Closing the returned {@link java.io.InputStream InputStream} will close
+	 * the associated socket.
+	 * 
+	 * @return an input stream for reading bytes from this socket.
+	 * @exception IOException
+	 *                if an I/O error occurs when creating the input stream, the
+	 *                socket is closed, the socket is not connected, or the
+	 *                socket input has been shutdown
+	 */
+	public InputStream getInputStream() throws IOException
+	{
+		return (in == null) ? socket.getInputStream() : in;
+	}
+
+	/**
+	 * Returns an output stream for this socket.
+	 * <p>
+	 * If this socket has an associated channel then the resulting output stream
+	 * delegates all of its operations to the channel. If the channel is in
+	 * non-blocking mode then the output stream's <tt>write</tt> operations will
+	 * throw an {@link java.nio.channels.IllegalBlockingModeException}.
+	 * <p>
+	 * Closing the returned {@link java.io.OutputStream OutputStream} will close
+	 * the associated socket.
+	 * 
+	 * @return an output stream for writing bytes to this socket.
+	 * @exception IOException
+	 *                if an I/O error occurs when creating the output stream or
+	 *                if the socket is not connected.
+	 */
+	public OutputStream getOutputStream() throws IOException
+	{
+		return (out == null) ? socket.getOutputStream() : out;
+	}
+
+	/**
+	 * Returns the receiving mode of the transaction.
+	 * 
+	 * @return the receiving mode
+	 */
+	public ReceiveMode getReceiveMode()
+	{
+		return receiveMode;
+	}
+
+	/**
+	 * Set the receiving mode of the transaction.
+	 * 
+	 * @param mode
+	 *            the receiving mode to set, <code>null</code> if use default
+	 *            mode ({@linkplain ReceiveMode#Fully fully})
+	 */
+	public void setReceiveMode(ReceiveMode mode)
+	{
+		this.receiveMode = mode == null ? ReceiveMode.Fully : mode;
+	}
+
+	/**
+	 * Returns <code>true</code> if the transaction transfers the data in
+	 * length-prefixed frames.
+	 * 
+	 * @return the framed flag
+	 */
+	public boolean isFramed()
+	{
+		return framed;
+	}
+
+	/**
+	 * Set the framed flag.
+	 * <p>
+	 * <code>true</code> if the transaction transfers the data in
+	 * length-prefixed frames, then each {@linkplain #send(byte[], int, int)
+	 * sending} will be sent as a frame and each
+	 * {@linkplain #receive(ByteBuffer) receiving} will receive exactly one
+	 * frame. Both points of the connection shall agree on the flag.
+	 * </p>
+	 * 
+	 * @param framed
+	 *            the framed flag
+	 */
+	public void setFramed(boolean framed)
+	{
+		this.framed = framed;
+	}
+
+	/**
+	 * Returns the maximum length of a frame received by the event loop.
+	 * 
+	 * @return the maximum frame length in bytes
+	 */
+	public int getMaxFrameLength()
+	{
+		return maxFrameLength;
+	}
+
+	/**
+	 * Set the maximum length of a frame received by the event loop.
+	 * <p>
+	 * The read-ahead buffer of the event loop grows to hold a whole frame, thus,
+	 * a frame header longer than the maximum closes the transaction with a
+	 * {@linkplain TransactionException} before any memory is allocated for it.
+	 * In unframed mode, it also limits the data left unconsumed by the
+	 * listener.
+	 * </p>
+	 * 
+	 * @param maxFrameLength
+	 *            the maximum frame length in bytes
+	 * @throws IllegalArgumentException
+	 *             if <code>maxFrameLength</code> is not positive
+	 */
+	public void setMaxFrameLength(int maxFrameLength)
+			throws IllegalArgumentException
+	{
+		if (maxFrameLength < 1)
+			throw new IllegalArgumentException(String.format(
+					"The maximum frame length(%d) shall be positive.",
+					maxFrameLength));
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	/**
+	 * Returns the maximum bytes queued to write by the event loop.
+	 * 
+	 * @return the maximum queued bytes
+	 */
+	public long getMaxPendingBytes()
+	{
+		return maxPendingBytes;
+	}
+
+	/**
+	 * Set the maximum bytes queued to write by the event loop.
+	 * <p>
+	 * While the data not yet accepted by a slow peer exceeds the maximum, the
+	 * sending blocks until the event loop writes the queued data; on the
+	 * thread of the event loop, the sending fails with a
+	 * {@linkplain TransactionException} instead. A message larger than the
+	 * maximum is still queued if nothing is queued before it.
+	 * </p>
+	 * 
+	 * @param maxPendingBytes
+	 *            the maximum queued bytes
+	 * @throws IllegalArgumentException
+	 *             if <code>maxPendingBytes</code> is not positive
+	 */
+	public void setMaxPendingBytes(long maxPendingBytes)
+			throws IllegalArgumentException
+	{
+		if (maxPendingBytes < 1)
+			throw new IllegalArgumentException(String.format(
+					"The maximum queued bytes(%d) shall be positive.",
+					maxPendingBytes));
+		this.maxPendingBytes = maxPendingBytes;
 	}
 
 	/**
@@ -373,7 +2057,7 @@ public class TransactionTCP extends Transaction
 	 * 
 	 * @return doFlush flag
 	 */
-	protected synchronized boolean isDoFlush()
+	protected boolean isDoFlush()
 	{
 		return doFlush;
 	}
@@ -389,7 +2073,7 @@ public class TransactionTCP extends Transaction
 	 * @param doFlush
 	 *            the doFlush flag
 	 */
-	protected synchronized void setDoFlush(boolean doFlush)
+	protected void setDoFlush(boolean doFlush)
 	{
 		this.doFlush = doFlush;
 	}
@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TransactionTCPAsync.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The asynchronous TCP transaction based on an
+ * {@linkplain AsynchronousSocketChannel}.
+ * <p>
+ * The operations started by {@linkplain #sendAsync(ByteBuffer)} and
+ * {@linkplain #receiveAsync(ByteBuffer)} never block the calling thread. The
+ * channel allows only one outstanding write and one outstanding read, thus,
+ * the operations started before the previous ones complete are queued and
+ * started in order. The completion handlers of the futures run on the
+ * executor of the session.
+ * </p>
+ * <p>
+ * The blocking methods are also available, they start the asynchronous
+ * operations and wait for them.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ * @see SessionTCPAsync
+ */
+public class TransactionTCPAsync extends Transaction
+{
+	/**
+	 * The pending operation.
+	 * <p>
+	 * A queued operation is withdrawn if its future is cancelled, while a
+	 * started one refuses the cancellation, since its data may be transfered
+	 * partially and shall be delivered to its own buffer.
+	 * </p>
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 * @param <V>
+	 *            the type of the result
+	 */
+	private class Operation<V>
+	{
+		/**
+		 * The queue of the operation.
+		 */
+		final ArrayDeque<Operation<V>>	queue;
+		/**
+		 * The buffer of the operation.
+		 */
+		final ByteBuffer				buffer;
+		/**
+		 * The future of the operation.
+		 */
+		final TransactionFuture<V>		future;
+		/**
+		 * The number of bytes transfered.
+		 */
+		int								transfered;
+		/**
+		 * The flag for the operation started, guarded by the lock.
+		 */
+		boolean							started;
+
+		/**
+		 * Construct an instance of <tt>Operation</tt>.
+		 * 
+		 * @param queue
+		 *            the queue of the operation
+		 * @param buffer
+		 *            the buffer of the operation
+		 */
+		Operation(ArrayDeque<Operation<V>> queue, ByteBuffer buffer)
+		{
+			this.queue = queue;
+			this.buffer = buffer;
+			this.future = new TransactionFuture<V>(executor)
+			{
+				@Override
+				public boolean cancel(boolean mayInterruptIfRunning)
+				{
+					return withdraw(Operation.this)
+							&& super.cancel(mayInterruptIfRunning);
+				}
+			};
+		}
+	}
+
+	/**
+	 * The underlying channel.
+	 */
+	protected final AsynchronousSocketChannel		channel;
+	/**
+	 * The type of the transaction.
+	 */
+	protected final SocketType						type;
+	/**
+	 * The executor to run the completion handlers, <code>null</code> if run
+	 * them on the I/O threads.
+	 */
+	protected final Executor						executor;
+	/**
+	 * The remote address.
+	 */
+	protected SocketAddress							remoteAddr;
+	/**
+	 * The lock of the operation queues.
+	 */
+	private final ReentrantLock						lock	= new ReentrantLock();
+	/**
+	 * The queued writes, the head is being written.
+	 */
+	private final ArrayDeque<Operation<Integer>>	writes	= new ArrayDeque<Operation<Integer>>();
+	/**
+	 * The queued reads, the head is being read.
+	 */
+	private final ArrayDeque<Operation<SocketInfo>>	reads	= new ArrayDeque<Operation<SocketInfo>>();
+	/**
+	 * The length of previous read.
+	 */
+	private volatile int							readLen;
+	/**
+	 * The handler of the completed writes.
+	 */
+	private final Writer							writer	= new Writer();
+	/**
+	 * The handler of the completed reads.
+	 */
+	private final Reader							reader	= new Reader();
+
+	/**
+	 * The handler of the completed writes, which continues the partial write
+	 * or starts the next queued write.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	private class Writer implements
+			CompletionHandler<Integer, Operation<Integer>>
+	{
+		/**
+		 * @see java.nio.channels.CompletionHandler#completed(java.lang.Object,
+		 *      java.lang.Object)
+		 */
+		@Override
+		public void completed(Integer n, Operation<Integer> op)
+		{
+			op.transfered += n;
+			markSent();
+			if (op.buffer.hasRemaining())
+			{
+				write(op);
+				return;
+			}
+			op.future.complete(op.transfered);
+			Operation<Integer> next = next(writes);
+			if (next != null)
+				write(next);
+		}
+
+		/**
+		 * @see java.nio.channels.CompletionHandler#failed(java.lang.Throwable,
+		 *      java.lang.Object)
+		 */
+		@Override
+		public void failed(Throwable cause, Operation<Integer> op)
+		{
+			failAll(writes, cause);
+		}
+	}
+
+	/**
+	 * The handler of the completed reads, which starts the next queued read.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	private class Reader implements
+			CompletionHandler<Integer, Operation<SocketInfo>>
+	{
+		/**
+		 * @see java.nio.channels.CompletionHandler#completed(java.lang.Object,
+		 *      java.lang.Object)
+		 */
+		@Override
+		public void completed(Integer n, Operation<SocketInfo> op)
+		{
+			readLen = n;
+			if (n > 0)
+				markReceived();
+			op.future.complete(new SocketInfo(type, remoteAddr));
+			Operation<SocketInfo> next = next(reads);
+			if (next != null)
+				read(next);
+		}
+
+		/**
+		 * @see java.nio.channels.CompletionHandler#failed(java.lang.Throwable,
+		 *      java.lang.Object)
+		 */
+		@Override
+		public void failed(Throwable cause, Operation<SocketInfo> op)
+		{
+			failAll(reads, cause);
+		}
+	}
+
+	/**
+	 * Construct an instance of <tt>TransactionTCPAsync</tt>.
+	 * 
+	 * @param channel
+	 *            the connected channel
+	 * @param type
+	 *            the type of the transaction
+	 * @param executor
+	 *            the executor to run the completion handlers,
+	 *            <code>null</code> if run them on the I/O threads
+	 */
+	protected TransactionTCPAsync(AsynchronousSocketChannel channel,
+			SocketType type, Executor executor)
+	{
+		this.channel = channel;
+		this.type = type;
+		this.executor = executor;
+		try
+		{
+			remoteAddr = channel.getRemoteAddress();
+		}
+		catch (IOException e)
+		{
+			remoteAddr = null;
+		}
+	}
+
+	/**
+	 * Send the remaining data of the specified buffer without blocking.
+	 * 
+	 * @see com.frank.mpnet.Transaction#sendAsync(java.nio.ByteBuffer)
+	 */
+	@Override
+	public TransactionFuture<Integer> sendAsync(ByteBuffer buffer)
+	{
+		Operation<Integer> op = new Operation<Integer>(writes, buffer);
+		if (enqueue(op))
+			write(op);
+		return op.future;
+	}
+
+	/**
+	 * Send the remaining data of the specified buffer without blocking, the
+	 * socket address will be ignored.
+	 * 
+	 * @see com.frank.mpnet.Transaction#sendAsync(java.net.SocketAddress,
+	 *      java.nio.ByteBuffer)
+	 */
+	@Override
+	public TransactionFuture<Integer> sendAsync(SocketAddress sa,
+			ByteBuffer buffer)
+	{
+		return sendAsync(buffer);
+	}
+
+	/**
+	 * Receive the available data into the specified buffer without blocking.
+	 * <p>
+	 * The future is completed once any data is received. If the end of the
+	 * stream is reached, the buffer stays unchanged and
+	 * {@linkplain #hasNext()} will return <code>false</code>. The future of a
+	 * queued receiving can be cancelled, while the one already reading refuses
+	 * the cancellation, thus, no data is lost.
+	 * </p>
+	 * 
+	 * @see com.frank.mpnet.Transaction#receiveAsync(java.nio.ByteBuffer)
+	 */
+	@Override
+	public TransactionFuture<SocketInfo> receiveAsync(ByteBuffer buffer)
+	{
+		Operation<SocketInfo> op = new Operation<SocketInfo>(reads, buffer);
+		if (enqueue(op))
+			read(op);
+		return op.future;
+	}
+
+	/**
+	 * Starts writing the operation, the queued writes fail if the channel
+	 * refuses it.
+	 * 
+	 * @param op
+	 *            the write operation
+	 */
+	private void write(Operation<Integer> op)
+	{
+		try
+		{
+			channel.write(op.buffer, op, writer);
+		}
+		catch (RuntimeException e)
+		{
+			// such as the channel group is shut down
+			failAll(writes, e);
+		}
+	}
+
+	/**
+	 * Starts reading the operation, the queued reads fail if the channel
+	 * refuses it.
+	 * 
+	 * @param op
+	 *            the read operation
+	 */
+	private void read(Operation<SocketInfo> op)
+	{
+		try
+		{
+			channel.read(op.buffer, op, reader);
+		}
+		catch (RuntimeException e)
+		{
+			// such as the channel group is shut down
+			failAll(reads, e);
+		}
+	}
+
+	/**
+	 * Adds the operation to its queue.
+	 * 
+	 * @param op
+	 *            the operation
+	 * @return <code>true</code> if the operation is the head of the queue and
+	 *         shall be started by the caller
+	 */
+	private <V> boolean enqueue(Operation<V> op)
+	{
+		lock.lock();
+		try
+		{
+			op.queue.add(op);
+			return op.started = op.queue.size() == 1;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the completed head of the queue and returns the next operation
+	 * to start.
+	 * 
+	 * @param queue
+	 *            the queue of the operations
+	 * @return the next operation, <code>null</code> if the queue is empty
+	 */
+	private <V> Operation<V> next(ArrayDeque<Operation<V>> queue)
+	{
+		lock.lock();
+		try
+		{
+			queue.poll();
+			Operation<V> next = queue.peek();
+			if (next != null)
+				next.started = true;
+			return next;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Withdraws the operation from its queue unless it is started.
+	 * 
+	 * @param op
+	 *            the operation
+	 * @return <code>true</code> if withdrawn
+	 */
+	private <V> boolean withdraw(Operation<V> op)
+	{
+		lock.lock();
+		try
+		{
+			return !op.started && op.queue.remove(op);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Fails all of the queued operations, the connection is broken after any
+	 * operation fails.
+	 * 
+	 * @param queue
+	 *            the queue of the operations
+	 * @param cause
+	 *            the failure
+	 */
+	private <V> void failAll(ArrayDeque<Operation<V>> queue, Throwable cause)
+	{
+		ArrayDeque<Operation<V>> failed;
+		lock.lock();
+		try
+		{
+			failed = new ArrayDeque<Operation<V>>(queue);
+			queue.clear();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		for (Operation<V> op : failed)
+			op.future.fail(cause);
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#send(byte[], int, int)
+	 */
+	@Override
+	public void send(byte[] b, int offset, int length)
+			throws TransactionStateException, TransactionException
+	{
+		send(ByteBuffer.wrap(b, offset, length));
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#send(java.nio.ByteBuffer)
+	 */
+	@Override
+	public void send(ByteBuffer buffer) throws TransactionStateException,
+			TransactionException
+	{
+		try
+		{
+			sendAsync(buffer).await();
+		}
+		catch (IOException e)
+		{
+			throw new TransactionException("Fail to send: "
+					+ e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * Send specified data to the connected socket, the socket address will be
+	 * ignored.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.net.SocketAddress, byte[],
+	 *      int, int)
+	 */
+	@Override
+	public void send(SocketAddress sa, byte[] b, int offset, int length)
+			throws TransactionStateException, TransactionException
+	{
+		send(b, offset, length);
+	}
+
+	/**
+	 * Receive the available data into the specified buffer.
+	 * 
+	 * @see com.frank.mpnet.Transaction#receive(java.nio.ByteBuffer)
+	 * @see #receiveAsync(ByteBuffer)
+	 */
+	@Override
+	public SocketInfo receive(ByteBuffer buffer) throws IOException
+	{
+		return receiveAsync(buffer).await();
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#getType()
+	 */
+	@Override
+	public SocketType getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#hasNext()
+	 */
+	@Override
+	public boolean hasNext() throws TransactionException
+	{
+		return channel.isOpen() && readLen >= 0;
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#allocateReceiveBuffer()
+	 */
+	@Override
+	public ByteBuffer allocateReceiveBuffer() throws TransactionException
+	{
+		if (!channel.isOpen())
+			return ByteBuffer.allocate(0);
+		try
+		{
+			return ByteBuffer.allocate(channel
+					.getOption(StandardSocketOptions.SO_RCVBUF));
+		}
+		catch (IOException e)
+		{
+			throw new TransactionException("Failed to allocate the buffer: "
+					+ e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * Closes the channel, the pending operations will fail.
+	 * 
+	 * @see com.frank.mpnet.Transaction#close()
+	 */
+	@Override
+	public void close() throws TransactionException
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			throw new TransactionException(
+					"Failed while closing the transaction: "
+							+ e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns the underlying channel.
+	 * 
+	 * @return the underlying channel
+	 */
+	public AsynchronousSocketChannel getChannel()
+	{
+		return channel;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TransactionTCPPooled.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The TCP transaction borrowed from a {@linkplain SessionTCPPool pooled
+ * session}.
+ * <p>
+ * {@linkplain #close() Closing} the transaction returns its connection to the
+ * pool instead of closing the socket, thus, the next transaction to the same
+ * remote address can skip the handshake. The settings of the transaction,
+ * such as the {@linkplain #setFramed(boolean) framing}, are kept while it is
+ * pooled. A transaction whose exchange is broken shall be
+ * {@linkplain #discard() discarded} instead.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TransactionTCPPooled extends TransactionTCP
+{
+	/**
+	 * The pool which owns the transaction.
+	 */
+	private final SessionTCPPool.Pool	pool;
+	/**
+	 * The flag for the transaction borrowed from the pool.
+	 */
+	private final AtomicBoolean			borrowed	= new AtomicBoolean();
+	/**
+	 * The time when the transaction was returned to the pool in nanoseconds.
+	 */
+	long								idleSince;
+
+	/**
+	 * Construct an instance of <tt>TransactionTCPPooled</tt>.
+	 * 
+	 * @param pool
+	 *            the pool which owns the transaction
+	 * @param socket
+	 *            the connected socket
+	 */
+	TransactionTCPPooled(SessionTCPPool.Pool pool, Socket socket)
+	{
+		super(socket, SocketType.TCP_CLIENT);
+		this.pool = pool;
+	}
+
+	/**
+	 * Marks the transaction borrowed from the pool.
+	 */
+	void borrow()
+	{
+		borrowed.set(true);
+	}
+
+	/**
+	 * Returns the transaction to the pool after the buffered data is written.
+	 * <p>
+	 * If the connection is no longer healthy, it will be closed and removed
+	 * from the pool. Closing a returned transaction has no effect.
+	 * </p>
+	 * 
+	 * @see com.frank.mpnet.TransactionTCP#close()
+	 */
+	@Override
+	public void close()
+	{
+		if (!borrowed.compareAndSet(true, false))
+			return;
+		try
+		{
+			flush();
+		}
+		catch (TransactionException e)
+		{
+			pool.discard(this);
+			return;
+		}
+		pool.release(this);
+	}
+
+	/**
+	 * Closes the connection and removes it from the pool, such as after a
+	 * failed or an abandoned exchange. Discarding a returned transaction has
+	 * no effect.
+	 */
+	public void discard()
+	{
+		if (borrowed.compareAndSet(true, false))
+			pool.discard(this);
+	}
+
+	/**
+	 * Returns <code>true</code> if the transaction is borrowed from the pool.
+	 * 
+	 * @return <code>true</code> if borrowed
+	 */
+	public boolean isBorrowed()
+	{
+		return borrowed.get();
+	}
+
+	/**
+	 * Closes the underlying connection.
+	 */
+	void destroy()
+	{
+		try
+		{
+			super.close();
+		}
+		catch (TransactionException e)
+		{
+			// the connection is already broken
+		}
+	}
+}
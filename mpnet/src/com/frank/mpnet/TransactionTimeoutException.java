@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TransactionTimeoutException.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+/**
+ * The transaction timeout exception.
+ * <p>
+ * A transaction timeout exception refers to an exception for which the
+ * deadline of a transaction operation passed before the operation completed,
+ * such as a receiving from a slow peer.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TransactionTimeoutException extends TransactionException
+{
+	/**
+	 * serialVersionUID.
+	 */
+	private static final long	serialVersionUID	= 3126481549385102917L;
+
+	/**
+	 * Constructs a new transaction timeout exception with {@code null} as its
+	 * detail message. The cause is not initialized, and may subsequently be
+	 * initialized by a call to {@link #initCause}.
+	 */
+	public TransactionTimeoutException()
+	{
+		super();
+	}
+
+	/**
+	 * Constructs a new transaction timeout exception with the specified detail
+	 * message. The cause is not initialized, and may subsequently be
+	 * initialized by a call to {@link #initCause}.
+	 * 
+	 * @param message
+	 *            the detail message. The detail message is saved for later
+	 *            retrieval by the {@link #getMessage()} method.
+	 */
+	public TransactionTimeoutException(String message)
+	{
+		super(message);
+	}
+
+	/**
+	 * Constructs a new transaction timeout exception with the specified detail
+	 * message and cause.
+	 * <p>
+	 * Note that the detail message associated with {@code cause} is <i>not</i>
+	 * automatically incorporated in this runtime exception's detail message.
+	 * 
+	 * @param message
+	 *            the detail message (which is saved for later retrieval by the
+	 *            {@link #getMessage()} method).
+	 * @param cause
+	 *            the cause (which is saved for later retrieval by the
+	 *            {@link #getCause()} method). (A <tt>null</tt> value is
+	 *            permitted, and indicates that the cause is nonexistent or
+	 *            unknown.)
+	 * @since 1.4
+	 */
+	public TransactionTimeoutException(String message, Throwable cause)
+	{
+		super(message, cause);
+	}
+
+	/**
+	 * Constructs a new transaction timeout exception with the specified cause
+	 * and a detail message of <tt>(cause==null ? null : cause.toString())</tt>
+	 * (which typically contains the class and detail message of
+	 * <tt>cause</tt>). This constructor is useful for runtime exceptions that
+	 * are little more than wrappers for other throwables.
+	 * 
+	 * @param cause
+	 *            the cause (which is saved for later retrieval by the
+	 *            {@link #getCause()} method). (A <tt>null</tt> value is
+	 *            permitted, and indicates that the cause is nonexistent or
+	 *            unknown.)
+	 * @since 1.4
+	 */
+	public TransactionTimeoutException(Throwable cause)
+	{
+		super(cause);
+	}
+
+	/**
+	 * Constructs a new transaction timeout exception with the specified detail
+	 * message, cause, suppression enabled or disabled, and writable stack
+	 * trace enabled or disabled.
+	 * 
+	 * @param message
+	 *            the detail message.
+	 * @param cause
+	 *            the cause. (A {@code null} value is permitted, and indicates
+	 *            that the cause is nonexistent or unknown.)
+	 * @param enableSuppression
+	 *            whether or not suppression is enabled or disabled
+	 * @param writableStackTrace
+	 *            whether or not the stack trace should be writable
+	 * @since 1.7
+	 */
+	protected TransactionTimeoutException(String message, Throwable cause,
+			boolean enableSuppression, boolean writableStackTrace)
+	{
+		super(message, cause, enableSuppression, writableStackTrace);
+	}
+}
@@ -10,11 +10,25 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The transaction implementation for UDP.
  * <p>
+ * If the underlying datagram socket is created by a
+ * {@linkplain DatagramChannel}, the byte buffers will be sent by the channel
+ * directly without copying into a datagram packet. The datagrams are received
+ * into the specified buffers directly as well, and the source informations are
+ * interned for each peer, thus, the steady receiving allocates nothing.
  * </p>
  * 
  * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
@@ -39,9 +53,23 @@ public class TransactionUDP extends Transaction
 		Exception,
 		/**
 		 * Subcontracts the over-size packet into several equal size packets if
-		 * the packet size is too large.
+		 * the packet size is too large, or larger than the path MTU if the
+		 * {@linkplain TransactionUDP#setPathMtuDiscovery(boolean) path MTU
+		 * discovery} is enabled.
 		 */
-		Subcontracting;
+		Subcontracting,
+		/**
+		 * Sends each message in the fragments with a header of the message ID,
+		 * the message length, the fragment index and the fragment count, and
+		 * {@linkplain TransactionUDP#receive(ByteBuffer) receives} the whole
+		 * messages reassembled whatever the order the fragments arrive in.
+		 * Both peers shall use this policy. The batched, the asynchronous and
+		 * the file operations send and receive the raw datagrams. The
+		 * fragments may be protected by the
+		 * {@linkplain TransactionUDP#setErrorCorrection(ErrorCorrection)
+		 * forward error correction}.
+		 */
+		Fragmentation;
 	}
 
 	/**
@@ -53,6 +81,28 @@ public class TransactionUDP extends Transaction
 	 * </p>
 	 */
 	public static final int			MAX_UDP_PACKET	= 0xffff - 28;
+	/**
+	 * The minimum size of the internal gathering and scattering buffers.
+	 */
+	private static final int		GATHER_SIZE		= 8192;
+	/**
+	 * The maximum number of the interned source informations.
+	 */
+	private static final int		MAX_SOURCES		= 4096;
+	/**
+	 * The default maximum memory of the reassembly in bytes.
+	 */
+	public static final long		DEFAULT_REASSEMBLY_MEMORY	= 4 << 20;
+	/**
+	 * The default timeout of an incomplete message in milliseconds.
+	 */
+	public static final long		DEFAULT_REASSEMBLY_TIMEOUT	= 5000;
+	/**
+	 * The generator of the message IDs of the fragmentation, shared by the
+	 * transactions of the same socket.
+	 */
+	private static final AtomicInteger	MESSAGE_IDS				= new AtomicInteger(
+																		(int) System.nanoTime());
 	/**
 	 * The customize maximum UDP datagram length.
 	 */
@@ -65,6 +115,11 @@ public class TransactionUDP extends Transaction
 	 * The datagram socket in the net transmission session.
 	 */
 	protected DatagramSocket		socket;
+	/**
+	 * The channel of the underlying datagram socket, <code>null</code> if the
+	 * socket is not created by a channel.
+	 */
+	protected DatagramChannel		channel;
 	/**
 	 * The connected remote socket address.
 	 */
@@ -77,6 +132,65 @@ public class TransactionUDP extends Transaction
 	 * The policy lock.
 	 */
 	private Object					policyLock		= new Object();
+	/**
+	 * The lock of the gathering buffer.
+	 */
+	private final ReentrantLock		sendLock		= new ReentrantLock();
+	/**
+	 * The gathering buffer for sending several buffers in one datagram.
+	 */
+	private ByteBuffer				gatherBuffer;
+	/**
+	 * The lock of the scattering buffer.
+	 */
+	private final ReentrantLock		receiveLock		= new ReentrantLock();
+	/**
+	 * The scattering buffer for receiving one datagram into several buffers.
+	 */
+	private ByteBuffer				scatterBuffer;
+	/**
+	 * The buffer of the sending fragment, guarded by the sending lock.
+	 */
+	private ByteBuffer				fragmentBuffer;
+	/**
+	 * The buffer of the receiving fragment, guarded by the receiving lock.
+	 */
+	private ByteBuffer				datagramBuffer;
+	/**
+	 * The forward error correction of the sending fragments,
+	 * <code>null</code> if none.
+	 */
+	private volatile ErrorCorrection	errorCorrection;
+	/**
+	 * The flag of sizing the datagrams by the path MTU.
+	 */
+	private volatile boolean		pathMtuDiscovery;
+	/**
+	 * The coder of the parity fragments, guarded by the sending lock.
+	 */
+	private ErasureCoder			encoder;
+	/**
+	 * The reassembly engine, <code>null</code> until the first fragment.
+	 */
+	private volatile Reassembler	reassembler;
+	/**
+	 * The maximum memory of the reassembly in bytes.
+	 */
+	private volatile long			reassemblyMemory	= DEFAULT_REASSEMBLY_MEMORY;
+	/**
+	 * The timeout of an incomplete message in nanoseconds.
+	 */
+	private volatile long			reassemblyTimeout	= TimeUnit.MILLISECONDS
+																.toNanos(DEFAULT_REASSEMBLY_TIMEOUT);
+	/**
+	 * The blocking mode of the channel shared with the other transactions of
+	 * the session.
+	 */
+	private final SharedDatagramChannel	shared;
+	/**
+	 * The interned source informations of the received datagrams.
+	 */
+	private final ConcurrentHashMap<SocketAddress, SocketInfo>	sources	= new ConcurrentHashMap<SocketAddress, SocketInfo>();
 
 	/**
 	 * Construct an instance of <tt>TransactionUDP</tt> with specified
@@ -95,8 +209,34 @@ public class TransactionUDP extends Transaction
 	 */
 	protected TransactionUDP(DatagramSocket socket, int maxLength, Policy policy)
 			throws IllegalArgumentException
+	{
+		this(socket, maxLength, policy, new SharedDatagramChannel(socket
+				.getChannel()));
+	}
+
+	/**
+	 * Construct an instance of <tt>TransactionUDP</tt> whose channel is
+	 * shared with the other transactions of a session.
+	 * 
+	 * @param socket
+	 *            the datagram socket in the net transmission session
+	 * @param maxLength
+	 *            the maximum length of the packet
+	 * @param policy
+	 *            the packet size overflow dealing policy, <code>null</code> if
+	 *            use default policy (subcontracting)
+	 * @param shared
+	 *            the blocking mode of the shared channel
+	 * @throws IllegalArgumentException
+	 *             if uses the <code>maxLength</code> is not a positive number,
+	 *             or larger than {@linkplain #MAX_UDP_PACKET}
+	 */
+	TransactionUDP(DatagramSocket socket, int maxLength, Policy policy,
+			SharedDatagramChannel shared) throws IllegalArgumentException
 	{
 		this.socket = socket;
+		this.shared = shared;
+		this.channel = socket.getChannel();
 		remoteAddr = socket.isConnected() ? socket.getRemoteSocketAddress()
 				: null;
 		this.policy = policy == null ? Policy.Subcontracting : policy;
@@ -153,19 +293,7 @@ public class TransactionUDP extends Transaction
 	public void send(byte[] b, int offset, int length)
 			throws TransactionStateException, TransactionException
 	{
-		if (remoteAddr == null)
-			throw new TransactionStateException(
-					"The current socket has not connected to a remote address.");
-		switch (getPolicy())
-		{
-			default:
-			case Subcontracting:
-				sendWrap(remoteAddr, b, offset, length);
-				break;
-			case Exception:
-				sendDirect(remoteAddr, b, offset, length);
-				break;
-		}
+		send(null, ByteBuffer.wrap(b, offset, length));
 	}
 
 	/**
@@ -176,71 +304,107 @@ public class TransactionUDP extends Transaction
 	public void send(SocketAddress sa, byte[] b, int offset, int length)
 			throws TransactionStateException, TransactionException
 	{
-		if (remoteAddr != null && sa != null
-				&& NetUtils.socketAddressEquals(remoteAddr, sa))
-			throw new TransactionStateException(String.format(
-					"Current socket is connected to %s, cannot bind %s.",
-					remoteAddr, sa));
+		send(sa, ByteBuffer.wrap(b, offset, length));
+	}
+
+	/**
+	 * Send the buffer directly by the underlying channel if exists.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.nio.ByteBuffer)
+	 */
+	@Override
+	public void send(ByteBuffer buffer) throws TransactionStateException,
+			TransactionException
+	{
+		send(null, buffer);
+	}
+
+	/**
+	 * Send the buffers in one datagram.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.nio.ByteBuffer[])
+	 * @see #send(SocketAddress, ByteBuffer...)
+	 */
+	@Override
+	public void send(ByteBuffer... buffers) throws TransactionStateException,
+			TransactionException
+	{
+		send(null, buffers);
+	}
+
+	/**
+	 * Send the buffer directly by the underlying channel if exists.
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.net.SocketAddress,
+	 *      java.nio.ByteBuffer)
+	 */
+	@Override
+	public void send(SocketAddress sa, ByteBuffer buffer)
+			throws TransactionStateException, TransactionException
+	{
+		SocketAddress target = target(sa);
 		switch (getPolicy())
 		{
 			default:
 			case Subcontracting:
-				sendWrap(sa == null ? remoteAddr : sa, b, offset, length);
+				sendWrap(target, buffer);
 				break;
 			case Exception:
-				sendDirect(sa == null ? remoteAddr : sa, b, offset, length);
+				sendDirect(target, buffer);
+				break;
+			case Fragmentation:
+				sendFragments(target, buffer);
 				break;
 		}
 	}
 
 	/**
-	 * Wrap the maximum data buffer and send the buffer.
+	 * Send the buffers in one datagram.
 	 * <p>
-	 * While sending the buffered data, the buffer may be divided into several
-	 * equal size parts accordingly, if the buffer size is larger than the
-	 * customized maximum packet size.
+	 * If the socket is connected and the datagram is not larger than the
+	 * {@linkplain #maxLength customized packet size}, the buffers will be sent
+	 * by one gathering write of the underlying channel; otherwise, the buffers
+	 * will be gathered into an internal direct buffer and be sent as a whole.
+	 * The internal buffer holds one datagram at most, a larger message to
+	 * fragment is gathered into a temporary buffer instead.
 	 * </p>
 	 * 
-	 * @param sa
-	 *            the socket address to send to
-	 * @param b
-	 *            the data buffer to send
-	 * @param offset
-	 *            the offset of the buffered data to send
-	 * @param length
-	 *            the length of the maximum length to send
-	 * @throws TransactionException
+	 * @see com.frank.mpnet.Transaction#send(java.net.SocketAddress,
+	 *      java.nio.ByteBuffer[])
 	 */
-	private void sendWrap(SocketAddress sa, byte[] b, int offset, int length)
-			throws TransactionException
+	@Override
+	public void send(SocketAddress sa, ByteBuffer... buffers)
+			throws TransactionStateException, TransactionException
 	{
+		if (buffers.length == 1)
+		{
+			send(sa, buffers[0]);
+			return;
+		}
+		SocketAddress target = target(sa);
+		long length = NetUtils.remaining(buffers);
+		if (length > getMaxLength() && getPolicy() == Policy.Exception)
+			throw new TransactionException(
+					String.format(
+							"The size of buffer to send(%d) is larger than the maximum length(%d).",
+							length, getMaxLength()));
 		try
 		{
-			int max = getMaxLength();
-			if (length < max)
-				socket.send(new DatagramPacket(b, offset, length, sa));
-			else
+			if (channel != null && channel.isConnected()
+					&& length <= getMaxLength()
+					&& getPolicy() != Policy.Fragmentation
+					&& shared.lockBlocking())
 			{
-				int n = (int) Math.ceil(length
-						/ Math.ceil(length / (double) max));
-				byte[] buff = new byte[n];
-				while (length > 0)
+				try
 				{
-					System.arraycopy(b, offset, buff, 0, n);
-					socket.send(new DatagramPacket(buff, 0, n, sa));
-					offset += n;
-					if (n >= length)
-					{
-						n = length;
-						length = 0;
-					}
-					else
-					{
-						length -= n;
-						if (n > length)
-							n = length;
-					}
+					channel.write(buffers);
 				}
+				finally
+				{
+					shared.unlockBlocking();
+				}
+				markSent();
+				return;
 			}
 		}
 		catch (Exception e)
@@ -248,120 +412,1224 @@ public class TransactionUDP extends Transaction
 			throw new TransactionException("Unable to send data: "
 					+ e.getLocalizedMessage(), e);
 		}
+		if (length > MAX_UDP_PACKET)
+		{
+			if (length > Integer.MAX_VALUE)
+				throw new TransactionException(String.format(
+						"The size of buffer to send(%d) is larger than %d.",
+						length, Integer.MAX_VALUE));
+			// never cache a buffer larger than one datagram
+			ByteBuffer message = ByteBuffer.allocate((int) length);
+			for (ByteBuffer buffer : buffers)
+				message.put(buffer);
+			message.flip();
+			send(target, message);
+			return;
+		}
+		sendLock.lock();
+		try
+		{
+			if (gatherBuffer == null || gatherBuffer.capacity() < length)
+				gatherBuffer = ByteBuffer.allocateDirect(Math.max((int) length,
+						GATHER_SIZE));
+			gatherBuffer.clear();
+			for (ByteBuffer buffer : buffers)
+				gatherBuffer.put(buffer);
+			gatherBuffer.flip();
+			send(target, gatherBuffer);
+		}
+		finally
+		{
+			sendLock.unlock();
+		}
 	}
 
 	/**
-	 * Send the buffered data directly.
+	 * Send a region of the specified file to the connected remote socket
+	 * address.
 	 * <p>
-	 * If <code>length</code> is larger than the {@linkplain #maxLength
-	 * customized packet size}, a {@linkplain TransactionException} will be
-	 * thrown.
+	 * The file region will be memory-mapped window by window, and each window
+	 * will be sent in datagrams of the {@linkplain #maxLength customized packet
+	 * size} sliced from the mapped buffer without copying. The datagrams carry
+	 * no order guarantee.
 	 * </p>
 	 * 
-	 * @param sa
-	 *            the socket address to send to
-	 * @param b
-	 *            the data buffer to send
-	 * @param offset
-	 *            the offset of the buffered data to send
-	 * @param length
-	 *            the length of the maximum length to send
-	 * @throws TransactionException
-	 *             if <code>length</code> is larger than the
-	 *             {@linkplain #maxLength customized packet size}
+	 * @see com.frank.mpnet.Transaction#sendFile(java.nio.channels.FileChannel,
+	 *      long, long, com.frank.mpnet.TransferListener)
 	 */
-	private void sendDirect(SocketAddress sa, byte[] b, int offset, int length)
-			throws TransactionException
+	@Override
+	public long sendFile(FileChannel file, long position, long count,
+			TransferListener listener) throws TransactionStateException,
+			TransactionException
 	{
-		int max = getMaxLength();
-		if (length > max)
-			throw new TransactionException(
-					String.format(
-							"The size of buffer to send(%d) is larger than the maximum length(%d).",
-							length, max));
+		SocketAddress target = target(null);
+		try
+		{
+			long total = fileRegion(file, position, count);
+			int max = datagramLength(target);
+			long window = Math.max(1, FILE_CHUNK_SIZE / max) * max;
+			long sent = 0;
+			while (sent < total)
+			{
+				ByteBuffer mapped = file.map(MapMode.READ_ONLY, position
+						+ sent, Math.min(total - sent, window));
+				int limit = mapped.limit();
+				while (mapped.hasRemaining())
+				{
+					mapped.limit(Math.min(limit, mapped.position() + max));
+					sendDatagram(target, mapped);
+					mapped.limit(limit);
+				}
+				sent += limit;
+				if (listener != null)
+					listener.progress(sent, total);
+			}
+			return sent;
+		}
+		catch (IOException e)
+		{
+			throw new TransactionException("Unable to send file: "
+					+ e.getLocalizedMessage(), e);
+		}
 	}
 
 	/**
-	 * @see com.frank.mpnet.Transaction#receive(java.nio.ByteBuffer)
+	 * Drives the transaction by the specified event loop, then the
+	 * asynchronous operations never block the calling thread.
+	 * <p>
+	 * The underlying channel will be configured non-blocking and registered
+	 * with the event loop. The channel is shared with the session and its
+	 * other transactions, thus, all of them become asynchronous and are
+	 * served by the same event loop, as
+	 * {@linkplain SessionUDP#setAsync(EventLoop, Executor)}. The blocking
+	 * methods are still available, they start the asynchronous operations and
+	 * wait for them. The switch waits for the blocking operations in progress.
+	 * </p>
+	 * 
+	 * @param loop
+	 *            the event loop to drive the transaction
+	 * @param executor
+	 *            the executor to run the completion handlers,
+	 *            <code>null</code> if run them on the event loop
+	 * @throws TransactionStateException
+	 *             if the socket has no channel, or the transaction is already
+	 *             asynchronous
 	 */
-	@Override
-	public SocketInfo receive(ByteBuffer buffer) throws IOException
+	public void setAsync(EventLoop loop, Executor executor)
+			throws TransactionStateException
 	{
-		int offset = buffer.position();
-		int length = buffer.remaining();
-		DatagramPacket p = new DatagramPacket(buffer.array(), offset, length);
-		socket.receive(p);
-		buffer.put(p.getData(), p.getOffset(), p.getLength());
-		return new SocketInfo(TYPE, p.getSocketAddress());
+		shared.setAsync(loop, executor);
 	}
 
 	/**
-	 * @see com.frank.mpnet.Transaction#getType()
+	 * Send the remaining data of the buffer in one datagram to the default
+	 * socket without blocking.
+	 * 
+	 * @see com.frank.mpnet.Transaction#sendAsync(java.nio.ByteBuffer)
+	 * @see #sendAsync(SocketAddress, ByteBuffer)
 	 */
 	@Override
-	public SocketType getType()
+	public TransactionFuture<Integer> sendAsync(ByteBuffer buffer)
 	{
-		return TYPE;
+		return sendAsync(null, buffer);
 	}
 
 	/**
-	 * @see com.frank.mpnet.Transaction#hasNext()
+	 * Send the remaining data of the buffer in one datagram without blocking.
+	 * <p>
+	 * If the transaction is not {@linkplain #setAsync(EventLoop, Executor)
+	 * asynchronous}, the datagram will be sent synchronously. Otherwise, the
+	 * datagram will be sent by the event loop, and if the socket buffer is
+	 * full, it will be queued until the socket is writable. The datagram
+	 * larger than the {@linkplain #maxLength maximum length} will fail.
+	 * </p>
+	 * 
+	 * @see com.frank.mpnet.Transaction#sendAsync(java.net.SocketAddress,
+	 *      java.nio.ByteBuffer)
 	 */
 	@Override
-	public boolean hasNext() throws TransactionException
+	public TransactionFuture<Integer> sendAsync(SocketAddress sa,
+			ByteBuffer buffer)
 	{
-		if (socket == null || socket.isClosed())
-			return false;
-		return true;
+		if (!shared.isAsync())
+			return super.sendAsync(sa, buffer);
+		if (buffer.remaining() > getMaxLength())
+			return TransactionFuture.failed(new TransactionException(
+					String.format(
+							"The size of buffer to send(%d) is larger than the maximum length(%d).",
+							buffer.remaining(), getMaxLength())));
+		try
+		{
+			return shared.send(this, target(sa), buffer);
+		}
+		catch (TransactionStateException e)
+		{
+			return TransactionFuture.failed(e);
+		}
 	}
 
 	/**
-	 * @see com.frank.mpnet.Transaction#allocateReceiveBuffer()
+	 * Receive one datagram into the specified buffer without blocking.
+	 * <p>
+	 * If the transaction is not {@linkplain #setAsync(EventLoop, Executor)
+	 * asynchronous}, the datagram will be received synchronously. Otherwise,
+	 * the datagram will be received by the event loop once available, and the
+	 * receivings of all the transactions of the session are served in order.
+	 * If the datagram is larger than the remaining of the buffer, the rest of
+	 * the datagram will be discarded. A receiving cancelled before it takes a
+	 * datagram loses no datagram.
+	 * </p>
+	 * 
+	 * @see com.frank.mpnet.Transaction#receiveAsync(java.nio.ByteBuffer)
 	 */
 	@Override
-	public ByteBuffer allocateReceiveBuffer() throws TransactionException
+	public TransactionFuture<SocketInfo> receiveAsync(ByteBuffer buffer)
 	{
-		if (socket.isClosed())
-			return ByteBuffer.allocate(0);
-		if (socket == null)
-			throw new TransactionException(
-					"The underlying socket is not defined.");
-		try
+		if (!shared.isAsync())
+			return super.receiveAsync(buffer);
+		return shared.receive(this, buffer);
+	}
+
+	/**
+	 * Returns the socket address to send to.
+	 * 
+	 * @param sa
+	 *            the specified socket address, <code>null</code> if send to
+	 *            the connected remote socket address
+	 * @return the socket address to send to
+	 * @throws TransactionStateException
+	 *             if <code>sa</code> is <code>null</code> while the socket is
+	 *             not connected, or <code>sa</code> is not the connected remote
+	 *             socket address
+	 */
+	private SocketAddress target(SocketAddress sa)
+			throws TransactionStateException
+	{
+		if (sa == null)
 		{
-			return ByteBuffer.allocate(socket.getReceiveBufferSize());
+			if (remoteAddr == null)
+				throw new TransactionStateException(
+						"The current socket has not connected to a remote address.");
+			return remoteAddr;
 		}
-		catch (SocketException e)
+		if (remoteAddr != null && !NetUtils.socketAddressEquals(remoteAddr, sa))
+			throw new TransactionStateException(String.format(
+					"Current socket is connected to %s, cannot bind %s.",
+					remoteAddr, sa));
+		return sa;
+	}
+
+	/**
+	 * Wrap the maximum data buffer and send the buffer.
+	 * <p>
+	 * While sending the buffered data, the buffer may be divided into several
+	 * equal size parts accordingly, if the buffer size is larger than the
+	 * customized maximum packet size. Each part is sent as a slice of the
+	 * buffer without copying.
+	 * </p>
+	 * 
+	 * @param sa
+	 *            the socket address to send to
+	 * @param buffer
+	 *            the data buffer to send
+	 * @throws TransactionException
+	 */
+	private void sendWrap(SocketAddress sa, ByteBuffer buffer)
+			throws TransactionException
+	{
+		try
 		{
-			return ByteBuffer.allocate(MAX_UDP_PACKET);
+			int max = datagramLength(sa);
+			int length = buffer.remaining();
+			if (length < max)
+				sendDatagram(sa, buffer);
+			else
+			{
+				int n = (int) Math.ceil(length
+						/ Math.ceil(length / (double) max));
+				int limit = buffer.limit();
+				try
+				{
+					while (buffer.position() < limit)
+					{
+						buffer.limit(Math.min(limit, buffer.position() + n));
+						sendDatagram(sa, buffer);
+					}
+				}
+				finally
+				{
+					buffer.limit(limit);
+				}
+			}
 		}
 		catch (Exception e)
 		{
-			throw new TransactionException("Unable to allocate byte buffer: "
+			throw new TransactionException("Unable to send data: "
 					+ e.getLocalizedMessage(), e);
 		}
 	}
 
 	/**
-	 * Customize the maximum UDP packet length.
+	 * Send the buffered data as a fragmented message.
+	 * <p>
+	 * The message is divided into equal size fragments as the subcontracting,
+	 * and each fragment is sent in one datagram following the fragment
+	 * header.
+	 * </p>
+	 * <p>
+	 * If the {@linkplain #setErrorCorrection(ErrorCorrection) error
+	 * correction} is set, the parity fragments of each group are encoded
+	 * into an internal array and sent right after the data fragments of the
+	 * group.
+	 * </p>
 	 * 
-	 * @param maxLength
-	 *            the maximum UDP packet length
-	 * @throws IllegalArgumentException
-	 *             if <code>maxLength</code> is less than 1 or larger than
-	 *             {@linkplain #MAX_UDP_PACKET}.
+	 * @param sa
+	 *            the socket address to send to
+	 * @param buffer
+	 *            the data buffer to send
+	 * @throws TransactionException
+	 *             if the message needs too many fragments
+	 * @see Policy#Fragmentation
 	 */
-	protected synchronized void setMaxLength(int maxLength)
-			throws IllegalArgumentException
+	private void sendFragments(SocketAddress sa, ByteBuffer buffer)
+			throws TransactionException
 	{
-		if (maxLength < 1 || maxLength > MAX_UDP_PACKET)
-			throw new IllegalArgumentException(String.format(
-					"Packet length:%d is not supported by the UDP.", maxLength));
-		this.maxLength = maxLength;
-	}
-
-	/**
-	 * Returns the customized maximum UDP packet length.
-	 * 
+		ErrorCorrection fec = errorCorrection;
+		int payload = datagramLength(sa)
+				- (fec == null ? Reassembler.HEADER_LENGTH
+						: Reassembler.FEC_HEADER_LENGTH);
+		int length = buffer.remaining();
+		int count = payload < 1 ? 0 : Reassembler.count(length, payload);
+		if (payload < 1
+				|| count > Reassembler.MAX_FRAGMENTS
+				|| (fec != null && Reassembler.total(count,
+						fec.getDataShards(), fec.getParityShards()) > Reassembler.MAX_FRAGMENTS))
+			throw new TransactionException(String.format(
+					"The size of buffer to send(%d) needs too many fragments.",
+					length));
+		int size = Reassembler.size(length, count);
+		int id = MESSAGE_IDS.incrementAndGet();
+		int start = buffer.position();
+		int limit = buffer.limit();
+		sendLock.lock();
+		try
+		{
+			if (fragmentBuffer == null)
+				fragmentBuffer = ByteBuffer.allocateDirect(MAX_UDP_PACKET);
+			for (int i = 0; i < count; i++)
+			{
+				buffer.limit(Math.min(limit, buffer.position() + size));
+				fragmentBuffer.clear();
+				if (fec == null)
+					Reassembler.putHeader(fragmentBuffer, id, length, i, count);
+				else
+					Reassembler.putHeader(fragmentBuffer, id, length, i,
+							count, fec);
+				fragmentBuffer.put(buffer);
+				fragmentBuffer.flip();
+				sendDatagram(sa, fragmentBuffer);
+				if (fec != null
+						&& ((i + 1) % fec.getDataShards() == 0 || i + 1 == count))
+					sendParity(sa, buffer, start, length, id, i
+							/ fec.getDataShards(), count, size, fec);
+			}
+		}
+		catch (Exception e)
+		{
+			throw new TransactionException("Unable to send data: "
+					+ e.getLocalizedMessage(), e);
+		}
+		finally
+		{
+			buffer.limit(limit);
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Send the parity fragments of a group, used with the sending lock held.
+	 * 
+	 * @param sa
+	 *            the socket address to send to
+	 * @param buffer
+	 *            the data buffer of the message
+	 * @param start
+	 *            the position of the message in the buffer
+	 * @param length
+	 *            the length of the message
+	 * @param id
+	 *            the ID of the message
+	 * @param group
+	 *            the index of the group
+	 * @param count
+	 *            the number of the data fragments
+	 * @param size
+	 *            the size of a fragment
+	 * @param fec
+	 *            the error correction
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void sendParity(SocketAddress sa, ByteBuffer buffer, int start,
+			int length, int id, int group, int count, int size,
+			ErrorCorrection fec) throws IOException
+	{
+		int k = fec.getDataShards();
+		int m = fec.getParityShards();
+		if (encoder == null)
+			encoder = new ErasureCoder();
+		byte[] parity = encoder.encode(buffer, start + group * k * size,
+				length - group * k * size, Math.min(k, count - group * k),
+				size, fec);
+		for (int j = 0; j < m; j++)
+		{
+			fragmentBuffer.clear();
+			Reassembler.putHeader(fragmentBuffer, id, length, count + group
+					* m + j, count, fec);
+			fragmentBuffer.put(parity, j * size, size);
+			fragmentBuffer.flip();
+			sendDatagram(sa, fragmentBuffer);
+		}
+	}
+
+	/**
+	 * Send the buffered data directly.
+	 * <p>
+	 * If the remaining of the buffer is larger than the
+	 * {@linkplain #maxLength customized packet size}, a
+	 * {@linkplain TransactionException} will be thrown.
+	 * </p>
+	 * 
+	 * @param sa
+	 *            the socket address to send to
+	 * @param buffer
+	 *            the data buffer to send
+	 * @throws TransactionException
+	 *             if the remaining of the buffer is larger than the
+	 *             {@linkplain #maxLength customized packet size}
+	 */
+	private void sendDirect(SocketAddress sa, ByteBuffer buffer)
+			throws TransactionException
+	{
+		int max = getMaxLength();
+		if (buffer.remaining() > max)
+			throw new TransactionException(
+					String.format(
+							"The size of buffer to send(%d) is larger than the maximum length(%d).",
+							buffer.remaining(), max));
+		try
+		{
+			sendDatagram(sa, buffer);
+		}
+		catch (Exception e)
+		{
+			throw new TransactionException("Unable to send data: "
+					+ e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * Send the remaining data of the buffer in one datagram.
+	 * <p>
+	 * The buffer will be sent by the underlying channel if exists, otherwise
+	 * it will be sent in a datagram packet. If the channel is asynchronous,
+	 * the datagram is queued to the event loop and waited for.
+	 * </p>
+	 * 
+	 * @param sa
+	 *            the socket address to send to
+	 * @param buffer
+	 *            the data buffer to send
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void sendDatagram(SocketAddress sa, ByteBuffer buffer)
+			throws IOException
+	{
+		if (!shared.lockBlocking())
+		{
+			shared.send(this, sa, buffer).await();
+			return;
+		}
+		try
+		{
+			if (channel != null)
+			{
+				if (channel.isConnected())
+					channel.write(buffer);
+				else
+					channel.send(buffer, sa);
+				markSent();
+				return;
+			}
+			int length = buffer.remaining();
+			if (buffer.hasArray())
+			{
+				socket.send(new DatagramPacket(buffer.array(), buffer
+						.arrayOffset() + buffer.position(), length, sa));
+				buffer.position(buffer.limit());
+			}
+			else
+			{
+				byte[] b = new byte[length];
+				buffer.get(b);
+				socket.send(new DatagramPacket(b, 0, length, sa));
+			}
+			markSent();
+		}
+		finally
+		{
+			shared.unlockBlocking();
+		}
+	}
+
+	/**
+	 * Receive one datagram into the specified buffer.
+	 * <p>
+	 * If the underlying socket is created by a {@linkplain DatagramChannel},
+	 * the datagram will be received by the channel into the buffer directly,
+	 * either heap or direct, and the returned source information is interned
+	 * for the peer. If the datagram is larger than the remaining of the
+	 * buffer, the rest of the datagram will be discarded.
+	 * </p>
+	 * <p>
+	 * If the policy is {@linkplain Policy#Fragmentation fragmentation}, the
+	 * fragments are received until a whole message is reassembled into the
+	 * buffer, and the rest of the message will be discarded if the buffer is
+	 * not large enough.
+	 * </p>
+	 * 
+	 * @see com.frank.mpnet.Transaction#receive(java.nio.ByteBuffer)
+	 */
+	@Override
+	public SocketInfo receive(ByteBuffer buffer) throws IOException
+	{
+		if (getPolicy() == Policy.Fragmentation)
+			return receiveMessage(buffer, 0);
+		return receiveDatagram(buffer, 0);
+	}
+
+	/**
+	 * Receive one datagram into the specified buffer before the deadline.
+	 * 
+	 * @param buffer
+	 *            the buffer to receive into
+	 * @param deadline
+	 *            the deadline of {@linkplain System#nanoTime()},
+	 *            <code>0</code> for no deadline
+	 * @return the source information of the datagram
+	 * @throws SocketTimeoutException
+	 *             if the blocking receiving passes the deadline
+	 * @throws TransactionTimeoutException
+	 *             if the asynchronous receiving passes the deadline
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private SocketInfo receiveDatagram(ByteBuffer buffer, long deadline)
+			throws IOException
+	{
+		if (!shared.lockBlocking())
+		{
+			TransactionFuture<SocketInfo> future = shared.receive(this, buffer);
+			if (deadline == 0)
+				return future.await();
+			try
+			{
+				return future.await(remaining(deadline), TimeUnit.NANOSECONDS);
+			}
+			catch (TransactionTimeoutException e)
+			{
+				future.cancel(false);
+				throw e;
+			}
+		}
+		try
+		{
+			if (deadline != 0)
+			{
+				// round up, a timeout of 0 ms means forever
+				socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE,
+						TimeUnit.NANOSECONDS.toMillis(remaining(deadline) + 999999)));
+				return receivePacket(buffer);
+			}
+			if (channel == null)
+				return receivePacket(buffer);
+			SocketAddress sa;
+			if (channel.isConnected())
+			{
+				channel.read(buffer);
+				sa = remoteAddr;
+			}
+			else
+				sa = channel.receive(buffer);
+			markReceived();
+			return source(sa);
+		}
+		finally
+		{
+			shared.unlockBlocking();
+		}
+	}
+
+	/**
+	 * Receive one datagram into the specified buffer by a datagram packet.
+	 * <p>
+	 * It is used if the socket is not created by a channel, or the receiving
+	 * shall be interrupted by the socket timeout(<tt>SO_TIMEOUT</tt>) which
+	 * is ignored by the channel. A heap buffer is received into its backing
+	 * array directly, while a direct buffer is received into a temporary
+	 * array.
+	 * </p>
+	 * 
+	 * @param buffer
+	 *            the buffer to receive into
+	 * @return the source information of the datagram
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private SocketInfo receivePacket(ByteBuffer buffer) throws IOException
+	{
+		int length = buffer.remaining();
+		DatagramPacket p;
+		if (buffer.hasArray())
+			p = new DatagramPacket(buffer.array(), buffer.arrayOffset()
+					+ buffer.position(), length);
+		else
+			p = new DatagramPacket(new byte[length], length);
+		socket.receive(p);
+		markReceived();
+		if (buffer.hasArray())
+			buffer.position(buffer.position() + p.getLength());
+		else
+			buffer.put(p.getData(), 0, p.getLength());
+		return source(p.getSocketAddress());
+	}
+
+	/**
+	 * Receive the fragments until a whole message is reassembled into the
+	 * specified buffer before the deadline.
+	 * <p>
+	 * The fragments are received one by one into an internal direct buffer
+	 * and offered to the reassembly engine, thus, the concurrent receivings
+	 * of the transaction are serialized.
+	 * </p>
+	 * 
+	 * @param buffer
+	 *            the buffer to receive into
+	 * @param deadline
+	 *            the deadline of {@linkplain System#nanoTime()},
+	 *            <code>0</code> for no deadline
+	 * @return the source information of the message
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @see #receiveDatagram(ByteBuffer, long)
+	 */
+	private SocketInfo receiveMessage(ByteBuffer buffer, long deadline)
+			throws IOException
+	{
+		receiveLock.lock();
+		try
+		{
+			Reassembler r = reassembler;
+			if (r == null)
+				reassembler = r = new Reassembler(reassemblyMemory,
+						reassemblyTimeout, TimeUnit.NANOSECONDS);
+			if (datagramBuffer == null)
+				datagramBuffer = ByteBuffer.allocateDirect(MAX_UDP_PACKET);
+			while (true)
+			{
+				datagramBuffer.clear();
+				SocketInfo si = receiveDatagram(datagramBuffer, deadline);
+				datagramBuffer.flip();
+				if (r.offer(si.getAddress(), datagramBuffer, buffer))
+					return si;
+			}
+		}
+		finally
+		{
+			receiveLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the remaining time before the deadline.
+	 * 
+	 * @param deadline
+	 *            the deadline of {@linkplain System#nanoTime()}
+	 * @return the remaining time in nanoseconds
+	 * @throws SocketTimeoutException
+	 *             if the deadline has passed
+	 */
+	private static long remaining(long deadline) throws SocketTimeoutException
+	{
+		long nanos = deadline - System.nanoTime();
+		if (nanos <= 0)
+			throw new SocketTimeoutException("The deadline has passed.");
+		return nanos;
+	}
+
+	/**
+	 * Set the limits of the reassembly of the
+	 * {@linkplain Policy#Fragmentation fragmentation}. The incomplete
+	 * messages are dropped.
+	 * 
+	 * @param maxMemory
+	 *            the maximum memory of the incomplete messages in bytes
+	 * @param timeout
+	 *            the timeout of an incomplete message
+	 * @param unit
+	 *            the time unit of <code>timeout</code>
+	 * @throws IllegalArgumentException
+	 *             if <code>maxMemory</code> or <code>timeout</code> is not
+	 *             positive
+	 */
+	public void setReassembly(long maxMemory, long timeout, TimeUnit unit)
+			throws IllegalArgumentException
+	{
+		if (maxMemory < 1 || timeout < 1)
+			throw new IllegalArgumentException(String.format(
+					"The maxMemory(%d) and the timeout(%d) shall be positive.",
+					maxMemory, timeout));
+		reassemblyMemory = maxMemory;
+		reassemblyTimeout = unit.toNanos(timeout);
+		reassembler = null;
+	}
+
+	/**
+	 * Set the forward error correction of the sending
+	 * {@linkplain Policy#Fragmentation fragments}. The receiver decodes the
+	 * parity fragments whatever its own setting.
+	 * 
+	 * @param errorCorrection
+	 *            the error correction, <code>null</code> for none
+	 */
+	public void setErrorCorrection(ErrorCorrection errorCorrection)
+	{
+		this.errorCorrection = errorCorrection;
+	}
+
+	/**
+	 * Enables or disables sizing the subcontracted datagrams, the fragments
+	 * and the file chunks by the {@linkplain PathMtuCache#getShared() cached
+	 * path MTU} of each destination, thus, the IP fragmentation is avoided,
+	 * where losing one IP fragment loses the whole datagram. The receiver of
+	 * the {@linkplain Policy#Subcontracting subcontracting} gets more but
+	 * smaller datagrams.
+	 * 
+	 * @param enabled
+	 *            <code>true</code> to size the datagrams by the path MTU
+	 */
+	public void setPathMtuDiscovery(boolean enabled)
+	{
+		this.pathMtuDiscovery = enabled;
+	}
+
+	/**
+	 * Returns <code>true</code> if the datagrams are sized by the path MTU.
+	 * 
+	 * @return <code>true</code> if the path MTU discovery is enabled
+	 */
+	public boolean isPathMtuDiscovery()
+	{
+		return pathMtuDiscovery;
+	}
+
+	/**
+	 * Returns the maximum length of the datagrams to the destination, the
+	 * {@linkplain #getMaxLength() maximum length} limited by the path MTU if
+	 * the discovery is enabled.
+	 * 
+	 * @param sa
+	 *            the socket address of the destination
+	 * @return the maximum length of the datagrams
+	 */
+	private int datagramLength(SocketAddress sa)
+	{
+		int max = getMaxLength();
+		if (!pathMtuDiscovery || sa == null)
+			return max;
+		return Math.min(max, PathMtuCache.getShared().getMaxPayload(sa));
+	}
+
+	/**
+	 * Returns the forward error correction of the sending fragments.
+	 * 
+	 * @return the error correction, <code>null</code> if none
+	 */
+	public ErrorCorrection getErrorCorrection()
+	{
+		return errorCorrection;
+	}
+
+	/**
+	 * Returns the number of the lost fragments rebuilt by the error
+	 * correction.
+	 * 
+	 * @return the number of the rebuilt fragments
+	 */
+	public long getRecoveredFragmentCount()
+	{
+		Reassembler r = reassembler;
+		return r == null ? 0 : r.getRecoveredCount();
+	}
+
+	/**
+	 * Returns the number of the incomplete messages evicted by the timeout or
+	 * the memory limit of the reassembly.
+	 * 
+	 * @return the number of the evicted messages
+	 */
+	public long getEvictedMessageCount()
+	{
+		Reassembler r = reassembler;
+		return r == null ? 0 : r.getEvictedCount();
+	}
+
+	/**
+	 * Returns the number of the fragments dropped by the reassembly, which
+	 * are malformed or belong to the too large messages.
+	 * 
+	 * @return the number of the dropped fragments
+	 */
+	public long getDroppedFragmentCount()
+	{
+		Reassembler r = reassembler;
+		return r == null ? 0 : r.getDroppedCount();
+	}
+
+	/**
+	 * Returns the interned source information of the specified peer.
+	 * <p>
+	 * The source informations are immutable for the callers, thus, one
+	 * instance is shared by all the datagrams of a peer. The interned
+	 * informations are dropped if there are too many peers.
+	 * </p>
+	 * 
+	 * @param sa
+	 *            the socket address of the peer
+	 * @return the source information
+	 */
+	SocketInfo source(SocketAddress sa)
+	{
+		SocketInfo si = sources.get(sa);
+		if (si != null)
+			return si;
+		if (sources.size() >= MAX_SOURCES)
+			sources.clear();
+		si = new SocketInfo(TYPE, sa);
+		SocketInfo old = sources.putIfAbsent(sa, si);
+		return old == null ? si : old;
+	}
+
+	/**
+	 * Receive a batch of datagrams into all the slots of the specified batch.
+	 * 
+	 * @param batch
+	 *            the batch to receive into
+	 * @return the number of the received datagrams
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @see #receiveBatch(DatagramBatch, int)
+	 */
+	public int receiveBatch(DatagramBatch batch) throws IOException
+	{
+		return receiveBatch(batch, batch.getCapacity());
+	}
+
+	/**
+	 * Receive a batch of datagrams, at most <code>max</code> ones.
+	 * <p>
+	 * The receiving waits for the first datagram as
+	 * {@linkplain #receive(ByteBuffer)}, and then drains the datagrams
+	 * already queued in the socket by the non-blocking channel without
+	 * waiting, thus, a burst of datagrams is received in one call. The batch
+	 * is overwritten from the first slot, each buffer holds one datagram and
+	 * the longer datagrams are truncated. If the socket is not created by a
+	 * channel, only one datagram is received.
+	 * </p>
+	 * <p>
+	 * If the policy is {@linkplain Policy#Fragmentation fragmentation}, each
+	 * slot holds one reassembled message instead: the drained fragments are
+	 * offered to the reassembly engine, and only the completed messages fill
+	 * the slots, while the incomplete ones wait for the later receivings.
+	 * </p>
+	 * <p>
+	 * The channel is shared by all the transactions of the session, thus, a
+	 * blocking channel is switched into the non-blocking mode for the
+	 * draining only while no blocking operation of any transaction is in
+	 * progress; otherwise only the first datagram is received, and the rest
+	 * is left for the next receiving. The channel of an
+	 * {@linkplain #setAsync(EventLoop, Executor) asynchronous} session is
+	 * drained as is. To drain each burst, receive the batches on a dedicated
+	 * session, or on an asynchronous one.
+	 * </p>
+	 * 
+	 * @param batch
+	 *            the batch to receive into
+	 * @param max
+	 *            the maximum number of the datagrams, within the capacity of
+	 *            the batch
+	 * @return the number of the received datagrams, at least 1
+	 * @throws IllegalArgumentException
+	 *             if <code>max</code> is not positive
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	public int receiveBatch(DatagramBatch batch, int max)
+			throws IllegalArgumentException, IOException
+	{
+		if (max < 1)
+			throw new IllegalArgumentException(String.format(
+					"The maximum number of the datagrams(%d) shall be positive.",
+					max));
+		max = Math.min(max, batch.getCapacity());
+		batch.reset();
+		batch.add(receive(batch.next()));
+		if (channel == null || max == 1)
+			return batch.getCount();
+		boolean fragmented = getPolicy() == Policy.Fragmentation;
+		receiveLock.lock();
+		try
+		{
+			if (!shared.lockDraining())
+				return batch.getCount();
+			try
+			{
+				while (batch.getCount() < max)
+				{
+					if (fragmented)
+					{
+						if (!drainFragment(batch))
+							break;
+						continue;
+					}
+					SocketAddress sa = channel.receive(batch.next());
+					if (sa == null)
+						break;
+					batch.add(source(sa));
+				}
+			}
+			finally
+			{
+				shared.unlockDraining();
+			}
+		}
+		finally
+		{
+			receiveLock.unlock();
+		}
+		if (batch.getCount() > 1)
+			markReceived();
+		return batch.getCount();
+	}
+
+	/**
+	 * Drains one queued fragment into the reassembly engine, and completes the
+	 * next slot of the batch if a message is reassembled, used with the
+	 * receiving lock held while the channel is non-blocking.
+	 * 
+	 * @param batch
+	 *            the batch to receive into
+	 * @return <code>false</code> if no fragment is queued
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private boolean drainFragment(DatagramBatch batch) throws IOException
+	{
+		Reassembler r = reassembler;
+		if (r == null)
+			reassembler = r = new Reassembler(reassemblyMemory,
+					reassemblyTimeout, TimeUnit.NANOSECONDS);
+		if (datagramBuffer == null)
+			datagramBuffer = ByteBuffer.allocateDirect(MAX_UDP_PACKET);
+		datagramBuffer.clear();
+		SocketAddress sa = channel.receive(datagramBuffer);
+		if (sa == null)
+			return false;
+		datagramBuffer.flip();
+		SocketInfo si = source(sa);
+		if (r.offer(si.getAddress(), datagramBuffer, batch.next()))
+			batch.add(si);
+		return true;
+	}
+
+	/**
+	 * Send the remaining data of the buffer to each of the specified socket
+	 * addresses in one pass.
+	 * <p>
+	 * The same buffer is sent to all the addresses as one datagram each,
+	 * without subcontracting, duplicating or copying. The buffer will be
+	 * consumed after the sending. The failure of a datagram does not stop the
+	 * others, it is reported in the slot of <code>failures</code> instead.
+	 * </p>
+	 * 
+	 * @param buffer
+	 *            the buffer to send, not larger than the
+	 *            {@linkplain #getMaxLength() maximum length}
+	 * @param targets
+	 *            the socket addresses to send to
+	 * @param failures
+	 *            the failures of the datagrams in the slots of the
+	 *            <code>targets</code>, <code>null</code> for the successful
+	 *            ones, or <code>null</code> if the failures are ignored
+	 * @return the number of the datagrams sent successfully
+	 * @throws IllegalArgumentException
+	 *             if <code>failures</code> is shorter than the
+	 *             <code>targets</code>
+	 * @throws TransactionStateException
+	 *             if the socket is connected
+	 * @see #sendBatch(SocketAddress[], ByteBuffer[], Throwable[])
+	 */
+	public int sendBatch(ByteBuffer buffer, SocketAddress[] targets,
+			Throwable[] failures) throws IllegalArgumentException,
+			TransactionStateException
+	{
+		checkBatch(targets.length, failures);
+		int max = getMaxLength();
+		int position = buffer.position();
+		int sent = 0;
+		for (int i = 0; i < targets.length; i++)
+		{
+			buffer.position(position);
+			if (sendSlot(targets[i], buffer, max, failures, i))
+				sent++;
+		}
+		buffer.position(buffer.limit());
+		if (sent > 0)
+			markSent();
+		return sent;
+	}
+
+	/**
+	 * Send the remaining data of each buffer to the socket address of the
+	 * same slot in one pass.
+	 * <p>
+	 * Each buffer is sent as one datagram without subcontracting, and will be
+	 * consumed if it is sent successfully. The failure of a datagram does not
+	 * stop the others, it is reported in the slot of <code>failures</code>
+	 * instead.
+	 * </p>
+	 * 
+	 * @param targets
+	 *            the socket addresses to send to
+	 * @param buffers
+	 *            the buffers to send, not larger than the
+	 *            {@linkplain #getMaxLength() maximum length}
+	 * @param failures
+	 *            the failures of the datagrams in the slots of the
+	 *            <code>targets</code>, <code>null</code> for the successful
+	 *            ones, or <code>null</code> if the failures are ignored
+	 * @return the number of the datagrams sent successfully
+	 * @throws IllegalArgumentException
+	 *             if the <code>buffers</code> or <code>failures</code> is
+	 *             shorter than the <code>targets</code>
+	 * @throws TransactionStateException
+	 *             if the socket is connected
+	 */
+	public int sendBatch(SocketAddress[] targets, ByteBuffer[] buffers,
+			Throwable[] failures) throws IllegalArgumentException,
+			TransactionStateException
+	{
+		if (buffers.length < targets.length)
+			throw new IllegalArgumentException(String.format(
+					"The number of buffers(%d) is less than the targets(%d).",
+					buffers.length, targets.length));
+		checkBatch(targets.length, failures);
+		int max = getMaxLength();
+		int sent = 0;
+		for (int i = 0; i < targets.length; i++)
+			if (sendSlot(targets[i], buffers[i], max, failures, i))
+				sent++;
+		if (sent > 0)
+			markSent();
+		return sent;
+	}
+
+	/**
+	 * Checks the arguments of a batched sending.
+	 * 
+	 * @param length
+	 *            the number of the datagrams
+	 * @param failures
+	 *            the failures of the datagrams, <code>null</code> if ignored
+	 * @throws IllegalArgumentException
+	 *             if <code>failures</code> is shorter than <code>length</code>
+	 * @throws TransactionStateException
+	 *             if the socket is connected
+	 */
+	private void checkBatch(int length, Throwable[] failures)
+			throws IllegalArgumentException, TransactionStateException
+	{
+		if (failures != null && failures.length < length)
+			throw new IllegalArgumentException(String.format(
+					"The number of failure slots(%d) is less than %d.",
+					failures.length, length));
+		if (remoteAddr != null)
+			throw new TransactionStateException(String.format(
+					"Current socket is connected to %s, cannot send batch.",
+					remoteAddr));
+	}
+
+	/**
+	 * Send one datagram of a batch.
+	 * <p>
+	 * The datagram is sent by the channel directly. If the channel is
+	 * asynchronous and the socket buffer is full, the datagram fails.
+	 * </p>
+	 * 
+	 * @param sa
+	 *            the socket address to send to
+	 * @param buffer
+	 *            the buffer to send
+	 * @param max
+	 *            the maximum length of the datagram
+	 * @param failures
+	 *            the failures of the datagrams, <code>null</code> if ignored
+	 * @param index
+	 *            the slot of the datagram
+	 * @return <code>true</code> if the datagram is sent
+	 */
+	private boolean sendSlot(SocketAddress sa, ByteBuffer buffer, int max,
+			Throwable[] failures, int index)
+	{
+		Throwable failure = null;
+		int length = buffer.remaining();
+		try
+		{
+			if (length > max)
+				failure = new TransactionException(String.format(
+						"The size of buffer to send(%d) is larger than the maximum length(%d).",
+						length, max));
+			else if (channel == null || !shared.isAsync())
+				sendDatagram(sa, buffer);
+			else if (channel.send(buffer, sa) == 0 && length > 0)
+				failure = new TransactionException(String.format(
+						"The socket buffer is full, unable to send to %s.",
+						sa));
+		}
+		catch (Exception e)
+		{
+			failure = e;
+		}
+		if (failures != null)
+			failures[index] = failure;
+		return failure == null;
+	}
+
+	/**
+	 * Receive one datagram and split it across the buffers.
+	 * <p>
+	 * If the socket is connected, the datagram will be received by one
+	 * scattering read of the underlying channel; otherwise, the datagram will
+	 * be received into an internal direct buffer and be split across the
+	 * buffers. If the datagram is larger than the total remaining of the
+	 * buffers, the rest of the datagram will be discarded.
+	 * </p>
+	 * 
+	 * @see com.frank.mpnet.Transaction#receive(java.nio.ByteBuffer[])
+	 */
+	@Override
+	public SocketInfo receive(ByteBuffer... buffers) throws IOException
+	{
+		if (channel == null || getPolicy() == Policy.Fragmentation
+				|| !shared.lockBlocking())
+			return super.receive(buffers);
+		receiveLock.lock();
+		try
+		{
+			if (channel.isConnected())
+			{
+				channel.read(buffers);
+				markReceived();
+				return source(remoteAddr);
+			}
+			int length = (int) Math.min(NetUtils.remaining(buffers),
+					MAX_UDP_PACKET);
+			if (scatterBuffer == null || scatterBuffer.capacity() < length)
+				scatterBuffer = ByteBuffer.allocateDirect(Math.max(length,
+						GATHER_SIZE));
+			scatterBuffer.clear().limit(length);
+			SocketAddress sa = channel.receive(scatterBuffer);
+			markReceived();
+			scatterBuffer.flip();
+			for (ByteBuffer buffer : buffers)
+				NetUtils.transfer(scatterBuffer, buffer);
+			return source(sa);
+		}
+		finally
+		{
+			receiveLock.unlock();
+			shared.unlockBlocking();
+		}
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#getType()
+	 */
+	@Override
+	public SocketType getType()
+	{
+		return TYPE;
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#hasNext()
+	 */
+	@Override
+	public boolean hasNext() throws TransactionException
+	{
+		if (socket == null || socket.isClosed())
+			return false;
+		return true;
+	}
+
+	/**
+	 * @see com.frank.mpnet.Transaction#allocateReceiveBuffer()
+	 */
+	@Override
+	public ByteBuffer allocateReceiveBuffer() throws TransactionException
+	{
+		if (socket.isClosed())
+			return ByteBuffer.allocate(0);
+		if (socket == null)
+			throw new TransactionException(
+					"The underlying socket is not defined.");
+		try
+		{
+			return ByteBuffer.allocate(socket.getReceiveBufferSize());
+		}
+		catch (SocketException e)
+		{
+			return ByteBuffer.allocate(MAX_UDP_PACKET);
+		}
+		catch (Exception e)
+		{
+			throw new TransactionException("Unable to allocate byte buffer: "
+					+ e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * Customize the maximum UDP packet length.
+	 * 
+	 * @param maxLength
+	 *            the maximum UDP packet length
+	 * @throws IllegalArgumentException
+	 *             if <code>maxLength</code> is less than 1 or larger than
+	 *             {@linkplain #MAX_UDP_PACKET}.
+	 */
+	protected synchronized void setMaxLength(int maxLength)
+			throws IllegalArgumentException
+	{
+		if (maxLength < 1 || maxLength > MAX_UDP_PACKET)
+			throw new IllegalArgumentException(String.format(
+					"Packet length:%d is not supported by the UDP.", maxLength));
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Returns the customized maximum UDP packet length.
+	 * 
 	 * @return the packet length
 	 */
 	public synchronized int getMaxLength()
@@ -369,6 +1637,119 @@ public class TransactionUDP extends Transaction
 		return maxLength;
 	}
 
+	/**
+	 * Send the remaining data of the buffer in one datagram within the
+	 * specified timeout.
+	 * <p>
+	 * A blocking datagram sending never waits for the peer, thus, only the
+	 * asynchronous transaction waits for the deadline, whose datagram may be
+	 * queued until the socket is writable.
+	 * </p>
+	 * 
+	 * @see com.frank.mpnet.Transaction#send(java.nio.ByteBuffer, long,
+	 *      java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public void send(ByteBuffer buffer, long timeout, TimeUnit unit)
+			throws TransactionTimeoutException, TransactionStateException,
+			TransactionException
+	{
+		long nanos = Deadline.toNanos(timeout, unit);
+		if (!shared.isAsync() || nanos == 0)
+		{
+			send(buffer);
+			return;
+		}
+		TransactionFuture<Integer> future = sendAsync(buffer);
+		try
+		{
+			future.await(nanos, TimeUnit.NANOSECONDS);
+		}
+		catch (TransactionTimeoutException e)
+		{
+			future.cancel(false);
+			throw Deadline.timeout(this, "send", nanos, e);
+		}
+		catch (IOException e)
+		{
+			throw new TransactionException("Unable to send data: "
+					+ e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * Each datagram is a frame itself.
+	 * 
+	 * @see #send(ByteBuffer, long, TimeUnit)
+	 * @see com.frank.mpnet.Transaction#sendFrame(java.nio.ByteBuffer, long,
+	 *      java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public void sendFrame(ByteBuffer buffer, long timeout, TimeUnit unit)
+			throws TransactionTimeoutException, TransactionStateException,
+			TransactionException
+	{
+		send(buffer, timeout, unit);
+	}
+
+	/**
+	 * Receive one datagram, or one message if the policy is
+	 * {@linkplain Policy#Fragmentation fragmentation}, within the specified
+	 * timeout.
+	 * <p>
+	 * The blocking receiving sets the socket timeout(<tt>SO_TIMEOUT</tt>) to
+	 * the remaining time for each datagram, thus, the transaction stays
+	 * usable after a timeout. Since the socket timeout is shared, the
+	 * concurrent receivings of the transaction shall use the same timeout. A
+	 * timed out asynchronous receiving is cancelled.
+	 * </p>
+	 * 
+	 * @see com.frank.mpnet.Transaction#receive(java.nio.ByteBuffer, long,
+	 *      java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public SocketInfo receive(ByteBuffer buffer, long timeout, TimeUnit unit)
+			throws TransactionTimeoutException, IOException
+	{
+		long nanos = Deadline.toNanos(timeout, unit);
+		if (nanos == 0)
+			return receive(buffer);
+		long deadline = System.nanoTime() + nanos;
+		int old = socket.getSoTimeout();
+		try
+		{
+			if (getPolicy() == Policy.Fragmentation)
+				return receiveMessage(buffer, deadline);
+			return receiveDatagram(buffer, deadline);
+		}
+		catch (SocketTimeoutException e)
+		{
+			throw Deadline.timeout(this, "receive", nanos, e);
+		}
+		catch (TransactionTimeoutException e)
+		{
+			throw Deadline.timeout(this, "receive", nanos, e);
+		}
+		finally
+		{
+			socket.setSoTimeout(old);
+		}
+	}
+
+	/**
+	 * Each datagram is a frame itself.
+	 * 
+	 * @see #receive(ByteBuffer, long, TimeUnit)
+	 * @see com.frank.mpnet.Transaction#receiveFrame(java.nio.ByteBuffer,
+	 *      long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public SocketInfo receiveFrame(ByteBuffer buffer, long timeout,
+			TimeUnit unit) throws TransactionTimeoutException, IOException
+	{
+		return receive(buffer, timeout, unit);
+	}
+
 	/**
 	 * Close the current transaction.
 	 * <p>
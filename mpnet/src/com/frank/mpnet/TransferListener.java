@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TransferListener.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package com.frank.mpnet;
+
+/**
+ * The listener of the progress of a bulk transfer, such as
+ * {@linkplain Transaction#sendFile(java.nio.channels.FileChannel, long, long, TransferListener)
+ * sending a file}.
+ * <p>
+ * The listener is called by the transferring thread after each chunk is
+ * transfered, thus, it shall return quickly.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public interface TransferListener
+{
+	/**
+	 * Notifies the progress of the transfer.
+	 * 
+	 * @param transferred
+	 *            the number of bytes transfered so far
+	 * @param total
+	 *            the total number of bytes to transfer
+	 */
+	public void progress(long transferred, long total);
+}
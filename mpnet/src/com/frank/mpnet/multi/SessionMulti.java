@@ -10,6 +10,7 @@ import java.net.SocketAddress;
 
 import com.frank.mpnet.Session;
 import com.frank.mpnet.SessionException;
+import com.frank.mpnet.SessionRUDP;
 import com.frank.mpnet.SessionTCPClient;
 import com.frank.mpnet.SessionTCPServer;
 import com.frank.mpnet.SessionUDP;
@@ -50,6 +51,10 @@ public class SessionMulti extends Session implements TransferPolicySelectable
 	 * The underlying session of TCP client.
 	 */
 	protected SessionTCPClient		sessionTCPClient;
+	/**
+	 * The underlying session of the reliable UDP.
+	 */
+	protected SessionRUDP			sessionRUDP;
 
 	/**
 	 * Construct an instance of <tt>SessionMulti</tt>.
@@ -90,6 +95,10 @@ public class SessionMulti extends Session implements TransferPolicySelectable
 					sessionTCPClient = new SessionTCPClient(
 							new InetSocketAddress(port));
 				return sessionTCPClient;
+			case RUDP:
+				if (sessionRUDP == null)
+					sessionRUDP = new SessionRUDP(new InetSocketAddress(port));
+				return sessionRUDP;
 		}
 	}
 
@@ -120,6 +129,10 @@ public class SessionMulti extends Session implements TransferPolicySelectable
 				if (sessionTCPClient == null)
 					sessionTCPClient = (SessionTCPClient) newSession();
 				return sessionTCPClient;
+			case RUDP:
+				if (sessionRUDP == null)
+					sessionRUDP = (SessionRUDP) newSession();
+				return sessionRUDP;
 		}
 	}
 
@@ -154,6 +167,8 @@ public class SessionMulti extends Session implements TransferPolicySelectable
 			sessionTCPClient.close();
 		if (sessionTCPServer != null)
 			sessionTCPServer.close();
+		if (sessionRUDP != null)
+			sessionRUDP.close();
 	}
 
 	/**
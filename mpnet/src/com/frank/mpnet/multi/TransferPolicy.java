@@ -26,5 +26,9 @@ public enum TransferPolicy
 	/**
 	 * Use UDP.
 	 */
-	UDP;
+	UDP,
+	/**
+	 * Use the reliable UDP.
+	 */
+	RUDP;
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * CompareTCPThreads.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import java.io.EOFException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.Test;
+
+import com.frank.mpnet.FrameCodec;
+import com.frank.mpnet.SessionTCPServer;
+import com.frank.mpnet.ThreadFactories;
+import com.frank.mpnet.TransactionHandler;
+import com.frank.mpnet.TransactionTCP;
+
+/**
+ * The test case for comparing the platform threads with the virtual threads
+ * serving one connection each.
+ * <p>
+ * All of the connections are opened before any request is sent, thus, the
+ * server holds all of them concurrently, each by one blocked thread. The
+ * number of connections can be set by the system property
+ * <code>mpnet.connections</code>, and the virtual threads are only compared
+ * on Java 21 or later.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class CompareTCPThreads
+{
+	/**
+	 * The number of concurrent connections.
+	 */
+	public static final int	CONNECTIONS	= Integer.getInteger(
+												"mpnet.connections", 10000);
+	/**
+	 * The size of the request.
+	 */
+	public static final int	SIZE		= 64;
+
+	@Test
+	public final void testPlatform() throws Exception
+	{
+		compare("Platform", ThreadFactories.platform("compare"), 9001);
+	}
+
+	@Test
+	public final void testVirtual() throws Exception
+	{
+		ThreadFactory factory = ThreadFactories.virtual();
+		if (factory == null)
+			System.out.printf("[TASK] Virtual threads are not supported\r\n");
+		else
+			compare("Virtual", factory, 9002);
+	}
+
+	/**
+	 * Opens the connections, sends one request on each and waits for all of
+	 * the echoes.
+	 * 
+	 * @param name
+	 *            the name of the thread model
+	 * @param factory
+	 *            the factory of the threads serving the connections
+	 * @param port
+	 *            the port of the server
+	 * @throws Exception
+	 *             if any error occurs
+	 */
+	private void compare(String name, ThreadFactory factory, int port)
+			throws Exception
+	{
+		InetSocketAddress sa = new InetSocketAddress("127.0.0.1", port);
+		SessionTCPServer server = new SessionTCPServer(sa, CONNECTIONS);
+		server.serve(new TransactionHandler()
+		{
+			@Override
+			public void handle(TransactionTCP transaction)
+			{
+				transaction.setFramed(true);
+				ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+				try
+				{
+					while (true)
+					{
+						buffer.clear();
+						transaction.receive(buffer);
+						if (!transaction.hasNext())
+							break;
+						buffer.flip();
+						transaction.send(buffer);
+					}
+				}
+				catch (Exception e)
+				{
+					// the client is gone
+				}
+			}
+		}, factory);
+		ByteBuffer request = ByteBuffer.allocate(FrameCodec.MAX_HEADER_LENGTH
+				+ SIZE);
+		FrameCodec.encodeHeader(request, SIZE);
+		request.position(request.position() + SIZE);
+		request.flip();
+		ByteBuffer response = ByteBuffer.allocate(request.remaining());
+		SocketChannel[] clients = new SocketChannel[CONNECTIONS];
+		long begin = System.currentTimeMillis();
+		for (int i = 0; i < CONNECTIONS; i++)
+			clients[i] = SocketChannel.open(sa);
+		long connected = System.currentTimeMillis();
+		for (SocketChannel client : clients)
+			client.write(request.duplicate());
+		for (SocketChannel client : clients)
+		{
+			response.clear();
+			while (response.hasRemaining())
+				if (client.read(response) == -1)
+					throw new EOFException();
+		}
+		long end = System.currentTimeMillis();
+		for (SocketChannel client : clients)
+			client.close();
+		server.close();
+		System.out.printf(
+				"[TASK] %s threads, %d connections: connect = %dms, echo = %dms\r\n",
+				name, CONNECTIONS, connected - begin, end - connected);
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * CompareUDPShards.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.frank.mpnet.DatagramHandler;
+import com.frank.mpnet.NetUtils;
+import com.frank.mpnet.SessionSharded;
+import com.frank.mpnet.SocketInfo;
+import com.frank.mpnet.SocketType;
+import com.frank.mpnet.TransactionUDP;
+
+/**
+ * The test case for comparing the datagram throughput of the UDP sessions
+ * with different numbers of shards.
+ * <p>
+ * Several senders, each with its own socket, send datagrams as fast as
+ * possible for a while, and the shards count the datagrams received. The
+ * duration in milliseconds can be set by the system property
+ * <code>mpnet.duration</code>.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class CompareUDPShards
+{
+	/**
+	 * The duration of each comparison in milliseconds.
+	 */
+	public static final int	DURATION	= Integer.getInteger("mpnet.duration",
+												2000);
+	/**
+	 * The number of senders.
+	 */
+	public static final int	SENDERS		= 8;
+	/**
+	 * The size of each datagram.
+	 */
+	public static final int	SIZE		= 256;
+
+	@Test
+	public final void test() throws Exception
+	{
+		if (!NetUtils.isReusePortSupported())
+		{
+			System.out.printf("[TASK] SO_REUSEPORT is not supported\r\n");
+			return;
+		}
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int shards = 1; shards <= Math.max(4, cores); shards <<= 1)
+			compare(shards, 9003);
+	}
+
+	/**
+	 * Sends the datagrams to the specified number of shards and prints the
+	 * throughput.
+	 * 
+	 * @param shards
+	 *            the number of shards
+	 * @param port
+	 *            the port of the server
+	 * @throws Exception
+	 *             if any error occurs
+	 */
+	private void compare(int shards, int port) throws Exception
+	{
+		final InetSocketAddress sa = new InetSocketAddress("127.0.0.1", port);
+		final AtomicLong received = new AtomicLong();
+		SessionSharded server = new SessionSharded(sa, SocketType.UDP, shards);
+		server.receive(new DatagramHandler()
+		{
+			@Override
+			public void handle(TransactionUDP transaction, SocketInfo source,
+					ByteBuffer data)
+			{
+				// a little work for each datagram
+				int sum = 0;
+				while (data.hasRemaining())
+					sum += data.get();
+				if (sum != Integer.MIN_VALUE)
+					received.incrementAndGet();
+			}
+		});
+		final long deadline = System.currentTimeMillis() + DURATION;
+		Thread[] senders = new Thread[SENDERS];
+		for (int i = 0; i < SENDERS; i++)
+		{
+			senders[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						DatagramChannel channel = DatagramChannel.open();
+						channel.connect(sa);
+						ByteBuffer datagram = ByteBuffer.allocateDirect(SIZE);
+						while (System.currentTimeMillis() < deadline)
+						{
+							for (int j = 0; j < 64; j++)
+							{
+								datagram.clear();
+								channel.write(datagram);
+							}
+						}
+						channel.close();
+					}
+					catch (Exception e)
+					{
+						// the receiver is not ready or already closed
+					}
+				}
+			});
+			senders[i].start();
+		}
+		for (Thread sender : senders)
+			sender.join();
+		Thread.sleep(100);
+		long count = received.get();
+		server.close();
+		System.out.printf(
+				"[TASK] UDP %d shards: received = %d datagrams/s\r\n", shards,
+				count * 1000 / DURATION);
+	}
+}
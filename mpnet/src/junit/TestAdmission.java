@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestAdmission.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.frank.mpnet.AdmissionControl;
+import com.frank.mpnet.SessionException;
+import com.frank.mpnet.SessionTCPClient;
+import com.frank.mpnet.SessionTCPServer;
+import com.frank.mpnet.TransactionHandler;
+import com.frank.mpnet.TransactionTCP;
+
+/**
+ * Test the TCP server session serving with the admission control.
+ * <p>
+ * In the first test case, the handlers are blocked, thus, the connections
+ * beyond the pool and its queue are rejected. In the second test case, the
+ * connections are accepted no faster than the rate limit.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestAdmission
+{
+	/**
+	 * The Internet address of the saturated server.
+	 */
+	public static final InetSocketAddress	SATURATED	= new InetSocketAddress(
+																"localhost",
+																8106);
+	/**
+	 * The Internet address of the rate limited server.
+	 */
+	public static final InetSocketAddress	LIMITED		= new InetSocketAddress(
+																"localhost",
+																8107);
+	/**
+	 * The Internet address of the server whose handler fails.
+	 */
+	public static final InetSocketAddress	FAILING		= new InetSocketAddress(
+																"localhost",
+																8135);
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.SessionTCPServer#serve(TransactionHandler, int, int, AdmissionControl)}
+	 * .
+	 */
+	@Test
+	public final void testReject() throws Exception
+	{
+		final CountDownLatch release = new CountDownLatch(1);
+		SessionTCPServer server = new SessionTCPServer(SATURATED);
+		server.serve(new TransactionHandler()
+		{
+			@Override
+			public void handle(TransactionTCP transaction) throws IOException
+			{
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException e)
+				{
+					throw new IOException(e);
+				}
+			}
+		}, 2, 1, new AdmissionControl(4, 0));
+		AdmissionControl admission = server.getAdmission();
+		List<SessionTCPClient> clients = new ArrayList<SessionTCPClient>();
+		for (int i = 1; i <= 5; i++)
+		{
+			SessionTCPClient client = new SessionTCPClient();
+			clients.add(client);
+			try
+			{
+				client.beginTransaction(SATURATED);
+			}
+			catch (SessionException e)
+			{
+				// the reset of a rejected connection may beat the connecting
+				assertTrue(i > 3);
+			}
+			awaitHandled(admission, i);
+		}
+		// 2 handled by the pool, 1 queued, 2 rejected by the executor
+		assertEquals(3, admission.getAcceptedCount());
+		assertEquals(2, admission.getRejectedCount());
+		assertEquals(1, admission.getQueuedCount());
+		assertEquals(2, admission.getActiveCount());
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (admission.getActiveCount() > 0
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(0, admission.getActiveCount());
+		assertEquals(0, admission.getQueuedCount());
+		for (SessionTCPClient client : clients)
+			client.close();
+		server.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.SessionTCPServer#serve(TransactionHandler, java.util.concurrent.Executor, AdmissionControl)}
+	 * .
+	 */
+	@Test
+	public final void testRate() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(LIMITED);
+		server.serve(new TransactionHandler()
+		{
+			@Override
+			public void handle(TransactionTCP transaction)
+			{
+				// closed at once
+			}
+		}, 1, 8, new AdmissionControl(0, 20, 1));
+		AdmissionControl admission = server.getAdmission();
+		List<SessionTCPClient> clients = new ArrayList<SessionTCPClient>();
+		long start = System.nanoTime();
+		for (int i = 0; i < 6; i++)
+		{
+			SessionTCPClient client = new SessionTCPClient();
+			client.beginTransaction(LIMITED);
+			clients.add(client);
+		}
+		awaitHandled(admission, 6);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		// 5 waits of 50 milliseconds after the first connection
+		assertTrue(elapsed >= 200);
+		assertEquals(6, admission.getAcceptedCount());
+		assertEquals(0, admission.getRejectedCount());
+		for (SessionTCPClient client : clients)
+			client.close();
+		server.close();
+	}
+
+	/**
+	 * Test method for the failed handler, whose transaction is closed and
+	 * counted while the server keeps serving.
+	 */
+	@Test
+	public final void testFailure() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(FAILING);
+		server.serve(new TransactionHandler()
+		{
+			@Override
+			public void handle(TransactionTCP transaction) throws IOException
+			{
+				throw new IOException("The handler fails.");
+			}
+		}, 1, 8, new AdmissionControl());
+		AdmissionControl admission = server.getAdmission();
+		for (int i = 1; i <= 3; i++)
+		{
+			SessionTCPClient client = new SessionTCPClient();
+			TransactionTCP transaction = (TransactionTCP) client
+					.beginTransaction(FAILING);
+			// the end of the stream once the transaction is closed
+			transaction.receive(ByteBuffer.allocate(4));
+			assertFalse(transaction.hasNext());
+			client.close();
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (admission.getFailedCount() < 3
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(3, admission.getFailedCount());
+		assertEquals(0, admission.getActiveCount());
+		server.close();
+	}
+
+	/**
+	 * Waits until the specified number of connections are accepted or
+	 * rejected.
+	 * 
+	 * @param admission
+	 *            the admission control
+	 * @param count
+	 *            the number of connections
+	 */
+	static void awaitHandled(AdmissionControl admission, int count)
+			throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 5000;
+		while (admission.getAcceptedCount() + admission.getRejectedCount() < count
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(count,
+				admission.getAcceptedCount() + admission.getRejectedCount());
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestAsync.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.frank.mpnet.DatagramBatch;
+import com.frank.mpnet.EventLoop;
+import com.frank.mpnet.SessionTCPAsync;
+import com.frank.mpnet.SessionUDP;
+import com.frank.mpnet.SocketInfo;
+import com.frank.mpnet.TransactionFuture;
+import com.frank.mpnet.TransactionTCPAsync;
+import com.frank.mpnet.TransactionTimeoutException;
+import com.frank.mpnet.TransactionUDP;
+
+/**
+ * Test the asynchronous operations of the transactions.
+ * <p>
+ * In the TCP test case, one thread connects a number of clients, sends one
+ * request on each of them before waiting for any echo, while the server
+ * echoes by the completion handlers only. In the UDP test case, all of the
+ * receives are started before the datagrams are sent.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestAsync
+{
+	/**
+	 * The number of concurrent transactions.
+	 */
+	public static final int					COUNT	= 200;
+	/**
+	 * The Internet address of the TCP server.
+	 */
+	public static final InetSocketAddress	TCP		= new InetSocketAddress(
+															"localhost", 8103);
+	/**
+	 * The Internet address of the UDP sender.
+	 */
+	public static final InetSocketAddress	SND		= new InetSocketAddress(
+															"localhost", 8104);
+	/**
+	 * The Internet address of the UDP receiver.
+	 */
+	public static final InetSocketAddress	RCV		= new InetSocketAddress(
+															"localhost", 8105);
+	/**
+	 * The Internet address of the TCP server of the cancellation.
+	 */
+	public static final InetSocketAddress	CANCEL	= new InetSocketAddress(
+															"localhost", 8133);
+	/**
+	 * The Internet address of the UDP session shared by the transactions.
+	 */
+	public static final InetSocketAddress	SHARED	= new InetSocketAddress(
+															"localhost", 8134);
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionTCPAsync#sendAsync(ByteBuffer)} and
+	 * {@link com.frank.mpnet.TransactionTCPAsync#receiveAsync(ByteBuffer)}.
+	 */
+	@Test
+	public final void testTCP() throws Exception
+	{
+		final SessionTCPAsync server = new SessionTCPAsync();
+		server.bind(TCP);
+		server.acceptAsync().whenComplete(null,
+				new CompletionHandler<TransactionTCPAsync, Object>()
+				{
+					@Override
+					public void completed(TransactionTCPAsync transaction,
+							Object attachment)
+					{
+						server.acceptAsync().whenComplete(null, this);
+						echo(transaction, ByteBuffer.allocate(64));
+					}
+
+					@Override
+					public void failed(Throwable cause, Object attachment)
+					{
+						// the server is closed
+					}
+				});
+		SessionTCPAsync client = new SessionTCPAsync();
+		List<TransactionFuture<TransactionTCPAsync>> connecting = new ArrayList<TransactionFuture<TransactionTCPAsync>>();
+		for (int i = 0; i < COUNT; i++)
+			connecting.add(client.connectAsync(TCP));
+		List<TransactionTCPAsync> transactions = new ArrayList<TransactionTCPAsync>();
+		for (TransactionFuture<TransactionTCPAsync> future : connecting)
+			transactions.add(future.get(10, TimeUnit.SECONDS));
+		for (int i = 0; i < COUNT; i++)
+			transactions.get(i).sendAsync(
+					ByteBuffer.allocate(4).putInt(0, i));
+		for (int i = 0; i < COUNT; i++)
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(4);
+			while (buffer.hasRemaining())
+				transactions.get(i).receiveAsync(buffer)
+						.get(10, TimeUnit.SECONDS);
+			assertEquals(i, buffer.getInt(0));
+			transactions.get(i).close();
+		}
+		server.close();
+	}
+
+	/**
+	 * Test method for the cancellation of
+	 * {@link com.frank.mpnet.TransactionTCPAsync#receiveAsync(ByteBuffer)},
+	 * the started receiving refuses it while the queued one is withdrawn.
+	 */
+	@Test
+	public final void testCancel() throws Exception
+	{
+		SessionTCPAsync server = new SessionTCPAsync();
+		server.bind(CANCEL);
+		TransactionFuture<TransactionTCPAsync> accepting = server.acceptAsync();
+		SessionTCPAsync client = new SessionTCPAsync();
+		TransactionTCPAsync transaction = client.connectAsync(CANCEL).get(10,
+				TimeUnit.SECONDS);
+		TransactionTCPAsync peer = accepting.get(10, TimeUnit.SECONDS);
+		ByteBuffer first = ByteBuffer.allocate(4);
+		ByteBuffer withdrawn = ByteBuffer.allocate(4);
+		ByteBuffer next = ByteBuffer.allocate(4);
+		TransactionFuture<SocketInfo> reading = peer.receiveAsync(first);
+		TransactionFuture<SocketInfo> queued = peer.receiveAsync(withdrawn);
+		assertFalse(reading.cancel(false));
+		assertTrue(queued.cancel(false));
+		TransactionFuture<SocketInfo> following = peer.receiveAsync(next);
+		transaction.send(ByteBuffer.allocate(8).putInt(0, 1).putInt(4, 2));
+		reading.get(10, TimeUnit.SECONDS);
+		assertEquals(1, first.getInt(0));
+		while (next.hasRemaining())
+		{
+			following.get(10, TimeUnit.SECONDS);
+			if (next.hasRemaining())
+				following = peer.receiveAsync(next);
+		}
+		assertEquals(2, next.getInt(0));
+		assertEquals(0, withdrawn.position());
+		transaction.close();
+		peer.close();
+		client.close();
+		server.close();
+	}
+
+	/**
+	 * Echoes the received data until the end of the stream by the completion
+	 * handlers.
+	 * 
+	 * @param transaction
+	 *            the transaction to echo
+	 * @param buffer
+	 *            the buffer of the echo
+	 */
+	private static void echo(final TransactionTCPAsync transaction,
+			final ByteBuffer buffer)
+	{
+		buffer.clear();
+		transaction.receiveAsync(buffer).whenComplete(null,
+				new CompletionHandler<SocketInfo, Object>()
+				{
+					@Override
+					public void completed(SocketInfo info, Object attachment)
+					{
+						if (!transaction.hasNext())
+						{
+							transaction.close();
+							return;
+						}
+						buffer.flip();
+						transaction.sendAsync(buffer).whenComplete(null,
+								new CompletionHandler<Integer, Object>()
+								{
+									@Override
+									public void completed(Integer n,
+											Object attachment)
+									{
+										echo(transaction, buffer);
+									}
+
+									@Override
+									public void failed(Throwable cause,
+											Object attachment)
+									{
+										transaction.close();
+									}
+								});
+					}
+
+					@Override
+					public void failed(Throwable cause, Object attachment)
+					{
+						transaction.close();
+					}
+				});
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionUDP#sendAsync(java.net.SocketAddress, ByteBuffer)}
+	 * and {@link com.frank.mpnet.TransactionUDP#receiveAsync(ByteBuffer)}.
+	 */
+	@Test
+	public final void testUDP() throws Exception
+	{
+		EventLoop loop = new EventLoop();
+		SessionUDP sender = new SessionUDP(SND);
+		SessionUDP receiver = new SessionUDP(RCV);
+		TransactionUDP snd = (TransactionUDP) sender.beginTransaction();
+		TransactionUDP rcv = (TransactionUDP) receiver.beginTransaction();
+		snd.setAsync(loop, null);
+		rcv.setAsync(loop, null);
+		List<TransactionFuture<SocketInfo>> receiving = new ArrayList<TransactionFuture<SocketInfo>>();
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < COUNT; i++)
+		{
+			ByteBuffer buffer = ByteBuffer.allocateDirect(4);
+			buffers.add(buffer);
+			receiving.add(rcv.receiveAsync(buffer));
+		}
+		List<TransactionFuture<Integer>> sending = new ArrayList<TransactionFuture<Integer>>();
+		for (int i = 0; i < COUNT; i++)
+			sending.add(snd.sendAsync(RCV, ByteBuffer.allocate(4).putInt(0, i)));
+		for (TransactionFuture<Integer> future : sending)
+			assertEquals(4, future.get(10, TimeUnit.SECONDS).intValue());
+		BitSet received = new BitSet();
+		for (int i = 0; i < COUNT; i++)
+		{
+			SocketInfo info = receiving.get(i).get(10, TimeUnit.SECONDS);
+			assertEquals(SND.getPort(),
+					((InetSocketAddress) info.getAddress()).getPort());
+			received.set(buffers.get(i).getInt(0));
+		}
+		assertEquals(COUNT, received.cardinality());
+		loop.close();
+		sender.close();
+		receiver.close();
+	}
+
+	/**
+	 * Test method for {@link com.frank.mpnet.SessionUDP#setAsync(EventLoop,
+	 * java.util.concurrent.Executor)}, all the transactions sharing the socket
+	 * follow the asynchronous mode, including the ones begun before.
+	 */
+	@Test
+	public final void testSharedUDP() throws Exception
+	{
+		EventLoop loop = new EventLoop();
+		SessionUDP sender = new SessionUDP(SND);
+		SessionUDP receiver = new SessionUDP(SHARED);
+		TransactionUDP snd = (TransactionUDP) sender.beginTransaction();
+		TransactionUDP before = (TransactionUDP) receiver.beginTransaction();
+		receiver.setAsync(loop, null);
+		TransactionUDP after = (TransactionUDP) receiver.beginTransaction();
+		assertTrue(receiver.isAsync());
+		// the timed receiving of the earlier transaction is asynchronous too
+		try
+		{
+			before.receive(ByteBuffer.allocate(4), 100, TimeUnit.MILLISECONDS);
+			fail("The receiving shall time out.");
+		}
+		catch (TransactionTimeoutException e)
+		{
+			// expected
+		}
+		// the cancelled receiving loses no datagram
+		assertTrue(before.receiveAsync(ByteBuffer.allocate(4)).cancel(false));
+		snd.send(SHARED, ByteBuffer.allocate(4).putInt(0, 7));
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		SocketInfo info = after.receive(buffer);
+		assertEquals(7, buffer.getInt(0));
+		assertEquals(SND.getPort(),
+				((InetSocketAddress) info.getAddress()).getPort());
+		// the blocking sending is served by the event loop
+		before.send(SND, ByteBuffer.allocate(4).putInt(0, 8));
+		buffer.clear();
+		snd.receive(buffer, 10, TimeUnit.SECONDS);
+		assertEquals(8, buffer.getInt(0));
+		// the asynchronous channel is drained without switching its mode
+		for (int i = 0; i < 3; i++)
+			snd.send(SHARED, ByteBuffer.allocate(4).putInt(0, i));
+		Thread.sleep(100);
+		DatagramBatch batch = new DatagramBatch(8, 4);
+		assertEquals(3, after.receiveBatch(batch));
+		assertFalse(receiver.getSocket().getChannel().isBlocking());
+		loop.close();
+		sender.close();
+		receiver.close();
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestCoalescing.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.frank.mpnet.SessionTCPClient;
+import com.frank.mpnet.SessionTCPServer;
+import com.frank.mpnet.SharedScheduler;
+import com.frank.mpnet.TransactionException;
+import com.frank.mpnet.TransactionTCP;
+import com.frank.mpnet.TransactionTCP.ReceiveMode;
+
+/**
+ * Test the write coalescing of the TCP transaction.
+ * <p>
+ * In this test case, the peer records the arrival of each chunk, thus, the
+ * data held by the thresholds or by the cork shall not arrive until it is
+ * released.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestCoalescing
+{
+	/**
+	 * The Internet address of the server.
+	 */
+	public static final InetSocketAddress	RCV	= new InetSocketAddress(
+														"localhost", 8102);
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionTCP#setCoalescing(int, long, TimeUnit)}
+	 * .
+	 */
+	@Test
+	public final void testThresholds() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		SessionTCPClient session = new SessionTCPClient();
+		TransactionTCP client = (TransactionTCP) session.beginTransaction(RCV);
+		BlockingQueue<Integer> arrivals = record((TransactionTCP) server
+				.beginTransaction());
+		// the latency threshold
+		client.setCoalescing(1024, 300, TimeUnit.MILLISECONDS);
+		long start = System.nanoTime();
+		client.send(new byte[100]);
+		assertNull(arrivals.poll(150, TimeUnit.MILLISECONDS));
+		assertEquals(100, (int) arrivals.poll(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(250));
+		// the byte threshold
+		client.setCoalescing(1024, 10, TimeUnit.SECONDS);
+		client.send(new byte[600]);
+		assertNull(arrivals.poll(150, TimeUnit.MILLISECONDS));
+		client.send(new byte[600]);
+		assertEquals(1200, collect(arrivals, 1200));
+		// the explicit flushing
+		client.send(new byte[10]);
+		assertNull(arrivals.poll(150, TimeUnit.MILLISECONDS));
+		client.flush();
+		assertEquals(10, collect(arrivals, 10));
+		client.close();
+		session.close();
+		server.close();
+	}
+
+	/**
+	 * Test method for {@link com.frank.mpnet.TransactionTCP#cork()} and
+	 * {@link com.frank.mpnet.TransactionTCP#uncork()}.
+	 */
+	@Test
+	public final void testCork() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		SessionTCPClient session = new SessionTCPClient();
+		TransactionTCP client = (TransactionTCP) session.beginTransaction(RCV);
+		BlockingQueue<Integer> arrivals = record((TransactionTCP) server
+				.beginTransaction());
+		client.setCoalescing(1024, 50, TimeUnit.MILLISECONDS);
+		client.cork();
+		for (int i = 0; i < 3; i++)
+			client.send(new byte[100]);
+		// the latency threshold is ignored while corked
+		assertNull(arrivals.poll(300, TimeUnit.MILLISECONDS));
+		client.uncork();
+		assertEquals(300, collect(arrivals, 300));
+		// the cork without the write coalescing
+		client.setCoalescing(0, 0, TimeUnit.MILLISECONDS);
+		client.cork();
+		client.send(new byte[50]);
+		assertNull(arrivals.poll(150, TimeUnit.MILLISECONDS));
+		client.flush();
+		assertEquals(50, collect(arrivals, 50));
+		client.send(new byte[50]);
+		assertNull(arrivals.poll(150, TimeUnit.MILLISECONDS));
+		client.uncork();
+		assertEquals(50, collect(arrivals, 50));
+		client.send(new byte[5]);
+		assertEquals(5, collect(arrivals, 5));
+		client.close();
+		session.close();
+		server.close();
+	}
+
+	/**
+	 * Test method for the failure of the background flushing, which shall be
+	 * reported by {@link com.frank.mpnet.TransactionTCP#flush()} and
+	 * {@link com.frank.mpnet.TransactionTCP#close()}.
+	 */
+	@Test
+	public final void testFailure() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		for (int i = 0; i < 2; i++)
+		{
+			SessionTCPClient session = new SessionTCPClient();
+			TransactionTCP client = (TransactionTCP) session
+					.beginTransaction(RCV);
+			server.beginTransaction().close();
+			client.setCoalescing(1024, 20, TimeUnit.MILLISECONDS);
+			// the first write is reset by the closed peer
+			client.send(new byte[100]);
+			Thread.sleep(200);
+			client.send(new byte[100]);
+			Thread.sleep(200);
+			try
+			{
+				if (i == 0)
+					client.flush();
+				else
+					client.close();
+				fail("The failure of the background flushing shall be reported.");
+			}
+			catch (TransactionException e)
+			{
+				// expected
+			}
+			try
+			{
+				client.close();
+			}
+			catch (TransactionException e)
+			{
+				// the data left in the write buffer is not delivered
+			}
+			session.close();
+		}
+		server.close();
+	}
+
+	/**
+	 * Test method for the background flushing to a peer which never reads,
+	 * which shall not block the {@linkplain SharedScheduler shared scheduler}.
+	 */
+	@Test
+	public final void testSlowPeer() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		server.getSocket().setReceiveBufferSize(4096);
+		SessionTCPClient session = new SessionTCPClient();
+		TransactionTCP client = (TransactionTCP) session.beginTransaction(RCV);
+		TransactionTCP peer = (TransactionTCP) server.beginTransaction();
+		client.setCoalescing(8 << 20, 10, TimeUnit.MILLISECONDS);
+		// the background flushing blocks since the peer never reads
+		client.send(new byte[8000000]);
+		Thread.sleep(200);
+		ScheduledFuture<?> task = SharedScheduler.get().schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+			}
+		}, 1, TimeUnit.MILLISECONDS);
+		task.get(1, TimeUnit.SECONDS);
+		peer.close();
+		try
+		{
+			client.close();
+		}
+		catch (TransactionException e)
+		{
+			// the peer is closed
+		}
+		session.close();
+		server.close();
+	}
+
+	/**
+	 * Records the size of each chunk arrived at the specified transaction by
+	 * a daemon thread.
+	 * 
+	 * @param peer
+	 *            the transaction of the peer
+	 * @return the sizes of the chunks in order of the arrival
+	 */
+	static BlockingQueue<Integer> record(final TransactionTCP peer)
+	{
+		final BlockingQueue<Integer> arrivals = new LinkedBlockingQueue<Integer>();
+		peer.setReceiveMode(ReceiveMode.Available);
+		Thread thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ByteBuffer buffer = ByteBuffer.allocate(65536);
+				try
+				{
+					while (true)
+					{
+						buffer.clear();
+						peer.receive(buffer);
+						if (!peer.hasNext())
+							break;
+						arrivals.add(buffer.position());
+					}
+				}
+				catch (Exception e)
+				{
+					// the peer is closed
+				}
+				finally
+				{
+					peer.close();
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return arrivals;
+	}
+
+	/**
+	 * Collects the chunks arrived until the specified number of bytes.
+	 * 
+	 * @param arrivals
+	 *            the sizes of the chunks arrived
+	 * @param expected
+	 *            the expected number of bytes
+	 * @return the number of bytes collected
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	static int collect(BlockingQueue<Integer> arrivals, int expected)
+			throws InterruptedException
+	{
+		int total = 0;
+		Integer n;
+		while (total < expected
+				&& (n = arrivals.poll(5, TimeUnit.SECONDS)) != null)
+			total += n;
+		return total;
+	}
+}
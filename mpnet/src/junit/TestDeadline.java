@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestDeadline.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.frank.mpnet.SessionMux;
+import com.frank.mpnet.SessionTCPClient;
+import com.frank.mpnet.SessionTCPServer;
+import com.frank.mpnet.SessionUDP;
+import com.frank.mpnet.TransactionFuture;
+import com.frank.mpnet.TransactionStream;
+import com.frank.mpnet.TransactionTCP;
+import com.frank.mpnet.TransactionTimeoutException;
+import com.frank.mpnet.TransactionUDP;
+
+/**
+ * Test the deadlines of the sending and the receiving.
+ * <p>
+ * In this test case, the peers never answer or never read, thus, each
+ * operation with a deadline fails with a
+ * {@linkplain TransactionTimeoutException} in time.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestDeadline
+{
+	/**
+	 * The timeout in milliseconds.
+	 */
+	public static final long				TIMEOUT	= 100;
+	/**
+	 * The Internet address of the server.
+	 */
+	public static final InetSocketAddress	RCV		= new InetSocketAddress(
+															"localhost", 8114);
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.Transaction#receive(ByteBuffer, long, TimeUnit)}
+	 * of TCP.
+	 */
+	@Test
+	public final void testTCP() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		SessionTCPClient session = new SessionTCPClient();
+		TransactionTCP client = (TransactionTCP) session.beginTransaction(RCV);
+		TransactionTCP peer = (TransactionTCP) server.beginTransaction();
+		// the silent peer
+		long start = System.nanoTime();
+		try
+		{
+			client.receive(ByteBuffer.allocate(16), TIMEOUT,
+					TimeUnit.MILLISECONDS);
+			fail("The receiving shall time out.");
+		}
+		catch (TransactionTimeoutException e)
+		{
+			// expected
+		}
+		checkElapsed(start);
+		peer.close();
+		session.close();
+		// the peer never reads
+		session = new SessionTCPClient();
+		client = (TransactionTCP) session.beginTransaction(RCV);
+		peer = (TransactionTCP) server.beginTransaction();
+		start = System.nanoTime();
+		try
+		{
+			client.send(ByteBuffer.allocate(64 << 20), TIMEOUT,
+					TimeUnit.MILLISECONDS);
+			fail("The sending shall time out.");
+		}
+		catch (TransactionTimeoutException e)
+		{
+			// expected
+		}
+		checkElapsed(start);
+		peer.close();
+		session.close();
+		// the answer in time
+		session = new SessionTCPClient();
+		client = (TransactionTCP) session.beginTransaction(RCV);
+		peer = (TransactionTCP) server.beginTransaction();
+		peer.send(new byte[16]);
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		client.receive(buffer, TIMEOUT, TimeUnit.MILLISECONDS);
+		assertEquals(16, buffer.position());
+		peer.close();
+		client.close();
+		session.close();
+		server.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionUDP#receive(ByteBuffer, long, TimeUnit)}
+	 * .
+	 */
+	@Test
+	public final void testUDP() throws Exception
+	{
+		SessionUDP session = new SessionUDP();
+		TransactionUDP transaction = (TransactionUDP) session
+				.beginTransaction();
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		long start = System.nanoTime();
+		try
+		{
+			transaction.receive(buffer, TIMEOUT, TimeUnit.MILLISECONDS);
+			fail("The receiving shall time out.");
+		}
+		catch (TransactionTimeoutException e)
+		{
+			// expected
+		}
+		checkElapsed(start);
+		// the transaction stays usable
+		transaction.send(session.getLocalAddress(), new byte[] { 7 });
+		transaction.receive(buffer, TIMEOUT, TimeUnit.MILLISECONDS);
+		assertEquals(1, buffer.position());
+		assertEquals(7, buffer.get(0));
+		session.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionStream#receive(ByteBuffer, long, TimeUnit)}
+	 * .
+	 */
+	@Test
+	public final void testStream() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		SessionTCPClient session = new SessionTCPClient();
+		SessionMux client = new SessionMux(
+				(TransactionTCP) session.beginTransaction(RCV), true, 1024);
+		SessionMux peer = new SessionMux(
+				(TransactionTCP) server.beginTransaction(), false, 1024);
+		TransactionStream stream = client.beginTransaction();
+		TransactionStream accepted = peer.acceptStream();
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		long start = System.nanoTime();
+		try
+		{
+			stream.receive(buffer, TIMEOUT, TimeUnit.MILLISECONDS);
+			fail("The receiving shall time out.");
+		}
+		catch (TransactionTimeoutException e)
+		{
+			// expected
+		}
+		checkElapsed(start);
+		// the window is exhausted since the peer never reads
+		start = System.nanoTime();
+		try
+		{
+			stream.send(ByteBuffer.allocate(4096), TIMEOUT,
+					TimeUnit.MILLISECONDS);
+			fail("The sending shall time out.");
+		}
+		catch (TransactionTimeoutException e)
+		{
+			// expected
+		}
+		checkElapsed(start);
+		// the stream stays usable
+		accepted.send(new byte[] { 7 });
+		stream.receive(buffer, TIMEOUT, TimeUnit.MILLISECONDS);
+		assertEquals(1, buffer.position());
+		client.close();
+		peer.close();
+		session.close();
+		server.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionFuture#await(long, TimeUnit)}.
+	 */
+	@Test
+	public final void testFuture() throws Exception
+	{
+		TransactionFuture<Integer> future = new TransactionFuture<Integer>(null);
+		try
+		{
+			future.await(TIMEOUT, TimeUnit.MILLISECONDS);
+			fail("The waiting shall time out.");
+		}
+		catch (TransactionTimeoutException e)
+		{
+			// expected
+		}
+		future.complete(1);
+		assertEquals(1, (int) future.await(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Checks that the operation failed after the timeout but not much later.
+	 * 
+	 * @param start
+	 *            the start time of the operation in nanoseconds
+	 */
+	static void checkElapsed(long start)
+	{
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsed >= TIMEOUT - 10);
+		assertTrue(elapsed < TIMEOUT * 10);
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestFileTransfer.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.frank.mpnet.Session;
+import com.frank.mpnet.SessionFactory;
+import com.frank.mpnet.SessionUDP;
+import com.frank.mpnet.SocketType;
+import com.frank.mpnet.TransactionTCP;
+import com.frank.mpnet.TransactionUDP;
+import com.frank.mpnet.TransferListener;
+
+/**
+ * Test the file transfer of the TCP transaction.
+ * <p>
+ * In this test case, the client sends a region of a file by
+ * {@linkplain TransactionTCP#sendFile(FileChannel, long, long)}, and the
+ * server receives it into another file by
+ * {@linkplain TransactionTCP#receiveToFile(FileChannel, long, long)}, in both
+ * of the framed and the unframed mode. The UDP transaction sends the region
+ * in datagrams.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestFileTransfer
+{
+	/**
+	 * The length of the file.
+	 */
+	public static final int					LENGTH	= 3 << 20;
+	/**
+	 * The offset of the file region to send.
+	 */
+	public static final int					OFFSET	= 1000;
+	/**
+	 * The port of the message sender, the port of the message receiver is the
+	 * next one.
+	 */
+	public static final int					PORT	= 8096;
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionTCP#receiveToFile(FileChannel, long, long)}
+	 * .
+	 */
+	@Test
+	public final void testUnframed() throws Exception
+	{
+		transfer(false, PORT);
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionTCP#receiveToFile(FileChannel, long, long)}
+	 * in framed mode.
+	 */
+	@Test
+	public final void testFramed() throws Exception
+	{
+		transfer(true, PORT + 2);
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionUDP#sendFile(FileChannel, long, long, TransferListener)}
+	 * .
+	 */
+	@Test
+	public final void testUDP() throws Exception
+	{
+		InetSocketAddress snd = new InetSocketAddress("localhost", 8139);
+		InetSocketAddress rcv = new InetSocketAddress("localhost", 8140);
+		int length = 20000;
+		byte[] data = new byte[OFFSET + length];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 31);
+		File src = File.createTempFile("mpnet", ".src");
+		src.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(src, "rw");
+		raf.write(data);
+		SessionUDP sender = (SessionUDP) SessionFactory.build().createSession(
+				snd, SocketType.UDP);
+		Session receiver = SessionFactory.build().createSession(rcv,
+				SocketType.UDP);
+		sender.getSocket().connect(rcv);
+		TransactionUDP out = (TransactionUDP) sender.beginTransaction();
+		TransactionUDP in = (TransactionUDP) receiver.beginTransaction();
+		final long[] progress = new long[2];
+		long sent = out.sendFile(raf.getChannel(), OFFSET, length,
+				new TransferListener()
+				{
+					@Override
+					public void progress(long transferred, long total)
+					{
+						progress[0] = transferred;
+						progress[1] = total;
+					}
+				});
+		raf.close();
+		assertEquals(length, sent);
+		assertEquals(length, progress[0]);
+		assertEquals(length, progress[1]);
+		// the datagrams on the loopback arrive in order
+		ByteBuffer received = ByteBuffer.allocate(length);
+		ByteBuffer datagram = ByteBuffer.allocate(TransactionUDP.MAX_UDP_PACKET);
+		while (received.hasRemaining())
+		{
+			datagram.clear();
+			in.receive(datagram, 5, TimeUnit.SECONDS);
+			assertTrue(datagram.position() <= out.getMaxLength());
+			datagram.flip();
+			received.put(datagram);
+		}
+		byte[] expected = new byte[length];
+		System.arraycopy(data, OFFSET, expected, 0, length);
+		assertArrayEquals(expected, received.array());
+		sender.close();
+		receiver.close();
+	}
+
+	/**
+	 * Transfers a region of a file from the client to the server and checks
+	 * the received file.
+	 * 
+	 * @param framed
+	 *            <code>true</code> if transfer in framed mode
+	 * @param port
+	 *            the port of the message sender
+	 * @throws Exception
+	 *             if any error occurs
+	 */
+	private void transfer(final boolean framed, int port) throws Exception
+	{
+		final InetSocketAddress snd = new InetSocketAddress("localhost", port);
+		final InetSocketAddress rcv = new InetSocketAddress("localhost",
+				port + 1);
+		byte[] data = new byte[LENGTH];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 31);
+		final File src = File.createTempFile("mpnet", ".src");
+		File dst = File.createTempFile("mpnet", ".dst");
+		src.deleteOnExit();
+		dst.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(src, "rw");
+		raf.write(data);
+		raf.close();
+		Session server = SessionFactory.build().createSession(rcv,
+				SocketType.TCP_SERVER);
+		ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1);
+		stpe.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Session session = SessionFactory.build().createSession(snd,
+						SocketType.TCP_CLIENT);
+				TransactionTCP transaction = (TransactionTCP) session
+						.beginTransaction(rcv);
+				transaction.setFramed(framed);
+				try
+				{
+					RandomAccessFile file = new RandomAccessFile(src, "r");
+					transaction.sendFile(file.getChannel(), OFFSET, LENGTH);
+					file.close();
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+				transaction.close();
+				session.close();
+			}
+		}, 200, TimeUnit.MILLISECONDS);
+		TransactionTCP transaction = (TransactionTCP) server.beginTransaction();
+		transaction.setFramed(framed);
+		RandomAccessFile file = new RandomAccessFile(dst, "rw");
+		FileChannel channel = file.getChannel();
+		long received = transaction.receiveToFile(channel, 0, LENGTH);
+		assertEquals(LENGTH - OFFSET, received);
+		assertEquals(LENGTH - OFFSET, channel.size());
+		byte[] actual = new byte[LENGTH - OFFSET];
+		file.readFully(actual);
+		byte[] expected = new byte[LENGTH - OFFSET];
+		System.arraycopy(data, OFFSET, expected, 0, expected.length);
+		assertArrayEquals(expected, actual);
+		assertEquals(0, transaction.receiveToFile(channel, received, LENGTH));
+		assertFalse(transaction.hasNext());
+		file.close();
+		server.close();
+		stpe.shutdown();
+		stpe.awaitTermination(1, TimeUnit.MINUTES);
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestIdle.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.frank.mpnet.IdleHandler;
+import com.frank.mpnet.IdleMonitor;
+import com.frank.mpnet.SessionTCPClient;
+import com.frank.mpnet.SessionTCPServer;
+import com.frank.mpnet.SessionUDP;
+import com.frank.mpnet.TimingWheel;
+import com.frank.mpnet.Transaction;
+import com.frank.mpnet.TransactionTCP;
+import com.frank.mpnet.TransactionTCP.ReceiveMode;
+
+/**
+ * Test the timing wheel and the idle monitor.
+ * <p>
+ * In this test case, the client sends heartbeats while the server answers
+ * them for a while and then keeps silent, thus, the client finds the dead
+ * peer. An unused UDP transaction is watched by the same monitor to fire the
+ * idle events.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestIdle
+{
+	/**
+	 * The Internet address of the server.
+	 */
+	public static final InetSocketAddress	RCV	= new InetSocketAddress(
+														"localhost", 8113);
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TimingWheel#schedule(Runnable, long, TimeUnit)}.
+	 */
+	@Test
+	public final void testWheel() throws Exception
+	{
+		TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 16);
+		final AtomicInteger expired = new AtomicInteger();
+		Runnable task = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				expired.incrementAndGet();
+			}
+		};
+		// the delays span several rounds of the wheel
+		TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[1000];
+		for (int i = 0; i < timeouts.length; i++)
+			timeouts[i] = wheel.schedule(task, 100 + i % 300,
+					TimeUnit.MILLISECONDS);
+		for (int i = 0; i < timeouts.length; i += 2)
+			assertTrue(timeouts[i].cancel());
+		Thread.sleep(200);
+		assertTrue(expired.get() < 500);
+		Thread.sleep(400);
+		assertEquals(500, expired.get());
+		assertEquals(0, wheel.getPendingCount());
+		assertTrue(timeouts[1].isExpired());
+		assertTrue(timeouts[0].isCancelled());
+		assertFalse(timeouts[1].cancel());
+		wheel.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.IdleMonitor#watch(Transaction, IdleHandler)}.
+	 */
+	@Test
+	public final void testMonitor() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		SessionTCPClient session = new SessionTCPClient();
+		final TransactionTCP client = (TransactionTCP) session
+				.beginTransaction(RCV);
+		final TransactionTCP peer = (TransactionTCP) server.beginTransaction();
+		client.setReceiveMode(ReceiveMode.Available);
+		peer.setReceiveMode(ReceiveMode.Available);
+		TimingWheel wheel = new TimingWheel(20, TimeUnit.MILLISECONDS, 64);
+		IdleMonitor monitor = new IdleMonitor(wheel, 150, 100, 400,
+				TimeUnit.MILLISECONDS);
+		Counter tcp = new Counter();
+		Counter udp = new Counter();
+		monitor.watch(client, tcp);
+		SessionUDP unused = new SessionUDP();
+		monitor.watch(unused.beginTransaction(), udp);
+		assertEquals(2, monitor.getWatchCount());
+		// the client reads the answers
+		final AtomicInteger answers = new AtomicInteger();
+		Thread reader = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ByteBuffer buffer = ByteBuffer.allocate(16);
+				try
+				{
+					while (true)
+					{
+						buffer.clear();
+						client.receive(buffer);
+						if (!client.hasNext())
+							return;
+						answers.addAndGet(buffer.position());
+					}
+				}
+				catch (Exception e)
+				{
+					// closed as dead
+				}
+			}
+		});
+		reader.start();
+		// the server answers each heartbeat for a while
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(600);
+		while (System.nanoTime() < end)
+		{
+			buffer.clear();
+			peer.receive(buffer);
+			buffer.flip();
+			peer.send(buffer);
+		}
+		assertEquals(0, tcp.dead.get());
+		assertEquals(0, tcp.idle.get());
+		assertTrue(tcp.heartbeat.get() >= 4);
+		// the silent server is found dead
+		Thread.sleep(800);
+		assertEquals(1, tcp.dead.get());
+		reader.join(1000);
+		assertFalse(reader.isAlive());
+		assertTrue(answers.get() >= 4);
+		assertTrue(udp.idle.get() >= 1);
+		assertEquals(1, udp.dead.get());
+		assertEquals(2, monitor.getDeadCount());
+		assertEquals(0, monitor.getWatchCount());
+		assertEquals(0, wheel.getPendingCount());
+		monitor.close();
+		wheel.close();
+		peer.close();
+		session.close();
+		server.close();
+	}
+
+	/**
+	 * Test method for the failed handler, which shall not stop watching the
+	 * transaction.
+	 */
+	@Test
+	public final void testFailure() throws Exception
+	{
+		TimingWheel wheel = new TimingWheel(20, TimeUnit.MILLISECONDS, 64);
+		IdleMonitor monitor = new IdleMonitor(wheel, 100, 0, 500,
+				TimeUnit.MILLISECONDS);
+		Counter udp = new Counter()
+		{
+			@Override
+			public void idle(Transaction transaction)
+			{
+				super.idle(transaction);
+				throw new IllegalStateException("The handler fails.");
+			}
+		};
+		SessionUDP unused = new SessionUDP();
+		monitor.watch(unused.beginTransaction(), udp);
+		Thread.sleep(900);
+		assertTrue(udp.idle.get() >= 2);
+		assertEquals(1, udp.dead.get());
+		assertEquals(0, monitor.getWatchCount());
+		monitor.close();
+		wheel.close();
+		unused.close();
+	}
+
+	/**
+	 * The handler which counts the events and sends a byte as the heartbeat.
+	 * 
+	 * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+	 * @version 1.0.0
+	 */
+	static class Counter implements IdleHandler
+	{
+		/**
+		 * The number of the idle events.
+		 */
+		final AtomicInteger	idle		= new AtomicInteger();
+		/**
+		 * The number of the heartbeat events.
+		 */
+		final AtomicInteger	heartbeat	= new AtomicInteger();
+		/**
+		 * The number of the dead events.
+		 */
+		final AtomicInteger	dead		= new AtomicInteger();
+
+		@Override
+		public void idle(Transaction transaction)
+		{
+			idle.incrementAndGet();
+		}
+
+		@Override
+		public void heartbeat(Transaction transaction)
+		{
+			heartbeat.incrementAndGet();
+			if (transaction instanceof TransactionTCP)
+				transaction.send(new byte[] { 1 });
+		}
+
+		@Override
+		public void dead(Transaction transaction)
+		{
+			dead.incrementAndGet();
+		}
+	}
+}
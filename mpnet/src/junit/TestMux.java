@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestMux.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.frank.mpnet.SessionMux;
+import com.frank.mpnet.SessionTCPClient;
+import com.frank.mpnet.SessionTCPServer;
+import com.frank.mpnet.TransactionException;
+import com.frank.mpnet.TransactionStateException;
+import com.frank.mpnet.TransactionStream;
+import com.frank.mpnet.TransactionTCP;
+
+/**
+ * Test the logical streams multiplexed over one TCP connection.
+ * <p>
+ * In this test case, the client opens a bulk stream and a latency sensitive
+ * stream. The server does not read the bulk stream at first, thus, its sender
+ * is stopped by the flow control window, while the requests of the other
+ * stream are still echoed in time.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestMux
+{
+	/**
+	 * The length of the bulk data.
+	 */
+	public static final int					BULK	= 4 << 20;
+	/**
+	 * The number of the echoed requests.
+	 */
+	public static final int					ECHOES	= 100;
+	/**
+	 * The Internet address of the server.
+	 */
+	public static final InetSocketAddress	RCV		= new InetSocketAddress(
+															"localhost", 8112);
+
+	/**
+	 * Test method for {@link com.frank.mpnet.SessionMux#beginTransaction()}.
+	 */
+	@Test
+	public final void testMux() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		SessionTCPClient session = new SessionTCPClient();
+		final SessionMux client = new SessionMux(
+				(TransactionTCP) session.beginTransaction(RCV), true);
+		final SessionMux peer = new SessionMux(
+				(TransactionTCP) server.beginTransaction(), false);
+		// the bulk sender is stopped by the window
+		final TransactionStream bulk = client.beginTransaction();
+		final AtomicLong sent = new AtomicLong();
+		Thread sender = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				byte[] b = new byte[8192];
+				for (int i = 0; i < BULK; i += b.length)
+				{
+					for (int j = 0; j < b.length; j++)
+						b[j] = (byte) (i + j);
+					bulk.send(b);
+					sent.addAndGet(b.length);
+				}
+				bulk.close();
+			}
+		});
+		sender.start();
+		TransactionStream echo = client.beginTransaction();
+		final TransactionStream bulkIn = peer.acceptStream();
+		final TransactionStream echoIn = peer.acceptStream();
+		assertEquals(bulk.getId(), bulkIn.getId());
+		assertEquals(echo.getId(), echoIn.getId());
+		assertTrue(bulk.getId() % 2 == 1);
+		Thread echoer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					ByteBuffer buffer = ByteBuffer.allocate(64);
+					while (true)
+					{
+						buffer.clear();
+						echoIn.receiveFrame(buffer);
+						if (!echoIn.hasNext())
+							break;
+						buffer.flip();
+						echoIn.send(buffer);
+					}
+					echoIn.close();
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		});
+		echoer.start();
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		for (int i = 0; i < ECHOES; i++)
+		{
+			byte[] expected = TestTCPFrame.frame(i % 6 + 1);
+			echo.send(expected);
+			buffer.clear();
+			echo.receiveFrame(buffer);
+			buffer.flip();
+			assertEquals(expected.length, buffer.remaining());
+			for (byte e : expected)
+				assertEquals(e, buffer.get());
+		}
+		assertTrue(sent.get() <= peer.getWindow());
+		// drain the bulk stream
+		ByteBuffer in = ByteBuffer.allocate(10000);
+		long received = 0;
+		while (true)
+		{
+			in.clear();
+			bulkIn.receive(in);
+			if (!bulkIn.hasNext())
+				break;
+			in.flip();
+			while (in.hasRemaining())
+			{
+				long i = received++;
+				assertEquals((byte) i, in.get());
+			}
+		}
+		assertEquals(BULK, received);
+		sender.join();
+		bulkIn.close();
+		// the streams are forgotten after both directions end
+		echo.close();
+		echoer.join();
+		buffer.clear();
+		echo.receiveFrame(buffer);
+		assertFalse(echo.hasNext());
+		Thread.sleep(100);
+		assertEquals(0, client.getStreamCount());
+		assertEquals(0, peer.getStreamCount());
+		// the streams fail with the session
+		TransactionStream last = client.beginTransaction();
+		peer.acceptStream();
+		peer.close();
+		buffer.clear();
+		try
+		{
+			last.receive(buffer);
+			fail("The stream shall fail with the session.");
+		}
+		catch (TransactionException e)
+		{
+			// expected
+		}
+		try
+		{
+			last.send(new byte[1]);
+			fail("The stream shall be closed.");
+		}
+		catch (TransactionStateException e)
+		{
+			// expected
+		}
+		client.close();
+		assertFalse(client.isOpen());
+		session.close();
+		server.close();
+	}
+
+	/**
+	 * Test method for the peer which sends beyond the flow control window,
+	 * the session shall fail and the data received before shall be kept.
+	 */
+	@Test
+	public final void testWindow() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		SessionTCPClient session = new SessionTCPClient();
+		TransactionTCP client = (TransactionTCP) session.beginTransaction(RCV);
+		SessionMux peer = new SessionMux(
+				(TransactionTCP) server.beginTransaction(), false, 1024);
+		// OPEN and two DATA frames of the stream 1 ignoring the window
+		client.sendFrame(header(0, 1));
+		for (int i = 0; i < 2; i++)
+			client.sendFrame(header(1, 1), ByteBuffer.allocate(600));
+		TransactionStream stream = peer.acceptStream();
+		// nothing is consumed, thus, no credit is granted before the failure
+		long deadline = System.currentTimeMillis() + 5000;
+		while (peer.isOpen() && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertFalse(peer.isOpen());
+		ByteBuffer buffer = ByteBuffer.allocate(2048);
+		stream.receive(buffer);
+		assertEquals(600, buffer.position());
+		try
+		{
+			stream.receive(buffer);
+			fail("The window shall be enforced.");
+		}
+		catch (TransactionException e)
+		{
+			// expected
+		}
+		assertFalse(peer.isOpen());
+		peer.close();
+		client.close();
+		session.close();
+		server.close();
+	}
+
+	/**
+	 * Builds the header of a frame with no flags.
+	 * 
+	 * @param type
+	 *            the frame type
+	 * @param id
+	 *            the stream ID
+	 * @return the header
+	 */
+	static ByteBuffer header(int type, int id)
+	{
+		ByteBuffer header = ByteBuffer.allocate(SessionMux.HEADER_LENGTH);
+		header.put((byte) type).put((byte) 0).putInt(id).flip();
+		return header;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestPipeline.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.frank.mpnet.SessionTCPClient;
+import com.frank.mpnet.SessionTCPServer;
+import com.frank.mpnet.TransactionFuture;
+import com.frank.mpnet.TransactionHandler;
+import com.frank.mpnet.TransactionPipeline;
+import com.frank.mpnet.TransactionStateException;
+import com.frank.mpnet.TransactionTCP;
+import com.frank.mpnet.TransactionTimeoutException;
+
+/**
+ * Test the pipelined requests over one TCP connection.
+ * <p>
+ * In this test case, the server replies each request after the delay in
+ * milliseconds given by its first byte, thus, the responses arrive in a
+ * different order from the requests. The requests with the delay of 255 are
+ * never replied.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestPipeline
+{
+	/**
+	 * The number of requests in flight.
+	 */
+	public static final int					REQUESTS	= 200;
+	/**
+	 * The Internet address of the server.
+	 */
+	public static final InetSocketAddress	RCV			= new InetSocketAddress(
+																"localhost",
+																8111);
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionPipeline#request(ByteBuffer, long, TimeUnit)}
+	 * .
+	 */
+	@Test
+	public final void testRequest() throws Exception
+	{
+		final ScheduledExecutorService replier = new ScheduledThreadPoolExecutor(
+				2);
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		server.serve(new TransactionHandler()
+		{
+			@Override
+			public void handle(final TransactionTCP transaction)
+					throws IOException
+			{
+				transaction.setFramed(true);
+				ByteBuffer buffer = ByteBuffer.allocate(64);
+				while (true)
+				{
+					buffer.clear();
+					transaction.receive(buffer);
+					if (!transaction.hasNext())
+						return;
+					buffer.flip();
+					final int id = buffer.getInt();
+					final ByteBuffer body = ByteBuffer.allocate(buffer
+							.remaining());
+					body.put(buffer).flip();
+					int delay = body.get(0) & 0xff;
+					if (delay == 255)
+						continue;
+					replier.schedule(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							TransactionPipeline.reply(transaction, id, body);
+						}
+					}, delay, TimeUnit.MILLISECONDS);
+				}
+			}
+		});
+		SessionTCPClient session = new SessionTCPClient();
+		TransactionPipeline pipeline = new TransactionPipeline(
+				(TransactionTCP) session.beginTransaction(RCV));
+		// the responses complete in any order
+		List<TransactionFuture<ByteBuffer>> futures = new ArrayList<TransactionFuture<ByteBuffer>>();
+		for (int i = 0; i < REQUESTS; i++)
+			futures.add(pipeline.request(request(REQUESTS - i - 1 & 0x3f, i)));
+		for (int i = 0; i < REQUESTS; i++)
+		{
+			ByteBuffer response = futures.get(i).get(10, TimeUnit.SECONDS);
+			assertEquals(5, response.remaining());
+			assertEquals(i, response.getInt(1));
+		}
+		assertEquals(0, pipeline.getPendingCount());
+		// time out one request
+		try
+		{
+			pipeline.request(request(255, 0), 50, TimeUnit.MILLISECONDS)
+					.await();
+			fail("The request shall time out.");
+		}
+		catch (TransactionTimeoutException e)
+		{
+			// expected
+		}
+		assertEquals(0, pipeline.getPendingCount());
+		// cancel one request, its late response is discarded
+		TransactionFuture<ByteBuffer> cancelled = pipeline.request(request(
+				30, 0));
+		assertTrue(cancelled.cancel(false));
+		assertEquals(0, pipeline.getPendingCount());
+		assertEquals(7, pipeline.request(request(60, 7)).await().getInt(1));
+		// the requests in flight fail on closing
+		TransactionFuture<ByteBuffer> never = pipeline.request(request(255, 0));
+		pipeline.close();
+		assertFalse(pipeline.isOpen());
+		try
+		{
+			never.await();
+			fail("The request shall fail.");
+		}
+		catch (TransactionStateException e)
+		{
+			// expected
+		}
+		session.close();
+		server.close();
+		replier.shutdown();
+	}
+
+	/**
+	 * Returns a request with the specified delay and value.
+	 * 
+	 * @param delay
+	 *            the delay of the reply in milliseconds
+	 * @param value
+	 *            the value
+	 * @return the request
+	 */
+	static ByteBuffer request(int delay, int value)
+	{
+		ByteBuffer request = ByteBuffer.allocate(5);
+		request.put((byte) delay).putInt(value).flip();
+		return request;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestPool.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.frank.mpnet.SessionTCPPool;
+import com.frank.mpnet.SessionTCPServer;
+import com.frank.mpnet.TransactionHandler;
+import com.frank.mpnet.TransactionTCP;
+import com.frank.mpnet.TransactionTCPPooled;
+import com.frank.mpnet.TransactionTimeoutException;
+
+/**
+ * Test the pooled TCP client session.
+ * <p>
+ * In this test case, the server echoes each frame and closes the connection
+ * on an empty frame, while the client borrows the connections from a pool of
+ * at most two connections and checks the reusing, the waiting for a full
+ * pool, the validation and the idle eviction.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestPool
+{
+	/**
+	 * The Internet address of the server.
+	 */
+	public static final InetSocketAddress	RCV	= new InetSocketAddress(
+														"localhost", 8110);
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.SessionTCPPool#beginTransaction(java.net.SocketAddress)}
+	 * .
+	 */
+	@Test
+	public final void testPool() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		server.serve(new TransactionHandler()
+		{
+			@Override
+			public void handle(TransactionTCP transaction) throws IOException
+			{
+				transaction.setFramed(true);
+				ByteBuffer buffer = ByteBuffer.allocate(64);
+				while (true)
+				{
+					buffer.clear();
+					transaction.receive(buffer);
+					if (!transaction.hasNext() || buffer.position() == 0)
+						return;
+					buffer.flip();
+					transaction.send(buffer);
+				}
+			}
+		});
+		SessionTCPPool pool = new SessionTCPPool(1, 2, 200,
+				TimeUnit.MILLISECONDS);
+		pool.prewarm(RCV);
+		assertEquals(1, pool.getIdleCount(RCV));
+		// reuse the warm connection
+		TransactionTCPPooled first = null;
+		for (int i = 0; i < 10; i++)
+		{
+			TransactionTCPPooled transaction = pool.beginTransaction(RCV);
+			if (first == null)
+				first = transaction;
+			assertTrue(first == transaction);
+			echo(transaction, i);
+			transaction.close();
+		}
+		assertEquals(1, pool.getCreatedCount());
+		assertEquals(10, pool.getHitCount());
+		assertTrue(pool.getHitRate() == 1.0);
+		// wait for a full pool
+		TransactionTCPPooled a = pool.beginTransaction(RCV);
+		TransactionTCPPooled b = pool.beginTransaction(RCV);
+		assertTrue(a != b);
+		assertEquals(2, pool.getSize(RCV));
+		pool.setBorrowTimeout(100, TimeUnit.MILLISECONDS);
+		try
+		{
+			pool.beginTransaction(RCV);
+			fail("The borrowing shall time out.");
+		}
+		catch (TransactionTimeoutException e)
+		{
+			// expected
+		}
+		assertTrue(pool.getMaxWaitTime(TimeUnit.MILLISECONDS) >= 100);
+		// the timed out borrowing is not counted as a miss
+		assertEquals(1, pool.getTimeoutCount());
+		assertEquals(0, pool.getFailedCount());
+		assertEquals(12, pool.getBorrowCount());
+		assertEquals(11, pool.getHitCount());
+		// the connection closed by the server is borrowed first and discarded
+		a.setFramed(true);
+		a.send(new byte[0]);
+		b.close();
+		a.close();
+		assertFalse(a.isBorrowed());
+		Thread.sleep(100);
+		long invalidated = pool.getInvalidatedCount();
+		for (int i = 0; i < 2; i++)
+		{
+			TransactionTCPPooled transaction = pool.beginTransaction(RCV);
+			echo(transaction, i);
+			transaction.close();
+		}
+		assertTrue(pool.getInvalidatedCount() > invalidated);
+		// evict the idle connections but keep the minimum
+		a = pool.beginTransaction(RCV);
+		b = pool.beginTransaction(RCV);
+		a.close();
+		b.close();
+		assertEquals(2, pool.getIdleCount(RCV));
+		Thread.sleep(600);
+		assertEquals(1, pool.getSize(RCV));
+		assertTrue(pool.getEvictedCount() > 0);
+		pool.close();
+		assertEquals(0, pool.getSize(RCV));
+		server.close();
+	}
+
+	/**
+	 * Sends a frame and checks the echo.
+	 * 
+	 * @param transaction
+	 *            the transaction
+	 * @param index
+	 *            the index of the frame
+	 */
+	static void echo(TransactionTCP transaction, int index) throws IOException
+	{
+		transaction.setFramed(true);
+		byte[] expected = TestTCPFrame.frame(index % 6 + 1);
+		transaction.send(expected);
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		transaction.receive(buffer);
+		buffer.flip();
+		assertEquals(expected.length, buffer.remaining());
+		for (byte e : expected)
+			assertEquals(e, buffer.get());
+	}
+}
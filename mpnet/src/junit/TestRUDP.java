@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestRUDP.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.frank.mpnet.Session;
+import com.frank.mpnet.SessionFactory;
+import com.frank.mpnet.SessionRUDP;
+import com.frank.mpnet.SocketType;
+import com.frank.mpnet.TransactionException;
+import com.frank.mpnet.TransactionRUDP;
+
+/**
+ * Test the reliable UDP transport.
+ * <p>
+ * In this test case, the datagrams between the peers pass a relay which drops
+ * and reorders some of them, while all the messages shall still arrive intact
+ * and in order.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestRUDP
+{
+	/**
+	 * The Internet address of the server.
+	 */
+	public static final InetSocketAddress	RCV		= new InetSocketAddress(
+															"localhost", 8126);
+	/**
+	 * The Internet address of the relay.
+	 */
+	public static final InetSocketAddress	RELAY	= new InetSocketAddress(
+															"localhost", 8127);
+	/**
+	 * The Internet address of the server of the limits.
+	 */
+	public static final InetSocketAddress	LIMIT	= new InetSocketAddress(
+															"localhost", 8131);
+	/**
+	 * The Internet address of the restarted client.
+	 */
+	public static final InetSocketAddress	PEER	= new InetSocketAddress(
+															"localhost", 8132);
+	/**
+	 * The number of the messages.
+	 */
+	public static final int					COUNT	= 300;
+
+	/**
+	 * Test method for {@link com.frank.mpnet.TransactionRUDP#send(ByteBuffer)}
+	 * and {@link com.frank.mpnet.TransactionRUDP#receive(ByteBuffer)}.
+	 */
+	@Test
+	public final void testTransfer() throws Exception
+	{
+		SessionRUDP server = new SessionRUDP(RCV);
+		SessionRUDP session = new SessionRUDP();
+		final DatagramChannel relay = DatagramChannel.open();
+		relay.bind(RELAY);
+		final SocketAddress client = session.getLocalAddress();
+		Thread thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				relay(relay, new InetSocketAddress("localhost",
+						((InetSocketAddress) client).getPort()));
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		final TransactionRUDP transaction = session.beginTransaction(RELAY);
+		Thread sender = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (int i = 0; i < COUNT; i++)
+					transaction.send(message(i));
+				transaction.close();
+			}
+		});
+		sender.start();
+		TransactionRUDP peer = server.acceptTransaction(5, TimeUnit.SECONDS);
+		ByteBuffer buffer = peer.allocateReceiveBuffer();
+		for (int i = 0; i < COUNT; i++)
+		{
+			buffer.clear();
+			peer.receive(buffer, 10, TimeUnit.SECONDS);
+			buffer.flip();
+			assertEquals(message(i), buffer);
+		}
+		assertTrue(peer.hasNext());
+		buffer.clear();
+		peer.receive(buffer, 10, TimeUnit.SECONDS);
+		assertEquals(0, buffer.position());
+		assertFalse(peer.hasNext());
+		sender.join(10000);
+		assertFalse(sender.isAlive());
+		assertTrue(transaction.getRetransmissionCount() > 0);
+		assertTrue(transaction.getRoundTripTime(TimeUnit.NANOSECONDS) > 0);
+		assertEquals(0, session.getTransactionCount());
+		peer.close();
+		assertEquals(0, server.getTransactionCount());
+		relay.close();
+		session.close();
+		server.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.SessionFactory#createSession(SocketAddress, SocketType)}
+	 * of the reliable UDP.
+	 */
+	@Test
+	public final void testFactory() throws Exception
+	{
+		Session session = SessionFactory.build().createSession(RCV,
+				SocketType.RUDP);
+		assertTrue(session instanceof SessionRUDP);
+		SessionRUDP client = new SessionRUDP();
+		TransactionRUDP transaction = client.beginTransaction(RCV);
+		assertEquals(SocketType.RUDP, transaction.getType());
+		transaction.send(new byte[] { 7 });
+		TransactionRUDP peer = ((SessionRUDP) session).acceptTransaction(5,
+				TimeUnit.SECONDS);
+		ByteBuffer buffer = peer.allocateReceiveBuffer();
+		peer.receive(buffer);
+		assertEquals(1, buffer.position());
+		assertEquals(7, buffer.get(0));
+		// the empty message
+		peer.send(new byte[0]);
+		buffer.clear();
+		buffer.put((byte) 1);
+		transaction.receive(buffer, 5, TimeUnit.SECONDS);
+		assertEquals(1, buffer.position());
+		assertTrue(transaction.hasNext());
+		transaction.close();
+		peer.close();
+		client.close();
+		session.close();
+	}
+
+	/**
+	 * Test method for the limits of the reliable UDP: the message longer than
+	 * the window, the restarted peer, the backlog and the accepting timeout.
+	 */
+	@Test
+	public final void testLimits() throws Exception
+	{
+		SessionRUDP server = new SessionRUDP(LIMIT, 100, 4);
+		server.setBacklog(1);
+		server.setAcceptTimeout(200, TimeUnit.MILLISECONDS);
+		SessionRUDP client = new SessionRUDP(PEER, 100, 4);
+		TransactionRUDP transaction = client.beginTransaction(LIMIT);
+		assertEquals(400, transaction.getMaxMessageLength());
+		try
+		{
+			transaction.send(new byte[401]);
+			fail("The message longer than the window shall be refused.");
+		}
+		catch (TransactionException e)
+		{
+			// expected
+		}
+		transaction.send(new byte[400]);
+		TransactionRUDP peer = server.acceptTransaction(5, TimeUnit.SECONDS);
+		ByteBuffer buffer = ByteBuffer.allocate(1000);
+		peer.receive(buffer, 5, TimeUnit.SECONDS);
+		assertEquals(400, buffer.position());
+		// the client restarts without closing the transaction
+		client.close();
+		client = new SessionRUDP(PEER, 100, 4);
+		client.beginTransaction(LIMIT).send(new byte[] { 1 });
+		TransactionRUDP restarted = server.acceptTransaction(5,
+				TimeUnit.SECONDS);
+		buffer.clear();
+		restarted.receive(buffer, 5, TimeUnit.SECONDS);
+		assertEquals(1, buffer.position());
+		buffer.clear();
+		peer.receive(buffer, 5, TimeUnit.SECONDS);
+		assertFalse(peer.hasNext());
+		// the backlog of one transaction, the second peer is refused until
+		// the first one expires
+		SessionRUDP first = new SessionRUDP(null, 100, 4);
+		SessionRUDP second = new SessionRUDP(null, 100, 4);
+		first.beginTransaction(LIMIT).send(new byte[] { 2 });
+		Thread.sleep(100);
+		second.beginTransaction(LIMIT).send(new byte[] { 3 });
+		Thread.sleep(100);
+		assertTrue(server.getRefusedCount() >= 1);
+		Thread.sleep(500);
+		TransactionRUDP accepted = server.acceptTransaction(5,
+				TimeUnit.SECONDS);
+		assertEquals(((InetSocketAddress) second.getLocalAddress()).getPort(),
+				((InetSocketAddress) accepted.getPeer()).getPort());
+		assertTrue(server.getRefusedCount() >= 2);
+		buffer.clear();
+		accepted.receive(buffer, 5, TimeUnit.SECONDS);
+		assertEquals(3, buffer.get(0));
+		first.close();
+		second.close();
+		client.close();
+		server.close();
+	}
+
+	/**
+	 * Returns the test message of the specified index, some of which are cut
+	 * into many segments.
+	 * 
+	 * @param index
+	 *            the index of the message
+	 * @return the message
+	 */
+	static ByteBuffer message(int index)
+	{
+		int length = index % 7 == 0 ? 20000 + index : 1 + index * 13 % 3000;
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (int i = 0; i < length; i++)
+			buffer.put((byte) (index * 31 + i));
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Relays the datagrams between the client and the server, drops about 5%
+	 * of them and swaps some neighbouring ones.
+	 * 
+	 * @param relay
+	 *            the channel of the relay
+	 * @param client
+	 *            the socket address of the client
+	 */
+	static void relay(DatagramChannel relay, SocketAddress client)
+	{
+		Random random = new Random(7);
+		ByteBuffer buffer = ByteBuffer.allocate(65536);
+		ByteBuffer held = null;
+		SocketAddress heldTarget = null;
+		try
+		{
+			while (true)
+			{
+				buffer.clear();
+				SocketAddress sa = relay.receive(buffer);
+				buffer.flip();
+				SocketAddress target = ((InetSocketAddress) sa).getPort() == RCV
+						.getPort() ? client : RCV;
+				int dice = random.nextInt(100);
+				if (dice < 5)
+					continue;
+				if (dice < 8 && held == null)
+				{
+					held = ByteBuffer.allocate(buffer.remaining()).put(buffer);
+					held.flip();
+					heldTarget = target;
+					continue;
+				}
+				relay.send(buffer, target);
+				if (held != null)
+				{
+					relay.send(held, heldTarget);
+					held = null;
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			// the relay is closed
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestSharded.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.frank.mpnet.DatagramHandler;
+import com.frank.mpnet.NetUtils;
+import com.frank.mpnet.SessionFactory;
+import com.frank.mpnet.SessionSharded;
+import com.frank.mpnet.SessionTCPClient;
+import com.frank.mpnet.SessionUDP;
+import com.frank.mpnet.SocketInfo;
+import com.frank.mpnet.SocketType;
+import com.frank.mpnet.TransactionListener;
+import com.frank.mpnet.TransactionTCP;
+import com.frank.mpnet.TransactionUDP;
+
+/**
+ * Test the sharded sessions bound with <code>SO_REUSEPORT</code>.
+ * <p>
+ * In the TCP test case, the shards echo each frame by their own event loops.
+ * In the UDP test case, the shards echo each datagram by their own receiving
+ * threads. Both are skipped if <code>SO_REUSEPORT</code> is not supported.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestSharded
+{
+	/**
+	 * The number of shards.
+	 */
+	public static final int					SHARDS	= 4;
+	/**
+	 * The number of clients.
+	 */
+	public static final int					CLIENTS	= 16;
+	/**
+	 * The Internet address of the TCP server.
+	 */
+	public static final InetSocketAddress	TCP		= new InetSocketAddress(
+															"localhost", 8108);
+	/**
+	 * The Internet address of the UDP server.
+	 */
+	public static final InetSocketAddress	UDP		= new InetSocketAddress(
+															"localhost", 8109);
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.SessionSharded#listen(TransactionListener)}.
+	 */
+	@Test
+	public final void testListen() throws Exception
+	{
+		if (!NetUtils.isReusePortSupported())
+			return;
+		final CountDownLatch closed = new CountDownLatch(CLIENTS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Set<Object> used = Collections.synchronizedSet(Collections
+				.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+		SessionSharded server = SessionFactory.build().createSession(TCP,
+				SocketType.TCP_SERVER, SHARDS);
+		assertEquals(SHARDS, server.size());
+		server.listen(new TransactionListener()
+		{
+			@Override
+			public void accepted(TransactionTCP transaction)
+			{
+				used.add(transaction.getEventLoop());
+				transaction.setFramed(true);
+			}
+
+			@Override
+			public void received(TransactionTCP transaction, ByteBuffer data)
+			{
+				transaction.sendFrame(data);
+			}
+
+			@Override
+			public void closed(TransactionTCP transaction, Throwable cause)
+			{
+				if (cause != null)
+					failure.set(cause);
+				closed.countDown();
+			}
+		});
+		for (int c = 0; c < CLIENTS; c++)
+		{
+			SessionTCPClient session = new SessionTCPClient();
+			TransactionTCP transaction = (TransactionTCP) session
+					.beginTransaction(TCP);
+			transaction.setFramed(true);
+			ByteBuffer buffer = ByteBuffer.allocate(64);
+			byte[] expected = TestTCPFrame.frame(6);
+			transaction.send(expected);
+			transaction.receive(buffer);
+			buffer.flip();
+			assertEquals(expected.length, buffer.remaining());
+			transaction.close();
+			session.close();
+		}
+		assertTrue(closed.await(10, TimeUnit.SECONDS));
+		assertNull(failure.get());
+		// the kernel hashes the connections, more than one shard is used
+		assertTrue(used.size() > 1);
+		server.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.SessionSharded#receive(DatagramHandler)}.
+	 */
+	@Test
+	public final void testReceive() throws Exception
+	{
+		if (!NetUtils.isReusePortSupported())
+			return;
+		final Set<Object> used = Collections.synchronizedSet(Collections
+				.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+		SessionSharded server = SessionFactory.build().createSession(UDP,
+				SocketType.UDP, SHARDS);
+		server.receive(new DatagramHandler()
+		{
+			@Override
+			public void handle(TransactionUDP transaction, SocketInfo source,
+					ByteBuffer data)
+			{
+				used.add(transaction);
+				transaction.send(source.getAddress(), data);
+			}
+		});
+		for (int c = 0; c < CLIENTS; c++)
+		{
+			SessionUDP session = new SessionUDP();
+			session.getSocket().setSoTimeout(1000);
+			TransactionUDP transaction = (TransactionUDP) session
+					.beginTransaction();
+			ByteBuffer buffer = ByteBuffer.allocate(64);
+			byte[] expected = TestTCPFrame.frame(5);
+			// a datagram may be lost even on the loopback
+			SocketInfo info = null;
+			for (int retry = 0; info == null && retry < 3; retry++)
+			{
+				transaction.send(UDP, expected);
+				buffer.clear();
+				try
+				{
+					info = transaction.receive(buffer);
+				}
+				catch (SocketTimeoutException e)
+				{
+					// send again
+				}
+			}
+			buffer.flip();
+			assertEquals(expected.length, buffer.remaining());
+			session.close();
+		}
+		assertTrue(used.size() > 1);
+		server.close();
+	}
+
+	/**
+	 * Test method for the failed handler, which shall not stop the receiving
+	 * thread of the shard.
+	 */
+	@Test
+	public final void testFailure() throws Exception
+	{
+		InetSocketAddress address = new InetSocketAddress("localhost", 8136);
+		SessionSharded server = new SessionSharded(address, SocketType.UDP, 1);
+		server.receive(new DatagramHandler()
+		{
+			@Override
+			public void handle(TransactionUDP transaction, SocketInfo source,
+					ByteBuffer data)
+			{
+				if (data.get(0) == 0)
+					throw new IllegalStateException("The handler fails.");
+				transaction.send(source.getAddress(), data);
+			}
+		});
+		SessionUDP session = new SessionUDP();
+		session.getSocket().setSoTimeout(1000);
+		TransactionUDP transaction = (TransactionUDP) session
+				.beginTransaction();
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		SocketInfo info = null;
+		for (int retry = 0; info == null && retry < 3; retry++)
+		{
+			transaction.send(address, new byte[] { 0 });
+			transaction.send(address, new byte[] { 1 });
+			buffer.clear();
+			try
+			{
+				info = transaction.receive(buffer);
+			}
+			catch (SocketTimeoutException e)
+			{
+				// send again
+			}
+		}
+		assertEquals(1, buffer.position());
+		assertEquals(1, buffer.get(0));
+		assertTrue(server.getFailedCount() >= 1);
+		session.close();
+		server.close();
+	}
+}
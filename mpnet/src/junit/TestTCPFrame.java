@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestTCPFrame.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.frank.mpnet.Session;
+import com.frank.mpnet.SessionFactory;
+import com.frank.mpnet.SocketType;
+import com.frank.mpnet.TransactionTCP;
+
+/**
+ * Test the framed TCP transaction.
+ * <p>
+ * In this test case, the client sends frames of growing sizes, from the empty
+ * frame to the frames much larger than the read-ahead buffer, and the server
+ * checks that each receiving gives exactly one frame.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestTCPFrame
+{
+	/**
+	 * The maximum value of transmission unit.
+	 */
+	public static final int					MAX	= 20;
+	/**
+	 * The Internet address of the message sender.
+	 */
+	public static final InetSocketAddress	SND	= new InetSocketAddress(
+														"localhost", 8094);
+	/**
+	 * The Internet address of the message receiver.
+	 */
+	public static final InetSocketAddress	RCV	= new InetSocketAddress(
+														"localhost", 8095);
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionTCP#receiveFrame(ByteBuffer)}.
+	 */
+	@Test
+	public final void testReceiveFrame() throws Exception
+	{
+		Session server = SessionFactory.build().createSession(RCV,
+				SocketType.TCP_SERVER);
+		ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1);
+		stpe.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Session session = SessionFactory.build().createSession(SND,
+						SocketType.TCP_CLIENT);
+				TransactionTCP transaction = (TransactionTCP) session
+						.beginTransaction(RCV);
+				transaction.setFramed(true);
+				for (int i = 0; i < MAX; i++)
+					transaction.send(frame(i));
+				transaction.close();
+				session.close();
+			}
+		}, 200, TimeUnit.MILLISECONDS);
+		TransactionTCP transaction = (TransactionTCP) server.beginTransaction();
+		transaction.setFramed(true);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(frame(MAX).length);
+		for (int i = 0; i < MAX; i++)
+		{
+			buffer.clear();
+			transaction.receive(buffer);
+			buffer.flip();
+			byte[] expected = frame(i);
+			assertEquals(expected.length, buffer.remaining());
+			for (byte b : expected)
+				assertEquals(b, buffer.get());
+		}
+		buffer.clear();
+		transaction.receive(buffer);
+		assertFalse(transaction.hasNext());
+		server.close();
+		stpe.shutdown();
+		stpe.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Returns the frame with specified index, the length of the frame is
+	 * <code>2<sup>index</sup> - 1</code>.
+	 * 
+	 * @param index
+	 *            the index of the frame
+	 * @return the frame
+	 */
+	static byte[] frame(int index)
+	{
+		byte[] b = new byte[(1 << index) - 1];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) (i + index);
+		return b;
+	}
+}
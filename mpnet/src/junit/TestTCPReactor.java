@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestTCPReactor.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.frank.mpnet.EventLoop;
+import com.frank.mpnet.EventLoopGroup;
+import com.frank.mpnet.EventLoopGroup.Balance;
+import com.frank.mpnet.SessionTCPClient;
+import com.frank.mpnet.SessionTCPServer;
+import com.frank.mpnet.TransactionException;
+import com.frank.mpnet.TransactionListener;
+import com.frank.mpnet.TransactionTCP;
+
+/**
+ * Test the TCP server session listening by event loops.
+ * <p>
+ * In this test case, the server echoes each frame back to its client by the
+ * worker event loops, while several blocking clients send frames of growing
+ * sizes and check the echoed frames.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestTCPReactor
+{
+	/**
+	 * The number of clients.
+	 */
+	public static final int					CLIENTS	= 8;
+	/**
+	 * The maximum value of transmission unit.
+	 */
+	public static final int					MAX		= 18;
+	/**
+	 * The Internet address of the server.
+	 */
+	public static final InetSocketAddress	RCV		= new InetSocketAddress(
+															"localhost", 8100);
+	/**
+	 * The Internet address of the server with the limits.
+	 */
+	public static final InetSocketAddress	LIMITED	= new InetSocketAddress(
+															"localhost", 8101);
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.SessionTCPServer#listen(TransactionListener, EventLoop, EventLoopGroup)}
+	 * .
+	 */
+	@Test
+	public final void testListen() throws Exception
+	{
+		final AtomicInteger accepted = new AtomicInteger();
+		final CountDownLatch closed = new CountDownLatch(CLIENTS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final Set<EventLoop> used = Collections
+				.synchronizedSet(Collections
+						.newSetFromMap(new IdentityHashMap<EventLoop, Boolean>()));
+		EventLoop boss = new EventLoop();
+		EventLoopGroup workers = new EventLoopGroup(2, Balance.LeastLoaded);
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		server.listen(new TransactionListener()
+		{
+			@Override
+			public void accepted(TransactionTCP transaction)
+			{
+				accepted.incrementAndGet();
+				used.add(transaction.getEventLoop());
+				transaction.setFramed(true);
+			}
+
+			@Override
+			public void received(TransactionTCP transaction, ByteBuffer data)
+			{
+				transaction.sendFrame(data);
+			}
+
+			@Override
+			public void closed(TransactionTCP transaction, Throwable cause)
+			{
+				if (cause != null)
+					failure.set(cause);
+				closed.countDown();
+			}
+		}, boss, workers);
+		Thread[] clients = new Thread[CLIENTS];
+		for (int c = 0; c < CLIENTS; c++)
+		{
+			clients[c] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						SessionTCPClient session = new SessionTCPClient();
+						TransactionTCP transaction = (TransactionTCP) session
+								.beginTransaction(RCV);
+						transaction.setFramed(true);
+						ByteBuffer buffer = ByteBuffer.allocate(1 << MAX);
+						for (int i = 0; i < MAX; i++)
+						{
+							byte[] expected = TestTCPFrame.frame(i);
+							transaction.send(expected);
+							buffer.clear();
+							transaction.receive(buffer);
+							buffer.flip();
+							assertEquals(expected.length, buffer.remaining());
+							for (byte b : expected)
+								assertEquals(b, buffer.get());
+						}
+						transaction.close();
+						session.close();
+					}
+					catch (Throwable e)
+					{
+						failure.set(e);
+					}
+				}
+			});
+			clients[c].start();
+		}
+		for (Thread client : clients)
+			client.join();
+		assertTrue(closed.await(10, TimeUnit.SECONDS));
+		assertNull(failure.get());
+		assertEquals(CLIENTS, accepted.get());
+		assertEquals(2, used.size());
+		assertEquals(0, workers.getConnectionCount());
+		server.close();
+		workers.close();
+		boss.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionTCP#setMaxPendingBytes(long)} and
+	 * {@link com.frank.mpnet.TransactionTCP#setMaxFrameLength(int)}.
+	 */
+	@Test
+	public final void testLimits() throws Exception
+	{
+		final AtomicReference<TransactionTCP> accepted = new AtomicReference<TransactionTCP>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch ready = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		EventLoop boss = new EventLoop();
+		EventLoopGroup workers = new EventLoopGroup(1, Balance.RoundRobin);
+		SessionTCPServer server = new SessionTCPServer(LIMITED);
+		server.listen(new TransactionListener()
+		{
+			@Override
+			public void accepted(TransactionTCP transaction)
+			{
+				transaction.setFramed(true);
+				transaction.setMaxFrameLength(1024);
+				transaction.setMaxPendingBytes(65536);
+				accepted.set(transaction);
+				ready.countDown();
+			}
+
+			@Override
+			public void received(TransactionTCP transaction, ByteBuffer data)
+			{
+			}
+
+			@Override
+			public void closed(TransactionTCP transaction, Throwable cause)
+			{
+				failure.set(cause);
+				closed.countDown();
+			}
+		}, boss, workers);
+		SessionTCPClient session = new SessionTCPClient();
+		TransactionTCP client = (TransactionTCP) session.beginTransaction(LIMITED);
+		client.setFramed(true);
+		assertTrue(ready.await(5, TimeUnit.SECONDS));
+		// the sending blocks while the client reads nothing
+		final int frames = 256;
+		final TransactionTCP transaction = accepted.get();
+		Thread sender = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (int i = 0; i < frames; i++)
+					transaction.send(new byte[65536]);
+			}
+		});
+		sender.start();
+		sender.join(500);
+		assertTrue(sender.isAlive());
+		ByteBuffer buffer = ByteBuffer.allocate(65536);
+		for (int i = 0; i < frames; i++)
+		{
+			buffer.clear();
+			client.receive(buffer);
+			assertEquals(65536, buffer.position());
+		}
+		sender.join(5000);
+		assertFalse(sender.isAlive());
+		// a frame longer than the maximum closes the transaction at once
+		client.setFramed(false);
+		client.send(new byte[] { (byte) 0x80, (byte) 0x80, 0x40 });
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		assertTrue(failure.get() instanceof TransactionException);
+		buffer.clear();
+		client.receive(buffer);
+		assertFalse(client.hasNext());
+		client.close();
+		session.close();
+		server.close();
+		workers.close();
+		boss.close();
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011, 2020, Frank Jiang and/or its affiliates. All rights reserved.
+ * TestTCPReceive.java is PROPRIETARY/CONFIDENTIAL built in 2013.
+ * Use is subject to license terms.
+ */
+package junit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.frank.mpnet.SessionTCPClient;
+import com.frank.mpnet.SessionTCPServer;
+import com.frank.mpnet.TransactionTCP;
+import com.frank.mpnet.TransactionTCP.ReceiveMode;
+
+/**
+ * Test the receiving of the TCP transaction.
+ * <p>
+ * In this test case, the client sends a large block at once, which arrives
+ * in many chunks. The server receives it in each of the
+ * {@linkplain ReceiveMode receiving modes}, into the heap buffers and the
+ * direct buffers, and scattered into several buffers.
+ * </p>
+ * 
+ * @author <a href="mailto:jiangfan0576@gmail.com">Frank Jiang</a>
+ * @version 1.0.0
+ */
+public class TestTCPReceive
+{
+	/**
+	 * The length of the block.
+	 */
+	public static final int					LENGTH	= 1 << 20;
+	/**
+	 * The Internet address of the server.
+	 */
+	public static final InetSocketAddress	RCV		= new InetSocketAddress(
+															"localhost", 8141);
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionTCP#receive(ByteBuffer, ReceiveMode)}.
+	 */
+	@Test
+	public final void testReceiveMode() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		SessionTCPClient session = new SessionTCPClient();
+		TransactionTCP client = (TransactionTCP) session.beginTransaction(RCV);
+		TransactionTCP peer = (TransactionTCP) server.beginTransaction();
+		byte[] block = block(LENGTH);
+		// the whole block into the heap buffer and the direct buffer
+		for (int i = 0; i < 2; i++)
+		{
+			client.send(block);
+			ByteBuffer buffer = i == 0 ? ByteBuffer.allocate(LENGTH)
+					: ByteBuffer.allocateDirect(LENGTH);
+			peer.receive(buffer, ReceiveMode.Fully);
+			assertFalse(buffer.hasRemaining());
+			buffer.flip();
+			byte[] actual = new byte[LENGTH];
+			buffer.get(actual);
+			assertArrayEquals(block, actual);
+		}
+		// the available data only, never waits for the buffer filled
+		client.send(block, 0, 100);
+		ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+		while (buffer.position() < 100)
+		{
+			peer.receive(buffer, ReceiveMode.Available);
+			assertTrue(peer.hasNext());
+		}
+		assertEquals(100, buffer.position());
+		client.send(block, 100, LENGTH - 100);
+		while (buffer.hasRemaining())
+			peer.receive(buffer, ReceiveMode.Available);
+		assertArrayEquals(block, buffer.array());
+		// the end of the stream
+		client.send(new byte[10]);
+		client.close();
+		buffer.clear();
+		peer.receive(buffer, ReceiveMode.Fully);
+		assertEquals(10, buffer.position());
+		assertFalse(peer.hasNext());
+		peer.close();
+		session.close();
+		server.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionTCP#receive(ReceiveMode, ByteBuffer...)}
+	 * .
+	 */
+	@Test
+	public final void testScatter() throws Exception
+	{
+		SessionTCPServer server = new SessionTCPServer(RCV);
+		SessionTCPClient session = new SessionTCPClient();
+		TransactionTCP client = (TransactionTCP) session.beginTransaction(RCV);
+		TransactionTCP peer = (TransactionTCP) server.beginTransaction();
+		byte[] block = block(LENGTH);
+		// a fixed size header and its body
+		client.send(block);
+		ByteBuffer header = ByteBuffer.allocate(16);
+		ByteBuffer body = ByteBuffer.allocateDirect(LENGTH - 16);
+		peer.receive(ReceiveMode.Fully, header, body);
+		assertFalse(header.hasRemaining());
+		assertFalse(body.hasRemaining());
+		ByteBuffer actual = ByteBuffer.allocate(LENGTH);
+		header.flip();
+		body.flip();
+		actual.put(header).put(body);
+		assertArrayEquals(block, actual.array());
+		// one frame scattered into the buffers
+		client.setFramed(true);
+		peer.setFramed(true);
+		client.send(block, 0, 100);
+		header.clear();
+		body.clear();
+		peer.receive(header, body);
+		assertEquals(16, header.position());
+		assertEquals(84, body.position());
+		assertEquals(block[99], body.get(83));
+		client.close();
+		peer.close();
+		session.close();
+		server.close();
+	}
+
+	/**
+	 * Returns a block of the specified length filled with a pattern.
+	 * 
+	 * @param length
+	 *            the length of the block
+	 * @return the block
+	 */
+	static byte[] block(int length)
+	{
+		byte[] block = new byte[length];
+		for (int i = 0; i < length; i++)
+			block[i] = (byte) (i * 31 + (i >> 8));
+		return block;
+	}
+}
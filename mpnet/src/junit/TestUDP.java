@@ -5,20 +5,35 @@
  */
 package junit;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import java.io.IOException;
 import java.io.PrintStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
+import com.frank.mpnet.DatagramBatch;
+import com.frank.mpnet.ErrorCorrection;
+import com.frank.mpnet.PathMtuCache;
 import com.frank.mpnet.Session;
 import com.frank.mpnet.SessionFactory;
+import com.frank.mpnet.SessionUDP;
+import com.frank.mpnet.SocketInfo;
 import com.frank.mpnet.SocketType;
 import com.frank.mpnet.Transaction;
+import com.frank.mpnet.TransactionException;
+import com.frank.mpnet.TransactionTimeoutException;
 import com.frank.mpnet.TransactionUDP;
 
 /**
@@ -101,6 +116,517 @@ public class TestUDP
 		}
 	}
 
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionUDP#receive(java.nio.ByteBuffer)}.
+	 * <p>
+	 * The datagrams are received into a direct buffer, and the source
+	 * information of the same peer is reused.
+	 * </p>
+	 */
+	@Test
+	public final void testReceive() throws Exception
+	{
+		SocketAddress snd = new InetSocketAddress("localhost", 8115);
+		SocketAddress rcv = new InetSocketAddress("localhost", 8116);
+		Session sender = SessionFactory.build().createSession(snd,
+				SocketType.UDP);
+		Session receiver = SessionFactory.build().createSession(rcv,
+				SocketType.UDP);
+		Transaction out = sender.beginTransaction();
+		Transaction in = receiver.beginTransaction();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+		SocketInfo first = null;
+		for (int i = 0; i < 10; i++)
+		{
+			out.send(rcv, String.format("%d:datagram", i));
+			buffer.clear();
+			SocketInfo si = in.receive(buffer);
+			buffer.flip();
+			byte[] b = new byte[buffer.remaining()];
+			buffer.get(b);
+			assertEquals(String.format("%d:datagram", i), new String(b));
+			if (first == null)
+				first = si;
+			assertTrue(first == si);
+		}
+		assertEquals(8115, ((InetSocketAddress) first.getAddress()).getPort());
+		// the heap buffer is received at its position
+		ByteBuffer heap = ByteBuffer.allocate(64);
+		heap.position(4);
+		out.send(rcv, "heap");
+		in.receive(heap);
+		assertEquals(8, heap.position());
+		assertEquals("heap", new String(heap.array(), 4, 4));
+		sender.close();
+		receiver.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionUDP#receiveBatch(DatagramBatch, int)}.
+	 * <p>
+	 * A burst of datagrams is queued before receiving, thus, each batch is
+	 * filled up except the last one.
+	 * </p>
+	 */
+	@Test
+	public final void testReceiveBatch() throws Exception
+	{
+		SocketAddress snd = new InetSocketAddress("localhost", 8117);
+		SocketAddress rcv = new InetSocketAddress("localhost", 8118);
+		Session sender = SessionFactory.build().createSession(snd,
+				SocketType.UDP);
+		Session receiver = SessionFactory.build().createSession(rcv,
+				SocketType.UDP);
+		Transaction out = sender.beginTransaction();
+		TransactionUDP in = (TransactionUDP) receiver.beginTransaction();
+		for (int i = 0; i < 20; i++)
+			out.send(rcv, new byte[i + 1]);
+		DatagramBatch batch = new DatagramBatch(8, 64);
+		int[] counts = { 8, 8, 4 };
+		int received = 0;
+		for (int count : counts)
+		{
+			assertEquals(count, in.receiveBatch(batch));
+			assertEquals(count, batch.getCount());
+			for (int i = 0; i < count; i++)
+			{
+				received++;
+				assertEquals(received, batch.getLength(i));
+				assertEquals(received, batch.getBuffer(i).remaining());
+				assertTrue(batch.getSource(0) == batch.getSource(i));
+			}
+		}
+		// the maximum number of the datagrams
+		for (int i = 0; i < 3; i++)
+			out.send(rcv, new byte[1]);
+		assertEquals(2, in.receiveBatch(batch, 2));
+		assertEquals(1, in.receiveBatch(batch));
+		// the channel is blocking again
+		out.send(rcv, new byte[1]);
+		SocketInfo si = in.receive(ByteBuffer.allocate(4));
+		assertEquals(8117, ((InetSocketAddress) si.getAddress()).getPort());
+		// each slot holds a reassembled message under the fragmentation
+		TransactionUDP fragments = new TransactionUDP(
+				((SessionUDP) sender).getSocket(), 1200,
+				TransactionUDP.Policy.Fragmentation)
+		{
+		};
+		in.setPolicy(TransactionUDP.Policy.Fragmentation);
+		for (int i = 0; i < 3; i++)
+			fragments.send(rcv, new byte[3000 + i]);
+		batch = new DatagramBatch(8, 4096);
+		received = 0;
+		while (received < 3)
+		{
+			int n = in.receiveBatch(batch);
+			for (int i = 0; i < n; i++)
+				assertEquals(3000 + received++, batch.getLength(i));
+		}
+		sender.close();
+		receiver.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionUDP#sendBatch(ByteBuffer, SocketAddress[], Throwable[])}
+	 * .
+	 * <p>
+	 * One datagram is sent to several subscribers, one of which is
+	 * unresolved and fails alone.
+	 * </p>
+	 */
+	@Test
+	public final void testSendBatch() throws Exception
+	{
+		Session sender = SessionFactory.build().createSession(
+				new InetSocketAddress("localhost", 8119), SocketType.UDP);
+		TransactionUDP out = (TransactionUDP) sender.beginTransaction();
+		Session[] subscribers = new Session[3];
+		SocketAddress[] targets = new SocketAddress[subscribers.length + 1];
+		for (int i = 0; i < subscribers.length; i++)
+		{
+			targets[i] = new InetSocketAddress("localhost", 8120 + i);
+			subscribers[i] = SessionFactory.build().createSession(targets[i],
+					SocketType.UDP);
+		}
+		targets[subscribers.length] = InetSocketAddress.createUnresolved(
+				"unknown.invalid", 8123);
+		Throwable[] failures = new Throwable[targets.length];
+		ByteBuffer buffer = ByteBuffer.wrap("telemetry".getBytes());
+		assertEquals(3, out.sendBatch(buffer, targets, failures));
+		assertEquals(0, buffer.remaining());
+		for (int i = 0; i < subscribers.length; i++)
+		{
+			assertNull(failures[i]);
+			ByteBuffer b = ByteBuffer.allocate(64);
+			subscribers[i].beginTransaction().receive(b);
+			assertEquals("telemetry", new String(b.array(), 0, b.position()));
+		}
+		assertTrue(failures[subscribers.length] != null);
+		// the pairs of the addresses and the buffers
+		ByteBuffer[] buffers = new ByteBuffer[subscribers.length];
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = ByteBuffer.wrap(new byte[i + 1]);
+		assertEquals(3, out.sendBatch(
+				Arrays.copyOf(targets, subscribers.length), buffers, null));
+		for (int i = 0; i < subscribers.length; i++)
+		{
+			ByteBuffer b = ByteBuffer.allocate(64);
+			subscribers[i].beginTransaction().receive(b);
+			assertEquals(i + 1, b.position());
+			subscribers[i].close();
+		}
+		sender.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionUDP#receive(ByteBuffer...)}.
+	 */
+	@Test
+	public final void testScatter() throws Exception
+	{
+		SocketAddress rcv = new InetSocketAddress("localhost", 8143);
+		Session sender = SessionFactory.build().createSession(
+				new InetSocketAddress("localhost", 8142), SocketType.UDP);
+		Session receiver = SessionFactory.build().createSession(rcv,
+				SocketType.UDP);
+		TransactionUDP out = (TransactionUDP) sender.beginTransaction();
+		TransactionUDP in = (TransactionUDP) receiver.beginTransaction();
+		byte[] datagram = new byte[1000];
+		for (int i = 0; i < datagram.length; i++)
+			datagram[i] = (byte) i;
+		// each buffer is filled before the next one
+		out.send(rcv, datagram);
+		ByteBuffer header = ByteBuffer.allocate(8);
+		ByteBuffer body = ByteBuffer.allocateDirect(2000);
+		SocketInfo si = in.receive(header, body);
+		assertEquals(8142, ((InetSocketAddress) si.getAddress()).getPort());
+		assertEquals(8, header.position());
+		assertEquals(992, body.position());
+		assertEquals(7, header.get(7));
+		assertEquals(8, body.get(0));
+		assertEquals((byte) 999, body.get(991));
+		sender.close();
+		receiver.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionUDP#send(SocketAddress, ByteBuffer...)}
+	 * .
+	 * <p>
+	 * The buffers are gathered into one datagram both by the channel of the
+	 * connected socket and by the internal buffer, while the message to
+	 * fragment is gathered into a temporary buffer.
+	 * </p>
+	 */
+	@Test
+	public final void testGatheringSend() throws Exception
+	{
+		SocketAddress rcv = new InetSocketAddress("localhost", 8138);
+		Session sender = SessionFactory.build().createSession(
+				new InetSocketAddress("localhost", 8137), SocketType.UDP);
+		Session receiver = SessionFactory.build().createSession(rcv,
+				SocketType.UDP);
+		TransactionUDP out = (TransactionUDP) sender.beginTransaction();
+		TransactionUDP in = (TransactionUDP) receiver.beginTransaction();
+		ByteBuffer buffer = ByteBuffer.allocate(TransactionUDP.MAX_UDP_PACKET);
+		// the internal gathering buffer
+		out.send(rcv, ByteBuffer.wrap(new byte[] { 1, 2 }),
+				ByteBuffer.allocateDirect(3), ByteBuffer.wrap(new byte[] { 3 }));
+		in.receive(buffer);
+		assertEquals(6, buffer.position());
+		assertEquals(2, buffer.get(1));
+		assertEquals(0, buffer.get(4));
+		assertEquals(3, buffer.get(5));
+		// too large for the exception policy, nothing is consumed
+		out.setPolicy(TransactionUDP.Policy.Exception);
+		ByteBuffer head = ByteBuffer.allocate(out.getMaxLength());
+		try
+		{
+			out.send(rcv, head, ByteBuffer.allocate(1));
+			fail("The datagram larger than the maximum length shall be refused.");
+		}
+		catch (TransactionException e)
+		{
+			// expected
+		}
+		assertEquals(out.getMaxLength(), head.remaining());
+		// the message to fragment
+		out.setPolicy(TransactionUDP.Policy.Fragmentation);
+		in.setPolicy(TransactionUDP.Policy.Fragmentation);
+		byte[] message = new byte[100000];
+		for (int i = 0; i < message.length; i++)
+			message[i] = (byte) i;
+		out.send(rcv, ByteBuffer.wrap(message, 0, 70000),
+				ByteBuffer.wrap(message, 70000, 30000));
+		ByteBuffer large = ByteBuffer.allocate(message.length);
+		in.receive(large);
+		assertTrue(Arrays.equals(message, large.array()));
+		// the gathering write of the connected channel
+		in.setPolicy(TransactionUDP.Policy.Exception);
+		((SessionUDP) sender).getSocket().connect(rcv);
+		TransactionUDP connected = (TransactionUDP) sender.beginTransaction();
+		connected.send(ByteBuffer.wrap(new byte[] { 4 }),
+				ByteBuffer.wrap(new byte[] { 5, 6 }));
+		buffer.clear();
+		in.receive(buffer);
+		assertEquals(3, buffer.position());
+		assertEquals(6, buffer.get(2));
+		sender.close();
+		receiver.close();
+	}
+
+	/**
+	 * Test method for {@link com.frank.mpnet.TransactionUDP.Policy#Fragmentation}.
+	 * <p>
+	 * A large message is fragmented and reassembled, then the fragments built
+	 * by hand arrive out of order, duplicated, incomplete or malformed.
+	 * </p>
+	 */
+	@Test
+	public final void testFragmentation() throws Exception
+	{
+		SocketAddress rcv = new InetSocketAddress("localhost", 8125);
+		Session sender = SessionFactory.build().createSession(
+				new InetSocketAddress("localhost", 8124), SocketType.UDP);
+		Session receiver = SessionFactory.build().createSession(rcv,
+				SocketType.UDP);
+		TransactionUDP out = (TransactionUDP) sender.beginTransaction();
+		TransactionUDP in = (TransactionUDP) receiver.beginTransaction();
+		out.setPolicy(TransactionUDP.Policy.Fragmentation);
+		in.setPolicy(TransactionUDP.Policy.Fragmentation);
+		byte[] message = new byte[100000];
+		for (int i = 0; i < message.length; i++)
+			message[i] = (byte) i;
+		out.send(rcv, message);
+		ByteBuffer buffer = ByteBuffer.allocate(message.length);
+		in.receive(buffer);
+		assertTrue(Arrays.equals(message, buffer.array()));
+		// the fragments out of order and duplicated
+		out.setPolicy(TransactionUDP.Policy.Exception);
+		out.send(rcv, fragment(7, 10, 2, 3));
+		out.send(rcv, fragment(7, 10, 0, 3));
+		out.send(rcv, fragment(7, 10, 0, 3));
+		out.send(rcv, fragment(7, 10, 1, 3));
+		buffer = ByteBuffer.allocate(64);
+		in.receive(buffer);
+		assertEquals(10, buffer.position());
+		for (int i = 0; i < 10; i++)
+			assertEquals(i, buffer.get(i));
+		// the incomplete message is evicted and the malformed one dropped
+		in.setReassembly(1 << 20, 50, TimeUnit.MILLISECONDS);
+		out.send(rcv, fragment(8, 10, 0, 3));
+		out.send(rcv, new byte[3]);
+		try
+		{
+			in.receive(buffer, 20, TimeUnit.MILLISECONDS);
+			fail("The receiving shall time out.");
+		}
+		catch (TransactionTimeoutException e)
+		{
+			// expected
+		}
+		Thread.sleep(100);
+		out.send(rcv, fragment(9, 10, 0, 2));
+		out.send(rcv, fragment(9, 10, 1, 2));
+		buffer.clear();
+		in.receive(buffer);
+		assertEquals(10, buffer.position());
+		assertEquals(1, in.getEvictedMessageCount());
+		assertEquals(1, in.getDroppedFragmentCount());
+		sender.close();
+		receiver.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionUDP#setErrorCorrection(ErrorCorrection)}
+	 * .
+	 */
+	@Test
+	public final void testErrorCorrection() throws Exception
+	{
+		SocketAddress relay = new InetSocketAddress("localhost", 8128);
+		SocketAddress rcv = new InetSocketAddress("localhost", 8129);
+		SessionUDP sender = new SessionUDP();
+		SessionUDP receiver = new SessionUDP(rcv);
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind(relay);
+		// the fragments of 1184 bytes, 17 data fragments in 5 groups
+		TransactionUDP out = new TransactionUDP(sender.getSocket(), 1200,
+				TransactionUDP.Policy.Fragmentation)
+		{
+		};
+		TransactionUDP in = (TransactionUDP) receiver.beginTransaction();
+		in.setPolicy(TransactionUDP.Policy.Fragmentation);
+		byte[] message = new byte[20000];
+		for (int i = 0; i < message.length; i++)
+			message[i] = (byte) (i * 7);
+		ByteBuffer buffer = ByteBuffer.allocate(message.length);
+		// two of each 4 data fragments are lost and rebuilt
+		out.setErrorCorrection(ErrorCorrection.reedSolomon(4, 2));
+		out.send(relay, message);
+		relay(channel, rcv, 27, 6, 0, 2);
+		in.receive(buffer);
+		assertTrue(Arrays.equals(message, buffer.array()));
+		assertEquals(9, in.getRecoveredFragmentCount());
+		// one of each 4 data fragments is lost and rebuilt
+		out.setErrorCorrection(ErrorCorrection.xor(4));
+		out.send(relay, message);
+		relay(channel, rcv, 22, 5, 1);
+		buffer.clear();
+		in.receive(buffer);
+		assertTrue(Arrays.equals(message, buffer.array()));
+		assertEquals(13, in.getRecoveredFragmentCount());
+		assertEquals(0, in.getDroppedFragmentCount());
+		// the forged fragment of more shards than the coder is dropped
+		ByteBuffer forged = ByteBuffer.allocate(1200);
+		forged.putInt(1).putInt(0x80000000 | 20000).putShort((short) 0)
+				.putShort((short) 17).put((byte) 2).put((byte) 200)
+				.put((byte) 100).put((byte) 0).position(16 + 1177).flip();
+		channel.send(forged, rcv);
+		try
+		{
+			in.receive(buffer, 200, TimeUnit.MILLISECONDS);
+			fail("The forged fragment shall be dropped.");
+		}
+		catch (TransactionTimeoutException e)
+		{
+			assertEquals(1, in.getDroppedFragmentCount());
+		}
+		// the correction of the session
+		sender.setErrorCorrection(ErrorCorrection.xor(8));
+		out = (TransactionUDP) sender.beginTransaction();
+		assertEquals(8, out.getErrorCorrection().getDataShards());
+		channel.close();
+		sender.close();
+		receiver.close();
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.frank.mpnet.TransactionUDP#setPathMtuDiscovery(boolean)}.
+	 */
+	@Test
+	public final void testPathMtu() throws Exception
+	{
+		PathMtuCache cache = new PathMtuCache(1, TimeUnit.MINUTES);
+		SocketAddress peer = new InetSocketAddress("192.0.2.1", 9);
+		cache.setMtu(peer, 1400);
+		assertEquals(1372, cache.getMaxPayload(peer));
+		cache.reduceMtu(peer, 1480);
+		assertEquals(1400, cache.getMtu(peer));
+		cache.reduceMtu(peer, 1300);
+		assertEquals(1300, cache.getMtu(peer));
+		cache.setMtu(peer, 100);
+		assertEquals(PathMtuCache.MIN_IPV4_MTU, cache.getMtu(peer));
+		// the loopback is discovered from its interface in background
+		SocketAddress loopback = new InetSocketAddress("127.0.0.1", 9);
+		assertEquals(PathMtuCache.DEFAULT_MTU, cache.getMtu(loopback));
+		long deadline = System.currentTimeMillis() + 2000;
+		while (cache.getMtu(loopback) == PathMtuCache.DEFAULT_MTU
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertTrue(cache.getMtu(loopback) >= PathMtuCache.MIN_IPV4_MTU);
+		// the full cache evicts the entry closest to expiring only
+		cache.clear();
+		for (int i = 0; i <= 4096; i++)
+			cache.setMtu(new InetSocketAddress(InetAddress.getByAddress(new byte[] {
+					10, 0, (byte) (i >> 8), (byte) i }), 9), 1400);
+		assertEquals(PathMtuCache.DEFAULT_MTU, cache.getMtu(
+				new InetSocketAddress("10.0.0.0", 9)));
+		assertEquals(1400, cache.getMtu(new InetSocketAddress("10.0.0.1", 9)));
+		assertEquals(1400, cache.getMtu(new InetSocketAddress("10.0.16.0", 9)));
+		// the subcontracted datagrams fit the path MTU
+		SocketAddress rcv = new InetSocketAddress("localhost", 8130);
+		SessionUDP sender = new SessionUDP();
+		SessionUDP receiver = new SessionUDP(rcv);
+		sender.setPathMtuDiscovery(true);
+		TransactionUDP out = (TransactionUDP) sender.beginTransaction();
+		TransactionUDP in = (TransactionUDP) receiver.beginTransaction();
+		PathMtuCache.getShared().setMtu(rcv, 1028);
+		out.send(rcv, new byte[5000]);
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		for (int i = 0; i < 5; i++)
+		{
+			buffer.clear();
+			in.receive(buffer);
+			assertEquals(1000, buffer.position());
+		}
+		out.setPathMtuDiscovery(false);
+		out.send(rcv, new byte[5000]);
+		buffer.clear();
+		in.receive(buffer);
+		assertEquals(5000, buffer.position());
+		PathMtuCache.getShared().clear();
+		sender.close();
+		receiver.close();
+	}
+
+	/**
+	 * Relays the datagrams and drops some of each cycle.
+	 * 
+	 * @param channel
+	 *            the channel of the relay
+	 * @param target
+	 *            the socket address to relay to
+	 * @param count
+	 *            the number of the datagrams
+	 * @param cycle
+	 *            the length of the cycle
+	 * @param drops
+	 *            the indices in the cycle of the dropped datagrams
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	static void relay(DatagramChannel channel, SocketAddress target,
+			int count, int cycle, int... drops) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(2048);
+		for (int i = 0; i < count; i++)
+		{
+			buffer.clear();
+			channel.receive(buffer);
+			buffer.flip();
+			boolean drop = false;
+			for (int j : drops)
+				drop |= i % cycle == j;
+			if (!drop)
+				channel.send(buffer, target);
+		}
+	}
+
+	/**
+	 * Returns a fragment built by hand, whose payload is the offsets in the
+	 * message.
+	 * 
+	 * @param id
+	 *            the message ID
+	 * @param length
+	 *            the message length
+	 * @param index
+	 *            the fragment index
+	 * @param count
+	 *            the fragment count
+	 * @return the fragment
+	 */
+	static byte[] fragment(int id, int length, int index, int count)
+	{
+		int size = (length + count - 1) / count;
+		int offset = size * index;
+		int n = Math.min(size, length - offset);
+		ByteBuffer buffer = ByteBuffer.allocate(12 + n);
+		buffer.putInt(id).putInt(length).putShort((short) index)
+				.putShort((short) count);
+		for (int i = 0; i < n; i++)
+			buffer.put((byte) (offset + i));
+		return buffer.array();
+	}
+
 	/**
 	 * Create receive thread.
 	 * 